@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.platform.internal;
+
+import android.app.NotificationGroup;
+import android.util.ArrayMap;
+
+import java.util.UUID;
+
+/**
+ * Maps package names and group names to the notification groups holding them, so that the
+ * lookups made for every notification posted do not scan all groups. The index is updated as
+ * groups are added, changed and removed.
+ *
+ * A package may be listed by several groups; lookups return the group that has listed it the
+ * longest, and fall back to the next one when that group is removed.
+ *
+ * The index is part of a {@link ProfileState} and has no lock of its own: it is only changed
+ * while the state holding it is being built, and only read once that state is published.
+ */
+final class NotificationGroupIndex {
+
+    // Groups by package name, in the order they were indexed
+    private final ArrayMap<String, NotificationGroup[]> mByPackage;
+
+    // Groups by case folded name, see foldCase(), in the order they were indexed
+    private final ArrayMap<String, NotificationGroup[]> mByName;
+
+    // Indexed groups by UUID, to drop their entries when they change
+    private final ArrayMap<UUID, NotificationGroup> mGroups;
+
+    NotificationGroupIndex() {
+        mByPackage = new ArrayMap<>();
+        mByName = new ArrayMap<>();
+        mGroups = new ArrayMap<>();
+    }
+
+    /**
+     * Copies an index. The arrays of groups are shared, as changes replace them.
+     */
+    NotificationGroupIndex(NotificationGroupIndex other) {
+        mByPackage = new ArrayMap<>(other.mByPackage);
+        mByName = new ArrayMap<>(other.mByName);
+        mGroups = new ArrayMap<>(other.mGroups);
+    }
+
+    /**
+     * Gets the group holding a package.
+     * @return the group, or null if no group holds the package
+     */
+    NotificationGroup getForPackage(String pkg) {
+        final NotificationGroup[] groups = mByPackage.get(pkg);
+        return groups != null ? groups[0] : null;
+    }
+
+    /**
+     * Checks whether a group with a name exists, ignoring case.
+     */
+    boolean existsByName(String name) {
+        if (name == null) {
+            return false;
+        }
+        return mByName.containsKey(foldCase(name));
+    }
+
+    /**
+     * Adds a group, replacing any earlier version of it.
+     */
+    void put(NotificationGroup group) {
+        final String[] packages = group.getPackages();
+        remove(group.getUuid());
+        mGroups.put(group.getUuid(), group);
+        for (String pkg : packages) {
+            append(mByPackage, pkg, group);
+        }
+        if (group.getName() != null) {
+            append(mByName, foldCase(group.getName()), group);
+        }
+    }
+
+    /**
+     * Removes a group.
+     */
+    void remove(UUID uuid) {
+        final NotificationGroup group = mGroups.remove(uuid);
+        if (group == null) {
+            return;
+        }
+        for (String pkg : group.getPackages()) {
+            drop(mByPackage, pkg, group);
+        }
+        if (group.getName() != null) {
+            drop(mByName, foldCase(group.getName()), group);
+        }
+    }
+
+    /**
+     * Folds the case of a name so that two names have the same key exactly when
+     * {@link String#equalsIgnoreCase(String)} holds for them, which compares char by char.
+     */
+    private static String foldCase(String name) {
+        final char[] chars = name.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+        }
+        return new String(chars);
+    }
+
+    private static void append(ArrayMap<String, NotificationGroup[]> map, String key,
+            NotificationGroup group) {
+        final NotificationGroup[] old = map.get(key);
+        if (old == null) {
+            map.put(key, new NotificationGroup[] { group });
+            return;
+        }
+        for (NotificationGroup g : old) {
+            if (g == group) {
+                return;
+            }
+        }
+        final NotificationGroup[] updated = new NotificationGroup[old.length + 1];
+        System.arraycopy(old, 0, updated, 0, old.length);
+        updated[old.length] = group;
+        map.put(key, updated);
+    }
+
+    private static void drop(ArrayMap<String, NotificationGroup[]> map, String key,
+            NotificationGroup group) {
+        final NotificationGroup[] old = map.get(key);
+        if (old == null) {
+            return;
+        }
+        int n = 0;
+        final NotificationGroup[] updated = new NotificationGroup[old.length];
+        for (NotificationGroup g : old) {
+            if (g != group) {
+                updated[n++] = g;
+            }
+        }
+        if (n == 0) {
+            map.remove(key);
+        } else if (n < old.length) {
+            final NotificationGroup[] trimmed = new NotificationGroup[n];
+            System.arraycopy(updated, 0, trimmed, 0, n);
+            map.put(key, trimmed);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.platform.internal;
+
+import android.content.Context;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.ParcelUuid;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.policy.IKeyguardService;
+
+import lineageos.app.IProfileApplyCallback;
+import lineageos.app.Profile;
+import lineageos.app.ProfileManager;
+
+/**
+ * Applies selected profiles to the device on its own thread, so that selecting a profile
+ * returns as soon as the active profile has changed.
+ *
+ * Only the latest selection matters: one waiting to start is dropped when another comes in,
+ * and one being applied is cancelled, so a burst of switches applies a single profile.
+ * Progress is reported to the registered {@link IProfileApplyCallback}s with the
+ * {@code ProfileManager.PROFILE_APPLY_*} states.
+ */
+final class ProfileApplier {
+    private static final String TAG = "ProfileApplier";
+    private static final boolean LOCAL_LOGV = false;
+
+    private static final int MSG_APPLY = 1;
+    private static final int MSG_REPORT = 2;
+
+    // Most callbacks a single uid may have registered at once
+    private static final int MAX_CALLBACKS_PER_UID = 10;
+
+    /**
+     * Told when a selection announced by {@link #apply} has been applied.
+     */
+    interface Listener {
+        /**
+         * @param profile the profile that was selected
+         * @param lastProfile the profile that was active before it
+         */
+        void onProfileSelected(Profile profile, Profile lastProfile);
+    }
+
+    private static final class Request {
+        final Profile mProfile;
+        final IKeyguardService mKeyguardService;
+        final CancellationSignal mCancellationSignal = new CancellationSignal();
+        Profile mLastProfile;
+        boolean mNotify;
+
+        Request(Profile profile, Profile lastProfile, boolean notify,
+                IKeyguardService keyguardService) {
+            mProfile = profile;
+            mLastProfile = lastProfile;
+            mNotify = notify;
+            mKeyguardService = keyguardService;
+        }
+
+        /**
+         * Takes over the announcement of a request that will not finish.
+         */
+        void inheritNotify(Request stale) {
+            if (stale.mNotify) {
+                if (!mNotify) {
+                    mNotify = true;
+                    mLastProfile = stale.mLastProfile;
+                } else if (stale.mLastProfile != null) {
+                    // The stale profile was never announced, so it is skipped
+                    mLastProfile = stale.mLastProfile;
+                }
+                stale.mNotify = false;
+            }
+        }
+    }
+
+    private final Context mContext;
+    private final Listener mListener;
+    private final Handler mHandler;
+
+    // Registered with the uid of their owner as cookie. Registrations lock on the list.
+    private final RemoteCallbackList<IProfileApplyCallback> mCallbacks =
+            new RemoteCallbackList<>();
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private Request mPending;
+
+    @GuardedBy("mLock")
+    private Request mRunning;
+
+    ProfileApplier(Context context, Looper looper, Listener listener) {
+        mContext = context;
+        mListener = listener;
+        mHandler = new Handler(looper, mHandlerCallback);
+    }
+
+    /**
+     * Queues a profile to be applied, replacing any selection that has not been applied yet.
+     * @param profile the profile to apply
+     * @param lastProfile the profile that was active before it, for the announcement
+     * @param notify whether to announce the selection once the profile is applied
+     * @param keyguardService the keyguard to apply the lock screen mode to, or null
+     */
+    void apply(Profile profile, Profile lastProfile, boolean notify,
+            IKeyguardService keyguardService) {
+        final Request request = new Request(profile, lastProfile, notify, keyguardService);
+        synchronized (mLock) {
+            if (mPending != null) {
+                if (LOCAL_LOGV) Log.v(TAG, "Dropping pending " + mPending.mProfile.getName());
+                request.inheritNotify(mPending);
+                report(mPending.mProfile, ProfileManager.PROFILE_APPLY_SUPERSEDED);
+            } else {
+                mHandler.sendEmptyMessage(MSG_APPLY);
+            }
+            if (mRunning != null && !mRunning.mCancellationSignal.isCanceled()) {
+                if (LOCAL_LOGV) Log.v(TAG, "Cancelling " + mRunning.mProfile.getName());
+                request.inheritNotify(mRunning);
+                mRunning.mCancellationSignal.cancel();
+            }
+            mPending = request;
+        }
+    }
+
+    /**
+     * Registers a callback for the progress reports.
+     * @param uid the uid registering the callback
+     * @throws IllegalStateException if the uid has too many callbacks registered already
+     */
+    void registerCallback(IProfileApplyCallback callback, int uid) {
+        synchronized (mCallbacks) {
+            int owned = 0;
+            for (int i = mCallbacks.getRegisteredCallbackCount() - 1; i >= 0; i--) {
+                if (mCallbacks.getRegisteredCallbackItem(i).asBinder() == callback.asBinder()) {
+                    // Already registered
+                    return;
+                }
+                if (Integer.valueOf(uid).equals(mCallbacks.getRegisteredCallbackCookie(i))) {
+                    owned++;
+                }
+            }
+            if (owned >= MAX_CALLBACKS_PER_UID) {
+                throw new IllegalStateException("Uid " + uid + " has " + owned
+                        + " profile apply callbacks registered already");
+            }
+            mCallbacks.register(callback, uid);
+        }
+    }
+
+    void unregisterCallback(IProfileApplyCallback callback) {
+        mCallbacks.unregister(callback);
+    }
+
+    private void applyPending() {
+        final Request request;
+        synchronized (mLock) {
+            request = mPending;
+            mPending = null;
+            mRunning = request;
+        }
+        if (request == null) {
+            return;
+        }
+
+        final Profile profile = request.mProfile;
+        report(profile, ProfileManager.PROFILE_APPLY_STARTED);
+        try {
+            profile.doSelect(mContext, request.mKeyguardService, request.mCancellationSignal);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to apply profile " + profile.getName(), e);
+        }
+
+        final boolean cancelled;
+        final boolean notify;
+        synchronized (mLock) {
+            mRunning = null;
+            cancelled = request.mCancellationSignal.isCanceled();
+            notify = request.mNotify;
+        }
+        report(profile, cancelled
+                ? ProfileManager.PROFILE_APPLY_CANCELLED
+                : ProfileManager.PROFILE_APPLY_COMPLETED);
+        if (notify) {
+            mListener.onProfileSelected(profile, request.mLastProfile);
+        }
+    }
+
+    private void report(Profile profile, int state) {
+        mHandler.obtainMessage(MSG_REPORT, state, 0, new ParcelUuid(profile.getUuid()))
+                .sendToTarget();
+    }
+
+    private void dispatchReport(ParcelUuid profileUuid, int state) {
+        final int count = mCallbacks.beginBroadcast();
+        try {
+            for (int i = 0; i < count; i++) {
+                try {
+                    mCallbacks.getBroadcastItem(i).onProfileApplyProgress(profileUuid, state);
+                } catch (RemoteException e) {
+                    // The list drops dead callbacks itself
+                }
+            }
+        } finally {
+            mCallbacks.finishBroadcast();
+        }
+    }
+
+    private final Handler.Callback mHandlerCallback = new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_APPLY:
+                    applyPending();
+                    return true;
+                case MSG_REPORT:
+                    dispatchReport((ParcelUuid) msg.obj, msg.arg1);
+                    return true;
+            }
+            return false;
+        }
+    };
+}
@@ -25,9 +25,16 @@ import android.database.ContentObserver;
 import android.net.Uri;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
+import android.os.Build;
 import android.os.Message;
+import android.os.Parcel;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.util.ArraySet;
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.policy.IKeyguardService;
+import com.android.server.ServiceThread;
 import lineageos.providers.LineageSettings;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -53,17 +60,19 @@ import lineageos.app.LineageContextConstants;
 import lineageos.app.Profile;
 import lineageos.app.ProfileGroup;
 import lineageos.app.ProfileManager;
+import lineageos.app.ProfileSummary;
+import lineageos.app.IProfileApplyCallback;
 import lineageos.app.IProfileManager;
 
 import java.util.Collection;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
@@ -82,14 +91,18 @@ public class ProfileManagerService extends LineageSystemService {
 
     private static final int MSG_SEND_PROFILE_STATE = 10;
 
-    private Map<UUID, Profile> mProfiles;
+    // Serializes the changes to the profile state, and guards it against the persister
+    // reading it
+    private final Object mLock = new Object();
 
-    // Match UUIDs and names, used for reverse compatibility
-    private Map<String, UUID> mProfileNames;
+    // The current profiles, groups and active profile. Readers take it without locking;
+    // changes build a new state under mLock and swap it in, see publishStateLocked
+    private volatile ProfileState mState = new ProfileState().freeze();
 
-    private Map<UUID, NotificationGroup> mGroups;
-
-    private Profile mActiveProfile;
+    // Generation of the profile state, published to the ProfileManager caches of all processes
+    private final Object mGenerationLock = new Object();
+    @GuardedBy("mGenerationLock")
+    private long mStateGeneration;
 
     // Well-known UUID of the wildcard group
     private static final UUID mWildcardUUID =
@@ -98,10 +111,13 @@ public class ProfileManagerService extends LineageSystemService {
 
     private Context mContext;
     private Handler mHandler;
-    private boolean mDirty;
+    private final ServiceThread mPersistThread;
+    private final ProfilePersister mPersister;
+    private final ServiceThread mApplyThread;
+    private final ProfileApplier mApplier;
     private BackupManager mBackupManager;
     private ProfileTriggerHelper mTriggerHelper;
-    private Profile mEmptyProfile;
+    private volatile Profile mEmptyProfile;
 
     private Runnable mBindKeyguard = new Runnable() {
         @Override
@@ -132,10 +148,10 @@ public class ProfileManagerService extends LineageSystemService {
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
             if (action.equals(Intent.ACTION_LOCALE_CHANGED)) {
-                persistIfDirty();
+                mPersister.flush();
                 initialize();
             } else if (action.equals(Intent.ACTION_SHUTDOWN)) {
-                persistIfDirty();
+                mPersister.flush();
             }
         }
     };
@@ -148,6 +164,8 @@ public class ProfileManagerService extends LineageSystemService {
                     Intent newState = new Intent(ProfileManager.PROFILES_STATE_CHANGED_ACTION);
                     newState.putExtra(ProfileManager.EXTRA_PROFILES_STATE, msg.arg1);
 
+                    // Whether profiles are enabled changes what getActiveProfile returns
+                    bumpStateGeneration();
                     mContext.sendBroadcastAsUser(newState, UserHandle.ALL);
 
                     if (ProfileManager.PROFILES_STATE_ENABLED == msg.arg1) {
@@ -160,10 +178,11 @@ public class ProfileManagerService extends LineageSystemService {
     };
 
     private void maybeApplyActiveProfile() {
+        final Profile activeProfile = mState.getActiveProfile();
         final List<Profile.ProfileTrigger> wiFiTriggers
-                = mActiveProfile.getTriggersFromType(Profile.TriggerType.WIFI);
+                = activeProfile.getTriggersFromType(Profile.TriggerType.WIFI);
         final List<Profile.ProfileTrigger> blueToothTriggers
-                = mActiveProfile.getTriggersFromType(Profile.TriggerType.BLUETOOTH);
+                = activeProfile.getTriggersFromType(Profile.TriggerType.BLUETOOTH);
 
         boolean selectProfile = false;
         if (wiFiTriggers.size() == 0 && blueToothTriggers.size() == 0) {
@@ -196,7 +215,7 @@ public class ProfileManagerService extends LineageSystemService {
             }
         }
 
-        if (selectProfile) mActiveProfile.doSelect(mContext, mKeyguardService);
+        if (selectProfile) mApplier.apply(activeProfile, null, false, mKeyguardService);
     }
 
     private String removeDoubleQuotes(String string) {
@@ -233,10 +252,87 @@ public class ProfileManagerService extends LineageSystemService {
         }
     }
 
+    private final ProfilePersister.Callback mPersisterCallback = new ProfilePersister.Callback() {
+        @Override
+        public boolean writeProfileXml(UUID uuid, StringBuilder builder) {
+            Profile profile = mState.getProfile(uuid);
+            if (profile == null) {
+                return false;
+            }
+            profile.getXmlString(builder, mContext);
+            return true;
+        }
+
+        @Override
+        public boolean writeGroupXml(UUID uuid, StringBuilder builder) {
+            NotificationGroup group = mState.getGroup(uuid);
+            if (group == null) {
+                return false;
+            }
+            group.getXmlString(builder, mContext);
+            return true;
+        }
+
+        @Override
+        public UUID getActiveProfileUuid() {
+            final Profile activeProfile = mState.getActiveProfile();
+            return activeProfile != null ? activeProfile.getUuid() : null;
+        }
+
+        @Override
+        public void writeXml(StringBuilder builder) {
+            getXmlString(builder);
+        }
+
+        @Override
+        public void writeSnapshot(Parcel parcel) {
+            final ProfileState state = mState;
+            final UUID activeUuid = state.getActiveProfile().getUuid();
+            parcel.writeLong(activeUuid.getMostSignificantBits());
+            parcel.writeLong(activeUuid.getLeastSignificantBits());
+            parcel.writeInt(state.getProfileCount());
+            for (Profile p : state.getProfiles()) {
+                p.writeToParcel(parcel, 0);
+            }
+            final Collection<NotificationGroup> groups = state.getGroups();
+            parcel.writeInt(groups.size());
+            for (NotificationGroup g : groups) {
+                g.writeToParcel(parcel, 0);
+            }
+        }
+
+        @Override
+        public String getSnapshotStamp() {
+            return getSnapshotStampInternal();
+        }
+
+        @Override
+        public void onCompacted() {
+            mBackupManager.dataChanged();
+        }
+    };
+
     public ProfileManagerService(Context context) {
         super(context);
         mContext = context;
         mHandler = new Handler(mHandlerCallback);
+
+        mPersistThread = new ServiceThread(TAG,
+                Process.THREAD_PRIORITY_BACKGROUND, true /*allowIo*/);
+        mPersistThread.start();
+        mPersister = new ProfilePersister(PROFILE_FILE, new Handler(mPersistThread.getLooper()),
+                mLock, mPersisterCallback);
+
+        mApplyThread = new ServiceThread(TAG + "Apply",
+                Process.THREAD_PRIORITY_DEFAULT, false /*allowIo*/);
+        mApplyThread.start();
+        mApplier = new ProfileApplier(context, mApplyThread.getLooper(),
+                this::sendProfileSelected);
+
+        // The property outlives a restart of the system server, so carry on from its value
+        // rather than reusing generations processes may have cached
+        mStateGeneration = SystemProperties.getLong(
+                ProfileManager.SYS_PROP_PROFILE_STATE_VERSION, 0);
     }
 
     @Override
@@ -301,30 +397,40 @@ public class ProfileManagerService extends LineageSystemService {
 
     private void initialize(boolean skipFile) {
         mTriggerHelper = new ProfileTriggerHelper(mContext, mHandler, this);
-        mProfiles = new HashMap<UUID, Profile>();
-        mProfileNames = new HashMap<String, UUID>();
-        mGroups = new HashMap<UUID, NotificationGroup>();
-        mEmptyProfile = new Profile("EmptyProfile");
-        mDirty = false;
-
-        boolean init = skipFile;
+        final Profile activeProfile;
+        synchronized (mLock) {
+            mEmptyProfile = new Profile("EmptyProfile");
+
+            // The state is loaded in full before it is published, readers keep seeing the
+            // previous one until then
+            ProfileState state = new ProfileState();
+            boolean init = skipFile;
+
+            if (!skipFile) {
+                try {
+                    state = loadFromFile();
+                } catch (XmlPullParserException e) {
+                    init = true;
+                } catch (IOException e) {
+                    init = true;
+                }
+            }
 
-        if (!skipFile) {
-            try {
-                loadFromFile();
-            } catch (XmlPullParserException e) {
-                init = true;
-            } catch (IOException e) {
-                init = true;
+            if (init) {
+                state = new ProfileState();
+                try {
+                    initialiseStructure(state);
+                } catch (Throwable ex) {
+                    Log.e(TAG, "Error loading xml from resource: ", ex);
+                }
             }
+            activeProfile = state.getActiveProfile();
+            publishStateLocked(state);
         }
 
-        if (init) {
-            try {
-                initialiseStructure();
-            } catch (Throwable ex) {
-                Log.e(TAG, "Error loading xml from resource: ", ex);
-            }
+        if (activeProfile != null && ActivityManagerNative.isSystemReady()) {
+            // The state was reloaded, with its own active profile: notify.
+            sendProfileUpdated(activeProfile);
         }
     }
 
@@ -345,7 +451,9 @@ public class ProfileManagerService extends LineageSystemService {
                 Log.w(TAG, "Unable to set active profile because profiles are disabled.");
                 return false;
             }
-            if (!mProfileNames.containsKey(profileName)) {
+            final ProfileState state = mState;
+            final UUID profileUuid = state.getProfileUuid(profileName);
+            if (profileUuid == null) {
                 // Since profileName could not be casted into a UUID, we can call it a string.
                 Log.w(TAG, "Unable to find profile to set active, based on string: " + profileName);
                 return false;
@@ -361,7 +469,7 @@ public class ProfileManagerService extends LineageSystemService {
              * - broadcast INTENT_ACTION_PROFILE_SELECTED
              */
             long token = clearCallingIdentity();
-            setActiveProfileInternal(mProfiles.get(mProfileNames.get(profileName)), true);
+            setActiveProfileInternal(state.getProfile(profileUuid), true);
             restoreCallingIdentity(token);
             return true;
         }
@@ -387,23 +495,24 @@ public class ProfileManagerService extends LineageSystemService {
         @Override
         public boolean addProfile(Profile profile) {
             enforceChangePermissions();
-            addProfileInternal(profile);
-            long token = clearCallingIdentity();
-            persistIfDirty();
-            restoreCallingIdentity(token);
+            synchronized (mLock) {
+                final ProfileState state = mState.edit();
+                addProfileInternal(state, profile);
+                mPersister.markProfileDirty(profile.getUuid());
+                publishStateLocked(state);
+            }
             return true;
         }
 
         @Override
         @Deprecated
         public Profile getProfileByName(String profileName) {
-            if (mProfileNames.containsKey(profileName)) {
-                return mProfiles.get(mProfileNames.get(profileName));
-            } else if (mProfiles.containsKey(UUID.fromString((profileName)))) {
-                return mProfiles.get(UUID.fromString(profileName));
-            } else {
-                return null;
+            final ProfileState state = mState;
+            final UUID profileUuid = state.getProfileUuid(profileName);
+            if (profileUuid != null) {
+                return state.getProfile(profileUuid);
             }
+            return state.getProfile(UUID.fromString(profileName));
         }
 
         @Override
@@ -414,9 +523,35 @@ public class ProfileManagerService extends LineageSystemService {
 
         @Override
         public Profile[] getProfiles() {
-            Profile[] profiles = getProfileList().toArray(new Profile[0]);
-            Arrays.sort(profiles);
-            return profiles;
+            return mState.getSortedProfiles().clone();
+        }
+
+        @Override
+        public int getProfileCount() {
+            return mState.getProfileCount();
+        }
+
+        @Override
+        public ProfileSummary[] getProfileSummaries(int offset, int limit) {
+            final ProfileState state = mState;
+            final Profile[] profiles = state.getSortedProfiles();
+            final int start = clampOffset(offset, profiles.length);
+            final int end = clampEnd(start, limit, profiles.length);
+            final UUID activeUuid = isEnabled() ? state.getActiveProfile().getUuid() : null;
+            final ProfileSummary[] summaries = new ProfileSummary[end - start];
+            for (int i = start; i < end; i++) {
+                final Profile profile = profiles[i];
+                summaries[i - start] = new ProfileSummary(profile,
+                        profile.getUuid().equals(activeUuid));
+            }
+            return summaries;
+        }
+
+        @Override
+        public Profile[] getProfilesInRange(int offset, int limit) {
+            final Profile[] profiles = mState.getSortedProfiles();
+            final int start = clampOffset(offset, profiles.length);
+            return Arrays.copyOfRange(profiles, start, clampEnd(start, limit, profiles.length));
         }
 
         @Override
@@ -431,37 +566,40 @@ public class ProfileManagerService extends LineageSystemService {
         @Override
         public boolean removeProfile(Profile profile) {
             enforceChangePermissions();
-            if (mProfileNames.remove(profile.getName()) != null
-                    && mProfiles.remove(profile.getUuid()) != null) {
-                mDirty = true;
-                long token = clearCallingIdentity();
-                persistIfDirty();
-                restoreCallingIdentity(token);
-                return true;
-            } else {
-                return false;
+            synchronized (mLock) {
+                final ProfileState state = mState.edit();
+                if (state.getProfileUuid(profile.getName()) != null
+                        && state.removeProfile(profile.getUuid()) != null) {
+                    mPersister.markProfileDirty(profile.getUuid());
+                    publishStateLocked(state);
+                    return true;
+                } else {
+                    return false;
+                }
             }
         }
 
         @Override
         public void updateProfile(Profile profile) {
             enforceChangePermissions();
-            Profile old = mProfiles.get(profile.getUuid());
+            final boolean active;
+            synchronized (mLock) {
+                final ProfileState state = mState.edit();
+                Profile old = state.getProfile(profile.getUuid());
 
-            if (old == null) {
-                return;
-            }
+                if (old == null) {
+                    return;
+                }
 
-            mProfileNames.remove(old.getName());
-            mProfileNames.put(profile.getName(), profile.getUuid());
-            mProfiles.put(profile.getUuid(), profile);
-            /* no need to set mDirty, if the profile was actually changed,
-             * it's marked as dirty by itself */
+                // Replaces the active profile as well if it is the one changed
+                active = state.getActiveProfile() == old;
+                state.putProfile(profile);
+                mPersister.markProfileDirty(profile.getUuid());
+                publishStateLocked(state);
+            }
             long token = clearCallingIdentity();
-            persistIfDirty();
-
             // Also update if we changed the active profile
-            if (mActiveProfile != null && mActiveProfile.getUuid().equals(profile.getUuid())) {
+            if (active) {
                 setActiveProfileInternal(profile, true);
             }
             restoreCallingIdentity(token);
@@ -469,14 +607,14 @@ public class ProfileManagerService extends LineageSystemService {
 
         @Override
         public boolean profileExists(ParcelUuid profileUuid) {
-            return mProfiles.containsKey(profileUuid.getUuid());
+            return mState.getProfile(profileUuid.getUuid()) != null;
         }
 
         @Override
         @Deprecated
         public boolean profileExistsByName(String profileName) {
-            for (Map.Entry<String, UUID> entry : mProfileNames.entrySet()) {
-                if (entry.getKey().equalsIgnoreCase(profileName)) {
+            for (String name : mState.getProfileNames()) {
+                if (name.equalsIgnoreCase(profileName)) {
                     return true;
                 }
             }
@@ -486,66 +624,68 @@ public class ProfileManagerService extends LineageSystemService {
         @Override
         @Deprecated
         public boolean notificationGroupExistsByName(String notificationGroupName) {
-            for (NotificationGroup group : mGroups.values()) {
-                if (group.getName().equalsIgnoreCase(notificationGroupName)) {
-                    return true;
-                }
-            }
-            return false;
+            return mState.getGroupIndex().existsByName(notificationGroupName);
         }
 
         @Override
         public NotificationGroup[] getNotificationGroups() {
-            return mGroups.values().toArray(new NotificationGroup[0]);
+            return mState.getGroups().toArray(new NotificationGroup[0]);
         }
 
         @Override
         public void addNotificationGroup(NotificationGroup group) {
             enforceChangePermissions();
-            addNotificationGroupInternal(group);
-            long token = clearCallingIdentity();
-            persistIfDirty();
-            restoreCallingIdentity(token);
+            synchronized (mLock) {
+                final ProfileState state = mState.edit();
+                if (addNotificationGroupInternal(state, group)) {
+                    // A new group is added to every profile as well
+                    mPersister.markAllDirty();
+                } else {
+                    mPersister.markGroupDirty(group.getUuid());
+                }
+                publishStateLocked(state);
+            }
         }
 
         @Override
         public void removeNotificationGroup(NotificationGroup group) {
             enforceChangePermissions();
-            mDirty |= mGroups.remove(group.getUuid()) != null;
-            // Remove the corresponding ProfileGroup from all the profiles too if
-            // they use it.
-            for (Profile profile : mProfiles.values()) {
-                profile.removeProfileGroup(group.getUuid());
+            synchronized (mLock) {
+                final ProfileState state = mState.edit();
+                if (state.removeGroup(group.getUuid()) != null) {
+                    mPersister.markGroupDirty(group.getUuid());
+                }
+                // Remove the corresponding ProfileGroup from all the profiles too if
+                // they use it.
+                for (Profile profile : state.getProfiles().toArray(new Profile[0])) {
+                    if (profile.getProfileGroup(group.getUuid()) != null) {
+                        state.editProfile(profile.getUuid()).removeProfileGroup(group.getUuid());
+                        mPersister.markProfileDirty(profile.getUuid());
+                    }
+                }
+                publishStateLocked(state);
             }
-            long token = clearCallingIdentity();
-            persistIfDirty();
-            restoreCallingIdentity(token);
         }
 
         @Override
         public void updateNotificationGroup(NotificationGroup group) {
             enforceChangePermissions();
-            NotificationGroup old = mGroups.get(group.getUuid());
-            if (old == null) {
-                return;
-            }
+            synchronized (mLock) {
+                final ProfileState state = mState.edit();
+                NotificationGroup old = state.getGroup(group.getUuid());
+                if (old == null) {
+                    return;
+                }
 
-            mGroups.put(group.getUuid(), group);
-            /* no need to set mDirty, if the group was actually changed,
-             * it's marked as dirty by itself */
-            long token = clearCallingIdentity();
-            persistIfDirty();
-            restoreCallingIdentity(token);
+                state.putGroup(group);
+                mPersister.markGroupDirty(group.getUuid());
+                publishStateLocked(state);
+            }
         }
 
         @Override
         public NotificationGroup getNotificationGroupForPackage(String pkg) {
-            for (NotificationGroup group : mGroups.values()) {
-                if (group.hasPackage(pkg)) {
-                    return group;
-                }
-            }
-            return null;
+            return mState.getGroupIndex().getForPackage(pkg);
         }
 
         @Override
@@ -553,7 +693,7 @@ public class ProfileManagerService extends LineageSystemService {
             if (uuid.getUuid().equals(mWildcardGroup.getUuid())) {
                 return mWildcardGroup;
             }
-            return mGroups.get(uuid.getUuid());
+            return mState.getGroup(uuid.getUuid());
         }
 
         @Override
@@ -568,44 +708,67 @@ public class ProfileManagerService extends LineageSystemService {
                 restoreCallingIdentity(token);
             }
         }
+
+        @Override
+        public void registerApplyCallback(IProfileApplyCallback callback) {
+            // The callbacks hear about every profile switch
+            enforceChangePermissions();
+            if (callback != null) {
+                mApplier.registerCallback(callback, getCallingUid());
+            }
+        }
+
+        @Override
+        public void unregisterApplyCallback(IProfileApplyCallback callback) {
+            enforceChangePermissions();
+            if (callback != null) {
+                mApplier.unregisterCallback(callback);
+            }
+        }
     };
 
-    private void addProfileInternal(Profile profile) {
+    private void addProfileInternal(ProfileState state, Profile profile) {
         // Make sure this profile has all of the correct groups.
-        for (NotificationGroup group : mGroups.values()) {
+        for (NotificationGroup group : state.getGroups()) {
             ensureGroupInProfile(profile, group, false);
         }
         ensureGroupInProfile(profile, mWildcardGroup, true);
-        mProfiles.put(profile.getUuid(), profile);
-        mProfileNames.put(profile.getName(), profile.getUuid());
-        mDirty = true;
+        state.putProfile(profile);
     }
 
     private void ensureGroupInProfile(Profile profile,
                                       NotificationGroup group, boolean defaultGroup) {
+        if (!hasGroup(profile, group, defaultGroup)) {
+            /* didn't find any, create new group */
+            profile.addProfileGroup(new ProfileGroup(group.getUuid(), defaultGroup));
+        }
+    }
+
+    private static boolean hasGroup(Profile profile,
+                                    NotificationGroup group, boolean defaultGroup) {
         if (profile.getProfileGroup(group.getUuid()) != null) {
-            return;
+            return true;
         }
 
         /* enforce a matchup between profile and notification group, which not only
          * works by UUID, but also by name for backwards compatibility */
         for (ProfileGroup pg : profile.getProfileGroups()) {
             if (pg.matches(group, defaultGroup)) {
-                return;
+                return true;
             }
         }
-
-        /* didn't find any, create new group */
-        profile.addProfileGroup(new ProfileGroup(group.getUuid(), defaultGroup));
+        return false;
     }
 
-    private Profile getProfileInternal(UUID profileUuid) {
+    /* package */ Profile getProfileInternal(UUID profileUuid) {
+        final ProfileState state = mState;
         // use primary UUID first
-        if (mProfiles.containsKey(profileUuid)) {
-            return mProfiles.get(profileUuid);
+        final Profile profile = state.getProfile(profileUuid);
+        if (profile != null) {
+            return profile;
         }
         // if no match was found: try secondary UUID
-        for (Profile p : mProfiles.values()) {
+        for (Profile p : state.getProfiles()) {
             for (UUID uuid : p.getSecondaryUuids()) {
                 if (profileUuid.equals(uuid)) {
                     return p;
@@ -617,84 +780,181 @@ public class ProfileManagerService extends LineageSystemService {
     }
 
     /* package */ Collection<Profile> getProfileList() {
-        return mProfiles.values();
+        return mState.getProfiles();
+    }
+
+    /**
+     * @return the published profile state, which never changes
+     */
+    /* package */ ProfileState getStateInternal() {
+        return mState;
     }
 
-    private String getXmlString() {
-        StringBuilder builder = new StringBuilder();
+    private void getXmlString(StringBuilder builder) {
+        final ProfileState state = mState;
         builder.append("<profiles>\n<active>");
-        builder.append(TextUtils.htmlEncode(mActiveProfile.getUuid().toString()));
+        builder.append(TextUtils.htmlEncode(state.getActiveProfile().getUuid().toString()));
         builder.append("</active>\n");
 
-        for (Profile p : mProfiles.values()) {
+        for (Profile p : state.getProfiles()) {
             p.getXmlString(builder, mContext);
         }
-        for (NotificationGroup g : mGroups.values()) {
+        for (NotificationGroup g : state.getGroups()) {
             g.getXmlString(builder, mContext);
         }
         builder.append("</profiles>\n");
-        return builder.toString();
     }
 
-    private synchronized void persistIfDirty() {
-        boolean dirty = mDirty;
-        if (!dirty) {
-            for (Profile profile : mProfiles.values()) {
-                if (profile.isDirty()) {
-                    dirty = true;
-                    break;
-                }
+    private void enforceChangePermissions() {
+        mContext.enforceCallingOrSelfPermission(
+                lineageos.platform.Manifest.permission.MODIFY_PROFILES,
+                "You do not have permissions to change the Profile Manager.");
+    }
+
+    // Called by SystemBackupAgent after files are restored to disk.
+    void settingsRestored() {
+        // The restored file replaces whatever the journal recorded on top of the old one
+        mPersister.discardPending();
+        initialize();
+        synchronized (mLock) {
+            final ProfileState state = mState.edit();
+            for (Profile p : state.getProfiles().toArray(new Profile[0])) {
+                state.editProfile(p.getUuid()).validateRingtones(mContext);
             }
+            mPersister.markAllDirty();
+            publishStateLocked(state);
         }
-        if (!dirty) {
-            for (NotificationGroup group : mGroups.values()) {
-                if (group.isDirty()) {
-                    dirty = true;
-                    break;
-                }
+    }
+
+    /**
+     * @return the state loaded from the snapshot or the base file, and the journal
+     */
+    @GuardedBy("mLock")
+    private ProfileState loadFromFile() throws XmlPullParserException, IOException {
+        final long start = SystemClock.elapsedRealtime();
+        ProfileState state = loadSnapshot();
+        final boolean fromSnapshot = state != null;
+        if (!fromSnapshot) {
+            state = new ProfileState();
+            XmlPullParserFactory xppf = XmlPullParserFactory.newInstance();
+            XmlPullParser xpp = xppf.newPullParser();
+            FileInputStream in = mPersister.openBaseFile();
+            try {
+                xpp.setInput(new InputStreamReader(in, StandardCharsets.UTF_8));
+                loadXml(state, xpp, mContext);
+            } finally {
+                in.close();
             }
+            // Rewrite the base file along with a fresh snapshot for the next boot
+            mPersister.markAllDirty();
         }
-        if (dirty) {
-            try {
-                Log.d(TAG, "Saving profile data...");
-                FileWriter fw = new FileWriter(PROFILE_FILE);
-                fw.write(getXmlString());
-                fw.close();
-                Log.d(TAG, "Save completed.");
-                mDirty = false;
-                mBackupManager.dataChanged();
-            } catch (Throwable e) {
-                e.printStackTrace();
+        final ProfileState loaded = state;
+        mPersister.readJournal((type, uuid, xml) -> applyJournalRecord(loaded, type, uuid, xml));
+        Log.d(TAG, "Loaded " + state.getProfileCount() + " profiles from "
+                + (fromSnapshot ? "snapshot" : "xml") + " in "
+                + (SystemClock.elapsedRealtime() - start) + "ms");
+        return state;
+    }
+
+    /**
+     * Loads the state from the snapshot written with the base file, skipping the XML parsing.
+     * @return the state, or null if there is no usable snapshot
+     */
+    @GuardedBy("mLock")
+    private ProfileState loadSnapshot() {
+        final byte[] snapshot = mPersister.readSnapshot(getSnapshotStampInternal());
+        if (snapshot == null) {
+            return null;
+        }
+        final ProfileState state = new ProfileState();
+        final Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(snapshot, 0, snapshot.length);
+            parcel.setDataPosition(0);
+            final UUID activeUuid = new UUID(parcel.readLong(), parcel.readLong());
+            for (int i = parcel.readInt(); i > 0; i--) {
+                addProfileInternal(state, Profile.CREATOR.createFromParcel(parcel));
+            }
+            for (int i = parcel.readInt(); i > 0; i--) {
+                addNotificationGroupInternal(state,
+                        NotificationGroup.CREATOR.createFromParcel(parcel));
             }
+            final Profile activeProfile = state.getProfile(activeUuid);
+            if (activeProfile == null) {
+                throw new IllegalStateException("Active profile missing from snapshot");
+            }
+            state.setActiveProfile(activeProfile);
+            return state;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Falling back to xml after failing to load snapshot", e);
+            return null;
+        } finally {
+            parcel.recycle();
         }
     }
 
-    private void enforceChangePermissions() {
-        mContext.enforceCallingOrSelfPermission(
-                lineageos.platform.Manifest.permission.MODIFY_PROFILES,
-                "You do not have permissions to change the Profile Manager.");
+    /**
+     * The snapshot holds localized names and build specific parcels, so it is only valid for
+     * the build and locale it was written with.
+     */
+    private String getSnapshotStampInternal() {
+        return Build.FINGERPRINT + "/" + mContext.getResources().getConfiguration()
+                .getLocales().toLanguageTags();
     }
 
-    // Called by SystemBackupAgent after files are restored to disk.
-    void settingsRestored() {
-        initialize();
-        for (Profile p : mProfiles.values()) {
-            p.validateRingtones(mContext);
+    @GuardedBy("mLock")
+    private void applyJournalRecord(ProfileState state, int type, UUID uuid, String xml) {
+        try {
+            switch (type) {
+                case ProfilePersister.RECORD_PROFILE:
+                    // Replaces the active profile as well if it is the one recorded
+                    addProfileInternal(state, Profile.fromXml(newFragmentParser(xml), mContext));
+                    break;
+                case ProfilePersister.RECORD_GROUP:
+                    addNotificationGroupInternal(state,
+                            NotificationGroup.fromXml(newFragmentParser(xml), mContext));
+                    break;
+                case ProfilePersister.RECORD_REMOVE_PROFILE:
+                    state.removeProfile(uuid);
+                    break;
+                case ProfilePersister.RECORD_REMOVE_GROUP:
+                    state.removeGroup(uuid);
+                    // Every profile of a state being loaded belongs to it, no copy is needed
+                    for (Profile profile : state.getProfiles()) {
+                        profile.removeProfileGroup(uuid);
+                    }
+                    break;
+                case ProfilePersister.RECORD_ACTIVE_PROFILE: {
+                    final Profile profile = state.getProfile(uuid);
+                    if (profile != null) {
+                        state.setActiveProfile(profile);
+                    }
+                    break;
+                }
+                default:
+                    Log.w(TAG, "Skipping unknown journal record type " + type);
+                    break;
+            }
+        } catch (XmlPullParserException | IOException e) {
+            Log.w(TAG, "Skipping unreadable journal record for " + uuid, e);
         }
-        persistIfDirty();
     }
 
-    private void loadFromFile() throws XmlPullParserException, IOException {
-        XmlPullParserFactory xppf = XmlPullParserFactory.newInstance();
-        XmlPullParser xpp = xppf.newPullParser();
-        FileReader fr = new FileReader(PROFILE_FILE);
-        xpp.setInput(fr);
-        loadXml(xpp, mContext);
-        fr.close();
-        persistIfDirty();
+    private static XmlPullParser newFragmentParser(String xml)
+            throws XmlPullParserException, IOException {
+        XmlPullParser xpp = XmlPullParserFactory.newInstance().newPullParser();
+        xpp.setInput(new StringReader(xml));
+        int event = xpp.next();
+        while (event != XmlPullParser.START_TAG) {
+            if (event == XmlPullParser.END_DOCUMENT) {
+                throw new IOException("Empty journal record");
+            }
+            event = xpp.next();
+        }
+        return xpp;
     }
 
-    private void loadXml(XmlPullParser xpp, Context context) throws
+    private void loadXml(ProfileState state, XmlPullParser xpp, Context context) throws
             XmlPullParserException, IOException {
         int event = xpp.next();
         String active = null;
@@ -706,14 +966,14 @@ public class ProfileManagerService extends LineageSystemService {
                     Log.d(TAG, "Found active: " + active);
                 } else if (name.equals("profile")) {
                     Profile prof = Profile.fromXml(xpp, context);
-                    addProfileInternal(prof);
+                    addProfileInternal(state, prof);
                     // Failsafe if no active found
                     if (active == null) {
                         active = prof.getUuid().toString();
                     }
                 } else if (name.equals("notificationGroup")) {
                     NotificationGroup ng = NotificationGroup.fromXml(xpp, context);
-                    addNotificationGroupInternal(ng);
+                    addNotificationGroupInternal(state, ng);
                 }
             } else if (event == XmlPullParser.END_DOCUMENT) {
                 throw new IOException("Premature end of file while reading " + PROFILE_FILE);
@@ -722,48 +982,57 @@ public class ProfileManagerService extends LineageSystemService {
         }
         // Don't do initialisation on startup. The AudioManager doesn't exist yet
         // and besides, the volume settings will have survived the reboot.
+        Profile activeProfile;
         try {
             // Try / catch block to detect if XML file needs to be upgraded.
-            setActiveProfileInternal(UUID.fromString(active), false);
+            activeProfile = state.getProfile(UUID.fromString(active));
+            if (activeProfile == null) {
+                Log.e(TAG, "Cannot set active profile to: " + active + " - does not exist.");
+            }
         } catch (IllegalArgumentException e) {
-            if (mProfileNames.containsKey(active)) {
-                setActiveProfileInternal(mProfileNames.get(active), false);
+            final UUID activeUuid = state.getProfileUuid(active);
+            if (activeUuid != null) {
+                activeProfile = state.getProfile(activeUuid);
             } else {
                 // Final fail-safe: We must have SOME profile active.
                 // If we couldn't select one by now, we'll pick the first in the set.
-                setActiveProfileInternal(mProfiles.values().iterator().next(), false);
+                activeProfile = state.getProfiles().iterator().next();
             }
             // This is a hint that we probably just upgraded the XML file. Save changes.
-            mDirty = true;
+            mPersister.markAllDirty();
+        }
+        if (activeProfile != null) {
+            state.setActiveProfile(activeProfile);
         }
     }
 
-    private void initialiseStructure() throws XmlPullParserException, IOException {
+    private void initialiseStructure(ProfileState state)
+            throws XmlPullParserException, IOException {
         XmlResourceParser xml = mContext.getResources().getXml(
                 org.lineageos.platform.internal.R.xml.profile_default);
         try {
-            loadXml(xml, mContext);
-            mDirty = true;
-            persistIfDirty();
+            loadXml(state, xml, mContext);
+            mPersister.markAllDirty();
         } finally {
             xml.close();
         }
     }
 
     private boolean setActiveProfileInternal(UUID profileUuid, boolean doInit) {
-        if (!mProfiles.containsKey(profileUuid)) {
+        final Profile profile = mState.getProfile(profileUuid);
+        if (profile == null) {
             Log.e(TAG, "Cannot set active profile to: "
                     + profileUuid.toString() + " - does not exist.");
             return false;
         }
 
         if (LOCAL_LOGV) Log.v(TAG, "setActiveProfile(UUID, boolean) found UUID in mProfiles.");
-        setActiveProfileInternal(mProfiles.get(profileUuid), doInit);
+        setActiveProfileInternal(profile, doInit);
         return true;
     }
 
     /* package */ Profile getActiveProfileInternal() {
-        return mActiveProfile;
+        return mState.getActiveProfile();
     }
 
     /* package */ void setActiveProfileInternal(Profile newActiveProfile, boolean doInit) {
@@ -780,48 +1049,106 @@ public class ProfileManagerService extends LineageSystemService {
         Log.d(TAG, "Set active profile to: " + newActiveProfile.getUuid().toString()
                 + " - " + newActiveProfile.getName());
 
-        Profile lastProfile = mActiveProfile;
-        mActiveProfile = newActiveProfile;
-        mDirty = true;
+        Profile lastProfile;
+        synchronized (mLock) {
+            final ProfileState state = mState.edit();
+            // The profile may have been looked up in an earlier state, take its current copy
+            final Profile current = state.getProfile(newActiveProfile.getUuid());
+            if (current != null) {
+                newActiveProfile = current;
+            }
+            lastProfile = state.getActiveProfile();
+            if (lastProfile != null
+                    && !lastProfile.getUuid().equals(newActiveProfile.getUuid())) {
+                mPersister.markActiveProfileDirty();
+            }
+            if (lastProfile != newActiveProfile) {
+                state.setActiveProfile(newActiveProfile);
+                publishStateLocked(state);
+            }
+        }
 
         if (doInit) {
             if (LOCAL_LOGV) Log.v(TAG, "setActiveProfile(Profile, boolean) - Running init");
-            // Call profile's "doSelect"
-            mActiveProfile.doSelect(mContext, mKeyguardService);
-
-            // Notify other applications of newly selected profile.
-            Intent broadcast = new Intent(ProfileManager.INTENT_ACTION_PROFILE_SELECTED);
-            broadcast.putExtra(ProfileManager.EXTRA_PROFILE_NAME,
-                    mActiveProfile.getName());
-            broadcast.putExtra(ProfileManager.EXTRA_PROFILE_UUID,
-                    mActiveProfile.getUuid().toString());
-            broadcast.putExtra(ProfileManager.EXTRA_LAST_PROFILE_NAME,
-                    lastProfile.getName());
-            broadcast.putExtra(ProfileManager.EXTRA_LAST_PROFILE_UUID,
-                    lastProfile.getUuid().toString());
-            broadcast.addFlags(Intent.FLAG_RECEIVER_INCLUDE_BACKGROUND);
-
-            mContext.sendBroadcastAsUser(broadcast, UserHandle.ALL);
-            persistIfDirty();
-        } else if (lastProfile != mActiveProfile && ActivityManagerNative.isSystemReady()) {
+            // Call profile's "doSelect" in the background, the selection is announced once
+            // it has been applied
+            mApplier.apply(newActiveProfile, lastProfile, true, mKeyguardService);
+        } else if (lastProfile != newActiveProfile && ActivityManagerNative.isSystemReady()) {
             // Something definitely changed: notify.
-            Intent broadcast = new Intent(ProfileManager.INTENT_ACTION_PROFILE_UPDATED);
-            broadcast.putExtra(ProfileManager.EXTRA_PROFILE_NAME,
-                    mActiveProfile.getName());
-            broadcast.putExtra(ProfileManager.EXTRA_PROFILE_UUID,
-                    mActiveProfile.getUuid().toString());
-            mContext.sendBroadcastAsUser(broadcast, UserHandle.ALL);
+            sendProfileUpdated(newActiveProfile);
+        }
+    }
+
+    private void sendProfileUpdated(Profile profile) {
+        Intent broadcast = new Intent(ProfileManager.INTENT_ACTION_PROFILE_UPDATED);
+        broadcast.putExtra(ProfileManager.EXTRA_PROFILE_NAME, profile.getName());
+        broadcast.putExtra(ProfileManager.EXTRA_PROFILE_UUID, profile.getUuid().toString());
+        mContext.sendBroadcastAsUser(broadcast, UserHandle.ALL);
+    }
+
+    /**
+     * Swaps in a new profile state. Readers see either the state before or this one whole.
+     * @param state the changed copy of the current state, not to be changed any more
+     */
+    @GuardedBy("mLock")
+    private void publishStateLocked(ProfileState state) {
+        mState = state.freeze();
+        bumpStateGeneration();
+    }
+
+    /**
+     * Publishes a new generation of the profile state, dropping what the ProfileManager of
+     * each process has cached. Called after every change, before it returns to the caller.
+     */
+    private void bumpStateGeneration() {
+        synchronized (mGenerationLock) {
+            mStateGeneration++;
+            if (LOCAL_LOGV) Log.v(TAG, "Profile state generation " + mStateGeneration);
+            SystemProperties.set(ProfileManager.SYS_PROP_PROFILE_STATE_VERSION,
+                    Long.toString(mStateGeneration));
         }
     }
 
-    private void addNotificationGroupInternal(NotificationGroup group) {
-        if (mGroups.put(group.getUuid(), group) == null) {
+    private static int clampOffset(int offset, int size) {
+        return Math.max(0, Math.min(offset, size));
+    }
+
+    private static int clampEnd(int start, int limit, int size) {
+        return limit <= 0 ? start : (int) Math.min((long) start + limit, size);
+    }
+
+    /* package */ ProfileApplier getApplier() {
+        return mApplier;
+    }
+
+    private void sendProfileSelected(Profile profile, Profile lastProfile) {
+        // Notify other applications of newly selected profile.
+        Intent broadcast = new Intent(ProfileManager.INTENT_ACTION_PROFILE_SELECTED);
+        broadcast.putExtra(ProfileManager.EXTRA_PROFILE_NAME, profile.getName());
+        broadcast.putExtra(ProfileManager.EXTRA_PROFILE_UUID, profile.getUuid().toString());
+        broadcast.putExtra(ProfileManager.EXTRA_LAST_PROFILE_NAME, lastProfile.getName());
+        broadcast.putExtra(ProfileManager.EXTRA_LAST_PROFILE_UUID,
+                lastProfile.getUuid().toString());
+        broadcast.addFlags(Intent.FLAG_RECEIVER_INCLUDE_BACKGROUND);
+
+        mContext.sendBroadcastAsUser(broadcast, UserHandle.ALL);
+    }
+
+    /**
+     * @return true if the group is new, and was added to the profiles as well
+     */
+    private boolean addNotificationGroupInternal(ProfileState state, NotificationGroup group) {
+        if (state.putGroup(group)) {
             // If the above is true, then the ProfileGroup shouldn't exist in
             // the profile. Ensure it is added.
-            for (Profile profile : mProfiles.values()) {
-                ensureGroupInProfile(profile, group, false);
+            for (Profile profile : state.getProfiles().toArray(new Profile[0])) {
+                if (!hasGroup(profile, group, false)) {
+                    state.editProfile(profile.getUuid())
+                            .addProfileGroup(new ProfileGroup(group.getUuid(), false));
+                }
             }
+            return true;
         }
-        mDirty = true;
+        return false;
     }
 }
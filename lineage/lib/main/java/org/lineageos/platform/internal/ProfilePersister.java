@@ -0,0 +1,572 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.platform.internal;
+
+import android.os.Handler;
+import android.os.Parcel;
+import android.util.ArraySet;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+
+import org.lineageos.internal.profiles.ProfileSnapshotFile;
+import org.lineageos.internal.profiles.ProfileSnapshotFile.BaseStamp;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Persists the profile service state without blocking its callers.
+ *
+ * The state is kept in a base file holding the full profiles XML, which is only ever replaced
+ * atomically, plus a journal with one record per profile or notification group changed since.
+ * Changes are coalesced for a short while and then written on the handler's thread: changed
+ * records are appended to the journal, and once the journal grows long enough, or the state
+ * has been idle for a while, the base file is rewritten and the journal dropped.
+ *
+ * The journal header is stamped with the {@link BaseStamp} of the base file its records
+ * apply to. If the base file was replaced but the journal not yet dropped when the process
+ * died, the stamp no longer matches and the stale journal is ignored rather than replayed.
+ *
+ * Each rewrite of the base file also writes a {@link ProfileSnapshotFile} next to it, which
+ * skips parsing the XML at boot while it still matches the base file.
+ */
+final class ProfilePersister {
+    private static final String TAG = "ProfilePersister";
+    private static final boolean LOCAL_LOGV = false;
+
+    static final int RECORD_PROFILE = 1;
+    static final int RECORD_GROUP = 2;
+    static final int RECORD_REMOVE_PROFILE = 3;
+    static final int RECORD_REMOVE_GROUP = 4;
+    static final int RECORD_ACTIVE_PROFILE = 5;
+
+    private static final int JOURNAL_MAGIC = 0x4c50524a; // "LPRJ"
+    private static final int JOURNAL_VERSION = 3;
+
+    // Far above any real profile, only there to catch corrupt lengths
+    private static final int MAX_RECORD_BYTES = 1 << 20;
+
+    // How long to wait for more changes before writing
+    private static final long WRITE_DELAY_MS = 500;
+
+    // How long the state must stay unchanged before the journal is folded into the base file
+    private static final long COMPACT_IDLE_DELAY_MS = 60 * 1000;
+
+    // How long to wait before writing again after a write failed
+    private static final long RETRY_DELAY_MS = 10 * 1000;
+
+    // Journal length at which the base file is rewritten right away
+    private static final int MAX_JOURNAL_RECORDS = 64;
+
+    /**
+     * Gives the persister access to the state it saves. All methods except
+     * {@link #onCompacted()} are called with the state lock held.
+     */
+    interface Callback {
+        /**
+         * Appends the XML of a profile to {@code builder}.
+         * @return false if the profile no longer exists
+         */
+        boolean writeProfileXml(UUID uuid, StringBuilder builder);
+
+        /**
+         * Appends the XML of a notification group to {@code builder}.
+         * @return false if the group no longer exists
+         */
+        boolean writeGroupXml(UUID uuid, StringBuilder builder);
+
+        /**
+         * @return the UUID of the active profile, or null if there is none yet
+         */
+        UUID getActiveProfileUuid();
+
+        /**
+         * Appends the XML of the complete state to {@code builder}.
+         */
+        void writeXml(StringBuilder builder);
+
+        /**
+         * Writes the complete state to {@code parcel}, for the snapshot.
+         */
+        void writeSnapshot(Parcel parcel);
+
+        /**
+         * @return a string identifying everything besides the base file that the snapshot
+         *         depends on, such as the build and the locale
+         */
+        String getSnapshotStamp();
+
+        /**
+         * Called once the base file holds the complete state.
+         */
+        void onCompacted();
+    }
+
+    /**
+     * Receives the journal records read by {@link #readJournal(RecordHandler)}.
+     */
+    interface RecordHandler {
+        /**
+         * @param type one of the RECORD_* constants
+         * @param uuid the profile or group the record is about
+         * @param xml the XML of the profile or group, or null for removals and the active profile
+         */
+        void onRecord(int type, UUID uuid, String xml);
+    }
+
+    private static final class Record {
+        final int mType;
+        final UUID mUuid;
+        final String mXml;
+
+        Record(int type, UUID uuid, String xml) {
+            mType = type;
+            mUuid = uuid;
+            mXml = xml;
+        }
+    }
+
+    private final AtomicFile mBaseFile;
+    private final File mJournalFile;
+    private final ProfileSnapshotFile mSnapshotFile;
+    private final Handler mHandler;
+    private final Object mStateLock;
+    private final Callback mCallback;
+
+    private final Object mLock = new Object();
+
+    // Serializes file writes between the handler thread and flush()
+    private final Object mWriteLock = new Object();
+
+    @GuardedBy("mLock")
+    private final ArraySet<UUID> mDirtyProfiles = new ArraySet<>();
+
+    @GuardedBy("mLock")
+    private final ArraySet<UUID> mDirtyGroups = new ArraySet<>();
+
+    @GuardedBy("mLock")
+    private boolean mActiveProfileDirty;
+
+    @GuardedBy("mLock")
+    private boolean mCompactRequested;
+
+    @GuardedBy("mLock")
+    private int mJournalRecords;
+
+    // Stamp of the base file, written in the journal header. Set under mWriteLock, except by
+    // readJournal(): it is called with the state lock held, and taking mWriteLock there would
+    // invert the order writePending() takes them in.
+    private volatile BaseStamp mBaseStamp;
+
+    private final Runnable mWriteRunnable = this::writePending;
+
+    private final Runnable mCompactRunnable = () -> {
+        requestCompaction();
+        writePending();
+    };
+
+    /**
+     * @param baseFile the file holding the full profiles XML
+     * @param handler the handler to write on
+     * @param stateLock the lock guarding the state, held while it is serialized
+     * @param callback gives access to the state
+     */
+    ProfilePersister(File baseFile, Handler handler, Object stateLock, Callback callback) {
+        mBaseFile = new AtomicFile(baseFile);
+        mJournalFile = new File(baseFile.getParentFile(), baseFile.getName() + ".journal");
+        mSnapshotFile = new ProfileSnapshotFile(baseFile,
+                new File(baseFile.getParentFile(), baseFile.getName() + ".snapshot"));
+        mBaseStamp = BaseStamp.of(baseFile);
+        mHandler = handler;
+        mStateLock = stateLock;
+        mCallback = callback;
+    }
+
+    /**
+     * Opens the base file for reading.
+     * @throws FileNotFoundException if no state was saved yet
+     */
+    FileInputStream openBaseFile() throws FileNotFoundException {
+        return mBaseFile.openRead();
+    }
+
+    /**
+     * Reads the snapshot of the state in the base file.
+     * @param stamp the current {@link Callback#getSnapshotStamp()}
+     * @return the parcelled state, or null if there is no snapshot matching the base file
+     */
+    byte[] readSnapshot(String stamp) {
+        return mSnapshotFile.read(stamp);
+    }
+
+    /**
+     * Reads the journal records written since the base file was last rewritten, in order. A
+     * record that was cut short by a crash ends the journal, and the journal is then folded
+     * into the base file with the next write. A journal written on top of another base file
+     * is skipped.
+     *
+     * Called with the state lock held, while the state is being loaded.
+     */
+    void readJournal(RecordHandler handler) {
+        final BaseStamp baseStamp = BaseStamp.of(mBaseFile.getBaseFile());
+        mBaseStamp = baseStamp;
+
+        int records = 0;
+        boolean complete = false;
+        boolean stale = false;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mJournalFile)))) {
+            if (in.readInt() != JOURNAL_MAGIC || in.readInt() != JOURNAL_VERSION) {
+                throw new IOException("Unknown journal format");
+            }
+            // The base file was rewritten but the process died before the journal was dropped,
+            // so the base already holds all of its records
+            stale = !baseStamp.equals(BaseStamp.read(in));
+            complete = stale;
+            final CRC32 crc = new CRC32();
+            while (!stale) {
+                final int type;
+                try {
+                    type = in.readInt();
+                } catch (EOFException e) {
+                    complete = true;
+                    break;
+                }
+                final long msb = in.readLong();
+                final long lsb = in.readLong();
+                final int length = in.readInt();
+                if (length < 0 || length > MAX_RECORD_BYTES) {
+                    throw new IOException("Corrupt journal record length " + length);
+                }
+                final byte[] xml = new byte[length];
+                in.readFully(xml);
+
+                crc.reset();
+                updateCrc(crc, type, msb, lsb, xml);
+                if ((int) crc.getValue() != in.readInt()) {
+                    throw new IOException("Corrupt journal record");
+                }
+                handler.onRecord(type, new UUID(msb, lsb),
+                        xml.length > 0 ? new String(xml, StandardCharsets.UTF_8) : null);
+                records++;
+            }
+        } catch (FileNotFoundException e) {
+            complete = true;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Dropping the rest of " + mJournalFile + " after " + records
+                    + " records", e);
+        }
+
+        if (stale) {
+            Log.i(TAG, "Ignoring " + mJournalFile + " written on top of an older "
+                    + mBaseFile.getBaseFile());
+            mJournalFile.delete();
+        }
+
+        synchronized (mLock) {
+            mJournalRecords = records;
+            if (!complete) {
+                // Appending after a torn record would make the new records unreadable
+                mCompactRequested = true;
+                scheduleWriteLocked();
+            }
+        }
+        if (LOCAL_LOGV) Log.v(TAG, "Read " + records + " journal records");
+    }
+
+    /**
+     * Schedules a write of a profile that was added, changed or removed.
+     */
+    void markProfileDirty(UUID uuid) {
+        synchronized (mLock) {
+            mDirtyProfiles.add(uuid);
+            scheduleWriteLocked();
+        }
+    }
+
+    /**
+     * Schedules a write of a notification group that was added, changed or removed.
+     */
+    void markGroupDirty(UUID uuid) {
+        synchronized (mLock) {
+            mDirtyGroups.add(uuid);
+            scheduleWriteLocked();
+        }
+    }
+
+    /**
+     * Schedules a write of the active profile selection.
+     */
+    void markActiveProfileDirty() {
+        synchronized (mLock) {
+            mActiveProfileDirty = true;
+            scheduleWriteLocked();
+        }
+    }
+
+    /**
+     * Schedules a rewrite of the complete state, for changes that touch most of it.
+     */
+    void markAllDirty() {
+        synchronized (mLock) {
+            requestCompaction();
+            scheduleWriteLocked();
+        }
+    }
+
+    /**
+     * Writes all pending changes and folds the journal into the base file right away, on the
+     * calling thread.
+     */
+    void flush() {
+        mHandler.removeCallbacks(mWriteRunnable);
+        mHandler.removeCallbacks(mCompactRunnable);
+        requestCompaction();
+        writePending();
+    }
+
+    /**
+     * Drops all pending changes along with the journal, for when the base file was replaced
+     * from outside, such as by a backup restore.
+     */
+    void discardPending() {
+        synchronized (mWriteLock) {
+            mHandler.removeCallbacks(mWriteRunnable);
+            mHandler.removeCallbacks(mCompactRunnable);
+            synchronized (mLock) {
+                mDirtyProfiles.clear();
+                mDirtyGroups.clear();
+                mActiveProfileDirty = false;
+                mCompactRequested = false;
+                mJournalRecords = 0;
+            }
+            mJournalFile.delete();
+            mBaseStamp = BaseStamp.of(mBaseFile.getBaseFile());
+        }
+    }
+
+    private void requestCompaction() {
+        synchronized (mLock) {
+            mCompactRequested = true;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void scheduleWriteLocked() {
+        mHandler.removeCallbacks(mCompactRunnable);
+        if (!mHandler.hasCallbacks(mWriteRunnable)) {
+            mHandler.postDelayed(mWriteRunnable, WRITE_DELAY_MS);
+        }
+    }
+
+    /**
+     * Schedules a rewrite of the complete state after a failed write, giving the storage some
+     * time to recover.
+     */
+    @GuardedBy("mLock")
+    private void scheduleRetryLocked() {
+        mCompactRequested = true;
+        mHandler.removeCallbacks(mCompactRunnable);
+        mHandler.removeCallbacks(mWriteRunnable);
+        mHandler.postDelayed(mWriteRunnable, RETRY_DELAY_MS);
+    }
+
+    private void writePending() {
+        synchronized (mWriteLock) {
+            String xml = null;
+            byte[] snapshot = null;
+            String stamp = null;
+            final ArrayList<Record> records = new ArrayList<>();
+
+            synchronized (mStateLock) {
+                final boolean compact;
+                final ArraySet<UUID> profiles;
+                final ArraySet<UUID> groups;
+                final boolean activeProfile;
+                synchronized (mLock) {
+                    final int pending = mDirtyProfiles.size() + mDirtyGroups.size()
+                            + (mActiveProfileDirty ? 1 : 0);
+                    if (pending == 0 && !mCompactRequested) {
+                        return;
+                    }
+                    compact = mCompactRequested
+                            || mJournalRecords + pending > MAX_JOURNAL_RECORDS;
+                    profiles = new ArraySet<>(mDirtyProfiles);
+                    groups = new ArraySet<>(mDirtyGroups);
+                    activeProfile = mActiveProfileDirty;
+                    mDirtyProfiles.clear();
+                    mDirtyGroups.clear();
+                    mActiveProfileDirty = false;
+                    mCompactRequested = false;
+                }
+
+                final StringBuilder builder = new StringBuilder();
+                if (compact) {
+                    mCallback.writeXml(builder);
+                    xml = builder.toString();
+
+                    final Parcel parcel = Parcel.obtain();
+                    try {
+                        mCallback.writeSnapshot(parcel);
+                        snapshot = parcel.marshall();
+                    } catch (RuntimeException e) {
+                        Log.w(TAG, "Failed to snapshot profiles", e);
+                    } finally {
+                        parcel.recycle();
+                    }
+                    stamp = mCallback.getSnapshotStamp();
+                } else {
+                    for (UUID uuid : profiles) {
+                        builder.setLength(0);
+                        records.add(mCallback.writeProfileXml(uuid, builder)
+                                ? new Record(RECORD_PROFILE, uuid, builder.toString())
+                                : new Record(RECORD_REMOVE_PROFILE, uuid, null));
+                    }
+                    for (UUID uuid : groups) {
+                        builder.setLength(0);
+                        records.add(mCallback.writeGroupXml(uuid, builder)
+                                ? new Record(RECORD_GROUP, uuid, builder.toString())
+                                : new Record(RECORD_REMOVE_GROUP, uuid, null));
+                    }
+                    final UUID activeUuid = activeProfile ? mCallback.getActiveProfileUuid() : null;
+                    if (activeUuid != null) {
+                        records.add(new Record(RECORD_ACTIVE_PROFILE, activeUuid, null));
+                    }
+                }
+            }
+
+            if (xml != null) {
+                writeBaseFile(xml, snapshot, stamp);
+            } else {
+                appendToJournal(records);
+            }
+        }
+    }
+
+    private void writeBaseFile(String xml, byte[] snapshot, String stamp) {
+        final byte[] base = xml.getBytes(StandardCharsets.UTF_8);
+        FileOutputStream out = null;
+        try {
+            if (LOCAL_LOGV) Log.v(TAG, "Rewriting " + mBaseFile.getBaseFile());
+            out = mBaseFile.startWrite();
+            out.write(base);
+            mBaseFile.finishWrite(out);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to save profiles", e);
+            mBaseFile.failWrite(out);
+            // Keep the journal, it still holds changes the base file does not, and try again
+            synchronized (mLock) {
+                scheduleRetryLocked();
+            }
+            return;
+        }
+
+        // Records appended from now on apply to the new base file. Should the old journal
+        // survive a crash right here, its stamp no longer matches and it is ignored.
+        mBaseStamp = BaseStamp.of(mBaseFile.getBaseFile());
+        mJournalFile.delete();
+        synchronized (mLock) {
+            mJournalRecords = 0;
+        }
+        if (snapshot != null) {
+            mSnapshotFile.write(snapshot, stamp);
+        } else {
+            // A stale snapshot would be ignored anyway, but there is no need to keep it
+            mSnapshotFile.delete();
+        }
+        mCallback.onCompacted();
+    }
+
+    private void appendToJournal(ArrayList<Record> records) {
+        if (records.isEmpty()) {
+            return;
+        }
+        // Start over rather than append to a journal whose records were folded into the base
+        // file already, e.g. if it could not be deleted
+        final boolean newJournal;
+        synchronized (mLock) {
+            newJournal = mJournalRecords == 0;
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        final CRC32 crc = new CRC32();
+        try {
+            if (newJournal) {
+                out.writeInt(JOURNAL_MAGIC);
+                out.writeInt(JOURNAL_VERSION);
+                mBaseStamp.write(out);
+            }
+            for (Record record : records) {
+                final long msb = record.mUuid.getMostSignificantBits();
+                final long lsb = record.mUuid.getLeastSignificantBits();
+                final byte[] xml = record.mXml != null
+                        ? record.mXml.getBytes(StandardCharsets.UTF_8) : new byte[0];
+                out.writeInt(record.mType);
+                out.writeLong(msb);
+                out.writeLong(lsb);
+                out.writeInt(xml.length);
+                out.write(xml);
+                crc.reset();
+                updateCrc(crc, record.mType, msb, lsb, xml);
+                out.writeInt((int) crc.getValue());
+            }
+
+            try (FileOutputStream fos = new FileOutputStream(mJournalFile, !newJournal)) {
+                bytes.writeTo(fos);
+                fos.getFD().sync();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to append to " + mJournalFile, e);
+            // The journal may now end in a torn record, so start over from the full state
+            synchronized (mLock) {
+                scheduleRetryLocked();
+            }
+            return;
+        }
+
+        synchronized (mLock) {
+            mJournalRecords += records.size();
+            if (LOCAL_LOGV) Log.v(TAG, "Journal now holds " + mJournalRecords + " records");
+            if (!mHandler.hasCallbacks(mWriteRunnable)) {
+                mHandler.postDelayed(mCompactRunnable, COMPACT_IDLE_DELAY_MS);
+            }
+        }
+    }
+
+    private static void updateCrc(CRC32 crc, int type, long msb, long lsb, byte[] xml) {
+        crc.update(type);
+        for (int shift = 0; shift < 64; shift += 8) {
+            crc.update((int) (msb >>> shift));
+            crc.update((int) (lsb >>> shift));
+        }
+        crc.update(xml);
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.platform.internal;
+
+import android.app.NotificationGroup;
+import android.os.Parcel;
+
+import lineageos.app.Profile;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * The profiles, their triggers, notification groups and active profile of the profile
+ * service, as one
+ * snapshot that never changes once published, so that it can be read without locking.
+ *
+ * Changes are made on a copy taken with {@link #edit()}, which shares the maps of the state
+ * it was taken from until it first changes them, and which is published whole once it is
+ * {@link #freeze() frozen}. Profiles shared with a published state are copied before being
+ * changed, see {@link #editProfile}.
+ */
+final class ProfileState {
+
+    private HashMap<UUID, Profile> mProfiles;
+
+    // Match UUIDs and names, used for reverse compatibility
+    private HashMap<String, UUID> mProfileNames;
+
+    private ProfileTriggerIndex mTriggerIndex;
+
+    private HashMap<UUID, NotificationGroup> mGroups;
+
+    private NotificationGroupIndex mGroupIndex;
+
+    private Profile mActiveProfile;
+
+    // The profiles in their natural order, set when frozen
+    private Profile[] mSortedProfiles;
+
+    // Whether the maps were copied for this state, or are still shared with the one before
+    private boolean mOwnsProfiles;
+    private boolean mOwnsGroups;
+
+    // Profiles that were copied or added for this state, and may be changed in place
+    private final Set<Profile> mOwnedProfiles =
+            Collections.newSetFromMap(new IdentityHashMap<Profile, Boolean>());
+
+    private boolean mFrozen;
+
+    /**
+     * Creates an empty state, to be filled and frozen.
+     */
+    ProfileState() {
+        mProfiles = new HashMap<>();
+        mProfileNames = new HashMap<>();
+        mTriggerIndex = new ProfileTriggerIndex();
+        mGroups = new HashMap<>();
+        mGroupIndex = new NotificationGroupIndex();
+        mOwnsProfiles = true;
+        mOwnsGroups = true;
+    }
+
+    private ProfileState(ProfileState other) {
+        mProfiles = other.mProfiles;
+        mProfileNames = other.mProfileNames;
+        mTriggerIndex = other.mTriggerIndex;
+        mGroups = other.mGroups;
+        mGroupIndex = other.mGroupIndex;
+        mActiveProfile = other.mActiveProfile;
+        mSortedProfiles = other.mSortedProfiles;
+    }
+
+    /**
+     * @return a copy of this state to make changes on
+     */
+    ProfileState edit() {
+        return new ProfileState(this);
+    }
+
+    /**
+     * Ends the changes to this state, ahead of publishing it.
+     * @return this state
+     */
+    ProfileState freeze() {
+        if (!mFrozen) {
+            if (mOwnsProfiles || mSortedProfiles == null) {
+                mSortedProfiles = mProfiles.values().toArray(new Profile[mProfiles.size()]);
+                Arrays.sort(mSortedProfiles);
+            }
+            mOwnedProfiles.clear();
+            mFrozen = true;
+        }
+        return this;
+    }
+
+    Profile getProfile(UUID uuid) {
+        return mProfiles.get(uuid);
+    }
+
+    /**
+     * @return the UUID of the profile with a name, or null
+     */
+    UUID getProfileUuid(String name) {
+        return mProfileNames.get(name);
+    }
+
+    Collection<Profile> getProfiles() {
+        return Collections.unmodifiableCollection(mProfiles.values());
+    }
+
+    Set<String> getProfileNames() {
+        return Collections.unmodifiableSet(mProfileNames.keySet());
+    }
+
+    int getProfileCount() {
+        return mProfiles.size();
+    }
+
+    /**
+     * @return the profiles in their natural order; the array must not be changed
+     */
+    Profile[] getSortedProfiles() {
+        checkFrozen();
+        return mSortedProfiles;
+    }
+
+    ProfileTriggerIndex getTriggerIndex() {
+        return mTriggerIndex;
+    }
+
+    NotificationGroup getGroup(UUID uuid) {
+        return mGroups.get(uuid);
+    }
+
+    Collection<NotificationGroup> getGroups() {
+        return Collections.unmodifiableCollection(mGroups.values());
+    }
+
+    NotificationGroupIndex getGroupIndex() {
+        return mGroupIndex;
+    }
+
+    Profile getActiveProfile() {
+        return mActiveProfile;
+    }
+
+    /**
+     * Adds a profile, replacing the one with the same UUID. The profile now belongs to the
+     * state and must not be changed from outside of it.
+     */
+    void putProfile(Profile profile) {
+        ownProfiles();
+        final Profile old = mProfiles.put(profile.getUuid(), profile);
+        if (old != null) {
+            mProfileNames.remove(old.getName());
+            if (mActiveProfile == old) {
+                mActiveProfile = profile;
+            }
+        }
+        mProfileNames.put(profile.getName(), profile.getUuid());
+        mTriggerIndex.put(profile);
+        mOwnedProfiles.add(profile);
+    }
+
+    /**
+     * @return the removed profile, or null if there was none
+     */
+    Profile removeProfile(UUID uuid) {
+        ownProfiles();
+        final Profile old = mProfiles.remove(uuid);
+        if (old != null) {
+            mProfileNames.remove(old.getName());
+            mTriggerIndex.remove(uuid);
+        }
+        return old;
+    }
+
+    /**
+     * Gets a profile to change in place, copying it first if it is shared with a published
+     * state.
+     */
+    Profile editProfile(UUID uuid) {
+        final Profile profile = mProfiles.get(uuid);
+        if (profile == null || mOwnedProfiles.contains(profile)) {
+            return profile;
+        }
+        final Profile copy = copyOf(profile);
+        putProfile(copy);
+        return copy;
+    }
+
+    /**
+     * Adds a group, replacing the one with the same UUID.
+     * @return true if the group is new
+     */
+    boolean putGroup(NotificationGroup group) {
+        ownGroups();
+        mGroupIndex.put(group);
+        return mGroups.put(group.getUuid(), group) == null;
+    }
+
+    /**
+     * @return the removed group, or null if there was none
+     */
+    NotificationGroup removeGroup(UUID uuid) {
+        ownGroups();
+        mGroupIndex.remove(uuid);
+        return mGroups.remove(uuid);
+    }
+
+    /**
+     * @param profile a profile of this state
+     */
+    void setActiveProfile(Profile profile) {
+        checkNotFrozen();
+        mActiveProfile = profile;
+    }
+
+    private void ownProfiles() {
+        checkNotFrozen();
+        if (!mOwnsProfiles) {
+            mProfiles = new HashMap<>(mProfiles);
+            mProfileNames = new HashMap<>(mProfileNames);
+            mTriggerIndex = new ProfileTriggerIndex(mTriggerIndex);
+            mOwnsProfiles = true;
+        }
+    }
+
+    private void ownGroups() {
+        checkNotFrozen();
+        if (!mOwnsGroups) {
+            mGroups = new HashMap<>(mGroups);
+            mGroupIndex = new NotificationGroupIndex(mGroupIndex);
+            mOwnsGroups = true;
+        }
+    }
+
+    private void checkFrozen() {
+        if (!mFrozen) {
+            throw new IllegalStateException("Profile state is not frozen yet");
+        }
+    }
+
+    private void checkNotFrozen() {
+        if (mFrozen) {
+            throw new IllegalStateException("Profile state is frozen");
+        }
+    }
+
+    private static Profile copyOf(Profile profile) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            profile.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return Profile.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
@@ -29,11 +29,13 @@ import android.os.Handler;
 import android.os.UserHandle;
 import android.util.Log;
 import lineageos.app.Profile;
-import lineageos.app.Profile.ProfileTrigger;
 import lineageos.app.ProfileManager;
 import lineageos.providers.LineageSettings;
 
-import java.util.UUID;
+import org.lineageos.internal.profiles.TriggerEventCoalescer;
+import org.lineageos.internal.profiles.TriggerWindowEvaluator;
+
+import java.util.List;
 
 /**
  * @hide
@@ -42,8 +44,18 @@ public class ProfileTriggerHelper extends BroadcastReceiver {
     private static final String TAG = "ProfileTriggerHelper";
 
     private Context mContext;
+    private Handler mHandler;
     private ProfileManagerService mManagerService;
 
+    // Trigger events are evaluated once per window, see TriggerEventCoalescer
+    private final TriggerEventCoalescer mCoalescer = new TriggerEventCoalescer();
+    private final Runnable mEvaluateTriggers = new Runnable() {
+        @Override
+        public void run() {
+            evaluateTriggers(mCoalescer.drain());
+        }
+    };
+
     private WifiManager mWifiManager;
     private String mLastConnectedSSID;
 
@@ -65,6 +77,7 @@ public class ProfileTriggerHelper extends BroadcastReceiver {
     public ProfileTriggerHelper(Context context, Handler handler,
             ProfileManagerService profileManagerService) {
         mContext = context;
+        mHandler = handler;
         mManagerService = profileManagerService;
         mSettingsObserver = new SettingsObserver(handler);
 
@@ -88,12 +101,15 @@ public class ProfileTriggerHelper extends BroadcastReceiver {
                 LineageSettings.System.SYSTEM_PROFILES_ENABLED, 1) == 1;
         if (enabled && !mFilterRegistered) {
             Log.v(TAG, "Enabling");
-            mContext.registerReceiver(this, mIntentFilter);
+            // Received on the handler thread, which the events are evaluated on
+            mContext.registerReceiver(this, mIntentFilter, null, mHandler);
             mFilterRegistered = true;
         } else if (!enabled && mFilterRegistered) {
             Log.v(TAG, "Disabling");
             mContext.unregisterReceiver(this);
             mFilterRegistered = false;
+            mHandler.removeCallbacks(mEvaluateTriggers);
+            mCoalescer.clear();
         }
     }
 
@@ -105,14 +121,14 @@ public class ProfileTriggerHelper extends BroadcastReceiver {
             NetworkInfo networkInfo = intent.getParcelableExtra(WifiManager.EXTRA_NETWORK_INFO);
             NetworkInfo.DetailedState state = networkInfo.getDetailedState();
             if (NetworkInfo.DetailedState.DISCONNECTED.equals(state)) {
-                checkTriggers(Profile.TriggerType.WIFI, mLastConnectedSSID,
+                queueTrigger(Profile.TriggerType.WIFI, mLastConnectedSSID,
                         Profile.TriggerState.ON_DISCONNECT);
                 mLastConnectedSSID = WifiManager.UNKNOWN_SSID;
             } else if (NetworkInfo.DetailedState.CONNECTED.equals(state)) {
                 String ssid = getActiveSSID();
                 if (ssid != null) {
                     mLastConnectedSSID = ssid;
-                    checkTriggers(Profile.TriggerType.WIFI, mLastConnectedSSID,
+                    queueTrigger(Profile.TriggerType.WIFI, mLastConnectedSSID,
                             Profile.TriggerState.ON_CONNECT);
                 }
             }
@@ -122,7 +138,7 @@ public class ProfileTriggerHelper extends BroadcastReceiver {
                     ? Profile.TriggerState.ON_CONNECT : Profile.TriggerState.ON_DISCONNECT;
             BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
 
-            checkTriggers(Profile.TriggerType.BLUETOOTH, device.getAddress(), triggerState);
+            queueTrigger(Profile.TriggerType.BLUETOOTH, device.getAddress(), triggerState);
 /*        } else if (action.equals(AudioManager.A2DP_ROUTE_CHANGED_ACTION)) {
             BluetoothDevice device = intent
                     .getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
@@ -135,46 +151,40 @@ public class ProfileTriggerHelper extends BroadcastReceiver {
         }
     }
 
-    private void checkTriggers(int type, String id, int newState) {
-        final Profile activeProfile = mManagerService.getActiveProfileInternal();
-        final UUID currentProfileUuid = activeProfile.getUuid();
-
-        boolean newProfileSelected = false;
-        for (Profile p : mManagerService.getProfileList()) {
-            final int profileTriggerState = p.getTriggerState(type, id);
-            if (newState != profileTriggerState) {
-                    continue;
-            }
-
-            if (!currentProfileUuid.equals(p.getUuid())) {
-                mManagerService.setActiveProfileInternal(p, true);
-                newProfileSelected = true;
-            }
+    private void queueTrigger(int type, String id, int newState) {
+        if (mCoalescer.add(type, id, newState)) {
+            mHandler.postDelayed(mEvaluateTriggers, TriggerEventCoalescer.DEFAULT_WINDOW_MS);
         }
+    }
 
-        if (!newProfileSelected) {
-            //Does the active profile actually cares about this event?
-            for (ProfileTrigger trigger : activeProfile.getTriggersFromType(type)) {
-                final String triggerID = trigger.getId();
-                if (triggerID.equals(id)) {
-                    Intent intent
-                            = new Intent(ProfileManager.INTENT_ACTION_PROFILE_TRIGGER_STATE_CHANGED);
-                    intent.putExtra(ProfileManager.EXTRA_TRIGGER_ID, id);
-                    intent.putExtra(ProfileManager.EXTRA_TRIGGER_TYPE, type);
-                    intent.putExtra(ProfileManager.EXTRA_TRIGGER_STATE, newState);
-                    mContext.sendBroadcastAsUser(intent, UserHandle.ALL);
-
-                    final int triggerState = trigger.getState();
-                    if ((newState == Profile.TriggerState.ON_CONNECT
-                            && triggerState == Profile.TriggerState.ON_CONNECT) ||
-                            (newState == Profile.TriggerState.ON_DISCONNECT
-                            && triggerState == Profile.TriggerState.ON_DISCONNECT)) {
-                        activeProfile.doSelect(mContext, null);
-                    }
-                    break;
-                }
-            }
+    private void evaluateTriggers(List<TriggerEventCoalescer.Event> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        // The index, the profiles and the active profile all come from the same state
+        final ProfileState state = mManagerService.getStateInternal();
+        final Profile activeProfile = state.getActiveProfile();
+
+        // Only the profiles with a trigger for the events are visited
+        final TriggerWindowEvaluator.Result result = TriggerWindowEvaluator.evaluate(events,
+                activeProfile.getUuid(), state.getTriggerIndex());
+
+        for (TriggerEventCoalescer.Event event : result.mBroadcasts) {
+            Intent intent
+                    = new Intent(ProfileManager.INTENT_ACTION_PROFILE_TRIGGER_STATE_CHANGED);
+            intent.putExtra(ProfileManager.EXTRA_TRIGGER_ID, event.mId);
+            intent.putExtra(ProfileManager.EXTRA_TRIGGER_TYPE, event.mType);
+            intent.putExtra(ProfileManager.EXTRA_TRIGGER_STATE, event.mState);
+            mContext.sendBroadcastAsUser(intent, UserHandle.ALL);
+        }
 
+        // The last profile reacting to the events of the window is selected, once
+        final Profile newProfile = result.mNewProfileUuid != null
+                ? state.getProfile(result.mNewProfileUuid) : null;
+        if (newProfile != null) {
+            mManagerService.setActiveProfileInternal(newProfile, true);
+        } else if (result.mReapplyActiveProfile) {
+            mManagerService.getApplier().apply(activeProfile, null, false, null);
         }
     }
 
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.platform.internal;
+
+import android.util.ArrayMap;
+
+import lineageos.app.Profile;
+import lineageos.app.Profile.ProfileTrigger;
+
+import org.lineageos.internal.profiles.TriggerWindowEvaluator;
+import org.lineageos.internal.profiles.TriggerWindowEvaluator.Entry;
+
+import java.util.ArrayList;
+import java.util.UUID;
+
+/**
+ * Maps each trigger (type and id) to the profiles that react to it, so that a Wi-Fi or
+ * Bluetooth event only visits the profiles it concerns. The index is updated as profiles are
+ * added, changed and removed. Lookups do not allocate: the arrays they return are never
+ * modified, changes replace them instead.
+ *
+ * Disabled triggers are indexed as well: they never select their profile, but the active
+ * profile having one still makes its events worth broadcasting.
+ *
+ * Like the {@link NotificationGroupIndex}, the index is part of a {@link ProfileState} and has
+ * no lock of its own, so that it always matches the profiles it is published with.
+ */
+final class ProfileTriggerIndex implements TriggerWindowEvaluator.TriggerLookup {
+
+    static final Entry[] NO_ENTRIES = new Entry[0];
+
+    private static final int[] TRIGGER_TYPES = {
+            Profile.TriggerType.WIFI, Profile.TriggerType.BLUETOOTH };
+
+    // Entries by trigger id, one map per trigger type
+    private final ArrayMap<String, Entry[]>[] mEntries;
+
+    // Entries by profile, to drop them when the profile changes
+    private final ArrayMap<UUID, Entry[]> mProfileEntries;
+
+    @SuppressWarnings("unchecked")
+    ProfileTriggerIndex() {
+        mEntries = new ArrayMap[TRIGGER_TYPES.length];
+        for (int i = 0; i < mEntries.length; i++) {
+            mEntries[i] = new ArrayMap<>();
+        }
+        mProfileEntries = new ArrayMap<>();
+    }
+
+    /**
+     * Copies an index. The arrays of entries are shared, as changes replace them.
+     */
+    @SuppressWarnings("unchecked")
+    ProfileTriggerIndex(ProfileTriggerIndex other) {
+        mEntries = new ArrayMap[TRIGGER_TYPES.length];
+        for (int i = 0; i < mEntries.length; i++) {
+            mEntries[i] = new ArrayMap<>(other.mEntries[i]);
+        }
+        mProfileEntries = new ArrayMap<>(other.mProfileEntries);
+    }
+
+    /**
+     * Gets the profiles reacting to a trigger.
+     * @param type the {@link Profile.TriggerType}
+     * @param id the trigger id, such as an SSID or Bluetooth address
+     * @return the matching entries, which must not be modified
+     */
+    @Override
+    public Entry[] get(int type, String id) {
+        if (id == null || type < 0 || type >= TRIGGER_TYPES.length) {
+            return NO_ENTRIES;
+        }
+        final Entry[] entries = mEntries[type].get(id);
+        return entries != null ? entries : NO_ENTRIES;
+    }
+
+    /**
+     * Adds the triggers of a profile, replacing those of any earlier version of it.
+     */
+    void put(Profile profile) {
+        final ArrayList<Entry> entries = new ArrayList<>();
+        for (int type : TRIGGER_TYPES) {
+            for (ProfileTrigger trigger : profile.getTriggersFromType(type)) {
+                if (trigger.getId() != null) {
+                    entries.add(new Entry(type, trigger.getId(), profile.getUuid(),
+                            trigger.getState()));
+                }
+            }
+        }
+
+        remove(profile.getUuid());
+        if (entries.isEmpty()) {
+            return;
+        }
+        final Entry[] profileEntries = entries.toArray(new Entry[entries.size()]);
+        mProfileEntries.put(profile.getUuid(), profileEntries);
+        for (Entry entry : profileEntries) {
+            final ArrayMap<String, Entry[]> byId = mEntries[entry.mType];
+            final Entry[] old = byId.get(entry.mId);
+            final Entry[] updated;
+            if (old == null) {
+                updated = new Entry[] { entry };
+            } else {
+                updated = new Entry[old.length + 1];
+                System.arraycopy(old, 0, updated, 0, old.length);
+                updated[old.length] = entry;
+            }
+            byId.put(entry.mId, updated);
+        }
+    }
+
+    /**
+     * Removes the triggers of a profile.
+     */
+    void remove(UUID profileUuid) {
+        final Entry[] profileEntries = mProfileEntries.remove(profileUuid);
+        if (profileEntries == null) {
+            return;
+        }
+        for (Entry entry : profileEntries) {
+            final ArrayMap<String, Entry[]> byId = mEntries[entry.mType];
+            final Entry[] old = byId.get(entry.mId);
+            if (old == null) {
+                continue;
+            }
+            if (old.length == 1) {
+                byId.remove(entry.mId);
+                continue;
+            }
+            final Entry[] updated = new Entry[old.length - 1];
+            int n = 0;
+            for (Entry e : old) {
+                if (e != entry && n < updated.length) {
+                    updated[n++] = e;
+                }
+            }
+            byId.put(entry.mId, updated);
+        }
+    }
+}
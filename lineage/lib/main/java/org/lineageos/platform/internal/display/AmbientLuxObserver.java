@@ -23,11 +23,15 @@ import android.hardware.SensorManager;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
+import org.lineageos.internal.display.AmbientLuxTracker;
+import org.lineageos.internal.display.LuxFilter;
+import org.lineageos.internal.display.LuxFilters;
+import org.lineageos.internal.display.LuxRingBuffer;
+
 import java.io.PrintWriter;
-import java.util.Iterator;
-import java.util.LinkedList;
 
 public class AmbientLuxObserver {
 
@@ -37,47 +41,60 @@ public class AmbientLuxObserver {
     private final Sensor mLightSensor;
     private final SensorManager mSensorManager;
 
-    private final float mThresholdLux;
-    private final float mHysteresisLux;
     private final int mThresholdDuration;
 
     private boolean mLightSensorEnabled = false;
     private int mLightSensorRate;
 
-    private float mAmbientLux = 0.0f;
-
-    private static final int LOW = 0;
-    private static final int HIGH = 1;
-
-    private int mState = LOW;
-
     private final AmbientLuxHandler mLuxHandler;
 
     private TransitionListener mCallback;
 
-    private final TimedMovingAverageRingBuffer mRingBuffer;
+    private final AmbientLuxTracker mTracker;
 
     public interface TransitionListener {
         public void onTransition(int state, float ambientLux);
     }
 
+    /**
+     * Observes the mean ambient lux over a window of thresholdDuration.
+     */
     public AmbientLuxObserver(Context context, Looper looper,
             float thresholdLux, float hysteresisLux, int thresholdDuration) {
+        this(context, looper, thresholdLux, hysteresisLux, thresholdDuration,
+                LuxFilters.movingAverage(thresholdDuration, LuxRingBuffer.capacityFor(
+                        thresholdDuration, getLightSensorRate(context))), 0);
+    }
+
+    /**
+     * Observes the ambient lux smoothed by a filter, see {@link LuxFilters}.
+     * @param thresholdDuration how long to let the filter settle between checks, doubled
+     * @param minTransitionInterval the shortest time between two transitions, in
+     *        milliseconds, or 0 for no limit
+     */
+    public AmbientLuxObserver(Context context, Looper looper,
+            float thresholdLux, float hysteresisLux, int thresholdDuration,
+            LuxFilter filter, long minTransitionInterval) {
         mLuxHandler = new AmbientLuxHandler(looper);
-        mThresholdLux = thresholdLux;
-        mHysteresisLux = hysteresisLux;
         mThresholdDuration = thresholdDuration;
-        mRingBuffer = new TimedMovingAverageRingBuffer(thresholdDuration);
+        mTracker = new AmbientLuxTracker(thresholdLux, hysteresisLux, filter,
+                minTransitionInterval);
 
         mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
         mLightSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_LIGHT);
-        mLightSensorRate = context.getResources().getInteger(
+        mLightSensorRate = getLightSensorRate(context);
+    }
+
+    /**
+     * @return the rate the light sensor is read at, in milliseconds
+     */
+    public static int getLightSensorRate(Context context) {
+        return context.getResources().getInteger(
                 com.android.internal.R.integer.config_autoBrightnessLightSensorRate);
     }
 
     private class AmbientLuxHandler extends Handler {
 
-        private static final int MSG_UPDATE_LUX = 0;
         private static final int MSG_TRANSITION = 1;
 
         AmbientLuxHandler(Looper looper) {
@@ -86,41 +103,11 @@ public class AmbientLuxObserver {
 
         @Override
         public void handleMessage(Message msg) {
-            int direction = 0;
-            float lux = 0.0f;
-
             synchronized (AmbientLuxObserver.this) {
                 switch (msg.what) {
-                    case MSG_UPDATE_LUX:
-                        lux = (Float) msg.obj;
-                        mRingBuffer.add(lux);
-
-                        // FALL THRU
-
                     case MSG_TRANSITION:
-                        mAmbientLux = mRingBuffer.getAverage();
-
-                        if (DEBUG) {
-                            Log.d(TAG, "lux= " + lux + " mState=" + mState +
-                                       " mAmbientLux=" + mAmbientLux);
-                        }
-
-                        final float threshold = mState == HIGH
-                                ? mThresholdLux - mHysteresisLux : mThresholdLux;
-                        direction = mAmbientLux >= threshold ? HIGH : LOW;
-                        if (mState != direction) {
-                            mState = direction;
-                            if (mCallback != null) {
-                                mCallback.onTransition(mState, mAmbientLux);
-                            }
-                        }
-
-                        // check again in case we didn't get any
-                        // more readings because the sensor settled
-                        if (mRingBuffer.size() > 1) {
-                            removeMessages(MSG_TRANSITION);
-                            sendEmptyMessageDelayed(MSG_TRANSITION, mThresholdDuration / 2);
-                        }
+                        final long now = SystemClock.uptimeMillis();
+                        onAmbientLuxUpdatedLocked(now, 0.0f, mTracker.update(now));
                         break;
                 }
             }
@@ -131,12 +118,35 @@ public class AmbientLuxObserver {
         }
     };
 
+    private void onAmbientLuxUpdatedLocked(long now, float lux, boolean transitioned) {
+        if (DEBUG) {
+            Log.d(TAG, "lux= " + lux + " " + mTracker);
+        }
+
+        if (transitioned && mCallback != null) {
+            mCallback.onTransition(mTracker.getState(), mTracker.getAmbientLux());
+        }
+
+        // check again in case we didn't get any
+        // more readings because the sensor settled
+        mLuxHandler.removeMessages(AmbientLuxHandler.MSG_TRANSITION);
+        final long delay = mTracker.getUpdateDelay(now, mThresholdDuration / 2);
+        if (delay >= 0) {
+            mLuxHandler.sendEmptyMessageDelayed(AmbientLuxHandler.MSG_TRANSITION, delay);
+        }
+    }
+
     private final SensorEventListener mListener = new SensorEventListener() {
         @Override
         public void onSensorChanged(SensorEvent event) {
-            if (mLightSensorEnabled) {
-                Message.obtain(mLuxHandler, AmbientLuxHandler.MSG_UPDATE_LUX,
-                               event.values[0]).sendToTarget();
+            // Events are delivered on the handler thread, see enableLightSensor, and are
+            // handled right away rather than boxed into a message each
+            synchronized (AmbientLuxObserver.this) {
+                if (mLightSensorEnabled) {
+                    final long now = SystemClock.uptimeMillis();
+                    final float lux = event.values[0];
+                    onAmbientLuxUpdatedLocked(now, lux, mTracker.addSample(now, lux));
+                }
             }
         }
 
@@ -147,7 +157,7 @@ public class AmbientLuxObserver {
     };
 
     public synchronized int getState() {
-        return mState;
+        return mTracker.getState();
     }
 
     public synchronized void setTransitionListener(TransitionListener callback) {
@@ -163,97 +173,17 @@ public class AmbientLuxObserver {
         } else if (!enable && mLightSensorEnabled) {
             mSensorManager.unregisterListener(mListener);
             mLuxHandler.clear();
-            mAmbientLux = 0.0f;
-            mState = LOW;
             mLightSensorEnabled = false;
-            mRingBuffer.clear();
+            mTracker.reset();
         }
     }
 
-    public void dump(PrintWriter pw) {
+    public synchronized void dump(PrintWriter pw) {
         pw.println();
         pw.println("  AmbientLuxObserver State:");
         pw.println("    mLightSensorEnabled=" + mLightSensorEnabled);
-        pw.println("    mState=" + mState);
-        pw.println("    mAmbientLux=" + mAmbientLux);
-        pw.println("    mRingBuffer=" + mRingBuffer.toString());
-    }
-
-    /**
-     * Calculates a simple moving average based on a fixed
-     * duration sliding window. This is useful for dampening
-     * erratic sensors and rolling thru transitional periods
-     * smoothly.
-     */
-    private static class TimedMovingAverageRingBuffer {
-
-        private final LinkedList<Sample> mRing = new LinkedList<Sample>();
-
-        private final int mPeriod;
-
-        private float mTotal = 0.0f;
-
-        private static class Sample {
-            public final long mTimestamp;
-            public final float mValue;
-            public Sample (long timestamp, float value) {
-                mTimestamp = timestamp;
-                mValue = value;
-            }
-
-            @Override
-            public String toString() {
-                return "(" + mValue + ", " + mTimestamp + ")";
-            }
-        }
-
-        public TimedMovingAverageRingBuffer(int period) {
-            mPeriod = period;
-        }
-
-        public synchronized void add(float sample) {
-            expire();
-            if (sample == 0.0f && mRing.size() == 0) {
-                return;
-            }
-            mRing.offer(new Sample(System.currentTimeMillis(), sample));
-            mTotal += sample;
-        }
-
-        public synchronized int size() {
-            return mRing.size();
-        }
-
-        public synchronized float getAverage() {
-            expire();
-            return mRing.size() == 0 ? 0.0f : (mTotal / mRing.size());
-        }
-
-        public synchronized void clear() {
-            mRing.clear();
-            mTotal = 0.0f;
-        }
-
-        private void expire() {
-            long now = System.currentTimeMillis();
-            while (mRing.size() > 1 &&
-                    ((now - mRing.peek().mTimestamp) > mPeriod)) {
-                mTotal -= mRing.pop().mValue;
-            }
-        }
-
-        @Override
-        public synchronized String toString() {
-            expire();
-            StringBuilder sb = new StringBuilder();
-            for (Iterator<Sample> i = mRing.iterator(); i.hasNext();) {
-                if (sb.length() > 0) {
-                    sb.append(", ");
-                }
-                sb.append(i.next());
-            }
-            return "average=" + getAverage() + " length=" + mRing.size() +
-                   " mRing=[" + sb.toString() + "]";
-        }
+        pw.println("    mState=" + mTracker.getState());
+        pw.println("    mAmbientLux=" + mTracker.getAmbientLux());
+        pw.println("    mTracker=" + mTracker);
     }
 }
@@ -16,8 +16,6 @@
  */
 package org.lineageos.platform.internal.display;
 
-import android.animation.ValueAnimator;
-import android.animation.ValueAnimator.AnimatorUpdateListener;
 import android.content.Context;
 import android.net.Uri;
 import android.os.Handler;
@@ -60,7 +58,6 @@ public class ColorTemperatureController extends LiveDisplayFeature {
     private int mNightTemperature;
 
     private AccelerateDecelerateInterpolator mInterpolator;
-    private ValueAnimator mAnimator;
 
     private final LineageHardwareManager mHardware;
 
@@ -135,11 +132,9 @@ public class ColorTemperatureController extends LiveDisplayFeature {
 
     @Override
     protected void onScreenStateChanged() {
-        if (mAnimator != null && mAnimator.isRunning() && !isScreenOn()) {
-            mAnimator.cancel();
-        } else {
-            updateColorTemperature();
-        }
+        // the display hardware feature may be unused, so pause the transitions here as well
+        mDisplayHardware.getTransitionEngine().setEnabled(isScreenOn());
+        updateColorTemperature();
     }
 
     @Override
@@ -211,48 +206,6 @@ public class ColorTemperatureController extends LiveDisplayFeature {
         }
     }
 
-    /**
-     * Smoothly animate the current display color balance
-     */
-    private synchronized void animateColorBalance(int balance) {
-
-        // always start with the current values in the hardware
-        int current = mHardware.getColorBalance();
-
-        if (current == balance) {
-            return;
-        }
-
-        long duration = (long)(5 * Math.abs(current - balance));
-
-
-        if (DEBUG) {
-            Slog.d(TAG, "animateDisplayColor current=" + current +
-                    " target=" + balance + " duration=" + duration);
-        }
-
-        if (mAnimator != null) {
-            mAnimator.cancel();
-            mAnimator.removeAllUpdateListeners();
-        }
-
-        mAnimator = ValueAnimator.ofInt(current, balance);
-        mAnimator.setDuration(duration);
-        mAnimator.setInterpolator(mInterpolator);
-        mAnimator.addUpdateListener(new AnimatorUpdateListener() {
-            @Override
-            public void onAnimationUpdate(final ValueAnimator animation) {
-                synchronized (ColorTemperatureController.this) {
-                    if (isScreenOn()) {
-                        int value = (int) animation.getAnimatedValue();
-                        mHardware.setColorBalance(value);
-                    }
-                }
-            }
-        });
-        mAnimator.start();
-    }
-
     /*
      * Map the color temperature to a color balance value using a power curve. This assumes the
      * correct configuration at the device level!
@@ -274,7 +227,8 @@ public class ColorTemperatureController extends LiveDisplayFeature {
         if (mUseColorBalance) {
             int balance = mapColorTemperatureToBalance(temperature);
             Slog.d(TAG, "Set color balance = " + balance + " (temperature=" + temperature + ")");
-            animateColorBalance(balance);
+            // smoothly moves there, along with any calibration change
+            mDisplayHardware.getTransitionEngine().setColorBalance(balance);
             return;
         }
 
@@ -16,9 +16,6 @@
  */
 package org.lineageos.platform.internal.display;
 
-import android.animation.FloatArrayEvaluator;
-import android.animation.ValueAnimator;
-import android.animation.ValueAnimator.AnimatorUpdateListener;
 import android.content.Context;
 import android.net.Uri;
 import android.os.Handler;
@@ -28,7 +25,8 @@ import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.util.MathUtils;
 import android.util.Slog;
-import android.view.animation.LinearInterpolator;
+
+import org.lineageos.internal.display.ColorTransitionEngine;
 
 import java.io.PrintWriter;
 import java.util.ArrayList;
@@ -62,7 +60,8 @@ public class DisplayHardwareController extends LiveDisplayFeature {
     private final float[] mAdditionalAdjustment = getDefaultAdjustment();
     private final float[] mColorAdjustment = getDefaultAdjustment();
 
-    private ValueAnimator mAnimator;
+    // runs the color calibration and color balance transitions
+    private final ColorTransitionEngine mTransitions;
 
     private final int mMaxColor;
 
@@ -119,6 +118,8 @@ public class DisplayHardwareController extends LiveDisplayFeature {
         } else {
             mMaxColor = 0;
         }
+
+        mTransitions = new ColorTransitionEngine(mHandler, mTransitionHardware, mMaxColor);
     }
 
     @Override
@@ -214,13 +215,8 @@ public class DisplayHardwareController extends LiveDisplayFeature {
 
     @Override
     protected synchronized void onScreenStateChanged() {
-        if (mUseColorAdjustment) {
-            if (mAnimator != null && mAnimator.isRunning() && !isScreenOn()) {
-                mAnimator.cancel();
-            } else if (isScreenOn()) {
-                updateColorAdjustment();
-            }
-        }
+        // transitions pause with the screen off, and resume towards their latest targets
+        mTransitions.setEnabled(isScreenOn());
     }
 
     @Override
@@ -242,6 +238,7 @@ public class DisplayHardwareController extends LiveDisplayFeature {
         pw.println("    mColorAdjustment=" + Arrays.toString(mColorAdjustment));
         pw.println("    mAdditionalAdjustment=" + Arrays.toString(mAdditionalAdjustment));
         pw.println("    hardware setting=" + Arrays.toString(mHardware.getDisplayColorCalibration()));
+        mTransitions.dump(pw);
     }
 
     /**
@@ -280,20 +277,13 @@ public class DisplayHardwareController extends LiveDisplayFeature {
             return;
         }
 
-        final float[] rgb = getDefaultAdjustment();
-
-        copyColors(mColorAdjustment, rgb);
-        rgb[0] *= mAdditionalAdjustment[0];
-        rgb[1] *= mAdditionalAdjustment[1];
-        rgb[2] *= mAdditionalAdjustment[2];
-
         if (DEBUG) {
-            Slog.d(TAG, "updateColorAdjustment: " + Arrays.toString(rgb));
+            Slog.d(TAG, "updateColorAdjustment: " + Arrays.toString(mColorAdjustment) +
+                    " * " + Arrays.toString(mAdditionalAdjustment));
         }
 
-        if (validateColors(rgb)) {
-            animateDisplayColor(rgb);
-        }
+        // the transition engine merges both into the calibration target
+        mTransitions.setCalibrationSources(mColorAdjustment, mAdditionalAdjustment);
     }
 
     /**
@@ -307,61 +297,33 @@ public class DisplayHardwareController extends LiveDisplayFeature {
     }
 
     /**
-     * Smoothly animate the current display colors to the new value.
+     * The hardware written by the color transitions, refreshing the screen after each
+     * calibration change.
      */
-    private synchronized void animateDisplayColor(float[] targetColors) {
-
-        // always start with the current values in the hardware
-        int[] currentInts = mHardware.getDisplayColorCalibration();
-        float[] currentColors = new float[] {
-                (float)currentInts[0] / (float)mMaxColor,
-                (float)currentInts[1] / (float)mMaxColor,
-                (float)currentInts[2] / (float)mMaxColor };
-
-        if (currentColors[0] == targetColors[0] &&
-                currentColors[1] == targetColors[1] &&
-                currentColors[2] == targetColors[2]) {
-            return;
+    private final ColorTransitionEngine.Hardware mTransitionHardware =
+            new ColorTransitionEngine.Hardware() {
+        @Override
+        public int[] getDisplayColorCalibration() {
+            return mHardware.getDisplayColorCalibration();
         }
 
-        // max 500 ms, scaled vs. the largest delta
-        long duration = (long)(750 * (Math.max(Math.max(
-                Math.abs(currentColors[0] - targetColors[0]),
-                Math.abs(currentColors[1] - targetColors[1])),
-                Math.abs(currentColors[2] - targetColors[2]))));
+        @Override
+        public boolean setDisplayColorCalibration(int[] rgb) {
+            final boolean result = mHardware.setDisplayColorCalibration(rgb);
+            screenRefresh();
+            return result;
+        }
 
-        if (DEBUG) {
-            Slog.d(TAG, "animateDisplayColor current=" + Arrays.toString(currentColors) +
-                    " targetColors=" + Arrays.toString(targetColors) + " duration=" + duration);
-        }
-
-        if (mAnimator != null) {
-            mAnimator.cancel();
-            mAnimator.removeAllUpdateListeners();
-        }
-
-        mAnimator = ValueAnimator.ofObject(
-                new FloatArrayEvaluator(new float[3]), currentColors, targetColors);
-        mAnimator.setDuration(duration);
-        mAnimator.setInterpolator(new LinearInterpolator());
-        mAnimator.addUpdateListener(new AnimatorUpdateListener() {
-            @Override
-            public void onAnimationUpdate(final ValueAnimator animation) {
-                synchronized (DisplayHardwareController.this) {
-                    if (isScreenOn()) {
-                        float[] value = (float[]) animation.getAnimatedValue();
-                        mHardware.setDisplayColorCalibration(new int[] {
-                                (int) (value[0] * mMaxColor),
-                                (int) (value[1] * mMaxColor),
-                                (int) (value[2] * mMaxColor)
-                        });
-                        screenRefresh();
-                    }
-                }
-            }
-        });
-        mAnimator.start();
-    }
+        @Override
+        public int getColorBalance() {
+            return mHardware.getColorBalance();
+        }
+
+        @Override
+        public boolean setColorBalance(int value) {
+            return mHardware.setColorBalance(value);
+        }
+    };
 
     /**
      * Tell SurfaceFlinger to repaint the screen. This is called after updating
@@ -528,6 +490,10 @@ public class DisplayHardwareController extends LiveDisplayFeature {
         return mUseColorAdjustment;
     }
 
+    ColorTransitionEngine getTransitionEngine() {
+        return mTransitions;
+    }
+
     private static float[] getDefaultAdjustment() {
         return new float[] { 1.0f, 1.0f, 1.0f };
     }
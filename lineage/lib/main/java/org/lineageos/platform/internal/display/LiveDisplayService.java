@@ -31,6 +31,7 @@ import android.os.PowerManagerInternal;
 import android.os.PowerSaveState;
 import android.os.Process;
 import android.os.UserHandle;
+import android.util.Log;
 import android.view.Display;
 
 import com.android.server.LocalServices;
@@ -48,10 +49,15 @@ import java.util.BitSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import lineageos.app.LineageContextConstants;
 import lineageos.hardware.HSIC;
 import lineageos.hardware.ILiveDisplayService;
+import lineageos.hardware.LineageHardwareManager;
 import lineageos.hardware.LiveDisplayConfig;
 import lineageos.providers.LineageSettings;
 
@@ -92,6 +98,12 @@ public class LiveDisplayService extends LineageSystemService {
 
     private LiveDisplayConfig mConfig;
 
+    // The hardware discovery started at system services ready
+    private Future<Integer> mHardwareCapabilities;
+
+    // Longer than the discovery's own timeout, only there in case it never completes
+    private static final long HARDWARE_DISCOVERY_WAIT_MS = 5000;
+
     static int MODE_CHANGED = 1;
     static int DISPLAY_CHANGED = 2;
     static int TWILIGHT_CHANGED = 4;
@@ -148,7 +160,12 @@ public class LiveDisplayService extends LineageSystemService {
 
     @Override
     public void onBootPhase(int phase) {
-        if (phase == PHASE_BOOT_COMPLETED) {
+        if (phase == PHASE_SYSTEM_SERVICES_READY) {
+            // Start probing the hardware now, so the features find it ready at boot completed
+            mHardwareCapabilities = LineageHardwareManager.getInstance(mContext)
+                    .awaitCapabilities();
+        } else if (phase == PHASE_BOOT_COMPLETED) {
+            awaitHardwareCapabilities();
 
             mAwaitingNudge = getSunsetCounter() < 1;
 
@@ -485,6 +502,23 @@ public class LiveDisplayService extends LineageSystemService {
         }
     };
 
+    private void awaitHardwareCapabilities() {
+        if (mHardwareCapabilities == null) {
+            return;
+        }
+        try {
+            mHardwareCapabilities.get(HARDWARE_DISCOVERY_WAIT_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Hardware discovery failed", e);
+        } catch (TimeoutException e) {
+            // The features probe what they need themselves
+            Log.w(TAG, "Hardware discovery still running after " + HARDWARE_DISCOVERY_WAIT_MS
+                    + "ms, moving on");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private boolean isScreenOn() {
         return mDisplayManager.getDisplay(
                 Display.DEFAULT_DISPLAY).getState() == Display.STATE_ON;
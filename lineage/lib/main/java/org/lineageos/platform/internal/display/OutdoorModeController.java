@@ -24,6 +24,8 @@ import android.content.Context;
 import android.net.Uri;
 import android.os.Handler;
 
+import org.lineageos.internal.display.LuxFilters;
+
 import java.io.PrintWriter;
 import java.util.BitSet;
 
@@ -72,7 +74,10 @@ public class OutdoorModeController extends LiveDisplayFeature {
         }
 
         mLuxObserver = new AmbientLuxObserver(mContext, mHandler.getLooper(),
-                mDefaultOutdoorLux, mOutdoorLuxHysteresis, SENSOR_WINDOW_MS);
+                mDefaultOutdoorLux, mOutdoorLuxHysteresis, SENSOR_WINDOW_MS,
+                LuxFilters.outdoorMode(SENSOR_WINDOW_MS,
+                        AmbientLuxObserver.getLightSensorRate(mContext)),
+                LuxFilters.OUTDOOR_MIN_TRANSITION_INTERVAL_MS);
 
         registerSettings(
                 LineageSettings.System.getUriFor(LineageSettings.System.DISPLAY_AUTO_OUTDOOR_MODE));
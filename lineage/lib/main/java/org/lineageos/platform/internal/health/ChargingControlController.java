@@ -635,6 +635,14 @@ public class ChargingControlController extends LineageHealthFeature {
     }
 
     private void handleSettingChange() {
+        // Warm the settings cache so the reads below don't each go over binder
+        LineageSettings.System.getStringsForUser(mContentResolver, mContentResolver.getUserId(),
+                LineageSettings.System.CHARGING_CONTROL_ENABLED,
+                LineageSettings.System.CHARGING_CONTROL_LIMIT,
+                LineageSettings.System.CHARGING_CONTROL_MODE,
+                LineageSettings.System.CHARGING_CONTROL_START_TIME,
+                LineageSettings.System.CHARGING_CONTROL_TARGET_TIME);
+
         mConfigEnabled = LineageSettings.System.getInt(mContentResolver,
                 LineageSettings.System.CHARGING_CONTROL_ENABLED, 0)
                 != 0;
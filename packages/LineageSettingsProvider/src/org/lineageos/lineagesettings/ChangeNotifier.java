@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.lineagesettings;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.SystemProperties;
+import android.util.ArraySet;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+import lineageos.providers.LineageSettings;
+
+/**
+ * Coalesces setting changes into one observer notification per user. Changes are collected
+ * for a short window, or until the outermost batch opened with {@link #beginBatch()} is
+ * closed, and then dispatched together. Observers still receive every changed uri, so per-key
+ * observers only hear about their own key.
+ *
+ * The version properties are bumped before the write returns to its caller, once per change or
+ * once per table at the end of a batch, so that a client reading back what it just wrote never
+ * gets its stale cached value. Only the observer notifications are delayed.
+ */
+final class ChangeNotifier {
+    private static final String TAG = "LineageChangeNotifier";
+    private static final boolean LOCAL_LOGV = false;
+
+    // How long to wait for more changes before dispatching
+    private static final long NOTIFY_DELAY_MS = 20;
+
+    private final ContentResolver mContentResolver;
+    private final Handler mHandler;
+    private final ProviderStats mStats;
+
+    private final Object mLock = new Object();
+
+    // Changed uris, keyed by the user to notify
+    @GuardedBy("mLock")
+    private final SparseArray<ArraySet<Uri>> mChangedUris = new SparseArray<>();
+
+    @GuardedBy("mLock")
+    private int mBatchDepth;
+
+    @GuardedBy("mLock")
+    private boolean mDispatchScheduled;
+
+    private final Runnable mDispatchRunnable = this::dispatchPending;
+
+    // The batch of the calling thread. Versions are bumped per thread, so that the batch of
+    // one writer does not hold back the bumps of another.
+    private final ThreadLocal<ThreadBatch> mThreadBatch =
+            ThreadLocal.withInitial(ThreadBatch::new);
+
+    private static final class ThreadBatch {
+        int mDepth;
+        // Tables changed in the batch, whose version is bumped when it ends
+        final ArraySet<String> mChangedTables = new ArraySet<>();
+    }
+
+    /**
+     * Creates an instance of {@link ChangeNotifier}
+     * @param contentResolver The resolver to notify observers through.
+     * @param handler The handler to dispatch delayed notifications on, which should not be
+     *     shared with slow work such as database upgrades.
+     * @param stats The stats to record dispatch times in.
+     */
+    ChangeNotifier(ContentResolver contentResolver, Handler handler, ProviderStats stats) {
+        mContentResolver = contentResolver;
+        mHandler = handler;
+        mStats = stats;
+    }
+
+    /**
+     * Records a change to be dispatched with the next batch of notifications.
+     * @param uri The uri that changed.
+     * @param tableName The table the change was made in.
+     * @param notifyTarget The user whose observers should be notified.
+     */
+    void onChange(Uri uri, String tableName, int notifyTarget) {
+        final ThreadBatch batch = mThreadBatch.get();
+        if (batch.mDepth > 0) {
+            batch.mChangedTables.add(tableName);
+        } else {
+            bumpVersion(tableName);
+        }
+
+        synchronized (mLock) {
+            ArraySet<Uri> uris = mChangedUris.get(notifyTarget);
+            if (uris == null) {
+                uris = new ArraySet<>();
+                mChangedUris.put(notifyTarget, uris);
+            }
+            uris.add(uri);
+
+            if (mBatchDepth == 0 && !mDispatchScheduled) {
+                mDispatchScheduled = true;
+                mHandler.postDelayed(mDispatchRunnable, NOTIFY_DELAY_MS);
+            }
+        }
+    }
+
+    /**
+     * Holds back notifications until the matching {@link #endBatch()}. Batches may be nested.
+     */
+    void beginBatch() {
+        mThreadBatch.get().mDepth++;
+        synchronized (mLock) {
+            mBatchDepth++;
+        }
+    }
+
+    /**
+     * Closes a batch opened with {@link #beginBatch()} on the same thread. Closing the
+     * thread's outermost batch bumps the versions of the tables it changed, and closing the
+     * last open batch dispatches all pending notifications right away.
+     */
+    void endBatch() {
+        final ThreadBatch batch = mThreadBatch.get();
+        if (batch.mDepth == 0) {
+            throw new IllegalStateException("endBatch() without beginBatch()");
+        }
+        if (--batch.mDepth == 0) {
+            for (int i = 0; i < batch.mChangedTables.size(); i++) {
+                bumpVersion(batch.mChangedTables.valueAt(i));
+            }
+            batch.mChangedTables.clear();
+        }
+
+        synchronized (mLock) {
+            if (--mBatchDepth > 0) {
+                return;
+            }
+        }
+        mHandler.removeCallbacks(mDispatchRunnable);
+        dispatchPending();
+    }
+
+    private void bumpVersion(String tableName) {
+        final String property = getVersionProperty(tableName);
+        if (property != null) {
+            long version = SystemProperties.getLong(property, 0) + 1;
+            if (LOCAL_LOGV) Log.v(TAG, "property: " + property + "=" + version);
+            SystemProperties.set(property, Long.toString(version));
+        }
+    }
+
+    private void dispatchPending() {
+        final SparseArray<ArraySet<Uri>> changedUris;
+        synchronized (mLock) {
+            mDispatchScheduled = false;
+            if (mBatchDepth > 0 || mChangedUris.size() == 0) {
+                return;
+            }
+            changedUris = mChangedUris.clone();
+            mChangedUris.clear();
+        }
+
+        final long start = ProviderStats.start();
+        final long oldId = Binder.clearCallingIdentity();
+        try {
+            for (int i = 0; i < changedUris.size(); i++) {
+                final ArraySet<Uri> uris = changedUris.valueAt(i);
+                mContentResolver.notifyChange(uris.toArray(new Uri[uris.size()]), null,
+                        ContentResolver.NOTIFY_SYNC_TO_NETWORK, changedUris.keyAt(i));
+                if (LOCAL_LOGV) {
+                    Log.v(TAG, "notifying for " + changedUris.keyAt(i) + ": " + uris);
+                }
+            }
+        } finally {
+            Binder.restoreCallingIdentity(oldId);
+        }
+        mStats.record(ProviderStats.NOTIFY, start);
+    }
+
+    private static String getVersionProperty(String tableName) {
+        switch (tableName) {
+            case LineageDatabaseHelper.LineageTableNames.TABLE_SYSTEM:
+                return LineageSettings.System.SYS_PROP_LINEAGE_SETTING_VERSION;
+            case LineageDatabaseHelper.LineageTableNames.TABLE_SECURE:
+                return LineageSettings.Secure.SYS_PROP_LINEAGE_SETTING_VERSION;
+            case LineageDatabaseHelper.LineageTableNames.TABLE_GLOBAL:
+                return LineageSettings.Global.SYS_PROP_LINEAGE_SETTING_VERSION;
+            default:
+                return null;
+        }
+    }
+}
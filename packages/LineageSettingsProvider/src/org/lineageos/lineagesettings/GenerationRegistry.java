@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.lineagesettings;
+
+import android.os.Bundle;
+import android.util.ArrayMap;
+import android.util.Log;
+import android.util.MemoryIntArray;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+import lineageos.providers.LineageSettings;
+
+import java.io.IOException;
+
+/**
+ * Keeps a generation number per setting in shared memory, so that the {@link LineageSettings}
+ * client caches can invalidate only the entries that actually changed instead of dropping a
+ * whole table on every write.
+ *
+ * Each (user, table) pair gets its own {@link MemoryIntArray}. Slot 0 of every array is shared
+ * by all keys that were not present when a client read them; any other key is assigned its own
+ * slot the first time it is read while present.
+ *
+ * Writers bump the generation after storing the value, so readers take a stamp of the
+ * generation with {@link #getGenerationStamp} before reading the value, and hand it to
+ * {@link #addGenerationData} afterwards. A write landing in between then leaves the client
+ * with a generation that is already outdated, rather than a stale value under a current one.
+ */
+final class GenerationRegistry {
+    private static final String TAG = "LineageGenerationRegistry";
+    private static final boolean LOCAL_LOGV = false;
+
+    private static final int MISSING_KEY_INDEX = 0;
+
+    // Stamp of a table that cannot be tracked
+    private static final long NO_STAMP = -1L;
+
+    private static final int MAX_BACKING_STORE_SIZE = MemoryIntArray.getMaxSize();
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final SparseArray<MemoryIntArray> mBackingStores = new SparseArray<>();
+
+    @GuardedBy("mLock")
+    private final SparseArray<ArrayMap<String, Integer>> mKeyIndices = new SparseArray<>();
+
+    /**
+     * Takes the generation of a setting before its value is read.
+     * @param tableName The table the setting lives in.
+     * @param userId The user owning the table.
+     * @param name The name of the setting.
+     * @return The stamp to hand to {@link #addGenerationData}.
+     */
+    long getGenerationStamp(String tableName, int userId, String name) {
+        synchronized (mLock) {
+            final int key = makeKey(tableName, userId);
+            final MemoryIntArray backingStore = getOrCreateBackingStoreLocked(key);
+            if (backingStore == null) {
+                return NO_STAMP;
+            }
+            return getStampLocked(key, backingStore, name);
+        }
+    }
+
+    /**
+     * Takes the generations of several settings before their values are read.
+     * @return The stamps to hand to {@link #addGenerationData}, or null.
+     */
+    long[] getGenerationStamps(String tableName, int userId, String[] names) {
+        synchronized (mLock) {
+            final int key = makeKey(tableName, userId);
+            final MemoryIntArray backingStore = getOrCreateBackingStoreLocked(key);
+            if (backingStore == null) {
+                return null;
+            }
+            final long[] stamps = new long[names.length];
+            for (int i = 0; i < names.length; i++) {
+                stamps[i] = getStampLocked(key, backingStore, names[i]);
+            }
+            return stamps;
+        }
+    }
+
+    /**
+     * Attaches the generation tracking data for a setting to a call() result.
+     * @param bundle The result bundle to populate.
+     * @param tableName The table the setting lives in.
+     * @param userId The user owning the table.
+     * @param name The name of the setting.
+     * @param exists Whether the setting is currently present in the table.
+     * @param includeBackingStore Whether the caller needs the shared memory region itself.
+     * @param stamp The stamp taken before the value was read.
+     */
+    void addGenerationData(Bundle bundle, String tableName, int userId, String name,
+            boolean exists, boolean includeBackingStore, long stamp) {
+        synchronized (mLock) {
+            final int key = makeKey(tableName, userId);
+            final MemoryIntArray backingStore = getOrCreateBackingStoreLocked(key);
+            if (backingStore == null) {
+                return;
+            }
+
+            final int index = getIndexLocked(key, backingStore, name, exists);
+            if (index < 0) {
+                // Out of slots; the client falls back to table-wide versioning.
+                return;
+            }
+
+            try {
+                final int generation = getGenerationLocked(backingStore, index, stamp);
+                if (includeBackingStore) {
+                    bundle.putParcelable(LineageSettings.CALL_METHOD_TRACK_GENERATION_KEY,
+                            backingStore);
+                }
+                bundle.putInt(LineageSettings.CALL_METHOD_GENERATION_INDEX_KEY, index);
+                bundle.putInt(LineageSettings.CALL_METHOD_GENERATION_KEY, generation);
+            } catch (IOException e) {
+                Log.e(TAG, "Error reading generation for " + name, e);
+                destroyBackingStoreLocked(key);
+            }
+        }
+    }
+
+    /**
+     * Attaches the generation tracking data for several settings to a batched call() result.
+     * Settings that could not be assigned a slot get an index of -1.
+     * @param bundle The result bundle to populate.
+     * @param tableName The table the settings live in.
+     * @param userId The user owning the table.
+     * @param names The names of the settings.
+     * @param exists Whether each setting is currently present in the table.
+     * @param includeBackingStore Whether the caller needs the shared memory region itself.
+     * @param stamps The stamps taken before the values were read.
+     */
+    void addGenerationData(Bundle bundle, String tableName, int userId, String[] names,
+            boolean[] exists, boolean includeBackingStore, long[] stamps) {
+        synchronized (mLock) {
+            final int key = makeKey(tableName, userId);
+            final MemoryIntArray backingStore = getOrCreateBackingStoreLocked(key);
+            if (backingStore == null) {
+                return;
+            }
+
+            final int[] indices = new int[names.length];
+            final int[] generations = new int[names.length];
+            try {
+                for (int i = 0; i < names.length; i++) {
+                    indices[i] = getIndexLocked(key, backingStore, names[i], exists[i]);
+                    generations[i] = indices[i] < 0 ? 0 : getGenerationLocked(backingStore,
+                            indices[i], stamps != null ? stamps[i] : NO_STAMP);
+                }
+                if (includeBackingStore) {
+                    bundle.putParcelable(LineageSettings.CALL_METHOD_TRACK_GENERATION_KEY,
+                            backingStore);
+                }
+                bundle.putIntArray(LineageSettings.CALL_METHOD_GENERATION_INDEX_KEY, indices);
+                bundle.putIntArray(LineageSettings.CALL_METHOD_GENERATION_KEY, generations);
+            } catch (IOException e) {
+                Log.e(TAG, "Error reading generations", e);
+                destroyBackingStoreLocked(key);
+            }
+        }
+    }
+
+    /**
+     * Bumps the generation of a single setting, or of every setting in the table if
+     * {@code name} is {@code null}.
+     * @param tableName The table that changed.
+     * @param userId The user owning the table.
+     * @param name The setting that changed, or {@code null} if the whole table changed.
+     */
+    void incrementGeneration(String tableName, int userId, String name) {
+        synchronized (mLock) {
+            final int key = makeKey(tableName, userId);
+            final MemoryIntArray backingStore = mBackingStores.get(key);
+            if (backingStore == null) {
+                // Nobody is tracking this table yet.
+                return;
+            }
+
+            try {
+                if (name == null) {
+                    final int size = mKeyIndices.get(key).size();
+                    for (int i = MISSING_KEY_INDEX; i <= size; i++) {
+                        incrementLocked(backingStore, i);
+                    }
+                } else {
+                    final Integer index = mKeyIndices.get(key).get(name);
+                    // Keys without a slot of their own may be cached as missing in slot 0
+                    incrementLocked(backingStore, index != null ? index : MISSING_KEY_INDEX);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error updating generation for " + name, e);
+                destroyBackingStoreLocked(key);
+            }
+        }
+    }
+
+    /**
+     * Drops all generation tracking state for a removed user.
+     * @param userId The id of the user that was removed.
+     */
+    void onUserRemoved(int userId) {
+        synchronized (mLock) {
+            destroyBackingStoreLocked(makeKey(
+                    LineageDatabaseHelper.LineageTableNames.TABLE_SYSTEM, userId));
+            destroyBackingStoreLocked(makeKey(
+                    LineageDatabaseHelper.LineageTableNames.TABLE_SECURE, userId));
+            destroyBackingStoreLocked(makeKey(
+                    LineageDatabaseHelper.LineageTableNames.TABLE_GLOBAL, userId));
+        }
+    }
+
+    private int getIndexLocked(int key, MemoryIntArray backingStore, String name,
+            boolean exists) {
+        final ArrayMap<String, Integer> indices = mKeyIndices.get(key);
+        final Integer index = indices.get(name);
+        if (index != null) {
+            return index;
+        }
+        if (!exists) {
+            return MISSING_KEY_INDEX;
+        }
+
+        final int newIndex = indices.size() + 1;
+        if (newIndex >= backingStore.size()) {
+            return -1;
+        }
+        indices.put(name, newIndex);
+        return newIndex;
+    }
+
+    private long getStampLocked(int key, MemoryIntArray backingStore, String name) {
+        final Integer index = mKeyIndices.get(key).get(name);
+        final int slot = index != null ? index : MISSING_KEY_INDEX;
+        try {
+            return ((long) slot << 32) | (backingStore.get(slot) & 0xffffffffL);
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading generation for " + name, e);
+            return NO_STAMP;
+        }
+    }
+
+    /**
+     * @return The generation stamped before the value was read. If the setting only got its
+     *         own slot since, the generation of that slot, unless a write may have raced with
+     *         the read; the generation is then already outdated, so that the client reads the
+     *         value again next time.
+     */
+    private int getGenerationLocked(MemoryIntArray backingStore, int index, long stamp)
+            throws IOException {
+        if (stamp != NO_STAMP) {
+            final int stampedIndex = (int) (stamp >>> 32);
+            if (stampedIndex == index) {
+                return (int) stamp;
+            }
+            // Until it had a slot, writes to the setting bumped the missing key slot. If that
+            // has not moved since the stamp, the value read is current.
+            if (stampedIndex == MISSING_KEY_INDEX
+                    && backingStore.get(MISSING_KEY_INDEX) == (int) stamp) {
+                return backingStore.get(index);
+            }
+        }
+        return backingStore.get(index) - 1;
+    }
+
+    private void incrementLocked(MemoryIntArray backingStore, int index) throws IOException {
+        backingStore.set(index, backingStore.get(index) + 1);
+        if (LOCAL_LOGV) Log.v(TAG, "generation[" + index + "]=" + backingStore.get(index));
+    }
+
+    private MemoryIntArray getOrCreateBackingStoreLocked(int key) {
+        MemoryIntArray backingStore = mBackingStores.get(key);
+        if (backingStore == null) {
+            try {
+                backingStore = new MemoryIntArray(MAX_BACKING_STORE_SIZE);
+            } catch (IOException e) {
+                Log.e(TAG, "Error creating generation tracker", e);
+                return null;
+            }
+            mBackingStores.put(key, backingStore);
+            mKeyIndices.put(key, new ArrayMap<>());
+        }
+        return backingStore;
+    }
+
+    private void destroyBackingStoreLocked(int key) {
+        final MemoryIntArray backingStore = mBackingStores.get(key);
+        if (backingStore != null) {
+            try {
+                backingStore.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot close generation memory array", e);
+            }
+            mBackingStores.remove(key);
+            mKeyIndices.remove(key);
+        }
+    }
+
+    private static int makeKey(String tableName, int userId) {
+        final int type;
+        switch (tableName) {
+            case LineageDatabaseHelper.LineageTableNames.TABLE_SYSTEM:
+                type = 0;
+                break;
+            case LineageDatabaseHelper.LineageTableNames.TABLE_SECURE:
+                type = 1;
+                break;
+            case LineageDatabaseHelper.LineageTableNames.TABLE_GLOBAL:
+                type = 2;
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid table: " + tableName);
+        }
+        return (userId << 2) | type;
+    }
+}
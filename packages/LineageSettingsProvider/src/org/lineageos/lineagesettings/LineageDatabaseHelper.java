@@ -27,12 +27,16 @@ import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
 import android.os.Environment;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.text.TextUtils;
 import android.util.DisplayMetrics;
 import android.util.Log;
+import android.util.SparseLongArray;
+
+import com.android.internal.annotations.VisibleForTesting;
 
 import lineageos.providers.LineageSettings;
 
@@ -70,10 +74,67 @@ public class LineageDatabaseHelper extends SQLiteOpenHelper{
 
     private static final String MCC_PROP_NAME = "ro.prebundled.mcc";
 
+    // Upgrade steps slower than this are logged even without LOCAL_LOGV
+    private static final long SLOW_MIGRATION_NANOS = 10 * 1000 * 1000;
+
     private Context mContext;
     private int mUserHandle;
     private String mPublicSrcDir;
 
+    private SparseLongArray mLastUpgradeTimings;
+
+    /**
+     * A single step of the upgrade path, which brings the database from the version before it
+     * to {@link #mVersion}.
+     */
+    private static final class Migration {
+        final int mVersion;
+        final String mDescription;
+        final MigrationStep mStep;
+
+        Migration(int version, String description, MigrationStep step) {
+            mVersion = version;
+            mDescription = description;
+            mStep = step;
+        }
+    }
+
+    private interface MigrationStep {
+        void migrate(SQLiteDatabase db);
+    }
+
+    // Steps that are no longer needed, kept so that the version history stays readable
+    private static final MigrationStep RETIRED = db -> { };
+
+    /**
+     * Every upgrade step, in version order. To change the schema or the stored settings, append
+     * a step here and bump DATABASE_VERSION to match.
+     */
+    private final Migration[] mMigrations = {
+        new Migration(2, "used to run loadSettings()", RETIRED),
+        new Migration(3, "used to set Secure.PROTECTED_COMPONENT_MANAGERS", RETIRED),
+        new Migration(4, "used to set Secure.LINEAGE_SETUP_WIZARD_COMPLETE", RETIRED),
+        new Migration(5, "used to set Global.WEATHER_TEMPERATURE_UNIT", RETIRED),
+        new Migration(6, "used to move Secure.DEV_FORCE_SHOW_NAVBAR to global", RETIRED),
+        new Migration(7, "used to migrate System.STATUS_BAR_CLOCK", RETIRED),
+        new Migration(8, "used to set Secure.PROTECTED_COMPONENT_MANAGERS", RETIRED),
+        new Migration(9, "used to migrate System.KEY_* actions", RETIRED),
+        new Migration(10, "used to migrate System.STATUS_BAR_CLOCK", RETIRED),
+        new Migration(11, "used to move Global.DEV_FORCE_SHOW_NAVBAR to system", RETIRED),
+        new Migration(12, "used to migrate System.STATUS_BAR_BATTERY_STYLE", RETIRED),
+        new Migration(13, "used to migrate Global.POWER_NOTIFICATIONS_RINGTONE", RETIRED),
+        new Migration(14, "update button/keyboard brightness range",
+                this::upgradeButtonBrightnessRange),
+        new Migration(15, "load restricted networking mode",
+                this::upgradeRestrictedNetworkingMode),
+        new Migration(16, "move trust_restrict_usb to global", this::upgradeTrustRestrictUsb),
+        new Migration(17, "move berry_black_theme to secure", this::upgradeBerryBlackTheme),
+        new Migration(18, "migrate fingerprint_wake_unlock", this::upgradeFingerprintWakeUnlock),
+        new Migration(19, "set sfps_performant_auth_enabled", this::upgradeSfpsPerformantAuth),
+        new Migration(20, "reset Global.UIDS_ALLOWED_ON_RESTRICTED_NETWORKS",
+                this::upgradeRestrictedNetworkUids),
+    };
+
     /**
      * Gets the appropriate database path for a specific user
      * @param userId The database path for this user
@@ -98,7 +159,18 @@ public class LineageDatabaseHelper extends SQLiteOpenHelper{
      * @param userId
      */
     public LineageDatabaseHelper(Context context, int userId) {
-        super(context, dbNameForUser(userId), null, DATABASE_VERSION);
+        this(context, userId, dbNameForUser(userId));
+    }
+
+    /**
+     * Creates an instance of {@link LineageDatabaseHelper} backed by the named database file
+     * @param context
+     * @param userId
+     * @param name The database file name, or path for users other than the owner
+     */
+    @VisibleForTesting
+    protected LineageDatabaseHelper(Context context, int userId, String name) {
+        super(context, name, null, DATABASE_VERSION);
         mContext = context;
         mUserHandle = userId;
 
@@ -156,208 +228,143 @@ public class LineageDatabaseHelper extends SQLiteOpenHelper{
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         if (LOCAL_LOGV) Log.d(TAG, "Upgrading from version: " + oldVersion + " to " + newVersion);
+        // SQLiteOpenHelper already runs this inside a single transaction, so the steps below
+        // commit together along with the new version number, or not at all.
+        final long upgradeStart = SystemClock.elapsedRealtimeNanos();
+        final SparseLongArray timings = new SparseLongArray();
         int upgradeVersion = oldVersion;
 
-        if (upgradeVersion < 2) {
-            // Used to run loadSettings()
-            upgradeVersion = 2;
-        }
-
-        if (upgradeVersion < 3) {
-            // Used to set LineageSettings.Secure.PROTECTED_COMPONENT_MANAGERS
-            upgradeVersion = 3;
-        }
-
-        if (upgradeVersion < 4) {
-            // Used to set LineageSettings.Secure.LINEAGE_SETUP_WIZARD_COMPLETE
-            upgradeVersion = 4;
-        }
-
-        if (upgradeVersion < 5) {
-            // Used to set LineageSettings.Global.WEATHER_TEMPERATURE_UNIT
-            upgradeVersion = 5;
-        }
-
-        if (upgradeVersion < 6) {
-            // Used to move LineageSettings.Secure.DEV_FORCE_SHOW_NAVBAR to global
-            upgradeVersion = 6;
-        }
-
-        if (upgradeVersion < 7) {
-            // Used to migrate LineageSettings.System.STATUS_BAR_CLOCK
-            upgradeVersion = 7;
-        }
-
-        if (upgradeVersion < 8) {
-            // Used to set LineageSettings.Secure.PROTECTED_COMPONENT_MANAGERS
-            upgradeVersion = 8;
-        }
-
-        if (upgradeVersion < 9) {
-            // Used to migrate LineageSettings.System.KEY_* actions
-            upgradeVersion = 9;
-        }
-
-        if (upgradeVersion < 10) {
-            // Used to migrate LineageSettings.System.STATUS_BAR_CLOCK
-            upgradeVersion = 10;
+        for (Migration migration : mMigrations) {
+            if (migration.mVersion <= upgradeVersion) {
+                continue;
+            }
+            final long stepStart = SystemClock.elapsedRealtimeNanos();
+            migration.mStep.migrate(db);
+            final long stepNanos = SystemClock.elapsedRealtimeNanos() - stepStart;
+            timings.put(migration.mVersion, stepNanos);
+            if (LOCAL_LOGV || stepNanos >= SLOW_MIGRATION_NANOS) {
+                Log.i(TAG, "Upgrade to version " + migration.mVersion + " ("
+                        + migration.mDescription + ") took " + stepNanos / 1000 + "us");
+            }
+            upgradeVersion = migration.mVersion;
         }
 
-        if (upgradeVersion < 11) {
-            // Used to move LineageSettings.Global.DEV_FORCE_SHOW_NAVBAR to system
-            upgradeVersion = 11;
-        }
+        mLastUpgradeTimings = timings;
+        Log.i(TAG, "Upgraded settings database for user " + mUserHandle + " from version "
+                + oldVersion + " to " + upgradeVersion + " in "
+                + (SystemClock.elapsedRealtimeNanos() - upgradeStart) / 1000 + "us");
 
-        if (upgradeVersion < 12) {
-            // Used to migrate LineageSettings.System.STATUS_BAR_BATTERY_STYLE
-            upgradeVersion = 12;
-        }
-
-        if (upgradeVersion < 13) {
-            // Used to migrate LineageSettings.Global.POWER_NOTIFICATIONS_RINGTONE
-            upgradeVersion = 13;
+        // *** Remember to update DATABASE_VERSION above!
+        if (upgradeVersion != newVersion) {
+            Log.wtf(TAG, "warning: upgrading settings database to version "
+                            + newVersion + " left it at "
+                            + upgradeVersion +
+                            " instead; this is probably a bug. Did you update DATABASE_VERSION?",
+                    new RuntimeException("db upgrade error"));
         }
+    }
 
-        if (upgradeVersion < 14) {
-            // Update button/keyboard brightness range
-            if (mUserHandle == UserHandle.USER_OWNER) {
-                for (String key : new String[] {
-                    LineageSettings.Secure.BUTTON_BRIGHTNESS,
-                    LineageSettings.Secure.KEYBOARD_BRIGHTNESS,
-                }) {
-                    db.beginTransaction();
-                    SQLiteStatement stmt = null;
-                    try {
-                        stmt = db.compileStatement(
-                                "UPDATE secure SET value=round(value / 255.0, 2) WHERE name=?");
-                        stmt.bindString(1, key);
-                        stmt.execute();
-                        db.setTransactionSuccessful();
-                    } catch (SQLiteDoneException ex) {
-                        // key is not set
-                    } finally {
-                        if (stmt != null) stmt.close();
-                        db.endTransaction();
-                    }
-                }
-            }
-            upgradeVersion = 14;
-        }
+    /**
+     * Gets how long each step of the last upgrade run by this helper took. Upgrades run when the
+     * database is first opened, which the provider does on a background thread during boot.
+     * @return The step durations in nanoseconds, keyed by the version each step upgraded to, or
+     * null if this helper has not upgraded its database.
+     */
+    @VisibleForTesting
+    public SparseLongArray getLastUpgradeTimings() {
+        return mLastUpgradeTimings;
+    }
 
-        if (upgradeVersion < 15) {
-            if (mUserHandle == UserHandle.USER_OWNER) {
-                loadRestrictedNetworkingModeSetting();
-            }
-            upgradeVersion = 15;
+    private void upgradeButtonBrightnessRange(SQLiteDatabase db) {
+        // Update button/keyboard brightness range
+        if (mUserHandle == UserHandle.USER_OWNER) {
+            db.execSQL("UPDATE secure SET value=round(value / 255.0, 2) WHERE name IN (?,?)",
+                    new Object[] {
+                        LineageSettings.Secure.BUTTON_BRIGHTNESS,
+                        LineageSettings.Secure.KEYBOARD_BRIGHTNESS,
+                    });
         }
+    }
 
-        if (upgradeVersion < 16) {
-            // Move trust_restrict_usb to global
-            if (mUserHandle == UserHandle.USER_OWNER) {
-                moveSettingsToNewTable(db, LineageTableNames.TABLE_SECURE,
-                        LineageTableNames.TABLE_GLOBAL, new String[] {
-                        LineageSettings.Global.TRUST_RESTRICT_USB
-                }, true);
-            }
-            upgradeVersion = 16;
+    private void upgradeRestrictedNetworkingMode(SQLiteDatabase db) {
+        if (mUserHandle == UserHandle.USER_OWNER) {
+            loadRestrictedNetworkingModeSetting();
         }
+    }
 
-        if (upgradeVersion < 17) {
-            // Move berry_black_theme to secure
-            moveSettingsToNewTable(db, LineageTableNames.TABLE_SYSTEM,
-                    LineageTableNames.TABLE_SECURE, new String[] {
-                    LineageSettings.Secure.BERRY_BLACK_THEME
+    private void upgradeTrustRestrictUsb(SQLiteDatabase db) {
+        // Move trust_restrict_usb to global
+        if (mUserHandle == UserHandle.USER_OWNER) {
+            moveSettingsToNewTable(db, LineageTableNames.TABLE_SECURE,
+                    LineageTableNames.TABLE_GLOBAL, new String[] {
+                    LineageSettings.Global.TRUST_RESTRICT_USB
             }, true);
-            upgradeVersion = 17;
         }
+    }
 
-        if (upgradeVersion < 18) {
-            Integer defaultValue = mContext.getResources().getBoolean(
-                    org.lineageos.platform.internal.R.bool.config_fingerprintWakeAndUnlock)
-                    ? 1 : 0; // Reversed since they're reversed again below
+    private void upgradeBerryBlackTheme(SQLiteDatabase db) {
+        // Move berry_black_theme to secure
+        moveSettingsToNewTable(db, LineageTableNames.TABLE_SYSTEM,
+                LineageTableNames.TABLE_SECURE, new String[] {
+                LineageSettings.Secure.BERRY_BLACK_THEME
+        }, true);
+    }
 
-            // Used to be LineageSettings.System.FINGERPRINT_WAKE_UNLOCK
-            Integer oldSetting = readIntegerSetting(db, LineageTableNames.TABLE_SYSTEM,
-                    "fingerprint_wake_unlock", defaultValue);
+    private void upgradeFingerprintWakeUnlock(SQLiteDatabase db) {
+        Integer defaultValue = mContext.getResources().getBoolean(
+                org.lineageos.platform.internal.R.bool.config_fingerprintWakeAndUnlock)
+                ? 1 : 0; // Reversed since they're reversed again below
 
-            // Reverse 0/1 values, migrate 2 to 1
-            if (oldSetting.equals(0) || oldSetting.equals(2)) {
-                oldSetting = 1;
-            } else if (oldSetting.equals(1)) {
-                oldSetting = 0;
-            }
+        // Used to be LineageSettings.System.FINGERPRINT_WAKE_UNLOCK
+        Integer oldSetting = readIntegerSetting(db, LineageTableNames.TABLE_SYSTEM,
+                "fingerprint_wake_unlock", defaultValue);
 
-            // Previously Settings.Secure.SFPS_REQUIRE_SCREEN_ON_TO_AUTH_ENABLED
-            Settings.Secure.putInt(mContext.getContentResolver(),
-                    "sfps_require_screen_on_to_auth_enabled",
-                    oldSetting);
-            upgradeVersion = 18;
+        // Reverse 0/1 values, migrate 2 to 1
+        if (oldSetting.equals(0) || oldSetting.equals(2)) {
+            oldSetting = 1;
+        } else if (oldSetting.equals(1)) {
+            oldSetting = 0;
         }
 
-        if (upgradeVersion < 19) {
-            // Set default value based on config_fingerprintWakeAndUnlock
-            boolean fingerprintWakeAndUnlock = mContext.getResources().getBoolean(
-                    org.lineageos.platform.internal.R.bool.config_fingerprintWakeAndUnlock);
-            // Previously Settings.Secure.SFPS_REQUIRE_SCREEN_ON_TO_AUTH_ENABLED
-            Integer oldSetting = Settings.Secure.getInt(mContext.getContentResolver(),
-                    "sfps_require_screen_on_to_auth_enabled", fingerprintWakeAndUnlock ? 0 : 1);
-            // Flip value
-            Settings.Secure.putInt(mContext.getContentResolver(),
-                    Settings.Secure.SFPS_PERFORMANT_AUTH_ENABLED, oldSetting.equals(1) ? 0 : 1);
-            upgradeVersion = 19;
-        }
+        // Previously Settings.Secure.SFPS_REQUIRE_SCREEN_ON_TO_AUTH_ENABLED
+        putPlatformSecureInt("sfps_require_screen_on_to_auth_enabled", oldSetting);
+    }
 
-        if (upgradeVersion < 20) {
-            // Used to migrate Settings.Global.UIDS_ALLOWED_ON_RESTRICTED_NETWORKS
-            if (mUserHandle == UserHandle.USER_SYSTEM) {
-                Settings.Global.putString(mContext.getContentResolver(),
-                        Settings.Global.UIDS_ALLOWED_ON_RESTRICTED_NETWORKS, "");
-            }
-            upgradeVersion = 20;
-        }
+    private void upgradeSfpsPerformantAuth(SQLiteDatabase db) {
+        // Set default value based on config_fingerprintWakeAndUnlock
+        boolean fingerprintWakeAndUnlock = mContext.getResources().getBoolean(
+                org.lineageos.platform.internal.R.bool.config_fingerprintWakeAndUnlock);
+        // Previously Settings.Secure.SFPS_REQUIRE_SCREEN_ON_TO_AUTH_ENABLED
+        int oldSetting = getPlatformSecureInt("sfps_require_screen_on_to_auth_enabled",
+                fingerprintWakeAndUnlock ? 0 : 1);
+        // Flip value
+        putPlatformSecureInt(Settings.Secure.SFPS_PERFORMANT_AUTH_ENABLED,
+                oldSetting == 1 ? 0 : 1);
+    }
 
-        // *** Remember to update DATABASE_VERSION above!
-        if (upgradeVersion != newVersion) {
-            Log.wtf(TAG, "warning: upgrading settings database to version "
-                            + newVersion + " left it at "
-                            + upgradeVersion +
-                            " instead; this is probably a bug. Did you update DATABASE_VERSION?",
-                    new RuntimeException("db upgrade error"));
+    private void upgradeRestrictedNetworkUids(SQLiteDatabase db) {
+        // Used to migrate Settings.Global.UIDS_ALLOWED_ON_RESTRICTED_NETWORKS
+        if (mUserHandle == UserHandle.USER_SYSTEM) {
+            putPlatformGlobalString(Settings.Global.UIDS_ALLOWED_ON_RESTRICTED_NETWORKS, "");
         }
     }
 
     private void moveSettingsToNewTable(SQLiteDatabase db,
                                         String sourceTable, String destTable,
                                         String[] settingsToMove, boolean doIgnore) {
-        // Copy settings values from the source table to the dest, and remove from the source
-        SQLiteStatement insertStmt = null;
-        SQLiteStatement deleteStmt = null;
-
-        db.beginTransaction();
-        try {
-            insertStmt = db.compileStatement("INSERT "
-                    + (doIgnore ? " OR IGNORE " : "")
-                    + " INTO " + destTable + " (name,value) SELECT name,value FROM "
-                    + sourceTable + " WHERE name=?");
-            deleteStmt = db.compileStatement("DELETE FROM " + sourceTable + " WHERE name=?");
-
-            for (String setting : settingsToMove) {
-                insertStmt.bindString(1, setting);
-                insertStmt.execute();
-
-                deleteStmt.bindString(1, setting);
-                deleteStmt.execute();
-            }
-            db.setTransactionSuccessful();
-        } finally {
-            db.endTransaction();
-            if (insertStmt != null) {
-                insertStmt.close();
-            }
-            if (deleteStmt != null) {
-                deleteStmt.close();
-            }
-        }
+        // Copy settings values from the source table to the dest, and remove from the source.
+        // This runs inside the upgrade transaction, and moves all the settings with one
+        // statement per table rather than one per setting.
+        final StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < settingsToMove.length; i++) {
+            placeholders.append(i == 0 ? "?" : ",?");
+        }
+        db.execSQL("INSERT "
+                + (doIgnore ? " OR IGNORE " : "")
+                + " INTO " + destTable + " (name,value) SELECT name,value FROM "
+                + sourceTable + " WHERE name IN (" + placeholders + ")", settingsToMove);
+        db.execSQL("DELETE FROM " + sourceTable + " WHERE name IN (" + placeholders + ")",
+                settingsToMove);
     }
 
     /**
@@ -471,8 +478,47 @@ public class LineageDatabaseHelper extends SQLiteOpenHelper{
     }
 
     private void loadRestrictedNetworkingModeSetting() {
-        Settings.Global.putInt(mContext.getContentResolver(),
-                Settings.Global.RESTRICTED_NETWORKING_MODE, 1);
+        putPlatformGlobalInt(Settings.Global.RESTRICTED_NETWORKING_MODE, 1);
+    }
+
+    /**
+     * Reads an integer from the platform's {@link Settings.Secure} table.
+     * @param name The name of the setting to read.
+     * @param defaultValue The value to return if the setting is not set.
+     */
+    @VisibleForTesting
+    protected int getPlatformSecureInt(String name, int defaultValue) {
+        return Settings.Secure.getInt(mContext.getContentResolver(), name, defaultValue);
+    }
+
+    /**
+     * Writes an integer to the platform's {@link Settings.Secure} table.
+     * @param name The name of the setting to write.
+     * @param value The value of the setting to write.
+     */
+    @VisibleForTesting
+    protected void putPlatformSecureInt(String name, int value) {
+        Settings.Secure.putInt(mContext.getContentResolver(), name, value);
+    }
+
+    /**
+     * Writes an integer to the platform's {@link Settings.Global} table.
+     * @param name The name of the setting to write.
+     * @param value The value of the setting to write.
+     */
+    @VisibleForTesting
+    protected void putPlatformGlobalInt(String name, int value) {
+        Settings.Global.putInt(mContext.getContentResolver(), name, value);
+    }
+
+    /**
+     * Writes a string to the platform's {@link Settings.Global} table.
+     * @param name The name of the setting to write.
+     * @param value The value of the setting to write.
+     */
+    @VisibleForTesting
+    protected void putPlatformGlobalString(String name, String value) {
+        Settings.Global.putString(mContext.getContentResolver(), name, value);
     }
 
     /**
@@ -20,23 +20,27 @@ package org.lineageos.lineagesettings;
 import android.app.ActivityManager;
 import android.content.BroadcastReceiver;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.UriMatcher;
 import android.content.pm.PackageManager;
 import android.content.pm.UserInfo;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Bundle;
-import android.os.SystemProperties;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.Settings;
@@ -44,10 +48,16 @@ import android.text.TextUtils;
 import android.util.Log;
 import android.util.SparseArray;
 
+import com.android.internal.annotations.GuardedBy;
+
 import lineageos.providers.LineageSettings;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.regex.Pattern;
 
 /**
@@ -61,8 +71,14 @@ public class LineageSettingsProvider extends ContentProvider {
 
     private static final Bundle NULL_SETTING = Bundle.forPair("value", null);
 
-    // Each defined user has their own settings
-    protected final SparseArray<LineageDatabaseHelper> mDbHelpers = new SparseArray<LineageDatabaseHelper>();
+    private final Object mUserStateLock = new Object();
+
+    // Each defined user has their own settings, backed by their own database. The first access
+    // for a user establishes it; concurrent first accesses for the same user wait for that
+    // instead of for every other user.
+    @GuardedBy("mUserStateLock")
+    private final SparseArray<FutureTask<SettingsStore>> mSettingsStores =
+            new SparseArray<FutureTask<SettingsStore>>();
 
     private static final int SYSTEM = 1;
     private static final int SECURE = 2;
@@ -101,13 +117,37 @@ public class LineageSettingsProvider extends ContentProvider {
     private Uri.Builder mUriBuilder;
     private SharedPreferences mSharedPrefs;
 
+    private final GenerationRegistry mGenerationRegistry = new GenerationRegistry();
+
+    private final ProviderStats mStats = new ProviderStats();
+
+    private Handler mPersistHandler;
+
+    private ChangeNotifier mChangeNotifier;
+
     @Override
     public boolean onCreate() {
         if (LOCAL_LOGV) Log.d(TAG, "Creating LineageSettingsProvider");
 
         mUserManager = UserManager.get(getContext());
 
-        establishDbTracking(UserHandle.USER_SYSTEM);
+        HandlerThread persistThread = new HandlerThread(TAG,
+                Process.THREAD_PRIORITY_BACKGROUND);
+        persistThread.start();
+        mPersistHandler = new Handler(persistThread.getLooper());
+
+        // Notifications get a thread of their own, so they do not wait behind persists or a
+        // database upgrade
+        HandlerThread notifyThread = new HandlerThread(TAG + "Notify",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        notifyThread.start();
+        mChangeNotifier = new ChangeNotifier(getContext().getContentResolver(),
+                new Handler(notifyThread.getLooper()), mStats);
+
+        // Nearly every caller reads the owner's settings, so have them ready early without
+        // holding up the main thread. Opening the database also runs any pending upgrade, so
+        // the first boot after an update migrates here rather than on a binder thread.
+        mPersistHandler.post(() -> getOrEstablishSettingsStore(UserHandle.USER_SYSTEM));
 
         mUriBuilder = new Uri.Builder();
         mUriBuilder.scheme(ContentResolver.SCHEME_CONTENT);
@@ -117,6 +157,7 @@ public class LineageSettingsProvider extends ContentProvider {
 
         IntentFilter userFilter = new IntentFilter();
         userFilter.addAction(Intent.ACTION_USER_REMOVED);
+        userFilter.addAction(Intent.ACTION_SHUTDOWN);
         getContext().registerReceiver(new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
@@ -128,6 +169,8 @@ public class LineageSettingsProvider extends ContentProvider {
 
                 if (action.equals(Intent.ACTION_USER_REMOVED)) {
                     onUserRemoved(userId);
+                } else if (action.equals(Intent.ACTION_SHUTDOWN)) {
+                    onShutdown();
                 }
             }
         }, userFilter);
@@ -140,20 +183,118 @@ public class LineageSettingsProvider extends ContentProvider {
      * @param userId The id of the user that is removed.
      */
     private void onUserRemoved(int userId) {
-        synchronized (this) {
+        final FutureTask<SettingsStore> task;
+        synchronized (mUserStateLock) {
             // the db file itself will be deleted automatically, but we need to tear down
             // our helpers and other internal bookkeeping.
+            task = mSettingsStores.get(userId);
+            mSettingsStores.delete(userId);
+        }
+
+        // Pending writes of the removed user are dropped along with its db.
+        final SettingsStore store = getIfEstablished(task);
+        if (store != null) {
+            store.close();
+        }
+        mGenerationRegistry.onUserRemoved(userId);
+
+        if (LOCAL_LOGV) Log.d(TAG, "User " + userId + " is removed");
+    }
+
+    /**
+     * @return The established settings of all users, skipping those still being established.
+     */
+    private List<SettingsStore> getEstablishedSettingsStores() {
+        final ArrayList<SettingsStore> stores = new ArrayList<SettingsStore>();
+        synchronized (mUserStateLock) {
+            for (int i = 0; i < mSettingsStores.size(); i++) {
+                final SettingsStore store = getIfEstablished(mSettingsStores.valueAt(i));
+                if (store != null) {
+                    stores.add(store);
+                }
+            }
+        }
+        return stores;
+    }
 
-            mDbHelpers.delete(userId);
+    private static SettingsStore getIfEstablished(FutureTask<SettingsStore> task) {
+        if (task == null || !task.isDone()) {
+            return null;
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException | ExecutionException e) {
+            return null;
+        }
+    }
 
-            if (LOCAL_LOGV) Log.d(TAG, "User " + userId + " is removed");
+    /**
+     * Persists all pending writes before the device goes down.
+     */
+    private void onShutdown() {
+        final List<SettingsStore> stores = getEstablishedSettingsStores();
+        for (SettingsStore store : stores) {
+            store.flush();
         }
+        if (LOCAL_LOGV) Log.d(TAG, "Flushed " + stores.size() + " settings store(s)");
     }
 
     // region Content Provider Methods
 
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("LineageSettingsProvider State:");
+        for (SettingsStore store : getEstablishedSettingsStores()) {
+            pw.println("  " + store);
+        }
+        pw.println();
+        pw.println("  Operations:");
+        mStats.dump(pw, "    ");
+    }
+
     @Override
     public Bundle call(String method, String request, Bundle args) {
+        final long start = ProviderStats.start();
+        mStats.recordCaller(Binder.getCallingUid());
+        try {
+            return callInternal(method, request, args);
+        } finally {
+            mStats.record(getCallStatsOp(method), start);
+        }
+    }
+
+    private static int getCallStatsOp(String method) {
+        switch (method) {
+            case LineageSettings.CALL_METHOD_GET_SYSTEM:
+            case LineageSettings.CALL_METHOD_GET_SECURE:
+            case LineageSettings.CALL_METHOD_GET_GLOBAL:
+                return ProviderStats.CALL_GET;
+            case LineageSettings.CALL_METHOD_GET_SYSTEM_BATCH:
+            case LineageSettings.CALL_METHOD_GET_SECURE_BATCH:
+            case LineageSettings.CALL_METHOD_GET_GLOBAL_BATCH:
+                return ProviderStats.CALL_GET_BATCH;
+            case LineageSettings.CALL_METHOD_PUT_SYSTEM:
+            case LineageSettings.CALL_METHOD_PUT_SECURE:
+            case LineageSettings.CALL_METHOD_PUT_GLOBAL:
+                return ProviderStats.CALL_PUT;
+            case LineageSettings.CALL_METHOD_PUT_SYSTEM_BATCH:
+            case LineageSettings.CALL_METHOD_PUT_SECURE_BATCH:
+            case LineageSettings.CALL_METHOD_PUT_GLOBAL_BATCH:
+                return ProviderStats.CALL_PUT_BATCH;
+            case LineageSettings.CALL_METHOD_LIST_SYSTEM:
+            case LineageSettings.CALL_METHOD_LIST_SECURE:
+            case LineageSettings.CALL_METHOD_LIST_GLOBAL:
+                return ProviderStats.CALL_LIST;
+            case LineageSettings.CALL_METHOD_DELETE_SYSTEM:
+            case LineageSettings.CALL_METHOD_DELETE_SECURE:
+            case LineageSettings.CALL_METHOD_DELETE_GLOBAL:
+                return ProviderStats.CALL_DELETE;
+            default:
+                return ProviderStats.CALL_OTHER;
+        }
+    }
+
+    private Bundle callInternal(String method, String request, Bundle args) {
         if (LOCAL_LOGV) Log.d(TAG, "Call method: " + method + " " + request);
 
         int callingUserId = UserHandle.getCallingUserId();
@@ -171,13 +312,24 @@ public class LineageSettingsProvider extends ContentProvider {
             // Get methods
             case LineageSettings.CALL_METHOD_GET_SYSTEM:
                 return lookupSingleValue(callingUserId, LineageSettings.System.CONTENT_URI,
-                        request);
+                        request, args);
             case LineageSettings.CALL_METHOD_GET_SECURE:
                 return lookupSingleValue(callingUserId, LineageSettings.Secure.CONTENT_URI,
-                        request);
+                        request, args);
             case LineageSettings.CALL_METHOD_GET_GLOBAL:
                 return lookupSingleValue(callingUserId, LineageSettings.Global.CONTENT_URI,
-                        request);
+                        request, args);
+
+            // Batched get methods
+            case LineageSettings.CALL_METHOD_GET_SYSTEM_BATCH:
+                return lookupMultipleValues(callingUserId, LineageSettings.System.CONTENT_URI,
+                        args);
+            case LineageSettings.CALL_METHOD_GET_SECURE_BATCH:
+                return lookupMultipleValues(callingUserId, LineageSettings.Secure.CONTENT_URI,
+                        args);
+            case LineageSettings.CALL_METHOD_GET_GLOBAL_BATCH:
+                return lookupMultipleValues(callingUserId, LineageSettings.Global.CONTENT_URI,
+                        args);
 
             // Put methods
             case LineageSettings.CALL_METHOD_PUT_SYSTEM:
@@ -195,6 +347,22 @@ public class LineageSettingsProvider extends ContentProvider {
                 callHelperPut(callingUserId, LineageSettings.Global.CONTENT_URI, request, args);
                 return null;
 
+            // Batched put methods
+            case LineageSettings.CALL_METHOD_PUT_SYSTEM_BATCH:
+                enforceWritePermission(lineageos.platform.Manifest.permission.WRITE_SETTINGS);
+                callHelperPutBatch(callingUserId, LineageSettings.System.CONTENT_URI, args);
+                return null;
+            case LineageSettings.CALL_METHOD_PUT_SECURE_BATCH:
+                enforceWritePermission(
+                        lineageos.platform.Manifest.permission.WRITE_SECURE_SETTINGS);
+                callHelperPutBatch(callingUserId, LineageSettings.Secure.CONTENT_URI, args);
+                return null;
+            case LineageSettings.CALL_METHOD_PUT_GLOBAL_BATCH:
+                enforceWritePermission(
+                        lineageos.platform.Manifest.permission.WRITE_SECURE_SETTINGS);
+                callHelperPutBatch(callingUserId, LineageSettings.Global.CONTENT_URI, args);
+                return null;
+
             // List methods
             case LineageSettings.CALL_METHOD_LIST_SYSTEM:
                 return callHelperList(callingUserId, LineageSettings.System.CONTENT_URI);
@@ -243,19 +411,12 @@ public class LineageSettingsProvider extends ContentProvider {
 
     // Helper for call() CALL_METHOD_LIST_* methods
     private Bundle callHelperList(int callingUserId, Uri contentUri) {
-        final ArrayList<String> lines = new ArrayList<String>();
-        final Cursor cursor = queryForUser(callingUserId, contentUri, null, null, null, null);
-        try {
-            while (cursor != null && cursor.moveToNext()) {
-                lines.add(cursor.getString(1) + "=" + cursor.getString(2));
-            }
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
-        }
+        final String tableName = getTableNameFromUri(contentUri);
+        final SettingsStore store = getOrEstablishSettingsStore(
+                getUserIdForTable(tableName, callingUserId));
         final Bundle ret = new Bundle();
-        ret.putStringArrayList(RESULT_SETTINGS_LIST, lines);
+        ret.putStringArrayList(RESULT_SETTINGS_LIST,
+                new ArrayList<String>(store.list(tableName)));
         return ret;
     }
 
@@ -272,42 +433,97 @@ public class LineageSettingsProvider extends ContentProvider {
         insertForUser(callingUserId, contentUri, values);
     }
 
+    // Helper for call() CALL_METHOD_PUT_*_BATCH methods
+    private void callHelperPutBatch(int callingUserId, Uri contentUri, Bundle args) {
+        final String[] names = args != null
+                ? args.getStringArray(LineageSettings.CALL_METHOD_NAMES_KEY) : null;
+        final String[] values = args != null
+                ? args.getStringArray(LineageSettings.CALL_METHOD_VALUES_KEY) : null;
+        if (names == null || values == null || names.length != values.length) {
+            throw new IllegalArgumentException("Invalid names or values for batched put");
+        }
+        insertMultipleForUser(callingUserId, contentUri, names, values);
+    }
+
     /**
      * Looks up a single value for a specific user, uri, and key.
      * @param userId The id of the user to perform the lookup for.
      * @param uri The uri for which table to perform the lookup in.
      * @param key The key to perform the lookup with.
+     * @param args The call() arguments, used to check whether the caller tracks generations.
      * @return A single value stored in a {@link Bundle}.
      */
-    private Bundle lookupSingleValue(int userId, Uri uri, String key) {
-        Cursor cursor = null;
-        try {
-            cursor = queryForUser(userId, uri, new String[]{ Settings.NameValueTable.VALUE },
-                    Settings.NameValueTable.NAME + " = ?", new String[]{ key }, null);
-
-            if (cursor != null && cursor.getCount() == 1) {
-                cursor.moveToFirst();
-                String value = cursor.getString(0);
-                return value == null ? NULL_SETTING : Bundle.forPair(Settings.NameValueTable.VALUE,
-                        value);
-            }
-        } catch (SQLiteException e) {
-            Log.w(TAG, "settings lookup error", e);
-            return null;
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
+    private Bundle lookupSingleValue(int userId, Uri uri, String key, Bundle args) {
+        final String tableName = getTableNameFromUri(uri);
+        final SettingsStore store = getOrEstablishSettingsStore(
+                getUserIdForTable(tableName, userId));
+        final boolean trackGeneration = args != null
+                && args.containsKey(LineageSettings.CALL_METHOD_TRACK_GENERATION_KEY);
+        // The generation is taken before the value, see GenerationRegistry
+        final long stamp = trackGeneration ? mGenerationRegistry.getGenerationStamp(
+                tableName, getUserIdForTable(tableName, userId), key) : 0;
+        final String value = store.get(tableName, key);
+        final boolean exists = value != null || store.contains(tableName, key);
+
+        if (trackGeneration) {
+            final Bundle ret = new Bundle();
+            ret.putString(Settings.NameValueTable.VALUE, value);
+            mGenerationRegistry.addGenerationData(ret, tableName,
+                    getUserIdForTable(tableName, userId), key, exists,
+                    args.getBoolean(LineageSettings.CALL_METHOD_TRACK_GENERATION_KEY), stamp);
+            return ret;
+        }
+
+        return value == null ? NULL_SETTING : Bundle.forPair(Settings.NameValueTable.VALUE,
+                value);
+    }
+
+    /**
+     * Looks up several values for a specific user and uri at once.
+     * @param userId The id of the user to perform the lookup for.
+     * @param uri The uri for which table to perform the lookup in.
+     * @param args The call() arguments holding the keys to look up.
+     * @return The values, in the order of the requested keys, stored in a {@link Bundle}.
+     */
+    private Bundle lookupMultipleValues(int userId, Uri uri, Bundle args) {
+        final String[] keys = args == null
+                ? null : args.getStringArray(LineageSettings.CALL_METHOD_NAMES_KEY);
+        if (keys == null) {
+            throw new IllegalArgumentException("No keys supplied for batched lookup");
         }
 
-        return NULL_SETTING;
+        final String tableName = getTableNameFromUri(uri);
+        final int tableUserId = getUserIdForTable(tableName, userId);
+        final SettingsStore store = getOrEstablishSettingsStore(tableUserId);
+        final boolean trackGeneration =
+                args.containsKey(LineageSettings.CALL_METHOD_TRACK_GENERATION_KEY);
+        // The generations are taken before the values, see GenerationRegistry
+        final long[] stamps = trackGeneration
+                ? mGenerationRegistry.getGenerationStamps(tableName, tableUserId, keys) : null;
+        final String[] values = new String[keys.length];
+        final boolean[] exists = new boolean[keys.length];
+        store.getAll(tableName, keys, values, exists);
+
+        final Bundle ret = new Bundle();
+        ret.putStringArray(LineageSettings.CALL_METHOD_VALUES_KEY, values);
+        if (trackGeneration) {
+            mGenerationRegistry.addGenerationData(ret, tableName, tableUserId, keys, exists,
+                    args.getBoolean(LineageSettings.CALL_METHOD_TRACK_GENERATION_KEY), stamps);
+        }
+        return ret;
     }
 
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
             String sortOrder) {
-        return queryForUser(UserHandle.getCallingUserId(), uri, projection, selection,
-                selectionArgs, sortOrder);
+        final long start = ProviderStats.start();
+        mStats.recordCaller(Binder.getCallingUid());
+        try {
+            return queryForUser(UserHandle.getCallingUserId(), uri, projection, selection,
+                    selectionArgs, sortOrder);
+        } finally {
+            mStats.record(ProviderStats.QUERY, start);
+        }
     }
 
     /**
@@ -329,13 +545,18 @@ public class LineageSettingsProvider extends ContentProvider {
 
         int code = sUriMatcher.match(uri);
         String tableName = getTableNameFromUriMatchCode(code);
+        int tableUserId = getUserIdForTable(tableName, userId);
+
+        // Arbitrary selections are answered by SQLite, so it must be up to date
+        getOrEstablishSettingsStore(tableUserId).flush();
 
-        LineageDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName, userId));
+        LineageDatabaseHelper dbHelper = getOrEstablishDatabase(tableUserId);
         SQLiteDatabase db = dbHelper.getReadableDatabase();
 
         SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
         queryBuilder.setTables(tableName);
 
+        final long sqliteStart = ProviderStats.start();
         Cursor returnCursor;
         if (isItemUri(code)) {
             // The uri is looking for an element with a specific name
@@ -345,6 +566,7 @@ public class LineageSettingsProvider extends ContentProvider {
             returnCursor = queryBuilder.query(db, projection, selection, selectionArgs, null,
                     null, sortOrder);
         }
+        mStats.record(ProviderStats.SQLITE, sqliteStart);
 
         return returnCursor;
     }
@@ -363,7 +585,13 @@ public class LineageSettingsProvider extends ContentProvider {
 
     @Override
     public int bulkInsert(Uri uri, ContentValues[] values) {
-        return bulkInsertForUser(UserHandle.getCallingUserId(), uri, values);
+        final long start = ProviderStats.start();
+        mStats.recordCaller(Binder.getCallingUid());
+        try {
+            return bulkInsertForUser(UserHandle.getCallingUserId(), uri, values);
+        } finally {
+            mStats.record(ProviderStats.BULK_INSERT, start);
+        }
     }
 
     /**
@@ -388,41 +616,96 @@ public class LineageSettingsProvider extends ContentProvider {
         String tableName = getTableNameFromUri(uri);
         checkWritePermissions(tableName);
 
-        LineageDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName, userId));
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        SettingsStore store = getOrEstablishSettingsStore(getUserIdForTable(tableName, userId));
+
+        for (ContentValues value : values) {
+            if (value != null && value.getAsString(Settings.NameValueTable.NAME) == null) {
+                return 0;
+            }
+        }
 
-        db.beginTransaction();
+        mChangeNotifier.beginBatch();
         try {
             for (ContentValues value : values) {
                 if (value == null) {
                     continue;
                 }
 
-                long rowId = db.insert(tableName, null, value);
-
-                if (rowId >= 0) {
-                    numRowsAffected++;
-                } else {
-                    return 0;
-                }
+                final String name = value.getAsString(Settings.NameValueTable.NAME);
+                store.put(tableName, name, value.getAsString(Settings.NameValueTable.VALUE));
+                notifyChange(Uri.withAppendedPath(uri, name), tableName, userId);
+                numRowsAffected++;
             }
+        } finally {
+            mChangeNotifier.endBatch();
+        }
+
+        if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + numRowsAffected + " row(s) inserted");
+
+        return numRowsAffected;
+    }
 
-            db.setTransactionSuccessful();
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final long start = ProviderStats.start();
+        mStats.recordCaller(Binder.getCallingUid());
+        try {
+            return applyBatchForUser(UserHandle.getCallingUserId(), operations);
         } finally {
-            db.endTransaction();
+            mStats.record(ProviderStats.APPLY_BATCH, start);
         }
+    }
 
-        if (numRowsAffected > 0) {
-            notifyChange(uri, tableName, userId);
-            if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + numRowsAffected + " row(s) inserted");
+    private ContentProviderResult[] applyBatchForUser(int callingUserId,
+            ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+
+        // Plain inserts into a single table are validated up front and applied all at once
+        final Uri uri = operations.isEmpty() ? null : operations.get(0).getUri();
+        boolean isInsertBatch = uri != null && !isItemUri(sUriMatcher.match(uri));
+        for (int i = 0; isInsertBatch && i < operations.size(); i++) {
+            final ContentProviderOperation operation = operations.get(i);
+            isInsertBatch = operation.isInsert() && !operation.isYieldAllowed()
+                    && uri.equals(operation.getUri());
+        }
+        if (isInsertBatch) {
+            // Settings have no row ids, so there is nothing to refer back to
+            final ContentProviderResult[] noBackReferences = new ContentProviderResult[0];
+            final String[] names = new String[operations.size()];
+            final String[] values = new String[operations.size()];
+            for (int i = 0; i < operations.size(); i++) {
+                final ContentValues contentValues = operations.get(i)
+                        .resolveValueBackReferences(noBackReferences, 0);
+                names[i] = contentValues.getAsString(Settings.NameValueTable.NAME);
+                values[i] = contentValues.getAsString(Settings.NameValueTable.VALUE);
+            }
+            insertMultipleForUser(callingUserId, uri, names, values);
+
+            final ContentProviderResult[] results = new ContentProviderResult[names.length];
+            for (int i = 0; i < names.length; i++) {
+                results[i] = new ContentProviderResult(Uri.withAppendedPath(uri, names[i]));
+            }
+            return results;
         }
 
-        return numRowsAffected;
+        mChangeNotifier.beginBatch();
+        try {
+            return super.applyBatch(operations);
+        } finally {
+            mChangeNotifier.endBatch();
+        }
     }
 
     @Override
     public Uri insert(Uri uri, ContentValues values) {
-        return insertForUser(UserHandle.getCallingUserId(), uri, values);
+        final long start = ProviderStats.start();
+        mStats.recordCaller(Binder.getCallingUid());
+        try {
+            return insertForUser(UserHandle.getCallingUserId(), uri, values);
+        } finally {
+            mStats.record(ProviderStats.INSERT, start);
+        }
     }
 
     /**
@@ -445,36 +728,63 @@ public class LineageSettingsProvider extends ContentProvider {
         String tableName = getTableNameFromUri(uri);
         checkWritePermissions(tableName);
 
-        LineageDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName, userId));
+        SettingsStore store = getOrEstablishSettingsStore(getUserIdForTable(tableName, userId));
 
-        // Validate value if inserting int System table
         final String name = values.getAsString(Settings.NameValueTable.NAME);
         final String value = values.getAsString(Settings.NameValueTable.VALUE);
-        if (LineageDatabaseHelper.LineageTableNames.TABLE_GLOBAL.equals(tableName)) {
-            validateGlobalSettingNameValue(name, value);
-        } else if (LineageDatabaseHelper.LineageTableNames.TABLE_SYSTEM.equals(tableName)) {
-            validateSystemSettingNameValue(name, value);
-        } else if (LineageDatabaseHelper.LineageTableNames.TABLE_SECURE.equals(tableName)) {
-            validateSecureSettingValue(name, value);
+        validateSettingNameValue(tableName, name, value);
+
+        store.put(tableName, name, value);
+
+        Uri returnUri = Uri.withAppendedPath(uri, name);
+        notifyChange(returnUri, tableName, userId);
+        if (LOCAL_LOGV) Log.d(TAG, "Inserted " + name + " into tableName: " + tableName);
+
+        return returnUri;
+    }
+
+    /**
+     * Inserts several settings into a table at once. All values are validated before any of
+     * them is written, and observers are notified once for the whole batch.
+     * @param userId The id of the user to insert the settings for.
+     * @param uri The content:// URI of the table to insert into.
+     * @param names The names of the settings.
+     * @param values The values of the settings, matching the order of {@code names}.
+     * @return The number of settings inserted.
+     */
+    private int insertMultipleForUser(int userId, Uri uri, String[] names, String[] values) {
+        String tableName = getTableNameFromUri(uri);
+        checkWritePermissions(tableName);
+
+        for (int i = 0; i < names.length; i++) {
+            validateSettingNameValue(tableName, names[i], values[i]);
         }
 
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
-        long rowId = db.insert(tableName, null, values);
+        SettingsStore store = getOrEstablishSettingsStore(getUserIdForTable(tableName, userId));
+        store.putAll(tableName, names, values);
 
-        Uri returnUri = null;
-        if (rowId > -1) {
-            returnUri = Uri.withAppendedPath(uri, name);
-            notifyChange(returnUri, tableName, userId);
-            if (LOCAL_LOGV) Log.d(TAG, "Inserted row id: " + rowId + " into tableName: " +
-                    tableName);
+        mChangeNotifier.beginBatch();
+        try {
+            for (String name : names) {
+                notifyChange(Uri.withAppendedPath(uri, name), tableName, userId);
+            }
+        } finally {
+            mChangeNotifier.endBatch();
         }
+        if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + names.length + " setting(s) inserted");
 
-        return returnUri;
+        return names.length;
     }
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
-        return deleteForUser(UserHandle.getCallingUserId(), uri, selection, selectionArgs);
+        final long start = ProviderStats.start();
+        mStats.recordCaller(Binder.getCallingUid());
+        try {
+            return deleteForUser(UserHandle.getCallingUserId(), uri, selection, selectionArgs);
+        } finally {
+            mStats.record(ProviderStats.DELETE, start);
+        }
     }
 
     private int deleteForUser(int callingUserId, Uri uri, String selection,
@@ -491,14 +801,31 @@ public class LineageSettingsProvider extends ContentProvider {
             String tableName = getTableNameFromUri(uri);
             checkWritePermissions(tableName);
 
-            LineageDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName,
-                    callingUserId));
+            int tableUserId = getUserIdForTable(tableName, callingUserId);
+            SettingsStore store = getOrEstablishSettingsStore(tableUserId);
 
-            SQLiteDatabase db = dbHelper.getWritableDatabase();
-            numRowsAffected = db.delete(tableName, selection, selectionArgs);
+            final boolean isNameSelection = NAME_SELECTION.equals(selection)
+                    && selectionArgs.length == 1 && !isItemUri(sUriMatcher.match(uri));
+            if (isNameSelection) {
+                numRowsAffected = store.delete(tableName, selectionArgs[0]) ? 1 : 0;
+            } else {
+                // Let SQLite evaluate the selection, then pick up the result
+                store.flush();
+                SQLiteDatabase db = getOrEstablishDatabase(tableUserId).getWritableDatabase();
+                final long sqliteStart = ProviderStats.start();
+                numRowsAffected = db.delete(tableName, selection, selectionArgs);
+                mStats.record(ProviderStats.SQLITE, sqliteStart);
+                if (numRowsAffected > 0) {
+                    store.reloadTable(tableName);
+                }
+            }
 
             if (numRowsAffected > 0) {
-                notifyChange(uri, tableName, callingUserId);
+                // Only the named key changed when deleting by name; let observers and client
+                // caches of other keys be.
+                final Uri changedUri = isNameSelection
+                        ? Uri.withAppendedPath(uri, selectionArgs[0]) : uri;
+                notifyChange(changedUri, tableName, callingUserId);
                 if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + numRowsAffected + " row(s) deleted");
             }
         }
@@ -508,6 +835,18 @@ public class LineageSettingsProvider extends ContentProvider {
 
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        final long start = ProviderStats.start();
+        mStats.recordCaller(Binder.getCallingUid());
+        try {
+            return updateForUser(UserHandle.getCallingUserId(), uri, values, selection,
+                    selectionArgs);
+        } finally {
+            mStats.record(ProviderStats.UPDATE, start);
+        }
+    }
+
+    private int updateForUser(int callingUserId, Uri uri, ContentValues values,
+            String selection, String[] selectionArgs) {
         // NOTE: update() is never called by the front-end LineageSettings API, and updates that
         // wind up affecting rows in Secure that are globally shared will not have the
         // intended effect (the update will be invisible to the rest of the system).
@@ -535,14 +874,18 @@ public class LineageSettingsProvider extends ContentProvider {
             validateSecureSettingValue(name, value);
         }
 
-        int callingUserId = UserHandle.getCallingUserId();
-        LineageDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName,
-                callingUserId));
+        int tableUserId = getUserIdForTable(tableName, callingUserId);
+        SettingsStore store = getOrEstablishSettingsStore(tableUserId);
 
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        // Let SQLite evaluate the selection, then pick up the result
+        store.flush();
+        SQLiteDatabase db = getOrEstablishDatabase(tableUserId).getWritableDatabase();
+        final long sqliteStart = ProviderStats.start();
         int numRowsAffected = db.update(tableName, values, selection, selectionArgs);
+        mStats.record(ProviderStats.SQLITE, sqliteStart);
 
         if (numRowsAffected > 0) {
+            store.reloadTable(tableName);
             notifyChange(uri, tableName, callingUserId);
             if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + numRowsAffected + " row(s) updated");
         }
@@ -559,6 +902,17 @@ public class LineageSettingsProvider extends ContentProvider {
      * @return
      */
     private LineageDatabaseHelper getOrEstablishDatabase(int callingUser) {
+        return getOrEstablishSettingsStore(callingUser).getDatabaseHelper();
+    }
+
+    /**
+     * Tries to get a {@link SettingsStore} for the specified user and if it does not exist, the
+     * user's database is established and loaded into a new store. Only callers asking for the
+     * same user wait for that to finish.
+     * @param callingUser
+     * @return
+     */
+    private SettingsStore getOrEstablishSettingsStore(int callingUser) {
         if (callingUser >= android.os.Process.SYSTEM_UID) {
             if (USER_CHECK_THROWS) {
                 throw new IllegalArgumentException("Uid rather than user handle: " + callingUser);
@@ -567,52 +921,68 @@ public class LineageSettingsProvider extends ContentProvider {
             }
         }
 
-        long oldId = Binder.clearCallingIdentity();
+        FutureTask<SettingsStore> task;
+        boolean establish = false;
+        synchronized (mUserStateLock) {
+            task = mSettingsStores.get(callingUser);
+            if (task == null) {
+                task = new FutureTask<SettingsStore>(() -> establishDbTracking(callingUser));
+                mSettingsStores.put(callingUser, task);
+                establish = true;
+            }
+        }
+
+        if (establish) {
+            // Initialization of the db *outside* the lock, so other users aren't held up
+            long oldId = Binder.clearCallingIdentity();
+            try {
+                task.run();
+            } finally {
+                Binder.restoreCallingIdentity(oldId);
+            }
+        }
+
+        boolean interrupted = false;
         try {
-            LineageDatabaseHelper dbHelper;
-            synchronized (this) {
-                dbHelper = mDbHelpers.get(callingUser);
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
             }
-            if (null == dbHelper) {
-                establishDbTracking(callingUser);
-                synchronized (this) {
-                    dbHelper = mDbHelpers.get(callingUser);
+        } catch (ExecutionException e) {
+            // Let the next caller try again
+            synchronized (mUserStateLock) {
+                if (mSettingsStores.get(callingUser) == task) {
+                    mSettingsStores.delete(callingUser);
                 }
             }
-            return dbHelper;
+            throw new IllegalStateException("Failed to establish settings for user "
+                    + callingUser, e.getCause());
         } finally {
-            Binder.restoreCallingIdentity(oldId);
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
         }
     }
 
     /**
-     * Check if a {@link LineageDatabaseHelper} exists for a user and if it doesn't, a new helper is
-     * created and added to the list of tracked database helpers
+     * Creates a new {@link LineageDatabaseHelper} for a user, and loads its contents into a
+     * {@link SettingsStore}
      * @param userId
+     * @return
      */
-    private void establishDbTracking(int userId) {
-        LineageDatabaseHelper dbHelper;
-
-        synchronized (this) {
-            dbHelper = mDbHelpers.get(userId);
-            if (LOCAL_LOGV) {
-                Log.i(TAG, "Checking lineage settings db helper for user " + userId);
-            }
-            if (dbHelper == null) {
-                if (LOCAL_LOGV) {
-                    Log.i(TAG, "Installing new lineage settings db helper for user " + userId);
-                }
-                dbHelper = new LineageDatabaseHelper(getContext(), userId);
-                mDbHelpers.append(userId, dbHelper);
-            }
+    private SettingsStore establishDbTracking(int userId) {
+        if (LOCAL_LOGV) {
+            Log.i(TAG, "Installing new lineage settings db helper for user " + userId);
         }
-
-        // Initialization of the db *outside* the locks.  It's possible that racing
-        // threads might wind up here, the second having read the cache entries
-        // written by the first, but that's benign: the SQLite helper implementation
-        // manages concurrency itself, and it's important that we not run the db
-        // initialization with any of our own locks held, so we're fine.
+        LineageDatabaseHelper dbHelper = new LineageDatabaseHelper(getContext(), userId);
         dbHelper.getWritableDatabase();
+
+        SettingsStore store = new SettingsStore(dbHelper, userId, mPersistHandler, mStats);
+        store.load();
+        return store;
     }
 
     /**
@@ -710,39 +1080,37 @@ public class LineageSettingsProvider extends ContentProvider {
 
     /**
      * Modify setting version for an updated table before notifying of change. The
-     * {@link LineageSettings} class uses these to provide client-side caches.
+     * {@link LineageSettings} class uses these to provide client-side caches. If the uri
+     * refers to a single item, only that setting's generation is bumped. Observer
+     * notifications are coalesced by the {@link ChangeNotifier}.
      * @param uri to send notifications for
      * @param userId
      */
     private void notifyChange(Uri uri, String tableName, int userId) {
-        String property = null;
+        // Client caches must see the change right away, the rest can be coalesced
+        mGenerationRegistry.incrementGeneration(tableName, getUserIdForTable(tableName, userId),
+                isItemUri(sUriMatcher.match(uri)) ? uri.getLastPathSegment() : null);
+
         final boolean isGlobal = tableName.equals(LineageDatabaseHelper.LineageTableNames.TABLE_GLOBAL);
-        if (tableName.equals(LineageDatabaseHelper.LineageTableNames.TABLE_SYSTEM)) {
-            property = LineageSettings.System.SYS_PROP_LINEAGE_SETTING_VERSION;
-        } else if (tableName.equals(LineageDatabaseHelper.LineageTableNames.TABLE_SECURE)) {
-            property = LineageSettings.Secure.SYS_PROP_LINEAGE_SETTING_VERSION;
-        } else if (isGlobal) {
-            property = LineageSettings.Global.SYS_PROP_LINEAGE_SETTING_VERSION;
-        }
+        final int notifyTarget = isGlobal ? UserHandle.USER_ALL : userId;
+        mChangeNotifier.onChange(uri, tableName, notifyTarget);
+    }
 
-        if (property != null) {
-            long version = SystemProperties.getLong(property, 0) + 1;
-            if (LOCAL_LOGV) Log.v(TAG, "property: " + property + "=" + version);
-            SystemProperties.set(property, Long.toString(version));
+    private void validateSettingNameValue(String tableName, String name, String value) {
+        if (name == null) {
+            throw new IllegalArgumentException("Setting name cannot be null");
         }
-
-        final int notifyTarget = isGlobal ? UserHandle.USER_ALL : userId;
-        final long oldId = Binder.clearCallingIdentity();
-        try {
-            getContext().getContentResolver().notifyChange(uri, null, true, notifyTarget);
-        } finally {
-            Binder.restoreCallingIdentity(oldId);
+        if (LineageDatabaseHelper.LineageTableNames.TABLE_GLOBAL.equals(tableName)) {
+            validateGlobalSettingNameValue(name, value);
+        } else if (LineageDatabaseHelper.LineageTableNames.TABLE_SYSTEM.equals(tableName)) {
+            validateSystemSettingNameValue(name, value);
+        } else if (LineageDatabaseHelper.LineageTableNames.TABLE_SECURE.equals(tableName)) {
+            validateSecureSettingValue(name, value);
         }
-        if (LOCAL_LOGV) Log.v(TAG, "notifying for " + notifyTarget + ": " + uri);
     }
 
     private void validateGlobalSettingNameValue(String name, String value) {
-        LineageSettings.Validator validator = LineageSettings.Global.VALIDATORS.get(name);
+        LineageSettings.Validator validator = LineageSettings.Global.COMPILED_VALIDATORS.get(name);
 
         // Not all global settings have validators, but if a validator exists, the validate method
         // should return true
@@ -753,7 +1121,7 @@ public class LineageSettingsProvider extends ContentProvider {
     }
 
     private void validateSystemSettingNameValue(String name, String value) {
-        LineageSettings.Validator validator = LineageSettings.System.VALIDATORS.get(name);
+        LineageSettings.Validator validator = LineageSettings.System.COMPILED_VALIDATORS.get(name);
         if (validator == null) {
             throw new IllegalArgumentException("Invalid setting: " + name);
         }
@@ -765,7 +1133,7 @@ public class LineageSettingsProvider extends ContentProvider {
     }
 
     private void validateSecureSettingValue(String name, String value) {
-        LineageSettings.Validator validator = LineageSettings.Secure.VALIDATORS.get(name);
+        LineageSettings.Validator validator = LineageSettings.Secure.COMPILED_VALIDATORS.get(name);
 
         // Not all secure settings have validators, but if a validator exists, the validate method
         // should return true
@@ -775,5 +1143,4 @@ public class LineageSettingsProvider extends ContentProvider {
         }
     }
 
-    // TODO Add caching
 }
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.lineagesettings;
+
+import android.os.SystemClock;
+import android.util.SparseIntArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the operations served by the {@link LineageSettingsProvider} and keeps a latency
+ * histogram for each of them, for dumpsys. Recording an operation does not allocate.
+ */
+final class ProviderStats {
+    static final int CALL_GET = 0;
+    static final int CALL_GET_BATCH = 1;
+    static final int CALL_PUT = 2;
+    static final int CALL_PUT_BATCH = 3;
+    static final int CALL_LIST = 4;
+    static final int CALL_DELETE = 5;
+    static final int CALL_OTHER = 6;
+    static final int QUERY = 7;
+    static final int INSERT = 8;
+    static final int BULK_INSERT = 9;
+    static final int UPDATE = 10;
+    static final int DELETE = 11;
+    static final int APPLY_BATCH = 12;
+    static final int SQLITE = 13;
+    static final int NOTIFY = 14;
+    private static final int NUM_OPS = 15;
+
+    private static final String[] OP_NAMES = {
+            "call GET", "call GET_BATCH", "call PUT", "call PUT_BATCH", "call LIST",
+            "call DELETE", "call other", "query", "insert", "bulkInsert", "update", "delete",
+            "applyBatch", "sqlite", "notify" };
+
+    // Upper bounds of the histogram buckets in microseconds; the last bucket is unbounded
+    private static final long[] BUCKET_LIMITS_US = {
+            10, 50, 100, 500, 1000, 5000, 10000, 50000, 100000 };
+    private static final int NUM_BUCKETS = BUCKET_LIMITS_US.length + 1;
+
+    // How many of the busiest callers to list
+    private static final int TOP_CALLERS = 10;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(NUM_OPS);
+    private final AtomicLongArray mTotalNanos = new AtomicLongArray(NUM_OPS);
+    private final AtomicLongArray mMaxNanos = new AtomicLongArray(NUM_OPS);
+    private final AtomicLongArray mHistogram = new AtomicLongArray(NUM_OPS * NUM_BUCKETS);
+
+    // Callers are counted per thread, so that binder threads never wait on each other, and
+    // the counts are merged for dumpsys. There are only ever a few binder threads.
+    private final CopyOnWriteArrayList<CallerCounts> mCallers = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<CallerCounts> mThreadCallers = new ThreadLocal<CallerCounts>() {
+        @Override
+        protected CallerCounts initialValue() {
+            final CallerCounts counts = new CallerCounts();
+            mCallers.add(counts);
+            return counts;
+        }
+    };
+
+    private static final class CallerCounts {
+        // Only contended by dump()
+        @GuardedBy("this")
+        final SparseIntArray mCounts = new SparseIntArray();
+    }
+
+    /**
+     * @return The timestamp to pass to {@link #record(int, long)} once the operation is done.
+     */
+    static long start() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Records an operation that started at {@code startNanos}.
+     * @param op The kind of operation, one of the constants of this class.
+     * @param startNanos The value returned by {@link #start()} when the operation started.
+     */
+    void record(int op, long startNanos) {
+        final long nanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+        mCounts.incrementAndGet(op);
+        mTotalNanos.addAndGet(op, nanos);
+
+        long max = mMaxNanos.get(op);
+        while (nanos > max && !mMaxNanos.compareAndSet(op, max, nanos)) {
+            max = mMaxNanos.get(op);
+        }
+
+        final long micros = nanos / 1000;
+        int bucket = 0;
+        while (bucket < BUCKET_LIMITS_US.length && micros >= BUCKET_LIMITS_US[bucket]) {
+            bucket++;
+        }
+        mHistogram.incrementAndGet(op * NUM_BUCKETS + bucket);
+    }
+
+    /**
+     * Counts a request made by a calling uid.
+     */
+    void recordCaller(int uid) {
+        final CallerCounts counts = mThreadCallers.get();
+        synchronized (counts) {
+            counts.mCounts.put(uid, counts.mCounts.get(uid) + 1);
+        }
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix);
+        pw.print("latency buckets (us): <");
+        for (int i = 0; i < BUCKET_LIMITS_US.length; i++) {
+            pw.print(BUCKET_LIMITS_US[i]);
+            pw.print(i < BUCKET_LIMITS_US.length - 1 ? " <" : " >=");
+        }
+        pw.println(BUCKET_LIMITS_US[BUCKET_LIMITS_US.length - 1]);
+
+        for (int op = 0; op < NUM_OPS; op++) {
+            final long count = mCounts.get(op);
+            if (count == 0) {
+                continue;
+            }
+            pw.print(prefix);
+            pw.print(OP_NAMES[op]);
+            pw.print(": count=");
+            pw.print(count);
+            pw.print(" avg=");
+            pw.print(mTotalNanos.get(op) / count / 1000);
+            pw.print("us max=");
+            pw.print(mMaxNanos.get(op) / 1000);
+            pw.print("us histogram=[");
+            for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+                if (bucket > 0) pw.print(' ');
+                pw.print(mHistogram.get(op * NUM_BUCKETS + bucket));
+            }
+            pw.println("]");
+        }
+
+        final SparseIntArray callers = new SparseIntArray();
+        for (CallerCounts counts : mCallers) {
+            synchronized (counts) {
+                for (int i = 0; i < counts.mCounts.size(); i++) {
+                    final int uid = counts.mCounts.keyAt(i);
+                    callers.put(uid, callers.get(uid) + counts.mCounts.valueAt(i));
+                }
+            }
+        }
+        pw.print(prefix);
+        pw.println("busiest callers (uid: requests):");
+        // Repeatedly pick the largest; the list is short and this only runs for dumpsys
+        for (int n = 0; n < TOP_CALLERS && callers.size() > 0; n++) {
+            int busiest = 0;
+            for (int i = 1; i < callers.size(); i++) {
+                if (callers.valueAt(i) > callers.valueAt(busiest)) {
+                    busiest = i;
+                }
+            }
+            pw.print(prefix);
+            pw.print("  ");
+            pw.print(callers.keyAt(busiest));
+            pw.print(": ");
+            pw.println(callers.valueAt(busiest));
+            callers.removeAt(busiest);
+        }
+    }
+}
@@ -0,0 +1,451 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.lineagesettings;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.UserHandle;
+import android.provider.Settings;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The SettingsStore holds the authoritative in-memory copy of the System, Secure, and Global
+ * tables of a single user. Reads never touch SQLite; writes update the in-memory tables right
+ * away and are persisted to the {@link LineageDatabaseHelper} in batched transactions shortly
+ * after.
+ *
+ * Puts and deletes are acknowledged once they are in memory, however they came in, so a write
+ * can be lost if the process dies before its batch is persisted. Failed batches are retried
+ * rather than reported to the writer.
+ */
+final class SettingsStore {
+    private static final String TAG = "LineageSettingsStore";
+    private static final boolean LOCAL_LOGV = false;
+
+    // How long to wait for more writes before persisting a batch
+    private static final long WRITE_DELAY_MS = 100;
+
+    // Longest wait between two attempts while the database keeps failing, e.g. when full
+    private static final long MAX_RETRY_DELAY_MS = 60 * 1000;
+
+    private final LineageDatabaseHelper mDbHelper;
+    private final int mUserId;
+    private final Handler mPersistHandler;
+    private final ProviderStats mStats;
+    private final String[] mTableNames;
+
+    private final Object mLock = new Object();
+
+    // Held while persisting, so that batches reach the database in the order they were taken
+    private final Object mPersistLock = new Object();
+
+    @GuardedBy("mLock")
+    private final ArrayMap<String, ArrayMap<String, String>> mTables = new ArrayMap<>();
+
+    // Names changed since the last persisted batch, per table. Whether a name gets written or
+    // deleted is decided by the in-memory table when the batch is taken.
+    @GuardedBy("mLock")
+    private final ArrayMap<String, ArraySet<String>> mDirtyNames = new ArrayMap<>();
+
+    @GuardedBy("mLock")
+    private boolean mPersistScheduled;
+
+    // Number of batches in a row that failed to persist, to back off retries
+    @GuardedBy("mLock")
+    private int mPersistFailures;
+
+    // Compiled once per table and reused for every batch
+    @GuardedBy("mPersistLock")
+    private final ArrayMap<String, SQLiteStatement> mUpsertStatements = new ArrayMap<>();
+    @GuardedBy("mPersistLock")
+    private final ArrayMap<String, SQLiteStatement> mDeleteStatements = new ArrayMap<>();
+
+    private final Runnable mPersistRunnable = this::persistPending;
+
+    /**
+     * Creates an instance of {@link SettingsStore}
+     * @param dbHelper The database backing this store.
+     * @param userId The user the database belongs to.
+     * @param persistHandler The handler to persist writes on.
+     * @param stats The stats to record database access times in.
+     */
+    SettingsStore(LineageDatabaseHelper dbHelper, int userId, Handler persistHandler,
+            ProviderStats stats) {
+        mDbHelper = dbHelper;
+        mUserId = userId;
+        mPersistHandler = persistHandler;
+        mStats = stats;
+
+        // The global table only exists for the 'owner' user
+        mTableNames = userId == UserHandle.USER_SYSTEM
+                ? new String[] {
+                        LineageDatabaseHelper.LineageTableNames.TABLE_SYSTEM,
+                        LineageDatabaseHelper.LineageTableNames.TABLE_SECURE,
+                        LineageDatabaseHelper.LineageTableNames.TABLE_GLOBAL }
+                : new String[] {
+                        LineageDatabaseHelper.LineageTableNames.TABLE_SYSTEM,
+                        LineageDatabaseHelper.LineageTableNames.TABLE_SECURE };
+    }
+
+    /**
+     * @return The database backing this store.
+     */
+    LineageDatabaseHelper getDatabaseHelper() {
+        return mDbHelper;
+    }
+
+    /**
+     * Loads all tables from the database. Must be called before the store is used.
+     */
+    void load() {
+        for (String tableName : mTableNames) {
+            reloadTable(tableName);
+        }
+    }
+
+    /**
+     * Replaces the in-memory copy of a table with what is in the database, for writes that
+     * were made to the database directly. Pending writes are persisted first.
+     * @param tableName The table to reload.
+     */
+    void reloadTable(String tableName) {
+        synchronized (mPersistLock) {
+            persistPending();
+
+            final ArrayMap<String, String> table = new ArrayMap<>();
+            final SQLiteDatabase db = mDbHelper.getReadableDatabase();
+            // Don't let writes land in the table we are about to replace
+            synchronized (mLock) {
+                try (Cursor cursor = db.query(tableName, new String[] {
+                        Settings.NameValueTable.NAME, Settings.NameValueTable.VALUE },
+                        null, null, null, null, null)) {
+                    while (cursor.moveToNext()) {
+                        table.put(cursor.getString(0), cursor.getString(1));
+                    }
+                }
+                mTables.put(tableName, table);
+            }
+            if (LOCAL_LOGV) Log.d(TAG, "Loaded " + table.size() + " settings from " + tableName);
+        }
+    }
+
+    /**
+     * @return Whether the table has an entry for the name, even if its value is null.
+     */
+    boolean contains(String tableName, String name) {
+        synchronized (mLock) {
+            return getTableLocked(tableName).containsKey(name);
+        }
+    }
+
+    /**
+     * @return The value of the setting, or null if it is not present.
+     */
+    String get(String tableName, String name) {
+        synchronized (mLock) {
+            return getTableLocked(tableName).get(name);
+        }
+    }
+
+    /**
+     * Looks up several settings at once.
+     * @param tableName The table to look in.
+     * @param names The names of the settings.
+     * @param values Filled with the value of each setting, or null if it is not present.
+     * @param exists Filled with whether each setting is present.
+     */
+    void getAll(String tableName, String[] names, String[] values, boolean[] exists) {
+        synchronized (mLock) {
+            final ArrayMap<String, String> table = getTableLocked(tableName);
+            for (int i = 0; i < names.length; i++) {
+                final int index = table.indexOfKey(names[i]);
+                exists[i] = index >= 0;
+                values[i] = index >= 0 ? table.valueAt(index) : null;
+            }
+        }
+    }
+
+    /**
+     * @return The entries of the table formatted as "name=value".
+     */
+    List<String> list(String tableName) {
+        synchronized (mLock) {
+            final ArrayMap<String, String> table = getTableLocked(tableName);
+            final ArrayList<String> lines = new ArrayList<>(table.size());
+            for (int i = 0; i < table.size(); i++) {
+                lines.add(table.keyAt(i) + "=" + table.valueAt(i));
+            }
+            return lines;
+        }
+    }
+
+    /**
+     * Sets the value of a setting, replacing any previous value.
+     */
+    void put(String tableName, String name, String value) {
+        synchronized (mLock) {
+            getTableLocked(tableName).put(name, value);
+            markDirtyLocked(tableName, name);
+        }
+    }
+
+    /**
+     * Sets the values of several settings at once, so that readers never see only part of them.
+     * @param tableName The table to write to.
+     * @param names The names of the settings.
+     * @param values The values of the settings, matching the order of {@code names}.
+     */
+    void putAll(String tableName, String[] names, String[] values) {
+        synchronized (mLock) {
+            final ArrayMap<String, String> table = getTableLocked(tableName);
+            for (int i = 0; i < names.length; i++) {
+                table.put(names[i], values[i]);
+                markDirtyLocked(tableName, names[i]);
+            }
+        }
+    }
+
+    /**
+     * Removes a setting.
+     * @return Whether the setting was present.
+     */
+    boolean delete(String tableName, String name) {
+        synchronized (mLock) {
+            final ArrayMap<String, String> table = getTableLocked(tableName);
+            if (!table.containsKey(name)) {
+                return false;
+            }
+            table.remove(name);
+            markDirtyLocked(tableName, name);
+            return true;
+        }
+    }
+
+    /**
+     * Synchronously persists all pending writes, e.g. before the database is read directly or
+     * the device shuts down. Writes that are not flushed are persisted after a short delay,
+     * and are lost if the process dies before then.
+     */
+    void flush() {
+        mPersistHandler.removeCallbacks(mPersistRunnable);
+        persistPending();
+    }
+
+    /**
+     * Releases the compiled statements and drops any pending writes, e.g. once the user has
+     * been removed. The store must not be used afterwards.
+     */
+    void close() {
+        mPersistHandler.removeCallbacks(mPersistRunnable);
+        synchronized (mLock) {
+            mDirtyNames.clear();
+        }
+        synchronized (mPersistLock) {
+            for (int i = 0; i < mUpsertStatements.size(); i++) {
+                mUpsertStatements.valueAt(i).close();
+            }
+            for (int i = 0; i < mDeleteStatements.size(); i++) {
+                mDeleteStatements.valueAt(i).close();
+            }
+            mUpsertStatements.clear();
+            mDeleteStatements.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("SettingsStore{user=").append(mUserId);
+        synchronized (mLock) {
+            for (int i = 0; i < mTables.size(); i++) {
+                final ArraySet<String> dirty = mDirtyNames.get(mTables.keyAt(i));
+                sb.append(", ").append(mTables.keyAt(i)).append('=')
+                        .append(mTables.valueAt(i).size())
+                        .append(" (").append(dirty == null ? 0 : dirty.size())
+                        .append(" pending)");
+            }
+            if (mPersistFailures > 0) {
+                sb.append(", failed persists=").append(mPersistFailures);
+            }
+        }
+        return sb.append('}').toString();
+    }
+
+    private ArrayMap<String, String> getTableLocked(String tableName) {
+        final ArrayMap<String, String> table = mTables.get(tableName);
+        if (table == null) {
+            throw new IllegalArgumentException("Table '" + tableName + "' does not exist");
+        }
+        return table;
+    }
+
+    private void markDirtyLocked(String tableName, String name) {
+        ArraySet<String> dirty = mDirtyNames.get(tableName);
+        if (dirty == null) {
+            dirty = new ArraySet<>();
+            mDirtyNames.put(tableName, dirty);
+        }
+        dirty.add(name);
+
+        if (!mPersistScheduled) {
+            mPersistScheduled = true;
+            mPersistHandler.postDelayed(mPersistRunnable, getWriteDelayLocked());
+        }
+    }
+
+    private long getWriteDelayLocked() {
+        if (mPersistFailures == 0) {
+            return WRITE_DELAY_MS;
+        }
+        // Double the delay for every failure in a row, the shift is bounded to not overflow
+        return Math.min(WRITE_DELAY_MS << Math.min(mPersistFailures, 16), MAX_RETRY_DELAY_MS);
+    }
+
+    private void persistPending() {
+        synchronized (mPersistLock) {
+            final ArrayList<String> tableNames = new ArrayList<>();
+            final ArrayList<ArrayMap<String, String>> writes = new ArrayList<>();
+            final ArrayList<ArraySet<String>> deletes = new ArrayList<>();
+            synchronized (mLock) {
+                mPersistScheduled = false;
+                for (int i = 0; i < mDirtyNames.size(); i++) {
+                    final ArrayMap<String, String> table = mTables.get(mDirtyNames.keyAt(i));
+                    final ArrayMap<String, String> tableWrites = new ArrayMap<>();
+                    final ArraySet<String> tableDeletes = new ArraySet<>();
+                    for (String name : mDirtyNames.valueAt(i)) {
+                        if (table.containsKey(name)) {
+                            tableWrites.put(name, table.get(name));
+                        } else {
+                            tableDeletes.add(name);
+                        }
+                    }
+                    tableNames.add(mDirtyNames.keyAt(i));
+                    writes.add(tableWrites);
+                    deletes.add(tableDeletes);
+                }
+                mDirtyNames.clear();
+            }
+
+            if (tableNames.isEmpty()) {
+                return;
+            }
+
+            final long start = ProviderStats.start();
+            try {
+                // Committing can fail as well, e.g. when the disk is full
+                final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    for (int i = 0; i < tableNames.size(); i++) {
+                        persistTable(db, tableNames.get(i), writes.get(i), deletes.get(i));
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            } catch (SQLiteException e) {
+                onPersistFailed(e, tableNames, writes, deletes);
+                return;
+            } finally {
+                mStats.record(ProviderStats.SQLITE, start);
+            }
+
+            synchronized (mLock) {
+                if (mPersistFailures > 0) {
+                    Log.i(TAG, "Persisted settings of user " + mUserId + " after "
+                            + mPersistFailures + " failed attempt(s)");
+                    mPersistFailures = 0;
+                }
+            }
+        }
+    }
+
+    private void onPersistFailed(SQLiteException e, ArrayList<String> tableNames,
+            ArrayList<ArrayMap<String, String>> writes, ArrayList<ArraySet<String>> deletes) {
+        synchronized (mLock) {
+            // Only report the first failure, the database is not likely to recover by itself
+            if (mPersistFailures == 0) {
+                Log.e(TAG, "Failed to persist settings of user " + mUserId
+                        + ", retrying with backoff", e);
+            } else if (LOCAL_LOGV) {
+                Log.d(TAG, "Failed to persist settings, attempt " + (mPersistFailures + 1));
+            }
+            mPersistFailures++;
+
+            // Keep serving from memory and try again later. A write made meanwhile may have
+            // scheduled an attempt already, replace it with one that backs off.
+            mPersistHandler.removeCallbacks(mPersistRunnable);
+            mPersistScheduled = false;
+            for (int i = 0; i < tableNames.size(); i++) {
+                for (String name : writes.get(i).keySet()) {
+                    markDirtyLocked(tableNames.get(i), name);
+                }
+                for (String name : deletes.get(i)) {
+                    markDirtyLocked(tableNames.get(i), name);
+                }
+            }
+        }
+    }
+
+    private void persistTable(SQLiteDatabase db, String tableName,
+            ArrayMap<String, String> writes, ArraySet<String> deletes) {
+        if (!writes.isEmpty()) {
+            final SQLiteStatement upsertStmt = getStatementLocked(db, mUpsertStatements,
+                    tableName, "INSERT OR REPLACE INTO " + tableName + "(name,value) VALUES(?,?);");
+            for (int i = 0; i < writes.size(); i++) {
+                upsertStmt.bindString(1, writes.keyAt(i));
+                if (writes.valueAt(i) == null) {
+                    upsertStmt.bindNull(2);
+                } else {
+                    upsertStmt.bindString(2, writes.valueAt(i));
+                }
+                upsertStmt.execute();
+            }
+        }
+        if (!deletes.isEmpty()) {
+            final SQLiteStatement deleteStmt = getStatementLocked(db, mDeleteStatements,
+                    tableName, "DELETE FROM " + tableName + " WHERE name=?");
+            for (String name : deletes) {
+                deleteStmt.bindString(1, name);
+                deleteStmt.execute();
+            }
+        }
+        if (LOCAL_LOGV) {
+            Log.d(TAG, tableName + ": persisted " + writes.size() + " write(s), "
+                    + deletes.size() + " delete(s)");
+        }
+    }
+
+    private static SQLiteStatement getStatementLocked(SQLiteDatabase db,
+            ArrayMap<String, SQLiteStatement> statements, String tableName, String sql) {
+        SQLiteStatement statement = statements.get(tableName);
+        if (statement == null) {
+            statement = db.compileStatement(sql);
+            statements.put(tableName, statement);
+        }
+        return statement;
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright (c) 2026, The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.lineagesettings.tests;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.UserHandle;
+import android.provider.Settings;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.ArrayMap;
+import android.util.Log;
+import android.util.SparseLongArray;
+
+import lineageos.providers.LineageSettings;
+
+import org.lineageos.lineagesettings.LineageDatabaseHelper;
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * Upgrades a synthetic version 1 database to the current version and checks the migrated
+ * settings and the recorded step timings.
+ */
+public class LineageDatabaseMigrationTest extends AndroidTestCase {
+    private static final String TAG = "LineageDatabaseMigrationTest";
+
+    private static final String DATABASE_NAME = "lineagesettings_migration_test.db";
+
+    // Generous, so that slow devices do not fail the test; a real upgrade takes milliseconds
+    private static final long MAX_UPGRADE_NANOS = 1000L * 1000 * 1000;
+
+    private static final String CREATE_TABLE_SQL_FORMAT = "CREATE TABLE %s (" +
+            "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+            "name TEXT UNIQUE ON CONFLICT REPLACE," +
+            "value TEXT" +
+            ");";
+
+    private TestDatabaseHelper mHelper;
+
+    @Override
+    public void setUp() {
+        getContext().deleteDatabase(DATABASE_NAME);
+    }
+
+    @Override
+    public void tearDown() {
+        if (mHelper != null) {
+            mHelper.close();
+        }
+        getContext().deleteDatabase(DATABASE_NAME);
+    }
+
+    @MediumTest
+    public void testUpgradeFromVersion1() {
+        createVersion1Database();
+
+        mHelper = new TestDatabaseHelper(getContext());
+        final SQLiteDatabase db = mHelper.getWritableDatabase();
+        final int headVersion = db.getVersion();
+
+        // Settings moved or rewritten by the upgrade
+        assertEquals("1.0", readSetting(db, "secure", LineageSettings.Secure.BUTTON_BRIGHTNESS));
+        assertEquals("0.5",
+                readSetting(db, "secure", LineageSettings.Secure.KEYBOARD_BRIGHTNESS));
+        assertNull(readSetting(db, "secure", LineageSettings.Global.TRUST_RESTRICT_USB));
+        assertEquals("2", readSetting(db, "global", LineageSettings.Global.TRUST_RESTRICT_USB));
+        assertNull(readSetting(db, "system", LineageSettings.Secure.BERRY_BLACK_THEME));
+        assertEquals("1", readSetting(db, "secure", LineageSettings.Secure.BERRY_BLACK_THEME));
+
+        // Settings no step touches
+        assertEquals("2", readSetting(db, "system", LineageSettings.System.STATUS_BAR_CLOCK));
+
+        // Settings migrated into the platform tables
+        assertEquals("0", mHelper.mPlatformSecure.get("sfps_require_screen_on_to_auth_enabled"));
+        assertEquals("1",
+                mHelper.mPlatformSecure.get(Settings.Secure.SFPS_PERFORMANT_AUTH_ENABLED));
+        assertEquals("1",
+                mHelper.mPlatformGlobal.get(Settings.Global.RESTRICTED_NETWORKING_MODE));
+        assertEquals("",
+                mHelper.mPlatformGlobal.get(Settings.Global.UIDS_ALLOWED_ON_RESTRICTED_NETWORKS));
+
+        // One timing per step, from version 2 up to the head version
+        final SparseLongArray timings = mHelper.getLastUpgradeTimings();
+        assertNotNull(timings);
+        assertEquals(headVersion - 1, timings.size());
+        long totalNanos = 0;
+        for (int i = 0; i < timings.size(); i++) {
+            assertEquals(i + 2, timings.keyAt(i));
+            assertTrue(timings.valueAt(i) >= 0);
+            totalNanos += timings.valueAt(i);
+        }
+        Log.i(TAG, "Upgraded from version 1 to " + headVersion + " in " + totalNanos / 1000
+                + "us");
+        assertTrue("Upgrade took " + totalNanos + "ns", totalNanos < MAX_UPGRADE_NANOS);
+
+        // Opening the upgraded database again has nothing left to do
+        mHelper.close();
+        mHelper = new TestDatabaseHelper(getContext());
+        assertEquals(headVersion, mHelper.getWritableDatabase().getVersion());
+        assertNull(mHelper.getLastUpgradeTimings());
+    }
+
+    private void createVersion1Database() {
+        final File path = getContext().getDatabasePath(DATABASE_NAME);
+        path.getParentFile().mkdirs();
+        final SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(path, null);
+        try {
+            for (String table : new String[] { "system", "secure", "global" }) {
+                db.execSQL(String.format(CREATE_TABLE_SQL_FORMAT, table));
+            }
+            insertSetting(db, "system", LineageSettings.System.STATUS_BAR_CLOCK, "2");
+            insertSetting(db, "system", LineageSettings.Secure.BERRY_BLACK_THEME, "1");
+            insertSetting(db, "system", "fingerprint_wake_unlock", "1");
+            insertSetting(db, "secure", LineageSettings.Secure.BUTTON_BRIGHTNESS, "255");
+            insertSetting(db, "secure", LineageSettings.Secure.KEYBOARD_BRIGHTNESS, "128");
+            insertSetting(db, "secure", LineageSettings.Global.TRUST_RESTRICT_USB, "2");
+            db.setVersion(1);
+        } finally {
+            db.close();
+        }
+    }
+
+    private static void insertSetting(SQLiteDatabase db, String table, String name,
+            String value) {
+        db.execSQL("INSERT INTO " + table + " (name,value) VALUES (?,?)",
+                new Object[] { name, value });
+    }
+
+    private static String readSetting(SQLiteDatabase db, String table, String name) {
+        Cursor c = db.query(table, new String[] { "value" }, "name=?", new String[] { name },
+                null, null, null);
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Runs the upgrade against the test database, recording platform settings writes instead
+     * of applying them to the device.
+     */
+    private static class TestDatabaseHelper extends LineageDatabaseHelper {
+        final Map<String, String> mPlatformSecure = new ArrayMap<>();
+        final Map<String, String> mPlatformGlobal = new ArrayMap<>();
+
+        TestDatabaseHelper(Context context) {
+            super(context, UserHandle.USER_SYSTEM, DATABASE_NAME);
+        }
+
+        @Override
+        protected int getPlatformSecureInt(String name, int defaultValue) {
+            final String value = mPlatformSecure.get(name);
+            return value != null ? Integer.parseInt(value) : defaultValue;
+        }
+
+        @Override
+        protected void putPlatformSecureInt(String name, int value) {
+            mPlatformSecure.put(name, Integer.toString(value));
+        }
+
+        @Override
+        protected void putPlatformGlobalInt(String name, int value) {
+            mPlatformGlobal.put(name, Integer.toString(value));
+        }
+
+        @Override
+        protected void putPlatformGlobalString(String name, String value) {
+            mPlatformGlobal.put(name, value);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright (c) 2026, The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.lineagesettings.tests;
+
+import android.content.ContentResolver;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.provider.Settings;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import lineageos.providers.LineageSettings;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the cost of reading a setting while a different setting in the same table is being
+ * written continuously. With per-key generations the read key stays cached, so reads should
+ * be much cheaper than a binder round-trip.
+ */
+public class LineageSettingsCacheBenchmark extends AndroidTestCase {
+    private static final String TAG = "LineageSettingsCacheBenchmark";
+
+    private static final String READ_KEY = "__cache_benchmark_read";
+    private static final String WRITE_KEY = "__cache_benchmark_write";
+
+    private static final long RUN_DURATION_MS = 2000;
+
+    private ContentResolver mContentResolver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContentResolver = mContext.getContentResolver();
+        LineageSettings.Global.putString(mContentResolver, READ_KEY, "1");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContentResolver.delete(LineageSettings.Global.CONTENT_URI,
+                Settings.NameValueTable.NAME + " = ?", new String[]{ READ_KEY });
+        mContentResolver.delete(LineageSettings.Global.CONTENT_URI,
+                Settings.NameValueTable.NAME + " = ?", new String[]{ WRITE_KEY });
+        super.tearDown();
+    }
+
+    @LargeTest
+    public void testCachedReadsUnderUnrelatedWrites() throws Exception {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicInteger writes = new AtomicInteger();
+        final Thread writer = new Thread(() -> {
+            while (running.get()) {
+                LineageSettings.Global.putInt(mContentResolver, WRITE_KEY,
+                        writes.incrementAndGet());
+            }
+        });
+
+        writer.start();
+        try {
+            // Every read here is a binder call
+            final double uncachedReadsPerSec = measure(() -> {
+                final Bundle b = mContentResolver.call(LineageSettings.Global.CONTENT_URI,
+                        LineageSettings.CALL_METHOD_GET_GLOBAL, READ_KEY, null);
+                assertEquals("1", b.getString(Settings.NameValueTable.VALUE));
+            });
+
+            // These should only go over binder for the initial miss
+            final double cachedReadsPerSec = measure(() -> assertEquals("1",
+                    LineageSettings.Global.getString(mContentResolver, READ_KEY)));
+
+            Log.i(TAG, "writes/s=" + (writes.get() * 1000 / (2 * RUN_DURATION_MS))
+                    + " uncached reads/s=" + uncachedReadsPerSec
+                    + " cached reads/s=" + cachedReadsPerSec);
+            assertTrue("cached reads are not faster than binder reads",
+                    cachedReadsPerSec > uncachedReadsPerSec * 2);
+        } finally {
+            running.set(false);
+            writer.join();
+        }
+    }
+
+    @LargeTest
+    public void testWriteInvalidatesOnlyChangedKey() {
+        assertEquals("1", LineageSettings.Global.getString(mContentResolver, READ_KEY));
+        LineageSettings.Global.putString(mContentResolver, WRITE_KEY, "a");
+        assertEquals("a", LineageSettings.Global.getString(mContentResolver, WRITE_KEY));
+        LineageSettings.Global.putString(mContentResolver, WRITE_KEY, "b");
+        assertEquals("b", LineageSettings.Global.getString(mContentResolver, WRITE_KEY));
+        assertEquals("1", LineageSettings.Global.getString(mContentResolver, READ_KEY));
+
+        // Negative entries must be invalidated when the key shows up
+        mContentResolver.delete(LineageSettings.Global.CONTENT_URI,
+                Settings.NameValueTable.NAME + " = ?", new String[]{ WRITE_KEY });
+        assertNull(LineageSettings.Global.getString(mContentResolver, WRITE_KEY));
+        LineageSettings.Global.putString(mContentResolver, WRITE_KEY, "c");
+        assertEquals("c", LineageSettings.Global.getString(mContentResolver, WRITE_KEY));
+    }
+
+    private static double measure(Runnable op) {
+        long count = 0;
+        final long start = SystemClock.elapsedRealtime();
+        long now;
+        do {
+            op.run();
+            count++;
+            now = SystemClock.elapsedRealtime();
+        } while (now - start < RUN_DURATION_MS);
+        return count * 1000.0 / (now - start);
+    }
+}
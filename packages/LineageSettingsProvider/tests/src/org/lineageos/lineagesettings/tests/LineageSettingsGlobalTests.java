@@ -23,6 +23,8 @@ import android.test.suitebuilder.annotation.SmallTest;
 
 import lineageos.providers.LineageSettings;
 
+import java.util.Map;
+
 public class LineageSettingsGlobalTests extends AndroidTestCase {
     private ContentResolver mContentResolver;
 
@@ -124,4 +126,25 @@ public class LineageSettingsGlobalTests extends AndroidTestCase {
 
         assertEquals(expectedUri, actualUri);
     }
+
+    @SmallTest
+    public void testGetStrings() {
+        final String expectedStringValue = "5";
+        LineageSettings.Global.putString(mContentResolver,
+                LineageSettings.Global.__MAGICAL_TEST_PASSING_ENABLER, expectedStringValue);
+
+        final Map<String, String> values = LineageSettings.Global.getStringsForUser(
+                mContentResolver, mContentResolver.getUserId(),
+                LineageSettings.Global.__MAGICAL_TEST_PASSING_ENABLER, UNREALISTIC_SETTING);
+        assertEquals(2, values.size());
+        assertEquals(expectedStringValue,
+                values.get(LineageSettings.Global.__MAGICAL_TEST_PASSING_ENABLER));
+        assertTrue(values.containsKey(UNREALISTIC_SETTING));
+        assertNull(values.get(UNREALISTIC_SETTING));
+
+        // Served from the cache now, but must still be correct
+        assertEquals(expectedStringValue, LineageSettings.Global.getString(mContentResolver,
+                LineageSettings.Global.__MAGICAL_TEST_PASSING_ENABLER));
+        assertNull(LineageSettings.Global.getString(mContentResolver, UNREALISTIC_SETTING));
+    }
 }
@@ -20,9 +20,12 @@ import android.content.ContentResolver;
 import android.net.Uri;
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.SmallTest;
+import android.util.ArrayMap;
 
 import lineageos.providers.LineageSettings;
 
+import java.util.Map;
+
 public class LineageSettingsSystemTests extends AndroidTestCase {
     private ContentResolver mContentResolver;
 
@@ -124,4 +127,30 @@ public class LineageSettingsSystemTests extends AndroidTestCase {
 
         assertEquals(expectedUri, actualUri);
     }
+
+    @SmallTest
+    public void testPutStrings() {
+        LineageSettings.System.putString(mContentResolver,
+                LineageSettings.System.__MAGICAL_TEST_PASSING_ENABLER, "1");
+
+        // One invalid setting must keep the whole batch from being written
+        final Map<String, String> values = new ArrayMap<>();
+        values.put(LineageSettings.System.__MAGICAL_TEST_PASSING_ENABLER, "2");
+        values.put(UNREALISTIC_SETTING, "2");
+        try {
+            LineageSettings.System.putStringsForUser(mContentResolver, values,
+                    mContentResolver.getUserId());
+            fail("Invalid setting was accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals("1", LineageSettings.System.getString(mContentResolver,
+                LineageSettings.System.__MAGICAL_TEST_PASSING_ENABLER));
+
+        values.remove(UNREALISTIC_SETTING);
+        assertTrue(LineageSettings.System.putStringsForUser(mContentResolver, values,
+                mContentResolver.getUserId()));
+        assertEquals("2", LineageSettings.System.getString(mContentResolver,
+                LineageSettings.System.__MAGICAL_TEST_PASSING_ENABLER));
+    }
 }
@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2026, The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.lineagesettings.tests;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import lineageos.providers.LineageSettings;
+import lineageos.providers.ValidatorTable;
+
+import java.util.Map;
+
+/**
+ * Checks that the compiled validator tables match the VALIDATORS maps, and measures validator
+ * lookup and validation over every key of the System, Secure and Global tables.
+ */
+public class LineageSettingsValidatorBenchmark extends AndroidTestCase {
+    private static final String TAG = "LineageSettingsValidatorBenchmark";
+
+    private static final String UNREALISTIC_SETTING = "_______UNREAL_______";
+
+    // A spread of values that hits both the accepting and rejecting paths of each validator
+    private static final String[] SAMPLE_VALUES = {
+            "0", "1", "2", "-1", "86400", "2147483648", "0.5", "-0.75", "1e3", "", "abc",
+            "0|1", "content://foo/bar" };
+
+    private static final int WARMUP_ITERATIONS = 100;
+    private static final int ITERATIONS = 2000;
+
+    @SmallTest
+    public void testCompiledTablesMatchValidators() {
+        assertTableMatches(LineageSettings.System.VALIDATORS,
+                LineageSettings.System.COMPILED_VALIDATORS);
+        assertTableMatches(LineageSettings.Secure.VALIDATORS,
+                LineageSettings.Secure.COMPILED_VALIDATORS);
+        assertTableMatches(LineageSettings.Global.VALIDATORS,
+                LineageSettings.Global.COMPILED_VALIDATORS);
+    }
+
+    @SmallTest
+    public void testCompiledTableFollowsChanges() {
+        final Map<String, LineageSettings.Validator> validators = new ArrayMap<>();
+        final LineageSettings.Validator first = value -> true;
+        final LineageSettings.Validator second = value -> false;
+        validators.put("a", first);
+        final ValidatorTable table = new ValidatorTable(validators);
+
+        validators.put(UNREALISTIC_SETTING, first);
+        assertSame(first, table.get(UNREALISTIC_SETTING));
+
+        validators.put(UNREALISTIC_SETTING, second);
+        assertSame(second, table.get(UNREALISTIC_SETTING));
+
+        validators.remove("a");
+        validators.put("b", first);
+        assertNull(table.get("a"));
+        assertSame(first, table.get("b"));
+        assertSame(second, table.get(UNREALISTIC_SETTING));
+    }
+
+    @LargeTest
+    public void testValidationThroughput() {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            validateAllWithMap();
+            validateAllWithTable();
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        int validated = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            validated += validateAllWithMap();
+        }
+        final long mapNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ITERATIONS; i++) {
+            validated += validateAllWithTable();
+        }
+        final long tableNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        final int perRun = validated / (2 * ITERATIONS);
+        Log.i(TAG, perRun + " validations per run: VALIDATORS map "
+                + (mapNanos / ITERATIONS / perRun) + "ns/op, compiled table "
+                + (tableNanos / ITERATIONS / perRun) + "ns/op");
+    }
+
+    private static void assertTableMatches(Map<String, LineageSettings.Validator> validators,
+            ValidatorTable table) {
+        assertEquals(validators.size(), table.size());
+        for (Map.Entry<String, LineageSettings.Validator> entry : validators.entrySet()) {
+            assertSame(entry.getKey(), entry.getValue(), table.get(entry.getKey()));
+        }
+        assertNull(table.get(UNREALISTIC_SETTING));
+        assertNull(table.get(null));
+    }
+
+    private static int validateAllWithMap() {
+        return validateAll(LineageSettings.System.VALIDATORS, null)
+                + validateAll(LineageSettings.Secure.VALIDATORS, null)
+                + validateAll(LineageSettings.Global.VALIDATORS, null);
+    }
+
+    private static int validateAllWithTable() {
+        return validateAll(LineageSettings.System.VALIDATORS,
+                        LineageSettings.System.COMPILED_VALIDATORS)
+                + validateAll(LineageSettings.Secure.VALIDATORS,
+                        LineageSettings.Secure.COMPILED_VALIDATORS)
+                + validateAll(LineageSettings.Global.VALIDATORS,
+                        LineageSettings.Global.COMPILED_VALIDATORS);
+    }
+
+    /**
+     * Looks up the validator of every key in {@code validators}, through {@code table} if it
+     * is not null, and runs it over all sample values.
+     */
+    private static int validateAll(Map<String, LineageSettings.Validator> validators,
+            ValidatorTable table) {
+        int count = 0;
+        for (String key : validators.keySet()) {
+            for (String value : SAMPLE_VALUES) {
+                final LineageSettings.Validator validator =
+                        table != null ? table.get(key) : validators.get(key);
+                validator.validate(value);
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright (c) 2026, The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.lineagesettings.tests;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.os.SystemClock;
+import android.provider.Settings;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import lineageos.providers.LineageSettings;
+
+import java.util.Map;
+
+/**
+ * Measures how many settings per second can be written through the generic insert() path, the
+ * call() PUT fast path and the batched PUT path.
+ */
+public class LineageSettingsWriteBenchmark extends AndroidTestCase {
+    private static final String TAG = "LineageSettingsWriteBenchmark";
+
+    private static final String KEY_PREFIX = "__write_benchmark_";
+    private static final int BATCH_SIZE = 20;
+
+    private static final long RUN_DURATION_MS = 2000;
+
+    private ContentResolver mContentResolver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContentResolver = mContext.getContentResolver();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            mContentResolver.delete(LineageSettings.Global.CONTENT_URI,
+                    Settings.NameValueTable.NAME + " = ?", new String[]{ KEY_PREFIX + i });
+        }
+        super.tearDown();
+    }
+
+    @LargeTest
+    public void testWriteThroughput() {
+        final int[] counter = new int[1];
+
+        final double insertsPerSec = measure(() -> {
+            final ContentValues values = new ContentValues();
+            values.put(Settings.NameValueTable.NAME, KEY_PREFIX + 0);
+            values.put(Settings.NameValueTable.VALUE, Integer.toString(counter[0]++));
+            mContentResolver.insert(LineageSettings.Global.CONTENT_URI, values);
+            return 1;
+        });
+
+        final double putsPerSec = measure(() -> {
+            LineageSettings.Global.putInt(mContentResolver, KEY_PREFIX + 0, counter[0]++);
+            return 1;
+        });
+
+        final Map<String, String> batch = new ArrayMap<>(BATCH_SIZE);
+        final double batchedPutsPerSec = measure(() -> {
+            final String value = Integer.toString(counter[0]++);
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                batch.put(KEY_PREFIX + i, value);
+            }
+            LineageSettings.Global.putStringsForUser(mContentResolver, batch,
+                    mContentResolver.getUserId());
+            return BATCH_SIZE;
+        });
+
+        Log.i(TAG, "insert() writes/s=" + insertsPerSec
+                + " call() writes/s=" + putsPerSec
+                + " batched writes/s=" + batchedPutsPerSec);
+        assertEquals(Integer.toString(counter[0] - 1),
+                LineageSettings.Global.getString(mContentResolver, KEY_PREFIX + 0));
+        assertTrue("batched writes are not faster than single writes",
+                batchedPutsPerSec > putsPerSec);
+    }
+
+    private interface WriteOp {
+        /** @return the number of settings written */
+        int run();
+    }
+
+    private static double measure(WriteOp op) {
+        long count = 0;
+        final long start = SystemClock.elapsedRealtime();
+        long now;
+        do {
+            count += op.run();
+            now = SystemClock.elapsedRealtime();
+        } while (now - start < RUN_DURATION_MS);
+        return count * 1000.0 / (now - start);
+    }
+}
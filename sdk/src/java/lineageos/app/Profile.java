@@ -17,12 +17,10 @@
 package lineageos.app;
 
 import android.content.Context;
-import android.media.AudioManager;
+import android.os.CancellationSignal;
 import android.os.Parcel;
 import android.os.ParcelUuid;
 import android.os.Parcelable;
-import android.os.UserHandle;
-import android.provider.Settings;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -1185,55 +1183,19 @@ public final class Profile implements Parcelable, Comparable {
 
     /** @hide */
     public void doSelect(Context context, IKeyguardService keyguardService) {
-        // Set stream volumes
-        AudioManager am = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
-        for (StreamSettings sd : streams.values()) {
-            if (sd.isOverride()) {
-                am.setStreamVolume(sd.getStreamId(), sd.getValue(), 0);
-            }
-        }
-        // Set connections
-        for (ConnectionSettings cs : connections.values()) {
-            if (cs.isOverride()) {
-                cs.processOverride(context);
-            }
-        }
-        for (ConnectionSettings cs : networkConnectionSubIds.values()) {
-            if (cs.isOverride()) {
-                cs.processOverride(context);
-            }
-        }
-
-        // Set ring mode
-        mRingMode.processOverride(context);
-        // Set airplane mode
-        mAirplaneMode.processOverride(context);
-
-        // Set brightness
-        mBrightness.processOverride(context);
-
-        if (keyguardService != null) {
-            // Set lock screen mode
-            mScreenLockMode.processOverride(context, keyguardService);
-        } else {
-            Log.e(TAG, "cannot process screen lock override without a keyguard service.");
-        }
-
-        // Set doze mode
-        if (mDozeMode != DozeMode.DEFAULT) {
-            Settings.Secure.putIntForUser(context.getContentResolver(),
-                Settings.Secure.DOZE_ENABLED,
-                    mDozeMode == DozeMode.ENABLE ? 1 : 0,
-                    UserHandle.USER_CURRENT);
-        }
+        doSelect(context, keyguardService, null);
+    }
 
-        // Set notification light mode
-        if (mNotificationLightMode != NotificationLightMode.DEFAULT) {
-            Settings.System.putIntForUser(context.getContentResolver(),
-                Settings.System.NOTIFICATION_LIGHT_PULSE,
-                    mNotificationLightMode == NotificationLightMode.ENABLE ? 1 : 0,
-                    UserHandle.USER_CURRENT);
-        }
+    /**
+     * Apply the profile to the device, stopping part way if {@code cancellationSignal} is
+     * cancelled.
+     * @hide
+     */
+    public void doSelect(Context context, IKeyguardService keyguardService,
+            CancellationSignal cancellationSignal) {
+        // Only apply what differs from the live state
+        ProfileTransitionPlan.create(context, this)
+                .apply(context, keyguardService, cancellationSignal);
     }
 
     /**
@@ -16,6 +16,8 @@
 
 package lineageos.app;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.UUID;
 
 import android.annotation.SdkConstant;
@@ -23,11 +25,15 @@ import android.annotation.SdkConstant.SdkConstantType;
 import android.app.NotificationGroup;
 import android.content.Context;
 import android.os.IBinder;
+import android.os.Parcel;
+import android.os.Parcelable;
 import android.os.ParcelUuid;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.util.Log;
 
+import lineageos.providers.LineageSettings;
+
 /**
  * <p>
  * The ProfileManager allows you to create {@link Profile}s and ProfileGroups to create
@@ -61,6 +67,11 @@ public class ProfileManager {
 
     private static final String TAG = "ProfileManager";
 
+    // Profile summaries fetched per binder call, well clear of the transaction size limit
+    private static final int SUMMARY_PAGE_SIZE = 256;
+
+    private final ProfileStateCache mCache = new ProfileStateCache();
+
     /**
      * <p>Broadcast Action: A new profile has been selected. This can be triggered by the user
      * or by calls to the ProfileManagerService / Profile.</p>
@@ -228,6 +239,37 @@ public class ProfileManager {
      */
     public static final int PROFILES_STATE_ENABLED = 1;
 
+    /**
+     * Applying a selected profile to the device has started.
+     * @hide
+     */
+    public static final int PROFILE_APPLY_STARTED = 0;
+
+    /**
+     * A selected profile has been applied to the device.
+     * @hide
+     */
+    public static final int PROFILE_APPLY_COMPLETED = 1;
+
+    /**
+     * A selected profile was not applied, because another one was selected before it started.
+     * @hide
+     */
+    public static final int PROFILE_APPLY_SUPERSEDED = 2;
+
+    /**
+     * Applying a selected profile was stopped part way, because another one was selected.
+     * @hide
+     */
+    public static final int PROFILE_APPLY_CANCELLED = 3;
+
+    /**
+     * System property holding the generation of the profile state, bumped by the profile
+     * service after every change. Processes cache profile state until it moves.
+     * @hide
+     */
+    public static final String SYS_PROP_PROFILE_STATE_VERSION = "sys.lineage_profiles_version";
+
     private static ProfileManager sProfileManagerInstance;
     private ProfileManager(Context context) {
         Context appContext = context.getApplicationContext();
@@ -296,8 +338,19 @@ public class ProfileManager {
      * @return active {@link Profile}
      */
     public Profile getActiveProfile() {
+        return copyOf(getCachedActiveProfile(), Profile.CREATOR);
+    }
+
+    private Profile getCachedActiveProfile() {
+        // The service answers with an empty profile while profiles are disabled. The setting
+        // is read from the settings cache, so that the answer does not depend on when the
+        // service hears about the change.
+        final boolean enabled = LineageSettings.System.getInt(mContext.getContentResolver(),
+                LineageSettings.System.SYSTEM_PROFILES_ENABLED, PROFILES_STATE_ENABLED)
+                == PROFILES_STATE_ENABLED;
         try {
-            return getService().getActiveProfile();
+            return mCache.get(ProfileStateCache.ACTIVE_PROFILE, enabled,
+                    () -> getService().getActiveProfile());
         } catch (RemoteException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
@@ -347,7 +400,8 @@ public class ProfileManager {
      */
     public Profile getProfile(UUID profileUuid) {
         try {
-            return getService().getProfile(new ParcelUuid(profileUuid));
+            return copyOf(mCache.get(ProfileStateCache.PROFILE, profileUuid,
+                    () -> getService().getProfile(new ParcelUuid(profileUuid))), Profile.CREATOR);
         } catch (RemoteException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
@@ -359,13 +413,36 @@ public class ProfileManager {
      * @return {@link String[]} of profile names
      */
     public String[] getProfileNames() {
+        ProfileSummary[] summaries = getProfileSummaries();
+        if (summaries == null) {
+            return null;
+        }
+        String[] names = new String[summaries.length];
+        for (int i = 0; i < summaries.length; i++) {
+            names[i] = summaries[i].getName();
+        }
+        return names;
+    }
+
+    /**
+     * Get the summaries of the profiles currently available to the user, sorted by name.
+     * They are fetched in pages, so a profile added or removed meanwhile may be missed or
+     * listed twice.
+     * @return {@link ProfileSummary[]}
+     * @hide
+     */
+    public ProfileSummary[] getProfileSummaries() {
         try {
-            Profile[] profiles = getService().getProfiles();
-            String[] names = new String[profiles.length];
-            for (int i = 0; i < profiles.length; i++) {
-                names[i] = profiles[i].getName();
+            ProfileSummary[] page = getService().getProfileSummaries(0, SUMMARY_PAGE_SIZE);
+            if (page.length < SUMMARY_PAGE_SIZE) {
+                return page;
+            }
+            ArrayList<ProfileSummary> summaries = new ArrayList<>(Arrays.asList(page));
+            while (page.length == SUMMARY_PAGE_SIZE) {
+                page = getService().getProfileSummaries(summaries.size(), SUMMARY_PAGE_SIZE);
+                summaries.addAll(Arrays.asList(page));
             }
-            return names;
+            return summaries.toArray(new ProfileSummary[summaries.size()]);
         } catch (RemoteException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
@@ -385,6 +462,37 @@ public class ProfileManager {
         return null;
     }
 
+    /**
+     * Get a range of the {@link Profile}s currently available to the user, sorted by name, to
+     * fetch large profile sets a page at a time
+     * @param offset the index of the first profile
+     * @param limit the most profiles to return
+     * @return {@link Profile[]}, shorter than {@code limit} at the end of the list
+     * @hide
+     */
+    public Profile[] getProfiles(int offset, int limit) {
+        try {
+            return getService().getProfilesInRange(offset, limit);
+        } catch (RemoteException e) {
+            Log.e(TAG, e.getLocalizedMessage(), e);
+        }
+        return null;
+    }
+
+    /**
+     * Get the number of profiles currently available to the user
+     * @return the number of profiles
+     * @hide
+     */
+    public int getProfileCount() {
+        try {
+            return getService().getProfileCount();
+        } catch (RemoteException e) {
+            Log.e(TAG, e.getLocalizedMessage(), e);
+        }
+        return 0;
+    }
+
     /**
      * Check if a {@link Profile} exists via its literal name
      * @param profileName a profile name
@@ -408,7 +516,8 @@ public class ProfileManager {
      */
     public boolean profileExists(UUID profileUuid) {
         try {
-            return getService().profileExists(new ParcelUuid(profileUuid));
+            return mCache.get(ProfileStateCache.PROFILE_EXISTS, profileUuid,
+                    () -> getService().profileExists(new ParcelUuid(profileUuid)));
         } catch (RemoteException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
             // To be on the safe side, we'll return "true", to prevent duplicate profiles
@@ -493,8 +602,13 @@ public class ProfileManager {
      * @hide
      */
     public NotificationGroup getNotificationGroupForPackage(String pkg) {
+        return copyOf(getCachedNotificationGroupForPackage(pkg), NotificationGroup.CREATOR);
+    }
+
+    private NotificationGroup getCachedNotificationGroupForPackage(String pkg) {
         try {
-            return getService().getNotificationGroupForPackage(pkg);
+            return mCache.get(ProfileStateCache.GROUP_FOR_PACKAGE, pkg,
+                    () -> getService().getNotificationGroupForPackage(pkg));
         } catch (RemoteException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
@@ -522,12 +636,32 @@ public class ProfileManager {
      * @hide
      */
     public ProfileGroup getActiveProfileGroup(String packageName) {
-        NotificationGroup notificationGroup = getNotificationGroupForPackage(packageName);
+        // Called for every notification posted, so only the small group handed out is copied
+        NotificationGroup notificationGroup = getCachedNotificationGroupForPackage(packageName);
+        final ProfileGroup group;
         if (notificationGroup == null) {
-            ProfileGroup defaultGroup = getActiveProfile().getDefaultGroup();
-            return defaultGroup;
+            group = getCachedActiveProfile().getDefaultGroup();
+        } else {
+            group = getCachedActiveProfile().getProfileGroup(notificationGroup.getUuid());
+        }
+        return copyOf(group, ProfileGroup.CREATOR);
+    }
+
+    /**
+     * Copies a cached object, so that callers changing it do not change the cache.
+     */
+    private static <T extends Parcelable> T copyOf(T value, Parcelable.Creator<T> creator) {
+        if (value == null) {
+            return null;
+        }
+        Parcel parcel = Parcel.obtain();
+        try {
+            value.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return creator.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
         }
-        return getActiveProfile().getProfileGroup(notificationGroup.getUuid());
     }
 
     /**
@@ -543,6 +677,35 @@ public class ProfileManager {
         }
     }
 
+    /**
+     * Register a callback to be told about the progress of applying selected profiles, which
+     * happens in the background after {@link #setActiveProfile(UUID)} returns. Requires the
+     * MODIFY_PROFILES permission, and a caller may only have a few callbacks registered.
+     * @param callback the callback to register
+     * @throws IllegalStateException if the caller has too many callbacks registered
+     * @hide
+     */
+    public void registerApplyCallback(IProfileApplyCallback callback) {
+        try {
+            getService().registerApplyCallback(callback);
+        } catch (RemoteException e) {
+            Log.e(TAG, e.getLocalizedMessage(), e);
+        }
+    }
+
+    /**
+     * Unregister a callback registered with {@link #registerApplyCallback}.
+     * @param callback the callback to unregister
+     * @hide
+     */
+    public void unregisterApplyCallback(IProfileApplyCallback callback) {
+        try {
+            getService().unregisterApplyCallback(callback);
+        } catch (RemoteException e) {
+            Log.e(TAG, e.getLocalizedMessage(), e);
+        }
+    }
+
     /**
      * Check if profiles are currently activated in the system
      * @return whether profiles are enabled
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package lineageos.app;
+
+import android.os.RemoteException;
+import android.os.SystemProperties;
+import android.util.ArrayMap;
+
+import com.android.internal.annotations.GuardedBy;
+
+/**
+ * Profile state cached in this process by {@link ProfileManager}. The profile service bumps
+ * {@link ProfileManager#SYS_PROP_PROFILE_STATE_VERSION} after every change, and the cache
+ * drops everything it holds when the property moves, so lookups only go to the service the
+ * first time after a change.
+ *
+ * Cached values are shared: callers must copy them before handing them out.
+ *
+ * @hide
+ */
+final class ProfileStateCache {
+
+    /** The active profile, by whether profiles are enabled */
+    static final int ACTIVE_PROFILE = 0;
+    /** Profiles by UUID */
+    static final int PROFILE = 1;
+    /** Whether a profile exists, by UUID */
+    static final int PROFILE_EXISTS = 2;
+    /** Notification groups by package name */
+    static final int GROUP_FOR_PACKAGE = 3;
+
+    private static final int KIND_COUNT = 4;
+
+    // Most values cached per kind, past which lookups go to the service uncached
+    private static final int MAX_ENTRIES = 512;
+
+    /**
+     * Fetches a value from the profile service on a cache miss.
+     */
+    interface Fetcher<T> {
+        T fetch() throws RemoteException;
+    }
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private long mGeneration = -1;
+
+    // Cached values, one map per kind; null values are cached as well
+    @GuardedBy("mLock")
+    private final ArrayMap<Object, Object>[] mValues;
+
+    @SuppressWarnings("unchecked")
+    ProfileStateCache() {
+        mValues = new ArrayMap[KIND_COUNT];
+        for (int i = 0; i < KIND_COUNT; i++) {
+            mValues[i] = new ArrayMap<>();
+        }
+    }
+
+    /**
+     * Gets a value from the cache, or from the service if the cache does not hold it for the
+     * current generation.
+     * @param kind which kind of value to get
+     * @param key the key of the value
+     * @param fetcher fetches the value from the service on a miss
+     * @return the value, which must not be modified
+     */
+    @SuppressWarnings("unchecked")
+    <T> T get(int kind, Object key, Fetcher<T> fetcher) throws RemoteException {
+        // Read the generation before fetching, so that a change made while fetching leaves
+        // the value stale rather than cached under the new generation
+        final long generation = SystemProperties.getLong(
+                ProfileManager.SYS_PROP_PROFILE_STATE_VERSION, 0);
+        final ArrayMap<Object, Object> values = mValues[kind];
+        synchronized (mLock) {
+            if (generation != mGeneration) {
+                for (ArrayMap<Object, Object> map : mValues) {
+                    map.clear();
+                }
+                mGeneration = generation;
+            } else {
+                final int index = values.indexOfKey(key);
+                if (index >= 0) {
+                    return (T) values.valueAt(index);
+                }
+            }
+        }
+
+        final T value = fetcher.fetch();
+        synchronized (mLock) {
+            if (generation == mGeneration && values.size() < MAX_ENTRIES) {
+                values.put(key, value);
+            }
+        }
+        return value;
+    }
+}
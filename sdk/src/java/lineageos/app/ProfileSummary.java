@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package lineageos.app;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.UUID;
+
+/**
+ * The identity of a {@link Profile}, without its settings, for listing profiles without
+ * parcelling every group, stream, connection and trigger of each one.
+ *
+ * Summaries only travel between the profile service and the {@link ProfileManager} of the same
+ * build, so unlike {@link Profile} they are not wrapped by the Concierge.
+ *
+ * @hide
+ */
+public final class ProfileSummary implements Parcelable {
+    private final UUID mUuid;
+    private final String mName;
+    private final int mProfileType;
+    private final boolean mActive;
+
+    public ProfileSummary(Profile profile, boolean active) {
+        this(profile.getUuid(), profile.getName(), profile.getProfileType(), active);
+    }
+
+    public ProfileSummary(UUID uuid, String name, int profileType, boolean active) {
+        mUuid = uuid;
+        mName = name;
+        mProfileType = profileType;
+        mActive = active;
+    }
+
+    private ProfileSummary(Parcel in) {
+        mUuid = new UUID(in.readLong(), in.readLong());
+        mName = in.readString();
+        mProfileType = in.readInt();
+        mActive = in.readInt() != 0;
+    }
+
+    /**
+     * @return the UUID of the profile
+     */
+    public UUID getUuid() {
+        return mUuid;
+    }
+
+    /**
+     * @return the name of the profile
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @return the {@link Profile.Type} of the profile
+     */
+    public int getProfileType() {
+        return mProfileType;
+    }
+
+    /**
+     * @return whether the profile was the active one when the summary was made
+     */
+    public boolean isActive() {
+        return mActive;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(mUuid.getMostSignificantBits());
+        dest.writeLong(mUuid.getLeastSignificantBits());
+        dest.writeString(mName);
+        dest.writeInt(mProfileType);
+        dest.writeInt(mActive ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return "ProfileSummary{" + mUuid + " " + mName + (mActive ? " active}" : "}");
+    }
+
+    public static final Parcelable.Creator<ProfileSummary> CREATOR =
+            new Parcelable.Creator<ProfileSummary>() {
+        @Override
+        public ProfileSummary createFromParcel(Parcel in) {
+            return new ProfileSummary(in);
+        }
+
+        @Override
+        public ProfileSummary[] newArray(int size) {
+            return new ProfileSummary[size];
+        }
+    };
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package lineageos.app;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.media.AudioManager;
+import android.os.CancellationSignal;
+import android.os.UserHandle;
+import android.provider.Settings;
+import android.util.Log;
+import android.util.SparseArray;
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.policy.IKeyguardService;
+import lineageos.profiles.ConnectionSettings;
+import lineageos.profiles.StreamSettings;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The changes needed to bring the device from its live state to the overrides of a
+ * {@link Profile}. Creating a plan reads the live state, and applying it only touches what
+ * differs, so selecting a profile that is mostly in effect already is cheap.
+ *
+ * Connection overrides each toggle a radio or service, and are applied in parallel, with the
+ * switch waiting a bounded time for them before it moves on. Overrides of the same connection
+ * are applied one at a time, also across plans, and those of a cancelled plan that have not
+ * started are skipped, so the connections end up as the last switch left them. Airplane mode
+ * is always applied after the connection overrides, by the last of them if they run late.
+ *
+ * @hide
+ */
+final class ProfileTransitionPlan {
+    private static final String TAG = "ProfileTransitionPlan";
+
+    // How long a profile switch waits for its connection overrides before moving on
+    private static final long CONNECTION_TIMEOUT_MS = 3000;
+
+    private final Profile mProfile;
+
+    // Stream ids and target volumes of the streams whose volume differs
+    private final int[] mStreamIds;
+    private final int[] mStreamVolumes;
+    private final int mStreamCount;
+
+    private final List<ConnectionSettings> mConnections = new ArrayList<>();
+
+    // Values for Settings.Secure.DOZE_ENABLED and Settings.System.NOTIFICATION_LIGHT_PULSE,
+    // or -1 if they are already in effect
+    private final int mDozeEnabled;
+    private final int mNotificationLightPulse;
+
+    private static final class ExecutorHolder {
+        static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(
+                r -> new Thread(r, TAG));
+    }
+
+    // Overrides waiting for an earlier one of the same connection, by connection id
+    @GuardedBy("sQueuedToggles")
+    private static final SparseArray<ArrayDeque<Runnable>> sQueuedToggles = new SparseArray<>();
+
+    private ProfileTransitionPlan(Context context, Profile profile) {
+        mProfile = profile;
+
+        AudioManager am = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        final int maxStreams = profile.getStreamSettings().size();
+        mStreamIds = new int[maxStreams];
+        mStreamVolumes = new int[maxStreams];
+        int streamCount = 0;
+        for (StreamSettings sd : profile.getStreamSettings()) {
+            if (sd.isOverride() && am.getStreamVolume(sd.getStreamId()) != sd.getValue()) {
+                mStreamIds[streamCount] = sd.getStreamId();
+                mStreamVolumes[streamCount] = sd.getValue();
+                streamCount++;
+            }
+        }
+        mStreamCount = streamCount;
+
+        // Each connection override compares against the live state itself, and checking that
+        // state is as slow as changing it, so both are left to the parallel apply step
+        for (ConnectionSettings cs : profile.getConnectionSettings()) {
+            if (cs.isOverride()) {
+                mConnections.add(cs);
+            }
+        }
+
+        final ContentResolver cr = context.getContentResolver();
+        final int dozeMode = profile.getDozeMode();
+        mDozeEnabled = dozeMode == Profile.DozeMode.DEFAULT ? -1
+                : changedValue(Settings.Secure.getStringForUser(cr,
+                        Settings.Secure.DOZE_ENABLED, UserHandle.USER_CURRENT),
+                        dozeMode == Profile.DozeMode.ENABLE ? 1 : 0);
+        final int lightMode = profile.getNotificationLightMode();
+        mNotificationLightPulse = lightMode == Profile.NotificationLightMode.DEFAULT ? -1
+                : changedValue(Settings.System.getStringForUser(cr,
+                        Settings.System.NOTIFICATION_LIGHT_PULSE, UserHandle.USER_CURRENT),
+                        lightMode == Profile.NotificationLightMode.ENABLE ? 1 : 0);
+    }
+
+    /**
+     * Works out what selecting a profile has to change.
+     * @param context the context to read the live state through
+     * @param profile the profile to select
+     */
+    static ProfileTransitionPlan create(Context context, Profile profile) {
+        return new ProfileTransitionPlan(context, profile);
+    }
+
+    /**
+     * Applies the changes to the device. Cancelling stops the remaining steps and skips the
+     * connection overrides that have not started, those that have keep running.
+     * @param context the context to apply the changes through
+     * @param keyguardService the keyguard to apply the lock screen mode to, or null
+     * @param cancellationSignal signal to stop applying, or null
+     */
+    void apply(Context context, IKeyguardService keyguardService,
+            CancellationSignal cancellationSignal) {
+        if (isCanceled(cancellationSignal)) {
+            return;
+        }
+
+        // Start the connection overrides first, they are the slowest part
+        final CountDownLatch connectionsDone = new CountDownLatch(mConnections.size());
+        final AtomicInteger connectionsRunning = new AtomicInteger(mConnections.size());
+        // Steps left to the last connection override, should they finish after the timeout
+        final AtomicReference<Runnable> afterConnections = new AtomicReference<>();
+        for (ConnectionSettings cs : mConnections) {
+            executeSerially(cs.getConnectionId(), () -> {
+                try {
+                    // A later switch has taken over, and will apply its own override
+                    if (!isCanceled(cancellationSignal)) {
+                        cs.processOverride(context);
+                    }
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Failed to apply connection override "
+                            + cs.getConnectionId(), e);
+                } finally {
+                    if (connectionsRunning.decrementAndGet() == 0) {
+                        runOnce(afterConnections);
+                    }
+                    connectionsDone.countDown();
+                }
+            });
+        }
+
+        // Set stream volumes
+        if (mStreamCount > 0) {
+            AudioManager am = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+            for (int i = 0; i < mStreamCount; i++) {
+                am.setStreamVolume(mStreamIds[i], mStreamVolumes[i], 0);
+            }
+        }
+
+        // Set ring mode
+        mProfile.getRingMode().processOverride(context);
+
+        if (cancellationSignal != null) {
+            // Stop waiting for the connections as soon as the switch is cancelled
+            cancellationSignal.setOnCancelListener(() -> {
+                while (connectionsDone.getCount() > 0) {
+                    connectionsDone.countDown();
+                }
+            });
+        }
+
+        // Airplane mode must go after the connections, or it could be undone by them
+        boolean connectionsLate;
+        try {
+            connectionsLate = !connectionsDone.await(CONNECTION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            connectionsLate = connectionsRunning.get() > 0;
+        }
+        if (isCanceled(cancellationSignal)) {
+            return;
+        }
+
+        // Set airplane mode
+        final Runnable airplaneMode = () -> {
+            if (!isCanceled(cancellationSignal)) {
+                mProfile.getAirplaneMode().processOverride(context);
+            }
+        };
+        if (connectionsLate) {
+            Log.w(TAG, "Connection overrides of " + mProfile.getName() + " still running after "
+                    + CONNECTION_TIMEOUT_MS + "ms, applying airplane mode once they are done");
+            afterConnections.set(airplaneMode);
+            // The last override may have finished before the step was handed over
+            if (connectionsRunning.get() == 0) {
+                runOnce(afterConnections);
+            }
+        } else {
+            airplaneMode.run();
+        }
+
+        // Set brightness
+        mProfile.getBrightness().processOverride(context);
+
+        if (keyguardService != null) {
+            // Set lock screen mode
+            mProfile.getScreenLockMode().processOverride(context, keyguardService);
+        } else {
+            Log.e(TAG, "cannot process screen lock override without a keyguard service.");
+        }
+
+        // Set doze mode
+        if (mDozeEnabled >= 0) {
+            Settings.Secure.putIntForUser(context.getContentResolver(),
+                    Settings.Secure.DOZE_ENABLED, mDozeEnabled, UserHandle.USER_CURRENT);
+        }
+
+        // Set notification light mode
+        if (mNotificationLightPulse >= 0) {
+            Settings.System.putIntForUser(context.getContentResolver(),
+                    Settings.System.NOTIFICATION_LIGHT_PULSE, mNotificationLightPulse,
+                    UserHandle.USER_CURRENT);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ProfileTransitionPlan{" + mProfile.getName() + ": " + mStreamCount
+                + " streams, " + mConnections.size() + " connections, doze=" + mDozeEnabled
+                + ", notificationLight=" + mNotificationLightPulse + "}";
+    }
+
+    /**
+     * Runs a connection override on the shared pool once the previous override of the same
+     * connection is done, so that two overrides never toggle a connection at the same time.
+     */
+    private static void executeSerially(int connectionId, Runnable toggle) {
+        synchronized (sQueuedToggles) {
+            final ArrayDeque<Runnable> queue = sQueuedToggles.get(connectionId);
+            if (queue != null) {
+                queue.add(toggle);
+                return;
+            }
+            sQueuedToggles.put(connectionId, new ArrayDeque<>());
+        }
+        ExecutorHolder.EXECUTOR.execute(() -> {
+            Runnable next = toggle;
+            while (next != null) {
+                next.run();
+                synchronized (sQueuedToggles) {
+                    next = sQueuedToggles.get(connectionId).poll();
+                    if (next == null) {
+                        sQueuedToggles.remove(connectionId);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the step held by {@code step}, unless it was run already.
+     */
+    private static void runOnce(AtomicReference<Runnable> step) {
+        final Runnable runnable = step.getAndSet(null);
+        if (runnable != null) {
+            runnable.run();
+        }
+    }
+
+    private static boolean isCanceled(CancellationSignal cancellationSignal) {
+        return cancellationSignal != null && cancellationSignal.isCanceled();
+    }
+
+    /**
+     * @return {@code target} if {@code current} is a different value, -1 otherwise
+     */
+    private static int changedValue(String current, int target) {
+        return Integer.toString(target).equals(current) ? -1 : target;
+    }
+}
@@ -19,12 +19,15 @@ package lineageos.hardware;
 import android.content.Context;
 import android.hidl.base.V1_0.IBase;
 import android.os.IBinder;
+import android.os.IHwBinder;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.util.ArrayMap;
 import android.util.Log;
 import android.util.Range;
+import android.util.SparseArray;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ArrayUtils;
 
@@ -48,11 +51,21 @@ import vendor.lineage.touch.V1_0.IStylusMode;
 import vendor.lineage.touch.V1_0.ITouchscreenGesture;
 
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Manages access to LineageOS hardware extensions
@@ -186,16 +199,91 @@ public final class LineageHardwareManager {
         FEATURE_READING_ENHANCEMENT
     );
 
+    // Features which may be backed by a HIDL hal
+    private static final int[] HIDL_FEATURES = {
+        FEATURE_ADAPTIVE_BACKLIGHT,
+        FEATURE_ANTI_FLICKER,
+        FEATURE_AUTO_CONTRAST,
+        FEATURE_COLOR_BALANCE,
+        FEATURE_COLOR_ENHANCEMENT,
+        FEATURE_DISPLAY_COLOR_CALIBRATION,
+        FEATURE_DISPLAY_MODES,
+        FEATURE_PICTURE_ADJUSTMENT,
+        FEATURE_READING_ENHANCEMENT,
+        FEATURE_SUNLIGHT_ENHANCEMENT,
+        FEATURE_HIGH_TOUCH_POLLING_RATE,
+        FEATURE_HIGH_TOUCH_SENSITIVITY,
+        FEATURE_KEY_DISABLE,
+        FEATURE_KEY_SWAP,
+        FEATURE_TOUCH_HOVERING,
+        FEATURE_TOUCHSCREEN_GESTURES
+    };
+
+    // How long the discovery waits for the hals before publishing the capabilities
+    private static final long DISCOVERY_TIMEOUT_MS = 2000;
+
+    private static final class ExecutorHolder {
+        static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(
+                r -> new Thread(r, TAG));
+    }
+
     private static ILineageHardwareService sService;
     private static LineageHardwareManager sLineageHardwareManagerInstance;
 
+    // Feature constants by name, read once for isSupported(String)
+    @GuardedBy("LineageHardwareManager.class")
+    private static ArrayMap<String, Integer> sFeaturesByName;
+
     private Context mContext;
 
     private final ArrayMap<String, String> mDisplayModeMappings = new ArrayMap<String, String>();
     private final boolean mFilterDisplayModes;
 
-    // HIDL hals
-    private HashMap<Integer, IBase> mHIDLMap = new HashMap<Integer, IBase>();
+    // The capabilities of the hals are read once and kept until the hal dies
+    private final Object mCacheLock = new Object();
+
+    // Probes of the HIDL hals by feature, resulting in null for the features without one
+    @GuardedBy("mCacheLock")
+    private final SparseArray<FutureTask<IBase>> mHIDLMap =
+            new SparseArray<FutureTask<IBase>>();
+
+    // Features found to have a HIDL hal. They stay set when the hal dies, as it restarts.
+    private final AtomicInteger mHIDLFeatures = new AtomicInteger();
+
+    // The supported features, once the discovery is done or timed out
+    private final CompletableFuture<Integer> mCapabilities = new CompletableFuture<Integer>();
+
+    @GuardedBy("mCacheLock")
+    private boolean mDiscoveryStarted;
+
+    // Features supported by LineageHardwareService, -1 until read. It lives in
+    // system_server, which does not die without taking its clients down with it.
+    @GuardedBy("mCacheLock")
+    private int mSupportedFeatures = -1;
+
+    // Bumped when a hal dies, so that values read from it before are not cached after
+    @GuardedBy("mCacheLock")
+    private int mCacheGeneration;
+
+    @GuardedBy("mCacheLock")
+    private Range<Integer> mColorBalanceRange;
+    @GuardedBy("mCacheLock")
+    private List<Range<Float>> mPictureAdjustmentRanges;
+    // The minimum and maximum calibration values
+    @GuardedBy("mCacheLock")
+    private int[] mDisplayColorCalibrationRange;
+    // The display modes after remapping and filtering
+    @GuardedBy("mCacheLock")
+    private DisplayMode[] mDisplayModes;
+
+    private final IHwBinder.DeathRecipient mHalDeathRecipient =
+            new IHwBinder.DeathRecipient() {
+        @Override
+        public void serviceDied(long cookie) {
+            Log.w(TAG, "HIDL hal of feature 0x" + Long.toHexString(cookie) + " died");
+            invalidateHIDL((int) cookie);
+        }
+    };
 
     /**
      * @hide to prevent subclassing from outside of the framework
@@ -235,7 +323,7 @@ public final class LineageHardwareManager {
      * @param context
      * @return {@link LineageHardwareManager}
      */
-    public static LineageHardwareManager getInstance(Context context) {
+    public static synchronized LineageHardwareManager getInstance(Context context) {
         if (sLineageHardwareManagerInstance == null) {
             sLineageHardwareManagerInstance = new LineageHardwareManager(context);
         }
@@ -267,20 +355,166 @@ public final class LineageHardwareManager {
     }
 
     private boolean isSupportedHIDL(int feature) {
-        if (!mHIDLMap.containsKey(feature)) {
-            mHIDLMap.put(feature, getHIDLService(feature));
+        if ((mHIDLFeatures.get() & feature) != 0) {
+            return true;
         }
-        return mHIDLMap.get(feature) != null;
+        return getHIDL(feature) != null;
     }
 
     private boolean isSupportedHWC2(int feature) {
+        return feature == (getSupportedFeaturesHWC2() & feature);
+    }
+
+    private int getSupportedFeaturesHWC2() {
+        int features;
+        synchronized (mCacheLock) {
+            features = mSupportedFeatures;
+        }
+        if (features < 0) {
+            try {
+                if (!checkService()) {
+                    return 0;
+                }
+                features = sService.getSupportedFeatures();
+            } catch (RemoteException e) {
+                return 0;
+            }
+            synchronized (mCacheLock) {
+                mSupportedFeatures = features;
+            }
+        }
+        return features;
+    }
+
+    /**
+     * Gets the supported features once the hals have been probed. The first call probes them
+     * all at once in the background; hals which have not answered by the time the discovery
+     * times out are left out, and are found later by {@link #isSupported(int)} if they do
+     * come up.
+     *
+     * Only meant for system_server, which uses most of the hals. Other processes probe the
+     * hals of the features they ask about, one at a time.
+     *
+     * @return the future bitmask of the supported features
+     * @hide
+     */
+    public Future<Integer> awaitCapabilities() {
+        synchronized (mCacheLock) {
+            if (mDiscoveryStarted) {
+                return mCapabilities;
+            }
+            mDiscoveryStarted = true;
+        }
+        startDiscovery();
+        return mCapabilities;
+    }
+
+    private void startDiscovery() {
+        final CountDownLatch probed = new CountDownLatch(HIDL_FEATURES.length);
+        for (int feature : HIDL_FEATURES) {
+            ExecutorHolder.EXECUTOR.execute(() -> {
+                try {
+                    getHIDL(feature);
+                } finally {
+                    probed.countDown();
+                }
+            });
+        }
+        ExecutorHolder.EXECUTOR.execute(() -> {
+            try {
+                if (!probed.await(DISCOVERY_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    Log.w(TAG, probed.getCount() + " HIDL hals still not probed after "
+                            + DISCOVERY_TIMEOUT_MS + "ms, leaving them out");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mCapabilities.complete(mHIDLFeatures.get() | getSupportedFeaturesHWC2());
+        });
+    }
+
+    /**
+     * @return the HIDL hal of a feature, or null if it has none
+     */
+    private IBase getHIDL(int feature) {
+        FutureTask<IBase> task;
+        boolean probe = false;
+        synchronized (mCacheLock) {
+            task = mHIDLMap.get(feature);
+            if (task == null) {
+                task = new FutureTask<IBase>(() -> probeHIDL(feature));
+                mHIDLMap.put(feature, task);
+                probe = true;
+            }
+        }
+
+        if (probe) {
+            // Getting the hal waits for it to start, so it is not done holding the lock.
+            // Callers asking for the same feature meanwhile wait for this probe.
+            task.run();
+        }
+
+        boolean interrupted = false;
         try {
-            if (checkService()) {
-                return feature == (sService.getSupportedFeatures() & feature);
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Failed to probe HIDL hal of feature 0x"
+                    + Integer.toHexString(feature), e.getCause());
+            // Let the next caller try again
+            synchronized (mCacheLock) {
+                if (mHIDLMap.get(feature) == task) {
+                    mHIDLMap.remove(feature);
+                }
+            }
+            return null;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private IBase probeHIDL(int feature) {
+        final IBase hal = getHIDLService(feature);
+        if (hal != null) {
+            mHIDLFeatures.getAndUpdate(features -> features | feature);
+            try {
+                hal.linkToDeath(mHalDeathRecipient, feature);
+            } catch (RemoteException e) {
+                invalidateHIDL(feature);
+            }
+        }
+        return hal;
+    }
+
+    /**
+     * Drops the hal of a feature, and the values read from it
+     */
+    private void invalidateHIDL(int feature) {
+        synchronized (mCacheLock) {
+            mHIDLMap.remove(feature);
+            mCacheGeneration++;
+            switch (feature) {
+                case FEATURE_COLOR_BALANCE:
+                    mColorBalanceRange = null;
+                    break;
+                case FEATURE_DISPLAY_COLOR_CALIBRATION:
+                    mDisplayColorCalibrationRange = null;
+                    break;
+                case FEATURE_DISPLAY_MODES:
+                    mDisplayModes = null;
+                    break;
+                case FEATURE_PICTURE_ADJUSTMENT:
+                    mPictureAdjustmentRanges = null;
+                    break;
             }
-        } catch (RemoteException e) {
         }
-        return false;
     }
 
     private IBase getHIDLService(int feature) {
@@ -333,17 +567,31 @@ public final class LineageHardwareManager {
         if (!feature.startsWith("FEATURE_")) {
             return false;
         }
-        try {
-            Field f = getClass().getField(feature);
-            if (f != null) {
-                return isSupported((int) f.get(null));
-            }
-        } catch (NoSuchFieldException | IllegalAccessException e) {
-            Log.d(TAG, e.getMessage(), e);
+        final Integer value = getFeaturesByName().get(feature);
+        if (value == null) {
+            Log.d(TAG, "Unknown feature " + feature);
+            return false;
         }
+        return isSupported(value);
+    }
 
-        return false;
+    private static synchronized ArrayMap<String, Integer> getFeaturesByName() {
+        if (sFeaturesByName == null) {
+            sFeaturesByName = new ArrayMap<String, Integer>();
+            for (Field f : LineageHardwareManager.class.getFields()) {
+                if (f.getName().startsWith("FEATURE_") && f.getType() == int.class
+                        && Modifier.isStatic(f.getModifiers())) {
+                    try {
+                        sFeaturesByName.put(f.getName(), f.getInt(null));
+                    } catch (IllegalAccessException e) {
+                        Log.d(TAG, e.getMessage(), e);
+                    }
+                }
+            }
+        }
+        return sFeaturesByName;
     }
+
     /**
      * Determine if the given feature is enabled or disabled.
      *
@@ -359,8 +607,8 @@ public final class LineageHardwareManager {
         }
 
         try {
-            if (isSupportedHIDL(feature)) {
-                IBase obj = mHIDLMap.get(feature);
+            IBase obj = getHIDL(feature);
+            if (obj != null) {
                 switch (feature) {
                     case FEATURE_ADAPTIVE_BACKLIGHT:
                         IAdaptiveBacklight adaptiveBacklight = (IAdaptiveBacklight) obj;
@@ -420,8 +668,8 @@ public final class LineageHardwareManager {
         }
 
         try {
-            if (isSupportedHIDL(feature)) {
-                IBase obj = mHIDLMap.get(feature);
+            IBase obj = getHIDL(feature);
+            if (obj != null) {
                 switch (feature) {
                     case FEATURE_ADAPTIVE_BACKLIGHT:
                         IAdaptiveBacklight adaptiveBacklight = (IAdaptiveBacklight) obj;
@@ -465,14 +713,6 @@ public final class LineageHardwareManager {
         return false;
     }
 
-    private int getArrayValue(int[] arr, int idx, int defaultValue) {
-        if (arr == null || arr.length <= idx) {
-            return defaultValue;
-        }
-
-        return arr[idx];
-    }
-
     /**
      * {@hide}
      */
@@ -496,9 +736,9 @@ public final class LineageHardwareManager {
 
     private int[] getDisplayColorCalibrationArray() {
         try {
-            if (isSupportedHIDL(FEATURE_DISPLAY_COLOR_CALIBRATION)) {
-                IDisplayColorCalibration displayColorCalibration = (IDisplayColorCalibration)
-                        mHIDLMap.get(FEATURE_DISPLAY_COLOR_CALIBRATION);
+            IDisplayColorCalibration displayColorCalibration =
+                    (IDisplayColorCalibration) getHIDL(FEATURE_DISPLAY_COLOR_CALIBRATION);
+            if (displayColorCalibration != null) {
                 return ArrayUtils.convertToIntArray(displayColorCalibration.getCalibration());
             } else if (checkService()) {
                 return sService.getDisplayColorCalibration();
@@ -523,34 +763,51 @@ public final class LineageHardwareManager {
      * @return The minimum value for all colors
      */
     public int getDisplayColorCalibrationMin() {
-        if (isSupportedHIDL(FEATURE_DISPLAY_COLOR_CALIBRATION)) {
-            IDisplayColorCalibration displayColorCalibration = (IDisplayColorCalibration)
-                    mHIDLMap.get(FEATURE_DISPLAY_COLOR_CALIBRATION);
-            try {
-                return displayColorCalibration.getMinValue();
-            } catch (RemoteException e) {
-                return 0;
-            }
-        }
-
-        return getArrayValue(getDisplayColorCalibrationArray(), COLOR_CALIBRATION_MIN_INDEX, 0);
+        final int[] range = getDisplayColorCalibrationRange();
+        return range != null ? range[0] : 0;
     }
 
     /**
      * @return The maximum value for all colors
      */
     public int getDisplayColorCalibrationMax() {
-        if (isSupportedHIDL(FEATURE_DISPLAY_COLOR_CALIBRATION)) {
-            IDisplayColorCalibration displayColorCalibration = (IDisplayColorCalibration)
-                    mHIDLMap.get(FEATURE_DISPLAY_COLOR_CALIBRATION);
+        final int[] range = getDisplayColorCalibrationRange();
+        return range != null ? range[1] : 0;
+    }
+
+    private int[] getDisplayColorCalibrationRange() {
+        final int generation;
+        synchronized (mCacheLock) {
+            if (mDisplayColorCalibrationRange != null) {
+                return mDisplayColorCalibrationRange;
+            }
+            generation = mCacheGeneration;
+        }
+        int[] range = null;
+        IDisplayColorCalibration displayColorCalibration =
+                (IDisplayColorCalibration) getHIDL(FEATURE_DISPLAY_COLOR_CALIBRATION);
+        if (displayColorCalibration != null) {
             try {
-                return displayColorCalibration.getMaxValue();
+                range = new int[] {
+                        displayColorCalibration.getMinValue(),
+                        displayColorCalibration.getMaxValue() };
             } catch (RemoteException e) {
-                return 0;
+            }
+        } else {
+            final int[] arr = getDisplayColorCalibrationArray();
+            if (arr != null && arr.length > COLOR_CALIBRATION_MAX_INDEX) {
+                range = new int[] {
+                        arr[COLOR_CALIBRATION_MIN_INDEX], arr[COLOR_CALIBRATION_MAX_INDEX] };
             }
         }
-
-        return getArrayValue(getDisplayColorCalibrationArray(), COLOR_CALIBRATION_MAX_INDEX, 0);
+        if (range != null) {
+            synchronized (mCacheLock) {
+                if (generation == mCacheGeneration) {
+                    mDisplayColorCalibrationRange = range;
+                }
+            }
+        }
+        return range;
     }
 
     /**
@@ -564,9 +821,9 @@ public final class LineageHardwareManager {
      */
     public boolean setDisplayColorCalibration(int[] rgb) {
         try {
-            if (isSupportedHIDL(FEATURE_DISPLAY_COLOR_CALIBRATION)) {
-                IDisplayColorCalibration displayColorCalibration = (IDisplayColorCalibration)
-                        mHIDLMap.get(FEATURE_DISPLAY_COLOR_CALIBRATION);
+            IDisplayColorCalibration displayColorCalibration =
+                    (IDisplayColorCalibration) getHIDL(FEATURE_DISPLAY_COLOR_CALIBRATION);
+            if (displayColorCalibration != null) {
                 return displayColorCalibration.setCalibration(
                        new ArrayList<Integer>(Arrays.asList(rgb[0], rgb[1], rgb[2])));
             } else if (checkService()) {
@@ -581,26 +838,38 @@ public final class LineageHardwareManager {
      * @return a list of available display modes on the devices
      */
     public DisplayMode[] getDisplayModes() {
+        final int generation;
+        synchronized (mCacheLock) {
+            if (mDisplayModes != null) {
+                return mDisplayModes.clone();
+            }
+            generation = mCacheGeneration;
+        }
         DisplayMode[] modes = null;
         try {
-            if (isSupportedHIDL(FEATURE_DISPLAY_MODES)) {
-                IDisplayModes displayModes = (IDisplayModes) mHIDLMap.get(FEATURE_DISPLAY_MODES);
+            IDisplayModes displayModes = (IDisplayModes) getHIDL(FEATURE_DISPLAY_MODES);
+            if (displayModes != null) {
                 modes = HIDLHelper.fromHIDLModes(displayModes.getDisplayModes());
             }
         } catch (RemoteException e) {
-        } finally {
-            if (modes == null) {
-                return null;
-            }
-            final ArrayList<DisplayMode> remapped = new ArrayList<DisplayMode>();
-            for (DisplayMode mode : modes) {
-                DisplayMode r = remapDisplayMode(mode);
-                if (r != null) {
-                    remapped.add(r);
-                }
+        }
+        if (modes == null) {
+            return null;
+        }
+        final ArrayList<DisplayMode> remapped = new ArrayList<DisplayMode>();
+        for (DisplayMode mode : modes) {
+            DisplayMode r = remapDisplayMode(mode);
+            if (r != null) {
+                remapped.add(r);
             }
-            return remapped.toArray(new DisplayMode[0]);
         }
+        final DisplayMode[] result = remapped.toArray(new DisplayMode[0]);
+        synchronized (mCacheLock) {
+            if (generation == mCacheGeneration) {
+                mDisplayModes = result;
+            }
+        }
+        return result.clone();
     }
 
     /**
@@ -609,8 +878,8 @@ public final class LineageHardwareManager {
     public DisplayMode getCurrentDisplayMode() {
         DisplayMode mode = null;
         try {
-            if (isSupportedHIDL(FEATURE_DISPLAY_MODES)) {
-                IDisplayModes displayModes = (IDisplayModes) mHIDLMap.get(FEATURE_DISPLAY_MODES);
+            IDisplayModes displayModes = (IDisplayModes) getHIDL(FEATURE_DISPLAY_MODES);
+            if (displayModes != null) {
                 mode = HIDLHelper.fromHIDLMode(displayModes.getCurrentDisplayMode());
             }
         } catch (RemoteException e) {
@@ -625,8 +894,8 @@ public final class LineageHardwareManager {
     public DisplayMode getDefaultDisplayMode() {
         DisplayMode mode = null;
         try {
-            if (isSupportedHIDL(FEATURE_DISPLAY_MODES)) {
-                IDisplayModes displayModes = (IDisplayModes) mHIDLMap.get(FEATURE_DISPLAY_MODES);
+            IDisplayModes displayModes = (IDisplayModes) getHIDL(FEATURE_DISPLAY_MODES);
+            if (displayModes != null) {
                 mode = HIDLHelper.fromHIDLMode(displayModes.getDefaultDisplayMode());
             }
         } catch (RemoteException e) {
@@ -640,8 +909,8 @@ public final class LineageHardwareManager {
      */
     public boolean setDisplayMode(DisplayMode mode, boolean makeDefault) {
         try {
-            if (isSupportedHIDL(FEATURE_DISPLAY_MODES)) {
-                IDisplayModes displayModes = (IDisplayModes) mHIDLMap.get(FEATURE_DISPLAY_MODES);
+            IDisplayModes displayModes = (IDisplayModes) getHIDL(FEATURE_DISPLAY_MODES);
+            if (displayModes != null) {
                 return displayModes.setDisplayMode(mode.id, makeDefault);
             }
         } catch (RemoteException e) {
@@ -666,10 +935,24 @@ public final class LineageHardwareManager {
      * @return the available range for color temperature adjustments
      */
     public Range<Integer> getColorBalanceRange() {
+        final int generation;
+        synchronized (mCacheLock) {
+            if (mColorBalanceRange != null) {
+                return mColorBalanceRange;
+            }
+            generation = mCacheGeneration;
+        }
         try {
-            if (isSupportedHIDL(FEATURE_COLOR_BALANCE)) {
-                IColorBalance colorBalance = (IColorBalance) mHIDLMap.get(FEATURE_COLOR_BALANCE);
-                return HIDLHelper.fromHIDLRange(colorBalance.getColorBalanceRange());
+            IColorBalance colorBalance = (IColorBalance) getHIDL(FEATURE_COLOR_BALANCE);
+            if (colorBalance != null) {
+                final Range<Integer> range =
+                        HIDLHelper.fromHIDLRange(colorBalance.getColorBalanceRange());
+                synchronized (mCacheLock) {
+                    if (generation == mCacheGeneration) {
+                        mColorBalanceRange = range;
+                    }
+                }
+                return range;
             }
         } catch (RemoteException e) {
         }
@@ -681,8 +964,8 @@ public final class LineageHardwareManager {
      */
     public int getColorBalance() {
         try {
-            if (isSupportedHIDL(FEATURE_COLOR_BALANCE)) {
-                IColorBalance colorBalance = (IColorBalance) mHIDLMap.get(FEATURE_COLOR_BALANCE);
+            IColorBalance colorBalance = (IColorBalance) getHIDL(FEATURE_COLOR_BALANCE);
+            if (colorBalance != null) {
                 return colorBalance.getColorBalance();
             }
         } catch (RemoteException e) {
@@ -699,8 +982,8 @@ public final class LineageHardwareManager {
      */
     public boolean setColorBalance(int value) {
         try {
-            if (isSupportedHIDL(FEATURE_COLOR_BALANCE)) {
-                IColorBalance colorBalance = (IColorBalance) mHIDLMap.get(FEATURE_COLOR_BALANCE);
+            IColorBalance colorBalance = (IColorBalance) getHIDL(FEATURE_COLOR_BALANCE);
+            if (colorBalance != null) {
                 return colorBalance.setColorBalance(value);
             }
         } catch (RemoteException e) {
@@ -715,9 +998,9 @@ public final class LineageHardwareManager {
      */
     public HSIC getPictureAdjustment() {
         try {
-            if (isSupportedHIDL(FEATURE_PICTURE_ADJUSTMENT)) {
-                IPictureAdjustment pictureAdjustment = (IPictureAdjustment)
-                        mHIDLMap.get(FEATURE_PICTURE_ADJUSTMENT);
+            IPictureAdjustment pictureAdjustment =
+                    (IPictureAdjustment) getHIDL(FEATURE_PICTURE_ADJUSTMENT);
+            if (pictureAdjustment != null) {
                 return HIDLHelper.fromHIDLHSIC(pictureAdjustment.getPictureAdjustment());
             }
         } catch (RemoteException e) {
@@ -732,9 +1015,9 @@ public final class LineageHardwareManager {
      */
     public HSIC getDefaultPictureAdjustment() {
         try {
-            if (isSupportedHIDL(FEATURE_PICTURE_ADJUSTMENT)) {
-                IPictureAdjustment pictureAdjustment = (IPictureAdjustment)
-                        mHIDLMap.get(FEATURE_PICTURE_ADJUSTMENT);
+            IPictureAdjustment pictureAdjustment =
+                    (IPictureAdjustment) getHIDL(FEATURE_PICTURE_ADJUSTMENT);
+            if (pictureAdjustment != null) {
                 return HIDLHelper.fromHIDLHSIC(pictureAdjustment.getDefaultPictureAdjustment());
             }
         } catch (RemoteException e) {
@@ -750,9 +1033,9 @@ public final class LineageHardwareManager {
      */
     public boolean setPictureAdjustment(final HSIC hsic) {
         try {
-            if (isSupportedHIDL(FEATURE_PICTURE_ADJUSTMENT)) {
-                IPictureAdjustment pictureAdjustment = (IPictureAdjustment)
-                        mHIDLMap.get(FEATURE_PICTURE_ADJUSTMENT);
+            IPictureAdjustment pictureAdjustment =
+                    (IPictureAdjustment) getHIDL(FEATURE_PICTURE_ADJUSTMENT);
+            if (pictureAdjustment != null) {
                 return pictureAdjustment.setPictureAdjustment(HIDLHelper.toHIDLHSIC(hsic));
             }
         } catch (RemoteException e) {
@@ -766,16 +1049,30 @@ public final class LineageHardwareManager {
      * @return range list
      */
     public List<Range<Float>> getPictureAdjustmentRanges() {
+        final int generation;
+        synchronized (mCacheLock) {
+            if (mPictureAdjustmentRanges != null) {
+                return mPictureAdjustmentRanges;
+            }
+            generation = mCacheGeneration;
+        }
         try {
-            if (isSupportedHIDL(FEATURE_PICTURE_ADJUSTMENT)) {
-                IPictureAdjustment pictureAdjustment = (IPictureAdjustment)
-                        mHIDLMap.get(FEATURE_PICTURE_ADJUSTMENT);
-                return Arrays.asList(
+            IPictureAdjustment pictureAdjustment =
+                    (IPictureAdjustment) getHIDL(FEATURE_PICTURE_ADJUSTMENT);
+            if (pictureAdjustment != null) {
+                final List<Range<Float>> ranges = Collections.unmodifiableList(Arrays.asList(
                         HIDLHelper.fromHIDLRange(pictureAdjustment.getHueRange()),
                         HIDLHelper.fromHIDLRange(pictureAdjustment.getSaturationRange()),
                         HIDLHelper.fromHIDLRange(pictureAdjustment.getIntensityRange()),
                         HIDLHelper.fromHIDLRange(pictureAdjustment.getContrastRange()),
-                        HIDLHelper.fromHIDLRange(pictureAdjustment.getSaturationThresholdRange()));
+                        HIDLHelper.fromHIDLRange(
+                                pictureAdjustment.getSaturationThresholdRange())));
+                synchronized (mCacheLock) {
+                    if (generation == mCacheGeneration) {
+                        mPictureAdjustmentRanges = ranges;
+                    }
+                }
+                return ranges;
             }
         } catch (RemoteException e) {
         }
@@ -787,9 +1084,9 @@ public final class LineageHardwareManager {
      */
     public TouchscreenGesture[] getTouchscreenGestures() {
         try {
-            if (isSupportedHIDL(FEATURE_TOUCHSCREEN_GESTURES)) {
-                ITouchscreenGesture touchscreenGesture = (ITouchscreenGesture)
-                        mHIDLMap.get(FEATURE_TOUCHSCREEN_GESTURES);
+            ITouchscreenGesture touchscreenGesture =
+                    (ITouchscreenGesture) getHIDL(FEATURE_TOUCHSCREEN_GESTURES);
+            if (touchscreenGesture != null) {
                 return HIDLHelper.fromHIDLGestures(touchscreenGesture.getSupportedGestures());
             }
         } catch (RemoteException e) {
@@ -803,9 +1100,9 @@ public final class LineageHardwareManager {
     public boolean setTouchscreenGestureEnabled(
             TouchscreenGesture gesture, boolean state) {
         try {
-            if (isSupportedHIDL(FEATURE_TOUCHSCREEN_GESTURES)) {
-                ITouchscreenGesture touchscreenGesture = (ITouchscreenGesture)
-                        mHIDLMap.get(FEATURE_TOUCHSCREEN_GESTURES);
+            ITouchscreenGesture touchscreenGesture =
+                    (ITouchscreenGesture) getHIDL(FEATURE_TOUCHSCREEN_GESTURES);
+            if (touchscreenGesture != null) {
                 return touchscreenGesture.setGestureEnabled(
                         HIDLHelper.toHIDLGesture(gesture), state);
             }
@@ -33,10 +33,13 @@ import android.util.AndroidException;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
+import android.util.MemoryIntArray;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.util.ArrayUtils;
 
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -99,6 +102,23 @@ public final class LineageSettings {
      */
     public static final String CALL_METHOD_USER_KEY = "_user";
 
+    /**
+     * @hide - Boolean argument extra to the fast-path call()-based GET requests asking the
+     * provider to return generation tracking data. If {@code true}, the shared memory region
+     * holding the generations is returned under this key as well.
+     */
+    public static final String CALL_METHOD_TRACK_GENERATION_KEY = "_track_generation";
+
+    /**
+     * @hide - Key of the generation slot index in call()-based GET results
+     */
+    public static final String CALL_METHOD_GENERATION_INDEX_KEY = "_generation_index";
+
+    /**
+     * @hide - Key of the current generation in call()-based GET results
+     */
+    public static final String CALL_METHOD_GENERATION_KEY = "_generation";
+
     /**
      * @hide - Private call() method on SettingsProvider to read from 'system' table.
      */
@@ -114,6 +134,32 @@ public final class LineageSettings {
      */
     public static final String CALL_METHOD_GET_GLOBAL = "GET_global";
 
+    /**
+     * @hide - Private call() method on SettingsProvider to read several keys from 'system' table.
+     */
+    public static final String CALL_METHOD_GET_SYSTEM_BATCH = "GET_BATCH_system";
+
+    /**
+     * @hide - Private call() method on SettingsProvider to read several keys from 'secure' table.
+     */
+    public static final String CALL_METHOD_GET_SECURE_BATCH = "GET_BATCH_secure";
+
+    /**
+     * @hide - Private call() method on SettingsProvider to read several keys from 'global' table.
+     */
+    public static final String CALL_METHOD_GET_GLOBAL_BATCH = "GET_BATCH_global";
+
+    /**
+     * @hide - String array argument extra holding the keys of a batched call()-based request
+     */
+    public static final String CALL_METHOD_NAMES_KEY = "_names";
+
+    /**
+     * @hide - Key of the string array holding the values of a batched call()-based GET result,
+     * or the values to write in a batched call()-based PUT request
+     */
+    public static final String CALL_METHOD_VALUES_KEY = "_values";
+
     /**
      * @hide - Private call() method to write to 'system' table
      */
@@ -129,6 +175,21 @@ public final class LineageSettings {
      */
     public static final String CALL_METHOD_PUT_GLOBAL= "PUT_global";
 
+    /**
+     * @hide - Private call() method to write several keys to 'system' table at once
+     */
+    public static final String CALL_METHOD_PUT_SYSTEM_BATCH = "PUT_BATCH_system";
+
+    /**
+     * @hide - Private call() method to write several keys to 'secure' table at once
+     */
+    public static final String CALL_METHOD_PUT_SECURE_BATCH = "PUT_BATCH_secure";
+
+    /**
+     * @hide - Private call() method to write several keys to 'global' table at once
+     */
+    public static final String CALL_METHOD_PUT_GLOBAL_BATCH = "PUT_BATCH_global";
+
     /**
      * @hide - Private call() method on LineageSettingsProvider to migrate Lineage settings
      */
@@ -171,6 +232,19 @@ public final class LineageSettings {
 
     // endregion
 
+    /**
+     * Prints the hit, miss and invalidation counters of the settings caches of the calling
+     * process, to find code that keeps going to the provider.
+     * @param pw The writer to print to.
+     * @hide
+     */
+    public static void dumpCacheStats(PrintWriter pw) {
+        pw.println("LineageSettings caches (pid " + android.os.Process.myPid() + "):");
+        System.sNameValueCache.dump(pw);
+        Secure.sNameValueCache.dump(pw);
+        Global.sNameValueCache.dump(pw);
+    }
+
     private static final class ContentProviderHolder {
         private final Object mLock = new Object();
 
@@ -193,6 +267,24 @@ public final class LineageSettings {
         }
     }
 
+    /**
+     * Generation of a single cached setting, as handed out by the provider. The entry is stale
+     * once the shared generation slot no longer matches the generation we read it at.
+     */
+    private static final class GenerationTracker {
+        private final int mIndex;
+        private final int mGeneration;
+
+        public GenerationTracker(int index, int generation) {
+            mIndex = index;
+            mGeneration = generation;
+        }
+
+        public boolean isGenerationChanged(MemoryIntArray array) throws IOException {
+            return array.get(mIndex) != mGeneration;
+        }
+    }
+
     // Thread-safe.
     private static class NameValueCache {
         private final String mVersionSystemProperty;
@@ -203,21 +295,40 @@ public final class LineageSettings {
                 new String[] { Settings.NameValueTable.VALUE };
         private static final String NAME_EQ_PLACEHOLDER = "name=?";
 
-        // Must synchronize on 'this' to access mValues and mValuesVersion.
+        // Must synchronize on 'this' to access mValues, mValuesVersion, mGenerationArray
+        // and mGenerationTrackers.
         private final HashMap<String, String> mValues = new HashMap<String, String>();
         private long mValuesVersion = 0;
 
+        // Per-key generations for entries fetched through the fast path. Entries without a
+        // tracker fall back to the table-wide version in mVersionSystemProperty.
+        private MemoryIntArray mGenerationArray;
+        private final ArrayMap<String, GenerationTracker> mGenerationTrackers =
+                new ArrayMap<String, GenerationTracker>();
+
+        // Debug counters, guarded by 'this'
+        private long mHits;
+        private long mMisses;
+        private long mInvalidations;
+        private long mOtherUserReads;
+        private long mQueryFallbacks;
+
         // The method we'll call (or null, to not use) on the provider
         // for the fast path of retrieving settings.
         private final String mCallGetCommand;
+        private final String mCallGetBatchCommand;
         private final String mCallSetCommand;
+        private final String mCallSetBatchCommand;
 
         public NameValueCache(String versionSystemProperty, Uri uri,
-                String getCommand, String setCommand, ContentProviderHolder providerHolder) {
+                String getCommand, String getBatchCommand, String setCommand,
+                String setBatchCommand, ContentProviderHolder providerHolder) {
             mVersionSystemProperty = versionSystemProperty;
             mUri = uri;
             mCallGetCommand = getCommand;
+            mCallGetBatchCommand = getBatchCommand;
             mCallSetCommand = setCommand;
+            mCallSetBatchCommand = setBatchCommand;
             mProviderHolder = providerHolder;
         }
 
@@ -245,38 +356,74 @@ public final class LineageSettings {
             return true;
         }
 
+        /**
+         * Puts several string name/value pairs into the content provider for the specified user.
+         * All values are validated before any of them is written, and observers are notified
+         * once for the whole batch. Like single puts, the values are persisted shortly after
+         * the call returns.
+         * @param cr The content resolver to use.
+         * @param values The name/value pairs to put into the content provider.
+         * @param userId The user id to use for the content provider.
+         * @return Whether the provider took the values, false if it could not be reached.
+         * @throws IllegalArgumentException if any of the values is invalid, in which case none
+         *     of them is written.
+         */
+        public boolean putStringsForUser(ContentResolver cr, Map<String, String> values,
+                final int userId) {
+            final String[] names = new String[values.size()];
+            final String[] newValues = new String[values.size()];
+            int i = 0;
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                names[i] = entry.getKey();
+                newValues[i] = entry.getValue();
+                i++;
+            }
+            try {
+                Bundle arg = new Bundle();
+                arg.putStringArray(CALL_METHOD_NAMES_KEY, names);
+                arg.putStringArray(CALL_METHOD_VALUES_KEY, newValues);
+                arg.putInt(CALL_METHOD_USER_KEY, userId);
+                IContentProvider cp = mProviderHolder.getProvider(cr);
+                cp.call(cr.getAttributionSource(),
+                        mProviderHolder.mUri.getAuthority(), mCallSetBatchCommand, null, arg);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Can't set keys " + values.keySet() + " in " + mUri, e);
+                return false;
+            }
+            return true;
+        }
+
         /**
          * Gets a string value with the specified name from the name/value cache if possible. If
          * not, it will use the content resolver and perform a query.
          * @param cr Content resolver to use if name/value cache does not contain the name or if
-         *           the cache version is older than the current version.
+         *           the cached entry is older than the current generation.
          * @param name The name of the key to search for.
          * @param userId The user id of the cache to look in.
          * @return The string value of the specified key.
          */
         public String getStringForUser(ContentResolver cr, String name, final int userId) {
             final boolean isSelf = (userId == UserHandle.myUserId());
+            boolean needsGenerationArray = false;
             if (isSelf) {
                 if (LOCAL_LOGV) Log.d(TAG, "get setting for self");
-                long newValuesVersion = SystemProperties.getLong(mVersionSystemProperty, 0);
 
                 // Our own user's settings data uses a client-side cache
                 synchronized (NameValueCache.this) {
-                    if (mValuesVersion != newValuesVersion) {
-                        if (LOCAL_LOGV || false) {
-                            Log.v(TAG, "invalidate [" + mUri.getLastPathSegment() + "]: current "
-                                    + newValuesVersion + " != cached " + mValuesVersion);
-                        }
-
-                        mValues.clear();
-                        mValuesVersion = newValuesVersion;
-                    } else if (mValues.containsKey(name)) {
-                        return mValues.get(name);  // Could be null, that's OK -- negative caching
+                    if (isCachedLocked(name)) {
+                        mHits++;
+                        // Could be null, that's OK -- negative caching
+                        return mValues.get(name);
                     }
+                    mMisses++;
+                    needsGenerationArray = mGenerationArray == null;
                 }
             } else {
                 if (LOCAL_LOGV) Log.v(TAG, "get setting for user " + userId
                         + " by user " + UserHandle.myUserId() + " so skipping cache");
+                synchronized (NameValueCache.this) {
+                    mOtherUserReads++;
+                }
             }
 
             IContentProvider cp = mProviderHolder.getProvider(cr);
@@ -287,19 +434,29 @@ public final class LineageSettings {
             // interface.
             if (mCallGetCommand != null) {
                 try {
-                    Bundle args = null;
+                    Bundle args = new Bundle();
                     if (!isSelf) {
-                        args = new Bundle();
                         args.putInt(CALL_METHOD_USER_KEY, userId);
+                    } else {
+                        args.putBoolean(CALL_METHOD_TRACK_GENERATION_KEY, needsGenerationArray);
                     }
                     Bundle b = cp.call(cr.getAttributionSource(),
                             mProviderHolder.mUri.getAuthority(), mCallGetCommand, name, args);
                     if (b != null) {
-                        String value = b.getPairValue();
+                        String value = b.getString(Settings.NameValueTable.VALUE);
                         // Don't update our cache for reads of other users' data
                         if (isSelf) {
                             synchronized (NameValueCache.this) {
                                 mValues.put(name, value);
+                                adoptGenerationArrayLocked(b);
+                                if (b.containsKey(CALL_METHOD_GENERATION_KEY)) {
+                                    trackGenerationLocked(name,
+                                            b.getInt(CALL_METHOD_GENERATION_INDEX_KEY),
+                                            b.getInt(CALL_METHOD_GENERATION_KEY));
+                                } else {
+                                    // No slot left; the key uses the table version instead
+                                    mGenerationTrackers.remove(name);
+                                }
                             }
                         } else {
                             if (LOCAL_LOGV) Log.i(TAG, "call-query of user " + userId
@@ -316,6 +473,9 @@ public final class LineageSettings {
                 }
             }
 
+            synchronized (NameValueCache.this) {
+                mQueryFallbacks++;
+            }
             Cursor c = null;
             try {
                 Bundle queryArgs = ContentResolver.createSqlQueryBundle(
@@ -343,6 +503,198 @@ public final class LineageSettings {
                 if (c != null) c.close();
             }
         }
+
+        /**
+         * Gets several string values with the specified names in a single round-trip. Values
+         * that are still fresh in the name/value cache are not requested again, and every value
+         * fetched for our own user, including missing ones, is added to the cache.
+         * @param cr Content resolver to use for the values not in the name/value cache.
+         * @param names The names of the keys to search for.
+         * @param userId The user id of the cache to look in.
+         * @return A map of each requested name to its value, or null if it is not set.
+         */
+        public Map<String, String> getStringsForUser(ContentResolver cr, String[] names,
+                final int userId) {
+            final boolean isSelf = (userId == UserHandle.myUserId());
+            final ArrayMap<String, String> result = new ArrayMap<String, String>(names.length);
+            final ArrayList<String> missing = new ArrayList<String>(names.length);
+            boolean needsGenerationArray = false;
+            if (isSelf) {
+                synchronized (NameValueCache.this) {
+                    for (String name : names) {
+                        if (isCachedLocked(name)) {
+                            result.put(name, mValues.get(name));
+                        } else {
+                            missing.add(name);
+                        }
+                    }
+                    mHits += result.size();
+                    mMisses += missing.size();
+                    needsGenerationArray = mGenerationArray == null;
+                }
+            } else {
+                missing.addAll(Arrays.asList(names));
+                synchronized (NameValueCache.this) {
+                    mOtherUserReads += names.length;
+                }
+            }
+
+            if (missing.isEmpty()) {
+                return result;
+            }
+
+            final String[] keys = missing.toArray(new String[missing.size()]);
+            if (mCallGetBatchCommand != null) {
+                try {
+                    Bundle args = new Bundle();
+                    args.putStringArray(CALL_METHOD_NAMES_KEY, keys);
+                    if (!isSelf) {
+                        args.putInt(CALL_METHOD_USER_KEY, userId);
+                    } else {
+                        args.putBoolean(CALL_METHOD_TRACK_GENERATION_KEY, needsGenerationArray);
+                    }
+                    IContentProvider cp = mProviderHolder.getProvider(cr);
+                    Bundle b = cp.call(cr.getAttributionSource(),
+                            mProviderHolder.mUri.getAuthority(), mCallGetBatchCommand, null,
+                            args);
+                    final String[] values = b == null
+                            ? null : b.getStringArray(CALL_METHOD_VALUES_KEY);
+                    if (values != null && values.length == keys.length) {
+                        for (int i = 0; i < keys.length; i++) {
+                            result.put(keys[i], values[i]);
+                        }
+                        if (isSelf) {
+                            synchronized (NameValueCache.this) {
+                                cacheBatchLocked(keys, values, b);
+                            }
+                        }
+                        return result;
+                    }
+                    // Older provider; fall through to single lookups below.
+                } catch (RemoteException e) {
+                    // Not supported by the remote side?  Fall through
+                    // to single lookups.
+                }
+            }
+
+            for (String key : keys) {
+                result.put(key, getStringForUser(cr, key, userId));
+            }
+            return result;
+        }
+
+        /**
+         * Prints the cache counters of this process.
+         * @param pw The writer to print to.
+         */
+        public synchronized void dump(PrintWriter pw) {
+            pw.println("  " + mUri.getLastPathSegment() + ": size=" + mValues.size()
+                    + " tracked=" + mGenerationTrackers.size()
+                    + " hits=" + mHits
+                    + " misses=" + mMisses
+                    + " invalidations=" + mInvalidations
+                    + " otherUserReads=" + mOtherUserReads
+                    + " queryFallbacks=" + mQueryFallbacks);
+        }
+
+        /**
+         * Checks whether the cache holds a fresh value for a key, dropping it if it went stale.
+         */
+        private boolean isCachedLocked(String name) {
+            final GenerationTracker tracker = mGenerationTrackers.get(name);
+            if (tracker != null) {
+                if (!isGenerationChangedLocked(tracker)) {
+                    return mValues.containsKey(name);
+                }
+                if (LOCAL_LOGV) {
+                    Log.v(TAG, "invalidate [" + mUri.getLastPathSegment() + "]: " + name);
+                }
+                mValues.remove(name);
+                mGenerationTrackers.remove(name);
+                mInvalidations++;
+                return false;
+            }
+
+            long newValuesVersion = SystemProperties.getLong(mVersionSystemProperty, 0);
+            if (mValuesVersion != newValuesVersion) {
+                if (LOCAL_LOGV || false) {
+                    Log.v(TAG, "invalidate [" + mUri.getLastPathSegment() + "]: current "
+                            + newValuesVersion + " != cached " + mValuesVersion);
+                }
+
+                // Entries with their own generation are unaffected
+                mValues.keySet().retainAll(mGenerationTrackers.keySet());
+                mValuesVersion = newValuesVersion;
+                mInvalidations++;
+                return false;
+            }
+            return mValues.containsKey(name);
+        }
+
+        private void cacheBatchLocked(String[] keys, String[] values, Bundle b) {
+            adoptGenerationArrayLocked(b);
+            final int[] indices = b.getIntArray(CALL_METHOD_GENERATION_INDEX_KEY);
+            final int[] generations = b.getIntArray(CALL_METHOD_GENERATION_KEY);
+            final boolean tracked = indices != null && generations != null
+                    && indices.length == keys.length && generations.length == keys.length;
+            for (int i = 0; i < keys.length; i++) {
+                mValues.put(keys[i], values[i]);
+                if (tracked) {
+                    trackGenerationLocked(keys[i], indices[i], generations[i]);
+                } else {
+                    mGenerationTrackers.remove(keys[i]);
+                }
+            }
+        }
+
+        private boolean isGenerationChangedLocked(GenerationTracker tracker) {
+            try {
+                return tracker.isGenerationChanged(mGenerationArray);
+            } catch (IOException e) {
+                Log.e(TAG, "Error reading generation for " + mUri, e);
+                destroyGenerationTrackingLocked();
+                return true;
+            }
+        }
+
+        private void adoptGenerationArrayLocked(Bundle b) {
+            final MemoryIntArray array = b.getParcelable(CALL_METHOD_TRACK_GENERATION_KEY);
+            if (array != null) {
+                if (mGenerationArray == null) {
+                    mGenerationArray = array;
+                } else {
+                    // Raced with another miss; the region is the same, keep the one we have.
+                    closeQuietly(array);
+                }
+            }
+        }
+
+        private void trackGenerationLocked(String name, int index, int generation) {
+            if (mGenerationArray == null || index < 0) {
+                mGenerationTrackers.remove(name);
+                return;
+            }
+            mGenerationTrackers.put(name, new GenerationTracker(index, generation));
+        }
+
+        private void destroyGenerationTrackingLocked() {
+            for (int i = mGenerationTrackers.size() - 1; i >= 0; i--) {
+                mValues.remove(mGenerationTrackers.keyAt(i));
+            }
+            mGenerationTrackers.clear();
+            if (mGenerationArray != null) {
+                closeQuietly(mGenerationArray);
+                mGenerationArray = null;
+            }
+        }
+
+        private static void closeQuietly(MemoryIntArray array) {
+            try {
+                array.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Error closing generation array", e);
+            }
+        }
     }
 
     // region Validators
@@ -355,16 +707,8 @@ public final class LineageSettings {
     private static final Validator sBooleanValidator =
             new DiscreteValueValidator(new String[] {"0", "1"});
 
-    private static final Validator sNonNegativeIntegerValidator = new Validator() {
-        @Override
-        public boolean validate(String value) {
-            try {
-                return Integer.parseInt(value) >= 0;
-            } catch (NumberFormatException e) {
-                return false;
-            }
-        }
-    };
+    private static final Validator sNonNegativeIntegerValidator =
+            new InclusiveIntegerRangeValidator(0, Integer.MAX_VALUE);
 
     private static final Validator sUriValidator = new Validator() {
         @Override
@@ -381,6 +725,9 @@ public final class LineageSettings {
     private static final Validator sColorValidator =
             new InclusiveIntegerRangeValidator(Integer.MIN_VALUE, Integer.MAX_VALUE);
 
+    private static final Validator sUnitFloatValidator =
+            new InclusiveFloatRangeValidator(0, 1);
+
     private static final Validator sSecondsFromMidnightValidator =
             new InclusiveIntegerRangeValidator(0, 86400);
 
@@ -399,15 +746,15 @@ public final class LineageSettings {
     };
 
     private static final class DiscreteValueValidator implements Validator {
-        private final String[] mValues;
+        private final ArraySet<String> mValues;
 
         public DiscreteValueValidator(String[] values) {
-            mValues = values;
+            mValues = new ArraySet<String>(Arrays.asList(values));
         }
 
         @Override
         public boolean validate(String value) {
-            return ArrayUtils.contains(mValues, value);
+            return mValues.contains(value);
         }
     }
 
@@ -422,12 +769,7 @@ public final class LineageSettings {
 
         @Override
         public boolean validate(String value) {
-            try {
-                final int intValue = Integer.parseInt(value);
-                return intValue >= mMin && intValue <= mMax;
-            } catch (NumberFormatException e) {
-                return false;
-            }
+            return isIntegerInRange(value, mMin, mMax);
         }
     }
 
@@ -442,48 +784,133 @@ public final class LineageSettings {
 
         @Override
         public boolean validate(String value) {
-            try {
-                final float floatValue = Float.parseFloat(value);
-                return floatValue >= mMin && floatValue <= mMax;
-            } catch (NumberFormatException e) {
-                return false;
-            }
+            return isFloatInRange(value, mMin, mMax);
         }
     }
 
     private static final class DelimitedListValidator implements Validator {
-        private final ArraySet<String> mValidValueSet;
+        private final String[] mValidValues;
         private final String mDelimiter;
         private final boolean mAllowEmptyList;
 
         public DelimitedListValidator(String[] validValues, String delimiter,
                                       boolean allowEmptyList) {
-            mValidValueSet = new ArraySet<String>(Arrays.asList(validValues));
+            mValidValues = validValues;
             mDelimiter = delimiter;
             mAllowEmptyList = allowEmptyList;
         }
 
         @Override
         public boolean validate(String value) {
-            ArraySet<String> values = new ArraySet<String>();
+            boolean hasItems = false;
             if (!TextUtils.isEmpty(value)) {
-                final String[] array = TextUtils.split(value, Pattern.quote(mDelimiter));
-                for (String item : array) {
-                    if (TextUtils.isEmpty(item)) {
-                        continue;
+                int start = 0;
+                while (start <= value.length()) {
+                    int end = value.indexOf(mDelimiter, start);
+                    if (end < 0) {
+                        end = value.length();
                     }
-                    values.add(item);
+                    if (end > start) {
+                        if (!isValidValue(value, start, end - start)) {
+                            return false;
+                        }
+                        hasItems = true;
+                    }
+                    start = end + mDelimiter.length();
                 }
             }
-            if (values.size() > 0) {
-                values.removeAll(mValidValueSet);
-                // values.size() will be non-zero if it contains any values not in
-                // mValidValueSet
-                return values.size() == 0;
-            } else if (mAllowEmptyList) {
-                return true;
+            return hasItems || mAllowEmptyList;
+        }
+
+        private boolean isValidValue(String value, int start, int length) {
+            for (String validValue : mValidValues) {
+                if (validValue.length() == length
+                        && value.regionMatches(start, validValue, 0, length)) {
+                    return true;
+                }
             }
+            return false;
+        }
+    }
 
+    /**
+     * Checks whether a string is a decimal integer within a range, accepting exactly what
+     * {@link Integer#parseInt(String)} accepts, without allocating or throwing.
+     */
+    private static boolean isIntegerInRange(String value, int min, int max) {
+        if (value == null || value.isEmpty()) {
+            return false;
+        }
+        final boolean negative = value.charAt(0) == '-';
+        int i = negative || value.charAt(0) == '+' ? 1 : 0;
+        if (i == value.length()) {
+            return false;
+        }
+        // Accumulate the magnitude in a long, where that of Integer.MIN_VALUE still fits
+        final long limit = negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE;
+        long result = 0;
+        for (; i < value.length(); i++) {
+            final int digit = Character.digit(value.charAt(i), 10);
+            if (digit < 0) {
+                return false;
+            }
+            result = result * 10 + digit;
+            if (result > limit) {
+                return false;
+            }
+        }
+        final long intValue = negative ? -result : result;
+        return intValue >= min && intValue <= max;
+    }
+
+    // Exact powers of ten as doubles
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14,
+            1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    /**
+     * Checks whether a string is a float within a range. Plain decimals such as "-0.75" are
+     * parsed without allocating or throwing; anything else is left to
+     * {@link Float#parseFloat(String)}.
+     */
+    private static boolean isFloatInRange(String value, float min, float max) {
+        if (value == null) {
+            return false;
+        }
+        final int length = value.length();
+        final boolean negative = length > 0 && value.charAt(0) == '-';
+        int i = negative || (length > 0 && value.charAt(0) == '+') ? 1 : 0;
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean seenPoint = false;
+        boolean simple = i < length;
+        for (; simple && i < length; i++) {
+            final char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if (seenPoint) {
+                    fractionDigits++;
+                }
+            } else if (c == '.' && !seenPoint) {
+                seenPoint = true;
+            } else {
+                simple = false;
+            }
+        }
+        // Small mantissas and powers of ten are exact doubles, so the division is correctly
+        // rounded; narrowing to float can only differ from parseFloat() on exact float ties.
+        if (simple && digits > 0 && digits <= 15 && fractionDigits < POWERS_OF_TEN.length) {
+            final double magnitude = mantissa / POWERS_OF_TEN[fractionDigits];
+            final float floatValue = (float) (negative ? -magnitude : magnitude);
+            return floatValue >= min && floatValue <= max;
+        }
+
+        try {
+            final float floatValue = Float.parseFloat(value);
+            return floatValue >= min && floatValue <= max;
+        } catch (NumberFormatException e) {
             return false;
         }
     }
@@ -504,7 +931,9 @@ public final class LineageSettings {
                 SYS_PROP_LINEAGE_SETTING_VERSION,
                 CONTENT_URI,
                 CALL_METHOD_GET_SYSTEM,
+                CALL_METHOD_GET_SYSTEM_BATCH,
                 CALL_METHOD_PUT_SYSTEM,
+                CALL_METHOD_PUT_SYSTEM_BATCH,
                 sProviderHolder);
 
         /** @hide */
@@ -596,6 +1025,30 @@ public final class LineageSettings {
             return sNameValueCache.getStringForUser(resolver, name, userId);
         }
 
+        /**
+         * Look up several names in the database with a single round-trip to the provider,
+         * warming the cache for all of them.
+         * @param resolver to access the database with
+         * @param userId the user to look the names up for
+         * @param names to look up in the table
+         * @return a map of each name to its value, or null if not present
+         * @hide
+         */
+        public static Map<String, String> getStringsForUser(ContentResolver resolver,
+                int userId, String... names) {
+            for (String name : names) {
+                if (MOVED_TO_SECURE.contains(name)) {
+                    // Rare enough that we don't bother batching these
+                    final ArrayMap<String, String> values = new ArrayMap<>(names.length);
+                    for (String n : names) {
+                        values.put(n, getStringForUser(resolver, n, userId));
+                    }
+                    return values;
+                }
+            }
+            return sNameValueCache.getStringsForUser(resolver, names, userId);
+        }
+
         /**
          * Store a name/value pair into the database.
          * @param resolver to access the database with
@@ -618,6 +1071,30 @@ public final class LineageSettings {
             return sNameValueCache.putStringForUser(resolver, name, value, userId);
         }
 
+        /**
+         * Store several name/value pairs into the database at once. All of the values are
+         * validated first, so either all of them are set, or none of them is.
+         * @param resolver to access the database with
+         * @param values the name/value pairs to store
+         * @param userId the user to store the values for
+         * @return true if the values were set, false if the settings provider could not be
+         *         reached or one of the names has moved to Secure
+         * @throws IllegalArgumentException if any of the values is invalid, in which case none
+         *         of them is set
+         * @hide
+         */
+        public static boolean putStringsForUser(ContentResolver resolver,
+                Map<String, String> values, int userId) {
+            for (String name : values.keySet()) {
+                if (MOVED_TO_SECURE.contains(name)) {
+                    Log.w(TAG, "Setting " + name + " has moved from LineageSettings.System"
+                            + " to LineageSettings.Secure, values are unchanged.");
+                    return false;
+                }
+            }
+            return sNameValueCache.putStringsForUser(resolver, values, userId);
+        }
+
         /**
          * Convenience function for retrieving a single settings value
          * as an integer.  Note that internally setting values are always
@@ -1579,11 +2056,10 @@ public final class LineageSettings {
                         if (colorAdjustment != null && colorAdjustment.length != 3) {
                             return false;
                         }
-                        Validator floatValidator = new InclusiveFloatRangeValidator(0, 1);
                         return colorAdjustment == null ||
-                                floatValidator.validate(colorAdjustment[0]) &&
-                                floatValidator.validate(colorAdjustment[1]) &&
-                                floatValidator.validate(colorAdjustment[2]);
+                                sUnitFloatValidator.validate(colorAdjustment[0]) &&
+                                sUnitFloatValidator.validate(colorAdjustment[1]) &&
+                                sUnitFloatValidator.validate(colorAdjustment[2]);
                     }
                 };
 
@@ -2255,6 +2731,13 @@ public final class LineageSettings {
             VALIDATORS.put(__MAGICAL_TEST_PASSING_ENABLER,
                     __MAGICAL_TEST_PASSING_ENABLER_VALIDATOR);
         };
+
+        /**
+         * {@link #VALIDATORS} compiled into a table with a collision-free hash, for the
+         * provider's write path.
+         * @hide
+         */
+        public static final ValidatorTable COMPILED_VALIDATORS = new ValidatorTable(VALIDATORS);
         // endregion
     }
 
@@ -2275,7 +2758,9 @@ public final class LineageSettings {
                 SYS_PROP_LINEAGE_SETTING_VERSION,
                 CONTENT_URI,
                 CALL_METHOD_GET_SECURE,
+                CALL_METHOD_GET_SECURE_BATCH,
                 CALL_METHOD_PUT_SECURE,
+                CALL_METHOD_PUT_SECURE_BATCH,
                 sProviderHolder);
 
         /** @hide */
@@ -2367,6 +2852,30 @@ public final class LineageSettings {
             return sNameValueCache.getStringForUser(resolver, name, userId);
         }
 
+        /**
+         * Look up several names in the database with a single round-trip to the provider,
+         * warming the cache for all of them.
+         * @param resolver to access the database with
+         * @param userId the user to look the names up for
+         * @param names to look up in the table
+         * @return a map of each name to its value, or null if not present
+         * @hide
+         */
+        public static Map<String, String> getStringsForUser(ContentResolver resolver,
+                int userId, String... names) {
+            for (String name : names) {
+                if (MOVED_TO_GLOBAL.contains(name)) {
+                    // Rare enough that we don't bother batching these
+                    final ArrayMap<String, String> values = new ArrayMap<>(names.length);
+                    for (String n : names) {
+                        values.put(n, getStringForUser(resolver, n, userId));
+                    }
+                    return values;
+                }
+            }
+            return sNameValueCache.getStringsForUser(resolver, names, userId);
+        }
+
         /**
          * Store a name/value pair into the database.
          * @param resolver to access the database with
@@ -2389,6 +2898,30 @@ public final class LineageSettings {
             return sNameValueCache.putStringForUser(resolver, name, value, userId);
         }
 
+        /**
+         * Store several name/value pairs into the database at once. All of the values are
+         * validated first, so either all of them are set, or none of them is.
+         * @param resolver to access the database with
+         * @param values the name/value pairs to store
+         * @param userId the user to store the values for
+         * @return true if the values were set, false if the settings provider could not be
+         *         reached or one of the names has moved to Global
+         * @throws IllegalArgumentException if any of the values is invalid, in which case none
+         *         of them is set
+         * @hide
+         */
+        public static boolean putStringsForUser(ContentResolver resolver,
+                Map<String, String> values, int userId) {
+            for (String name : values.keySet()) {
+                if (MOVED_TO_GLOBAL.contains(name)) {
+                    Log.w(TAG, "Setting " + name + " has moved from LineageSettings.Secure"
+                            + " to LineageSettings.Global, values are unchanged.");
+                    return false;
+                }
+            }
+            return sNameValueCache.putStringsForUser(resolver, values, userId);
+        }
+
         /**
          * Convenience function for retrieving a single settings value
          * as an integer.  Note that internally setting values are always
@@ -2989,6 +3522,13 @@ public final class LineageSettings {
             VALIDATORS.put(TRUST_WARNINGS, TRUST_WARNINGS_VALIDATOR);
             VALIDATORS.put(VOLUME_PANEL_ON_LEFT, VOLUME_PANEL_ON_LEFT_VALIDATOR);
         }
+
+        /**
+         * {@link #VALIDATORS} compiled into a table with a collision-free hash, for the
+         * provider's write path.
+         * @hide
+         */
+        public static final ValidatorTable COMPILED_VALIDATORS = new ValidatorTable(VALIDATORS);
     }
 
     /**
@@ -3008,7 +3548,9 @@ public final class LineageSettings {
                 SYS_PROP_LINEAGE_SETTING_VERSION,
                 CONTENT_URI,
                 CALL_METHOD_GET_GLOBAL,
+                CALL_METHOD_GET_GLOBAL_BATCH,
                 CALL_METHOD_PUT_GLOBAL,
+                CALL_METHOD_PUT_GLOBAL_BATCH,
                 sProviderHolder);
 
         // region Methods
@@ -3090,6 +3632,20 @@ public final class LineageSettings {
             return sNameValueCache.getStringForUser(resolver, name, userId);
         }
 
+        /**
+         * Look up several names in the database with a single round-trip to the provider,
+         * warming the cache for all of them.
+         * @param resolver to access the database with
+         * @param userId the user to look the names up for
+         * @param names to look up in the table
+         * @return a map of each name to its value, or null if not present
+         * @hide
+         */
+        public static Map<String, String> getStringsForUser(ContentResolver resolver,
+                int userId, String... names) {
+            return sNameValueCache.getStringsForUser(resolver, names, userId);
+        }
+
         /**
          * Store a name/value pair into the database.
          * @param resolver to access the database with
@@ -3107,6 +3663,23 @@ public final class LineageSettings {
             return sNameValueCache.putStringForUser(resolver, name, value, userId);
         }
 
+        /**
+         * Store several name/value pairs into the database at once. All of the values are
+         * validated first, so either all of them are set, or none of them is.
+         * @param resolver to access the database with
+         * @param values the name/value pairs to store
+         * @param userId the user to store the values for
+         * @return true if the values were set, false if the settings provider could not be
+         *         reached
+         * @throws IllegalArgumentException if any of the values is invalid, in which case none
+         *         of them is set
+         * @hide
+         */
+        public static boolean putStringsForUser(ContentResolver resolver,
+                Map<String, String> values, int userId) {
+            return sNameValueCache.putStringsForUser(resolver, values, userId);
+        }
+
         /**
          * Convenience function for retrieving a single settings value
          * as an integer.  Note that internally setting values are always
@@ -3439,5 +4012,12 @@ public final class LineageSettings {
             VALIDATORS.put(__MAGICAL_TEST_PASSING_ENABLER,
                     __MAGICAL_TEST_PASSING_ENABLER_VALIDATOR);
         };
+
+        /**
+         * {@link #VALIDATORS} compiled into a table with a collision-free hash, for the
+         * provider's write path.
+         * @hide
+         */
+        public static final ValidatorTable COMPILED_VALIDATORS = new ValidatorTable(VALIDATORS);
     }
 }
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lineageos.providers;
+
+import android.util.ArrayMap;
+
+import lineageos.providers.LineageSettings.Validator;
+
+import java.util.Map;
+
+/**
+ * Lookup table from setting name to {@link Validator} over a VALIDATORS map. The table size
+ * and hash seed are chosen so that every name gets a slot of its own, so a lookup is a single
+ * hash, one array read and one string comparison.
+ *
+ * The table only indexes the map, validators are always read from the map itself. Changes to
+ * the map are picked up: the table is compiled again when the map grows or shrinks, and names
+ * the table does not know are looked up in the map.
+ *
+ * @hide
+ */
+public final class ValidatorTable {
+
+    // Seeds to try per table size before doubling it
+    private static final int MAX_SEED_ATTEMPTS = 256;
+
+    // Only reached if two names share a hash code, which no seed can separate
+    private static final int MAX_CAPACITY = 1 << 16;
+
+    private final ArrayMap<String, Validator> mValidators;
+
+    private volatile Compiled mCompiled;
+
+    /**
+     * @param validators the map to index, which must be an {@link ArrayMap}
+     */
+    public ValidatorTable(Map<String, Validator> validators) {
+        if (!(validators instanceof ArrayMap)) {
+            throw new IllegalArgumentException("validators must be an ArrayMap");
+        }
+        mValidators = (ArrayMap<String, Validator>) validators;
+        mCompiled = new Compiled(mValidators);
+    }
+
+    /**
+     * @param name of the setting
+     * @return the validator for the setting, or null if it has none
+     */
+    public Validator get(String name) {
+        if (name == null) {
+            return null;
+        }
+        Compiled compiled = mCompiled;
+        if (compiled.mSize != mValidators.size()) {
+            compiled = recompile();
+        }
+        final int slot = slot(name.hashCode(), compiled.mSeed, compiled.mMask);
+        final String candidate = compiled.mNames[slot];
+        if (candidate != null && candidate.equals(name)) {
+            final int index = compiled.mIndices[slot];
+            // The name moves if another one was removed and a new one added since
+            if (index < mValidators.size() && name.equals(mValidators.keyAt(index))) {
+                return mValidators.valueAt(index);
+            }
+        }
+        return mValidators.get(name);
+    }
+
+    /**
+     * @return the number of settings in the table
+     */
+    public int size() {
+        return mValidators.size();
+    }
+
+    private synchronized Compiled recompile() {
+        Compiled compiled = mCompiled;
+        if (compiled.mSize != mValidators.size()) {
+            compiled = new Compiled(mValidators);
+            mCompiled = compiled;
+        }
+        return compiled;
+    }
+
+    private static final class Compiled {
+        final String[] mNames;
+        // Index of each name in the map
+        final int[] mIndices;
+        final int mSeed;
+        final int mMask;
+        final int mSize;
+
+        Compiled(ArrayMap<String, Validator> validators) {
+            final int size = validators.size();
+            final String[] names = new String[size];
+            for (int i = 0; i < size; i++) {
+                names[i] = validators.keyAt(i);
+            }
+
+            int capacity = Integer.highestOneBit(Math.max(1, size * 2 - 1)) << 1;
+            int seed = -1;
+            while (seed < 0) {
+                for (int attempt = 0; attempt < MAX_SEED_ATTEMPTS; attempt++) {
+                    if (isPerfect(names, attempt, capacity - 1)) {
+                        seed = attempt;
+                        break;
+                    }
+                }
+                if (seed < 0) {
+                    capacity <<= 1;
+                    if (capacity > MAX_CAPACITY) {
+                        throw new IllegalArgumentException("Setting names with equal hash codes");
+                    }
+                }
+            }
+
+            mSeed = seed;
+            mMask = capacity - 1;
+            mSize = size;
+            mNames = new String[capacity];
+            mIndices = new int[capacity];
+            for (int i = 0; i < size; i++) {
+                final int slot = slot(names[i].hashCode(), mSeed, mMask);
+                mNames[slot] = names[i];
+                mIndices[slot] = i;
+            }
+        }
+    }
+
+    private static boolean isPerfect(String[] names, int seed, int mask) {
+        final boolean[] used = new boolean[mask + 1];
+        for (String name : names) {
+            final int slot = slot(name.hashCode(), seed, mask);
+            if (used[slot]) {
+                return false;
+            }
+            used[slot] = true;
+        }
+        return true;
+    }
+
+    private static int slot(int hash, int seed, int mask) {
+        int h = (hash ^ seed) * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.internal.display;
+
+/**
+ * Tells whether the ambient light is above a threshold, from light sensor readings smoothed
+ * by a {@link LuxFilter}. Going back below takes the light to drop under the threshold less
+ * a hysteresis, and transitions can be kept a minimum time apart, so that flickering light
+ * does not switch back and forth.
+ *
+ * Not thread safe.
+ */
+public final class AmbientLuxTracker {
+
+    public static final int LOW = 0;
+    public static final int HIGH = 1;
+
+    private final float mThresholdLux;
+    private final float mHysteresisLux;
+    private final LuxFilter mFilter;
+    private final long mMinTransitionInterval;
+
+    private int mState = LOW;
+    private float mAmbientLux = 0.0f;
+
+    private boolean mTransitioned;
+    private long mLastTransitionTime;
+    // Whether a transition is held back by the minimum interval
+    private boolean mPending;
+
+    /**
+     * @param minTransitionInterval the shortest time between two transitions, in
+     *        milliseconds, or 0 for no limit
+     */
+    public AmbientLuxTracker(float thresholdLux, float hysteresisLux, LuxFilter filter,
+            long minTransitionInterval) {
+        mThresholdLux = thresholdLux;
+        mHysteresisLux = hysteresisLux;
+        mFilter = filter;
+        mMinTransitionInterval = minTransitionInterval;
+    }
+
+    /**
+     * Adds a reading of the light sensor.
+     * @param now the time of the reading, in milliseconds
+     * @return true if the state changed
+     */
+    public boolean addSample(long now, float lux) {
+        mAmbientLux = mFilter.filter(now, lux);
+        return evaluate(now);
+    }
+
+    /**
+     * Checks the state again without a new reading, see {@link #getUpdateDelay}.
+     * @param now the current time, in milliseconds
+     * @return true if the state changed
+     */
+    public boolean update(long now) {
+        mAmbientLux = mFilter.hold(now);
+        return evaluate(now);
+    }
+
+    /**
+     * @param now the current time, in milliseconds
+     * @param settleDelay how long to wait for the filter to settle further, in milliseconds
+     * @return how long until {@link #update} should be called, or -1 if the state cannot
+     *         change before the next reading
+     */
+    public long getUpdateDelay(long now, long settleDelay) {
+        long delay = mFilter.isSettled() ? -1 : settleDelay;
+        if (mPending) {
+            final long pendingDelay =
+                    Math.max(0, mLastTransitionTime + mMinTransitionInterval - now);
+            delay = delay < 0 ? pendingDelay : Math.min(delay, pendingDelay);
+        }
+        return delay;
+    }
+
+    /**
+     * @return {@link #LOW} or {@link #HIGH}
+     */
+    public int getState() {
+        return mState;
+    }
+
+    public float getAmbientLux() {
+        return mAmbientLux;
+    }
+
+    /**
+     * Drops all readings and goes back to {@link #LOW}.
+     */
+    public void reset() {
+        mFilter.reset();
+        mState = LOW;
+        mAmbientLux = 0.0f;
+        mTransitioned = false;
+        mPending = false;
+    }
+
+    private boolean evaluate(long now) {
+        final float threshold = mState == HIGH
+                ? mThresholdLux - mHysteresisLux : mThresholdLux;
+        final int state = mAmbientLux >= threshold ? HIGH : LOW;
+        if (state == mState) {
+            mPending = false;
+            return false;
+        }
+        if (mTransitioned && now - mLastTransitionTime < mMinTransitionInterval) {
+            mPending = true;
+            return false;
+        }
+        mState = state;
+        mTransitioned = true;
+        mLastTransitionTime = now;
+        mPending = false;
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "state=" + mState + " ambientLux=" + mAmbientLux + " pending=" + mPending
+                + " filter=" + mFilter;
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.internal.display;
+
+import android.animation.TimeInterpolator;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.animation.AccelerateDecelerateInterpolator;
+import android.view.animation.LinearInterpolator;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Runs the display color transitions of LiveDisplay on one frame loop: the display color
+ * calibration, whose target merges the manual RGB adjustment and the color temperature, and
+ * the color balance.
+ *
+ * A new target takes over from wherever the running transition got to. Values are
+ * quantized to the integer steps of the hardware, a frame whose output does not change
+ * writes nothing, and each channel is written at most once per
+ * {@link #MIN_WRITE_INTERVAL_MS}.
+ */
+public final class ColorTransitionEngine {
+    private static final String TAG = "ColorTransitionEngine";
+    private static final boolean DEBUG = Log.isLoggable("LiveDisplay", Log.DEBUG);
+
+    /** Calibration source for the manual RGB adjustment */
+    public static final int SOURCE_MANUAL = 0;
+    /** Calibration source for the color temperature */
+    public static final int SOURCE_TEMPERATURE = 1;
+    private static final int SOURCE_COUNT = 2;
+
+    /** The shortest time between two writes of a channel, about 30 per second */
+    public static final long MIN_WRITE_INTERVAL_MS = 33;
+
+    // Transition time for a change of the full calibration range, or of one balance step
+    private static final float CALIBRATION_FULL_RANGE_MS = 750f;
+    private static final float BALANCE_STEP_MS = 5f;
+
+    /**
+     * The hardware written by the transitions, as exposed by LineageHardwareManager.
+     */
+    public interface Hardware {
+        /** @return the red, green and blue calibration, or null if unavailable */
+        int[] getDisplayColorCalibration();
+
+        boolean setDisplayColorCalibration(int[] rgb);
+
+        int getColorBalance();
+
+        boolean setColorBalance(int value);
+    }
+
+    private abstract static class Channel {
+        final String mName;
+        final TimeInterpolator mInterpolator;
+        final float mStepMs;
+
+        final int[] mTarget;
+        final float[] mFrom;
+        // Position of the transition, in hardware steps
+        final float[] mValue;
+        // Last output written to, or read from, the hardware
+        final int[] mOutput;
+        final int[] mNext;
+
+        boolean mHasTarget;
+        boolean mRunning;
+        long mStartTime;
+        long mDuration;
+
+        // Statistics of the last transition
+        int mFrames;
+        int mWrites;
+
+        Channel(String name, int size, TimeInterpolator interpolator, float stepMs) {
+            mName = name;
+            mInterpolator = interpolator;
+            mStepMs = stepMs;
+            mTarget = new int[size];
+            mFrom = new float[size];
+            mValue = new float[size];
+            mOutput = new int[size];
+            mNext = new int[size];
+        }
+
+        abstract boolean read(int[] out);
+
+        abstract boolean write(int[] value);
+
+        /**
+         * @param start whether to start a transition, or only keep the target for later
+         * @return true if a transition started
+         */
+        boolean setTarget(int[] target, boolean start, long now) {
+            if (mHasTarget && Arrays.equals(target, mTarget)
+                    && (mRunning || !start)) {
+                return false;
+            }
+            System.arraycopy(target, 0, mTarget, 0, mTarget.length);
+            mHasTarget = true;
+            return start && start(now);
+        }
+
+        /**
+         * Starts a transition to the target, from the running one or from the hardware.
+         * @return true if a transition started
+         */
+        boolean start(long now) {
+            if (!mHasTarget) {
+                return false;
+            }
+            if (!mRunning) {
+                if (!read(mOutput)) {
+                    return false;
+                }
+                if (Arrays.equals(mOutput, mTarget)) {
+                    return false;
+                }
+                for (int i = 0; i < mValue.length; i++) {
+                    mValue[i] = mOutput[i];
+                }
+            }
+            float maxDelta = 0;
+            for (int i = 0; i < mValue.length; i++) {
+                mFrom[i] = mValue[i];
+                maxDelta = Math.max(maxDelta, Math.abs(mTarget[i] - mFrom[i]));
+            }
+            mDuration = (long) (maxDelta * mStepMs);
+            mStartTime = now;
+            mRunning = true;
+            mFrames = 0;
+            mWrites = 0;
+            if (DEBUG) {
+                Log.d(TAG, mName + " from " + Arrays.toString(mFrom) + " to "
+                        + Arrays.toString(mTarget) + " in " + mDuration + "ms");
+            }
+            return true;
+        }
+
+        /**
+         * @return true if the transition needs another frame
+         */
+        boolean doFrame(long now) {
+            if (!mRunning) {
+                return false;
+            }
+            final float t = mDuration > 0
+                    ? Math.min(1f, (now - mStartTime) / (float) mDuration) : 1f;
+            final float fraction = mInterpolator.getInterpolation(t);
+            boolean changed = false;
+            for (int i = 0; i < mValue.length; i++) {
+                mValue[i] = mFrom[i] + (mTarget[i] - mFrom[i]) * fraction;
+                mNext[i] = t >= 1f ? mTarget[i] : (int) mValue[i];
+                changed |= mNext[i] != mOutput[i];
+            }
+            mFrames++;
+            if (changed && write(mNext)) {
+                System.arraycopy(mNext, 0, mOutput, 0, mOutput.length);
+                mWrites++;
+            }
+            if (t >= 1f) {
+                mRunning = false;
+                if (DEBUG) {
+                    Log.d(TAG, mName + " done: " + mWrites + " writes in " + mFrames
+                            + " frames");
+                }
+            }
+            return mRunning;
+        }
+
+        void dump(PrintWriter pw) {
+            pw.println("    " + mName + ": target=" + Arrays.toString(mTarget)
+                    + " output=" + Arrays.toString(mOutput) + " running=" + mRunning
+                    + " last transition=" + mWrites + " writes/" + mFrames + " frames");
+        }
+    }
+
+    private final Object mLock = new Object();
+    private final Handler mHandler;
+    private final Hardware mHardware;
+    private final int mMaxColor;
+
+    // Null when the calibration is not supported
+    private final Channel mCalibration;
+    private final Channel mBalance;
+
+    // Calibration sources, multiplied together for the target
+    private final float[][] mSources = new float[SOURCE_COUNT][];
+    private final int[] mCalibrationTarget = new int[3];
+    private final int[] mBalanceTarget = new int[1];
+
+    private boolean mEnabled = true;
+    private boolean mFrameScheduled;
+
+    /**
+     * @param handler the handler running the transitions
+     * @param maxColor the maximum calibration value, or 0 if calibration is not supported
+     */
+    public ColorTransitionEngine(Handler handler, Hardware hardware, int maxColor) {
+        mHandler = handler;
+        mHardware = hardware;
+        mMaxColor = maxColor;
+        for (int i = 0; i < SOURCE_COUNT; i++) {
+            mSources[i] = new float[] { 1.0f, 1.0f, 1.0f };
+        }
+        mCalibration = maxColor <= 0 ? null : new Channel("calibration", 3,
+                new LinearInterpolator(), CALIBRATION_FULL_RANGE_MS / maxColor) {
+            @Override
+            boolean read(int[] out) {
+                final int[] rgb = mHardware.getDisplayColorCalibration();
+                if (rgb == null || rgb.length < 3) {
+                    return false;
+                }
+                System.arraycopy(rgb, 0, out, 0, 3);
+                return true;
+            }
+
+            @Override
+            boolean write(int[] value) {
+                return mHardware.setDisplayColorCalibration(value);
+            }
+        };
+        mBalance = new Channel("balance", 1,
+                new AccelerateDecelerateInterpolator(), BALANCE_STEP_MS) {
+            @Override
+            boolean read(int[] out) {
+                out[0] = mHardware.getColorBalance();
+                return true;
+            }
+
+            @Override
+            boolean write(int[] value) {
+                return mHardware.setColorBalance(value[0]);
+            }
+        };
+    }
+
+    /**
+     * Sets one of the sources of the calibration, and moves to the merged target.
+     * @param source {@link #SOURCE_MANUAL} or {@link #SOURCE_TEMPERATURE}
+     * @param rgb the red, green and blue factors, from 0 to 1
+     */
+    public void setCalibrationSource(int source, float[] rgb) {
+        synchronized (mLock) {
+            System.arraycopy(rgb, 0, mSources[source], 0, 3);
+            updateCalibrationTargetLocked();
+        }
+    }
+
+    /**
+     * Sets both sources of the calibration at once, and moves to the merged target, so that
+     * the transition does not head for a target merged from only one of them first.
+     * @param manual the factors of {@link #SOURCE_MANUAL}, from 0 to 1
+     * @param temperature the factors of {@link #SOURCE_TEMPERATURE}, from 0 to 1
+     */
+    public void setCalibrationSources(float[] manual, float[] temperature) {
+        synchronized (mLock) {
+            System.arraycopy(manual, 0, mSources[SOURCE_MANUAL], 0, 3);
+            System.arraycopy(temperature, 0, mSources[SOURCE_TEMPERATURE], 0, 3);
+            updateCalibrationTargetLocked();
+        }
+    }
+
+    private void updateCalibrationTargetLocked() {
+        if (mCalibration == null) {
+            return;
+        }
+        for (int i = 0; i < 3; i++) {
+            float value = 1.0f;
+            for (float[] s : mSources) {
+                value *= s[i];
+            }
+            mCalibrationTarget[i] =
+                    (int) (Math.max(0.0f, Math.min(1.0f, value)) * mMaxColor);
+        }
+        final long now = SystemClock.uptimeMillis();
+        if (mCalibration.setTarget(mCalibrationTarget, mEnabled, now)) {
+            scheduleFrameLocked(now);
+        }
+    }
+
+    /**
+     * Moves the color balance to a value.
+     */
+    public void setColorBalance(int balance) {
+        synchronized (mLock) {
+            mBalanceTarget[0] = balance;
+            final long now = SystemClock.uptimeMillis();
+            if (mBalance.setTarget(mBalanceTarget, mEnabled, now)) {
+                scheduleFrameLocked(now);
+            }
+        }
+    }
+
+    /**
+     * Stops or resumes writing the hardware, typically with the screen state. Targets set
+     * while disabled are moved to once enabled again, from the values in the hardware.
+     */
+    public void setEnabled(boolean enabled) {
+        synchronized (mLock) {
+            if (mEnabled == enabled) {
+                return;
+            }
+            mEnabled = enabled;
+            if (!enabled) {
+                if (mCalibration != null) {
+                    mCalibration.mRunning = false;
+                }
+                mBalance.mRunning = false;
+                mHandler.removeCallbacks(mFrame);
+                mFrameScheduled = false;
+                return;
+            }
+            final long now = SystemClock.uptimeMillis();
+            boolean started = mBalance.start(now);
+            if (mCalibration != null) {
+                started |= mCalibration.start(now);
+            }
+            if (started) {
+                scheduleFrameLocked(now);
+            }
+        }
+    }
+
+    /**
+     * @return true while a transition is running
+     */
+    public boolean isRunning() {
+        synchronized (mLock) {
+            return mBalance.mRunning || (mCalibration != null && mCalibration.mRunning);
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("  ColorTransitionEngine State:");
+            pw.println("    mEnabled=" + mEnabled);
+            if (mCalibration != null) {
+                mCalibration.dump(pw);
+            }
+            mBalance.dump(pw);
+        }
+    }
+
+    private void scheduleFrameLocked(long now) {
+        if (!mFrameScheduled) {
+            mFrameScheduled = true;
+            mHandler.postAtTime(mFrame, now + MIN_WRITE_INTERVAL_MS);
+        }
+    }
+
+    private final Runnable mFrame = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                mFrameScheduled = false;
+                final long now = SystemClock.uptimeMillis();
+                boolean running = mBalance.doFrame(now);
+                if (mCalibration != null) {
+                    running |= mCalibration.doFrame(now);
+                }
+                if (running) {
+                    scheduleFrameLocked(now);
+                }
+            }
+        }
+    };
+}
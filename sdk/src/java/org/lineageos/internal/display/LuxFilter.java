@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.internal.display;
+
+/**
+ * A stage smoothing the readings of a light sensor. Implementations are in
+ * {@link LuxFilters}, and are not thread safe.
+ */
+public interface LuxFilter {
+
+    /**
+     * Adds a reading.
+     * @param now the time of the reading, in milliseconds
+     * @return the filtered lux
+     */
+    float filter(long now, float lux);
+
+    /**
+     * Gets the filtered lux at a later time without a new reading. Light sensors report
+     * on change, so the light is taken to have stayed at the last reading.
+     * @param now the current time, in milliseconds
+     * @return the filtered lux
+     */
+    float hold(long now);
+
+    /**
+     * @return true if holding on would not change the filtered lux any more
+     */
+    boolean isSettled();
+
+    /**
+     * Drops all readings.
+     */
+    void reset();
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.internal.display;
+
+import java.util.Arrays;
+
+/**
+ * The {@link LuxFilter}s, which are chained with {@link #pipeline}. None of them allocates
+ * once created.
+ */
+public final class LuxFilters {
+
+    /** The shortest time between two transitions of outdoor mode */
+    public static final long OUTDOOR_MIN_TRANSITION_INTERVAL_MS = 10000;
+
+    // Time constants of the outdoor mode pipeline: going outdoor is picked up fast, coming
+    // back in is only believed once the light has stayed low for a while, like the
+    // brightening and darkening debounce of the framework's auto brightness
+    private static final long OUTDOOR_BRIGHTENING_MS = 2000;
+    private static final long OUTDOOR_DARKENING_MS = 8000;
+    // Readings the median of the outdoor mode pipeline is taken over
+    private static final int OUTDOOR_MEDIAN_SIZE = 5;
+
+    private LuxFilters() {
+    }
+
+    /**
+     * @return the mean of the readings of a sliding time window, see {@link LuxRingBuffer}
+     */
+    public static LuxFilter movingAverage(long period, int capacity) {
+        return new MovingAverage(period, capacity);
+    }
+
+    /**
+     * @return the median of the last readings, which drops short spikes and dips entirely
+     */
+    public static LuxFilter slidingMedian(int size) {
+        return new SlidingMedian(size);
+    }
+
+    /**
+     * @return an exponential moving average, weighing the readings by the time between them
+     */
+    public static LuxFilter ema(long timeConstant) {
+        return new ExponentialAverage(timeConstant, timeConstant);
+    }
+
+    /**
+     * @return an exponential moving average which follows the light faster one way than the
+     *         other
+     */
+    public static LuxFilter dualTimeConstant(long brighteningTimeConstant,
+            long darkeningTimeConstant) {
+        return new ExponentialAverage(brighteningTimeConstant, darkeningTimeConstant);
+    }
+
+    /**
+     * @return the filters applied one after the other
+     */
+    public static LuxFilter pipeline(LuxFilter... stages) {
+        if (stages.length == 0) {
+            throw new IllegalArgumentException("A pipeline needs at least one stage");
+        }
+        return stages.length == 1 ? stages[0] : new Pipeline(stages);
+    }
+
+    /**
+     * @return the pipeline of outdoor mode: a median dropping flicker, such as from the
+     *         shade of trees passing by, the mean over the window and a slow darkening
+     * @param period the length of the window, in milliseconds
+     * @param rate the rate of the light sensor, in milliseconds
+     */
+    public static LuxFilter outdoorMode(long period, long rate) {
+        return pipeline(
+                slidingMedian(OUTDOOR_MEDIAN_SIZE),
+                movingAverage(period, LuxRingBuffer.capacityFor(period, rate)),
+                dualTimeConstant(OUTDOOR_BRIGHTENING_MS, OUTDOOR_DARKENING_MS));
+    }
+
+    private static final class MovingAverage implements LuxFilter {
+        private final LuxRingBuffer mRing;
+        private long mLastTime;
+
+        MovingAverage(long period, int capacity) {
+            mRing = new LuxRingBuffer(period, capacity);
+        }
+
+        @Override
+        public float filter(long now, float lux) {
+            mRing.add(now, lux);
+            mLastTime = now;
+            return mRing.getAverage(now);
+        }
+
+        @Override
+        public float hold(long now) {
+            mLastTime = now;
+            return mRing.getAverage(now);
+        }
+
+        @Override
+        public boolean isSettled() {
+            return mRing.size() <= 1;
+        }
+
+        @Override
+        public void reset() {
+            mRing.clear();
+        }
+
+        @Override
+        public String toString() {
+            return "MovingAverage(" + mRing.toString(mLastTime) + ")";
+        }
+    }
+
+    private static final class SlidingMedian implements LuxFilter {
+        // The last readings, oldest first from mNext once full
+        private final float[] mWindow;
+        private final float[] mSorted;
+        private int mNext;
+        private int mCount;
+        private float mMedian;
+
+        SlidingMedian(int size) {
+            if (size < 1) {
+                throw new IllegalArgumentException("size must be positive: " + size);
+            }
+            mWindow = new float[size];
+            mSorted = new float[size];
+        }
+
+        @Override
+        public float filter(long now, float lux) {
+            mWindow[mNext] = lux;
+            mNext = (mNext + 1) % mWindow.length;
+            if (mCount < mWindow.length) {
+                mCount++;
+            }
+            System.arraycopy(mWindow, 0, mSorted, 0, mCount);
+            Arrays.sort(mSorted, 0, mCount);
+            final int middle = mCount / 2;
+            mMedian = (mCount & 1) == 1
+                    ? mSorted[middle] : (mSorted[middle - 1] + mSorted[middle]) / 2;
+            return mMedian;
+        }
+
+        @Override
+        public float hold(long now) {
+            return mMedian;
+        }
+
+        @Override
+        public boolean isSettled() {
+            return true;
+        }
+
+        @Override
+        public void reset() {
+            mNext = 0;
+            mCount = 0;
+            mMedian = 0.0f;
+        }
+
+        @Override
+        public String toString() {
+            return "SlidingMedian(size=" + mWindow.length + " median=" + mMedian + ")";
+        }
+    }
+
+    private static final class ExponentialAverage implements LuxFilter {
+        // Close enough to the input to stop updating, relative and in lux
+        private static final float SETTLED_FRACTION = 0.01f;
+        private static final float SETTLED_LUX = 1.0f;
+
+        private final long mBrighteningTimeConstant;
+        private final long mDarkeningTimeConstant;
+
+        private boolean mHasValue;
+        private float mValue;
+        private float mInput;
+        private long mLastTime;
+
+        ExponentialAverage(long brighteningTimeConstant, long darkeningTimeConstant) {
+            mBrighteningTimeConstant = brighteningTimeConstant;
+            mDarkeningTimeConstant = darkeningTimeConstant;
+        }
+
+        @Override
+        public float filter(long now, float lux) {
+            if (!mHasValue) {
+                mHasValue = true;
+                mValue = lux;
+                mInput = lux;
+                mLastTime = now;
+                return mValue;
+            }
+            // Weighed by the time since the last reading
+            mInput = lux;
+            return hold(now);
+        }
+
+        @Override
+        public float hold(long now) {
+            if (!mHasValue) {
+                return 0.0f;
+            }
+            final long elapsed = now - mLastTime;
+            if (elapsed > 0) {
+                final long timeConstant = mInput > mValue
+                        ? mBrighteningTimeConstant : mDarkeningTimeConstant;
+                final float alpha = timeConstant <= 0
+                        ? 1.0f : (float) (1.0 - Math.exp(-(double) elapsed / timeConstant));
+                mValue += alpha * (mInput - mValue);
+                mLastTime = now;
+            }
+            return mValue;
+        }
+
+        @Override
+        public boolean isSettled() {
+            return !mHasValue || Math.abs(mInput - mValue)
+                    <= Math.max(SETTLED_LUX, Math.abs(mInput) * SETTLED_FRACTION);
+        }
+
+        @Override
+        public void reset() {
+            mHasValue = false;
+            mValue = 0.0f;
+            mInput = 0.0f;
+        }
+
+        @Override
+        public String toString() {
+            return "ExponentialAverage(brightening=" + mBrighteningTimeConstant
+                    + "ms darkening=" + mDarkeningTimeConstant + "ms value=" + mValue + ")";
+        }
+    }
+
+    private static final class Pipeline implements LuxFilter {
+        private final LuxFilter[] mStages;
+        // The input last given to each stage
+        private final float[] mInputs;
+
+        Pipeline(LuxFilter[] stages) {
+            mStages = stages.clone();
+            mInputs = new float[stages.length];
+        }
+
+        @Override
+        public float filter(long now, float lux) {
+            float value = lux;
+            for (int i = 0; i < mStages.length; i++) {
+                mInputs[i] = value;
+                value = mStages[i].filter(now, value);
+            }
+            return value;
+        }
+
+        @Override
+        public float hold(long now) {
+            float value = mStages[0].hold(now);
+            for (int i = 1; i < mStages.length; i++) {
+                // A stage whose input moved on gets it as a reading, the others hold
+                if (value != mInputs[i]) {
+                    mInputs[i] = value;
+                    value = mStages[i].filter(now, value);
+                } else {
+                    value = mStages[i].hold(now);
+                }
+            }
+            return value;
+        }
+
+        @Override
+        public boolean isSettled() {
+            for (LuxFilter stage : mStages) {
+                if (!stage.isSettled()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void reset() {
+            for (LuxFilter stage : mStages) {
+                stage.reset();
+            }
+            Arrays.fill(mInputs, 0.0f);
+        }
+
+        @Override
+        public String toString() {
+            return Arrays.toString(mStages);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.internal.display;
+
+/**
+ * Calculates a simple moving average based on a fixed duration sliding window. This is
+ * useful for dampening erratic sensors and rolling thru transitional periods smoothly.
+ *
+ * The samples are kept in fixed size arrays used as a ring, with a running total, so that
+ * adding a sample or expiring old ones allocates nothing. When the ring is full the oldest
+ * sample makes room for the new one, which only happens when samples come in much faster
+ * than the capacity was sized for.
+ *
+ * Not thread safe.
+ */
+public final class LuxRingBuffer {
+
+    private final long mPeriod;
+
+    private final long[] mTimestamps;
+    private final float[] mValues;
+
+    // Index of the oldest sample, and number of samples
+    private int mHead;
+    private int mSize;
+
+    private double mTotal;
+
+    /**
+     * @param period the length of the window, in milliseconds
+     * @param capacity the most samples kept
+     */
+    public LuxRingBuffer(long period, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        mPeriod = period;
+        mTimestamps = new long[capacity];
+        mValues = new float[capacity];
+    }
+
+    /**
+     * @return a capacity large enough for a window of samples coming in at a rate, with
+     *         room for a sensor reporting up to four times faster than asked to
+     */
+    public static int capacityFor(long period, long rate) {
+        return (int) Math.max(16, period / Math.max(1, rate) * 4 + 2);
+    }
+
+    /**
+     * Adds a sample. Zero samples are skipped while the window is empty.
+     * @param now the time of the sample, in milliseconds
+     */
+    public void add(long now, float sample) {
+        expire(now);
+        if (sample == 0.0f && mSize == 0) {
+            return;
+        }
+        if (mSize == mTimestamps.length) {
+            removeOldest();
+        }
+        final int tail = index(mSize);
+        mTimestamps[tail] = now;
+        mValues[tail] = sample;
+        mSize++;
+        mTotal += sample;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int capacity() {
+        return mTimestamps.length;
+    }
+
+    /**
+     * @param now the current time, in milliseconds
+     * @return the average of the samples in the window, or 0 if there are none
+     */
+    public float getAverage(long now) {
+        expire(now);
+        return mSize == 0 ? 0.0f : (float) (mTotal / mSize);
+    }
+
+    public void clear() {
+        mHead = 0;
+        mSize = 0;
+        mTotal = 0.0;
+    }
+
+    /**
+     * Drops the samples older than the window, always keeping the last one.
+     */
+    private void expire(long now) {
+        while (mSize > 1 && (now - mTimestamps[mHead]) > mPeriod) {
+            removeOldest();
+        }
+    }
+
+    private void removeOldest() {
+        mTotal -= mValues[mHead];
+        mHead = index(1);
+        mSize--;
+        if (mSize == 0) {
+            // Do not let rounding errors of the running total build up
+            mTotal = 0.0;
+        }
+    }
+
+    private int index(int offset) {
+        final int i = mHead + offset;
+        return i >= mTimestamps.length ? i - mTimestamps.length : i;
+    }
+
+    /**
+     * @param now the current time, in milliseconds
+     */
+    public String toString(long now) {
+        final float average = getAverage(now);
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mSize; i++) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            final int index = index(i);
+            sb.append("(").append(mValues[index]).append(", ")
+                    .append(mTimestamps[index]).append(")");
+        }
+        return "average=" + average + " length=" + mSize + " capacity=" + capacity()
+                + " mRing=[" + sb.toString() + "]";
+    }
+}
@@ -32,6 +32,8 @@ import android.util.Slog;
 
 import lineageos.providers.LineageSettings;
 
+import java.util.Map;
+
 public final class LineageBatteryLights {
     private final String TAG = "LineageBatteryLights";
     private final boolean DEBUG = false;
@@ -266,48 +268,63 @@ public final class LineageBatteryLights {
             ContentResolver resolver = mContext.getContentResolver();
             Resources res = mContext.getResources();
 
-            // Battery light enabled
-            mLightEnabled = LineageSettings.System.getIntForUser(resolver,
+            // Fetch all of our settings in a single round-trip
+            final Map<String, String> values = LineageSettings.System.getStringsForUser(
+                    resolver, UserHandle.USER_CURRENT,
                     LineageSettings.System.BATTERY_LIGHT_ENABLED,
-                    1, UserHandle.USER_CURRENT) != 0;
+                    LineageSettings.System.BATTERY_LIGHT_FULL_CHARGE_DISABLED,
+                    LineageSettings.System.BATTERY_LIGHT_PULSE,
+                    LineageSettings.System.BATTERY_LIGHT_LOW_COLOR,
+                    LineageSettings.System.BATTERY_LIGHT_MEDIUM_COLOR,
+                    LineageSettings.System.BATTERY_LIGHT_FULL_COLOR,
+                    LineageSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL,
+                    LineageSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL_ZEN);
+
+            // Battery light enabled
+            mLightEnabled = getInt(values,
+                    LineageSettings.System.BATTERY_LIGHT_ENABLED, 1) != 0;
 
             // Battery light disabled if fully charged
-            mLightFullChargeDisabled = LineageSettings.System.getIntForUser(resolver,
-                    LineageSettings.System.BATTERY_LIGHT_FULL_CHARGE_DISABLED,
-                    1, UserHandle.USER_CURRENT) != 0;
+            mLightFullChargeDisabled = getInt(values,
+                    LineageSettings.System.BATTERY_LIGHT_FULL_CHARGE_DISABLED, 1) != 0;
 
             // Low battery pulse
-            mLedPulseEnabled = LineageSettings.System.getIntForUser(resolver,
-                    LineageSettings.System.BATTERY_LIGHT_PULSE,
-                    1, UserHandle.USER_CURRENT) != 0;
+            mLedPulseEnabled = getInt(values,
+                    LineageSettings.System.BATTERY_LIGHT_PULSE, 1) != 0;
 
             // Light colors
-            mBatteryLowARGB = LineageSettings.System.getIntForUser(resolver,
+            mBatteryLowARGB = getInt(values,
                     LineageSettings.System.BATTERY_LIGHT_LOW_COLOR, res.getInteger(
-                    com.android.internal.R.integer.config_notificationsBatteryLowARGB),
-                    UserHandle.USER_CURRENT);
-            mBatteryMediumARGB = LineageSettings.System.getIntForUser(resolver,
+                    com.android.internal.R.integer.config_notificationsBatteryLowARGB));
+            mBatteryMediumARGB = getInt(values,
                     LineageSettings.System.BATTERY_LIGHT_MEDIUM_COLOR, res.getInteger(
-                    com.android.internal.R.integer.config_notificationsBatteryMediumARGB),
-                    UserHandle.USER_CURRENT);
-            mBatteryFullARGB = LineageSettings.System.getIntForUser(resolver,
+                    com.android.internal.R.integer.config_notificationsBatteryMediumARGB));
+            mBatteryFullARGB = getInt(values,
                     LineageSettings.System.BATTERY_LIGHT_FULL_COLOR, res.getInteger(
-                    com.android.internal.R.integer.config_notificationsBatteryFullARGB),
-                    UserHandle.USER_CURRENT);
+                    com.android.internal.R.integer.config_notificationsBatteryFullARGB));
 
             // Adustable battery LED brightness.
             if (mCanAdjustBrightness) {
                 // Battery brightness level
-                mBatteryBrightnessLevel = LineageSettings.System.getIntForUser(resolver,
+                mBatteryBrightnessLevel = getInt(values,
                         LineageSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL,
-                        LedValues.LIGHT_BRIGHTNESS_MAXIMUM, UserHandle.USER_CURRENT);
+                        LedValues.LIGHT_BRIGHTNESS_MAXIMUM);
                 // Battery brightness level in Do Not Disturb mode
-                mBatteryBrightnessZenLevel = LineageSettings.System.getIntForUser(resolver,
+                mBatteryBrightnessZenLevel = getInt(values,
                         LineageSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL_ZEN,
-                        LedValues.LIGHT_BRIGHTNESS_MAXIMUM, UserHandle.USER_CURRENT);
+                        LedValues.LIGHT_BRIGHTNESS_MAXIMUM);
             }
 
             mLedUpdater.update();
         }
+
+        private int getInt(Map<String, String> values, String name, int def) {
+            final String value = values.get(name);
+            try {
+                return value != null ? Integer.parseInt(value) : def;
+            } catch (NumberFormatException e) {
+                return def;
+            }
+        }
     }
 }
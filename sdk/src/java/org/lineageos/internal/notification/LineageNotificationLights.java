@@ -427,61 +427,79 @@ public final class LineageNotificationLights {
                     Settings.System.NOTIFICATION_LIGHT_PULSE,
                     0, UserHandle.USER_CURRENT) != 0;
 
-            // Automatically pick a color for LED if not set
-            mAutoGenerateNotificationColor = LineageSettings.System.getIntForUser(resolver,
+            // Fetch all of our settings in a single round-trip
+            final Map<String, String> values = LineageSettings.System.getStringsForUser(
+                    resolver, UserHandle.USER_CURRENT,
                     LineageSettings.System.NOTIFICATION_LIGHT_COLOR_AUTO,
-                    1, UserHandle.USER_CURRENT) != 0;
+                    LineageSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_COLOR,
+                    LineageSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_ON,
+                    LineageSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_OFF,
+                    LineageSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE,
+                    LineageSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES,
+                    LineageSettings.System.NOTIFICATION_LIGHT_SCREEN_ON,
+                    LineageSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL,
+                    LineageSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL_ZEN,
+                    LineageSettings.System.ZEN_ALLOW_LIGHTS);
+
+            // Automatically pick a color for LED if not set
+            mAutoGenerateNotificationColor = getInt(values,
+                    LineageSettings.System.NOTIFICATION_LIGHT_COLOR_AUTO, 1) != 0;
 
             // LED default color
-            mDefaultNotificationColor = LineageSettings.System.getIntForUser(resolver,
+            mDefaultNotificationColor = getInt(values,
                     LineageSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_COLOR,
-                    mDefaultNotificationColor, UserHandle.USER_CURRENT);
+                    mDefaultNotificationColor);
 
             // LED default on MS
-            mDefaultNotificationLedOn = LineageSettings.System.getIntForUser(resolver,
+            mDefaultNotificationLedOn = getInt(values,
                     LineageSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_ON,
-                    mDefaultNotificationLedOn, UserHandle.USER_CURRENT);
+                    mDefaultNotificationLedOn);
 
             // LED default off MS
-            mDefaultNotificationLedOff = LineageSettings.System.getIntForUser(resolver,
+            mDefaultNotificationLedOff = getInt(values,
                     LineageSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_OFF,
-                    mDefaultNotificationLedOff, UserHandle.USER_CURRENT);
+                    mDefaultNotificationLedOff);
 
             // LED generated notification colors
             mGeneratedPackageLedColors.clear();
 
             // LED custom notification colors
             mNotificationPulseCustomLedValues.clear();
-            if (LineageSettings.System.getIntForUser(resolver,
-                    LineageSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE, 0,
-                    UserHandle.USER_CURRENT) != 0) {
-                parseNotificationPulseCustomValuesString(LineageSettings.System.getStringForUser(
-                        resolver, LineageSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES,
-                        UserHandle.USER_CURRENT));
+            if (getInt(values,
+                    LineageSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE, 0) != 0) {
+                parseNotificationPulseCustomValuesString(values.get(
+                        LineageSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES));
             }
 
             // Notification lights with screen on
-            mScreenOnEnabled = (LineageSettings.System.getIntForUser(resolver,
-                    LineageSettings.System.NOTIFICATION_LIGHT_SCREEN_ON, 0,
-                    UserHandle.USER_CURRENT) != 0);
+            mScreenOnEnabled = (getInt(values,
+                    LineageSettings.System.NOTIFICATION_LIGHT_SCREEN_ON, 0) != 0);
 
             // Adustable notification LED brightness.
             if (mCanAdjustBrightness) {
                 // Normal brightness.
-                mNotificationLedBrightnessLevel = LineageSettings.System.getIntForUser(resolver,
+                mNotificationLedBrightnessLevel = getInt(values,
                         LineageSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL,
-                        LedValues.LIGHT_BRIGHTNESS_MAXIMUM, UserHandle.USER_CURRENT);
+                        LedValues.LIGHT_BRIGHTNESS_MAXIMUM);
                 // Brightness in Do Not Disturb mode.
-                mNotificationLedBrightnessLevelZen = LineageSettings.System.getIntForUser(
-                        resolver, LineageSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL_ZEN,
-                        LedValues.LIGHT_BRIGHTNESS_MAXIMUM, UserHandle.USER_CURRENT);
+                mNotificationLedBrightnessLevelZen = getInt(values,
+                        LineageSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL_ZEN,
+                        LedValues.LIGHT_BRIGHTNESS_MAXIMUM);
             }
 
-            mZenAllowLights = LineageSettings.System.getIntForUser(resolver,
-                        LineageSettings.System.ZEN_ALLOW_LIGHTS,
-                        1, UserHandle.USER_CURRENT) != 0;
+            mZenAllowLights = getInt(values,
+                        LineageSettings.System.ZEN_ALLOW_LIGHTS, 1) != 0;
 
             mLedUpdater.update();
         }
+
+        private int getInt(Map<String, String> values, String name, int def) {
+            final String value = values.get(name);
+            try {
+                return value != null ? Integer.parseInt(value) : def;
+            } catch (NumberFormatException e) {
+                return def;
+            }
+        }
     }
 }
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.internal.profiles;
+
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * The profile state in parcel form, kept next to the profiles XML so that the XML does not
+ * have to be parsed at boot.
+ *
+ * The snapshot is stamped with the {@link BaseStamp} of the XML file it was written with, and
+ * with a string naming everything else it depends on, such as the build and the locale. It is
+ * only read back while both still match, so an XML file replaced from outside, a new build or
+ * a locale change fall back to the XML. The payload carries its own checksum.
+ *
+ * The snapshot is mapped to check its header and checksum. The payload is then handed out as a
+ * byte array, since that is what {@link android.os.Parcel#unmarshall} takes.
+ */
+public final class ProfileSnapshotFile {
+    private static final String TAG = "ProfileSnapshotFile";
+    private static final boolean LOCAL_LOGV = false;
+
+    private static final int SNAPSHOT_MAGIC = 0x4c505253; // "LPRS"
+    private static final int SNAPSHOT_VERSION = 2;
+
+    // Far above any real profile state, only there to catch corrupt lengths
+    private static final int MAX_SNAPSHOT_BYTES = 64 << 20;
+
+    /**
+     * Identifies a version of a file by its length and modification time, so that it can be
+     * checked without reading the file. The file is only ever replaced as a whole, and not
+     * more than once a millisecond.
+     */
+    public static final class BaseStamp {
+        private final long mLength;
+        private final long mModified;
+
+        private BaseStamp(long length, long modified) {
+            mLength = length;
+            mModified = modified;
+        }
+
+        /**
+         * @return the stamp of the file as it is on disk, all zeroes if it does not exist
+         */
+        public static BaseStamp of(File file) {
+            return new BaseStamp(file.length(), file.lastModified());
+        }
+
+        public static BaseStamp read(DataInput in) throws IOException {
+            return new BaseStamp(in.readLong(), in.readLong());
+        }
+
+        public void write(DataOutput out) throws IOException {
+            out.writeLong(mLength);
+            out.writeLong(mModified);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof BaseStamp)) {
+                return false;
+            }
+            final BaseStamp other = (BaseStamp) o;
+            return mLength == other.mLength && mModified == other.mModified;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(mLength) * 31 + Long.hashCode(mModified);
+        }
+
+        @Override
+        public String toString() {
+            return "BaseStamp{length=" + mLength + ", modified=" + mModified + "}";
+        }
+    }
+
+    private final File mBaseFile;
+    private final AtomicFile mFile;
+
+    /**
+     * @param baseFile the profiles XML the snapshot is kept for
+     * @param file the file holding the snapshot
+     */
+    public ProfileSnapshotFile(File baseFile, File file) {
+        mBaseFile = baseFile;
+        mFile = new AtomicFile(file);
+    }
+
+    /**
+     * Reads the snapshot of the state in the base file.
+     * @param stamp the string naming what else the snapshot depends on, as it is now
+     * @return the parcelled state, or null if there is no snapshot matching the base file
+     */
+    public byte[] read(String stamp) {
+        try (FileChannel channel = FileChannel.open(mFile.getBaseFile().toPath(),
+                StandardOpenOption.READ)) {
+            final MappedByteBuffer map =
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (map.getInt() != SNAPSHOT_MAGIC || map.getInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Unknown snapshot format");
+            }
+            final byte[] snapshotStamp = new byte[map.getInt()];
+            map.get(snapshotStamp);
+            if (!stamp.equals(new String(snapshotStamp, StandardCharsets.UTF_8))) {
+                if (LOCAL_LOGV) Log.v(TAG, "Snapshot was written for another build or locale");
+                return null;
+            }
+            final BaseStamp baseStamp = BaseStamp.of(mBaseFile);
+            if (map.getLong() != baseStamp.mLength || map.getLong() != baseStamp.mModified) {
+                if (LOCAL_LOGV) Log.v(TAG, "Snapshot does not match " + mBaseFile);
+                return null;
+            }
+            final int length = map.getInt();
+            final int payloadCrc = map.getInt();
+            if (length < 0 || length > MAX_SNAPSHOT_BYTES || length != map.remaining()) {
+                throw new IOException("Corrupt snapshot length " + length);
+            }
+            final ByteBuffer payload = map.slice();
+            final CRC32 crc = new CRC32();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != payloadCrc) {
+                throw new IOException("Corrupt snapshot");
+            }
+            final byte[] bytes = new byte[length];
+            payload.get(bytes);
+            return bytes;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Ignoring unreadable " + mFile.getBaseFile(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the snapshot of the state just written to the base file. A snapshot that fails
+     * to be written is deleted, the state is then loaded from the base file.
+     * @param snapshot the parcelled state
+     * @param stamp the string naming what else the snapshot depends on
+     */
+    public void write(byte[] snapshot, String stamp) {
+        final BaseStamp baseStamp = BaseStamp.of(mBaseFile);
+        final CRC32 crc = new CRC32();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(snapshot.length + 64);
+        final DataOutputStream data = new DataOutputStream(bytes);
+        FileOutputStream out = null;
+        try {
+            final byte[] stampBytes = stamp.getBytes(StandardCharsets.UTF_8);
+            data.writeInt(SNAPSHOT_MAGIC);
+            data.writeInt(SNAPSHOT_VERSION);
+            data.writeInt(stampBytes.length);
+            data.write(stampBytes);
+            baseStamp.write(data);
+            crc.update(snapshot);
+            data.writeInt(snapshot.length);
+            data.writeInt((int) crc.getValue());
+            data.write(snapshot);
+
+            out = mFile.startWrite();
+            bytes.writeTo(out);
+            mFile.finishWrite(out);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + mFile.getBaseFile(), e);
+            mFile.failWrite(out);
+            mFile.delete();
+        }
+    }
+
+    /**
+     * Deletes the snapshot, e.g. when the state could not be parcelled.
+     */
+    public void delete() {
+        mFile.delete();
+    }
+}
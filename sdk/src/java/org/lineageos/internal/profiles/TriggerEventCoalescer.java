@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.internal.profiles;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Collects the events of profile triggers over a short window, so that a burst of them,
+ * such as a Bluetooth device dropping and coming back or Wi-Fi roaming between access
+ * points, is evaluated once instead of switching profiles back and forth.
+ *
+ * The events of each trigger within a window are collapsed to their net effect. As every
+ * event is a transition, the trigger was in the opposite of its first state before the
+ * window; when the last state differs from the first the trigger ended up where it started,
+ * and no event is kept at all. Otherwise only the last event is kept.
+ *
+ * Not thread safe, the events are added and drained on one thread.
+ */
+public final class TriggerEventCoalescer {
+
+    /** Default length of a window, from its first event */
+    public static final long DEFAULT_WINDOW_MS = 1000;
+
+    /**
+     * The net event of a trigger over a window.
+     */
+    public static final class Event {
+        /** The {@link lineageos.app.Profile.TriggerType} */
+        public final int mType;
+        public final String mId;
+        /** The last {@link lineageos.app.Profile.TriggerState} of the window */
+        public int mState;
+        // The first state of the window
+        int mFirstState;
+
+        Event(int type, String id, int state) {
+            mType = type;
+            mId = id;
+            mState = state;
+            mFirstState = state;
+        }
+    }
+
+    // Pending events by trigger, in the order they first came in; a window holds few
+    private final ArrayList<Event> mPending = new ArrayList<>();
+
+    /**
+     * Adds the event of a trigger to the current window.
+     * @param type the {@link lineageos.app.Profile.TriggerType}
+     * @param id the trigger id
+     * @param state the {@link lineageos.app.Profile.TriggerState}
+     * @return true if the event opened a new window, which is to be drained once it ends
+     */
+    public boolean add(int type, String id, int state) {
+        final boolean opened = mPending.isEmpty();
+        for (int i = 0; i < mPending.size(); i++) {
+            final Event event = mPending.get(i);
+            if (event.mType == type && Objects.equals(event.mId, id)) {
+                event.mState = state;
+                return opened;
+            }
+        }
+        mPending.add(new Event(type, id, state));
+        return opened;
+    }
+
+    /**
+     * @return true if a window is open
+     */
+    public boolean hasPending() {
+        return !mPending.isEmpty();
+    }
+
+    /**
+     * Ends the current window.
+     * @return the net events of the window, in the order their triggers first fired
+     */
+    public List<Event> drain() {
+        final ArrayList<Event> events = new ArrayList<>(mPending.size());
+        for (int i = 0; i < mPending.size(); i++) {
+            final Event event = mPending.get(i);
+            if (event.mState == event.mFirstState) {
+                events.add(event);
+            }
+        }
+        mPending.clear();
+        return events;
+    }
+
+    /**
+     * Drops the events of the current window.
+     */
+    public void clear() {
+        mPending.clear();
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.internal.profiles;
+
+import lineageos.app.Profile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Works out what the net events of a {@link TriggerEventCoalescer} window do to the profiles.
+ * The last profile reacting to one of the events is selected. The active profile is told
+ * about the other events it has a trigger for, in any state, and if no profile is selected it
+ * is applied again when one of them is the state its trigger reacts to.
+ *
+ * Holds no state, the profiles are found through a {@link TriggerLookup}.
+ */
+public final class TriggerWindowEvaluator {
+
+    /**
+     * A profile reacting to a trigger.
+     */
+    public static final class Entry {
+        /** The {@link Profile.TriggerType} */
+        public final int mType;
+        public final String mId;
+        public final UUID mProfileUuid;
+        /** The {@link Profile.TriggerState} the profile reacts to, possibly DISABLED */
+        public final int mState;
+
+        public Entry(int type, String id, UUID profileUuid, int state) {
+            mType = type;
+            mId = id;
+            mProfileUuid = profileUuid;
+            mState = state;
+        }
+    }
+
+    /**
+     * Finds the profiles reacting to a trigger.
+     */
+    public interface TriggerLookup {
+        /**
+         * @param type the {@link Profile.TriggerType}
+         * @param id the trigger id, such as an SSID or Bluetooth address
+         * @return the matching entries, never null
+         */
+        Entry[] get(int type, String id);
+    }
+
+    /**
+     * What a window does to the profiles.
+     */
+    public static final class Result {
+        /** The profile to select, or null to keep the active one */
+        public UUID mNewProfileUuid;
+        /** The events to broadcast as trigger state changes of the active profile */
+        public final ArrayList<TriggerEventCoalescer.Event> mBroadcasts = new ArrayList<>();
+        /** Whether to apply the active profile again, if no profile is selected */
+        public boolean mReapplyActiveProfile;
+    }
+
+    private TriggerWindowEvaluator() {
+    }
+
+    /**
+     * @param events the net events of the window, see {@link TriggerEventCoalescer#drain()}
+     * @param activeProfileUuid the UUID of the active profile
+     * @param lookup finds the profiles reacting to each event
+     */
+    public static Result evaluate(List<TriggerEventCoalescer.Event> events,
+            UUID activeProfileUuid, TriggerLookup lookup) {
+        final Result result = new Result();
+        for (TriggerEventCoalescer.Event event : events) {
+            boolean newProfileSelected = false;
+            // Null unless the active profile has a trigger for the event, in any state
+            Entry activeEntry = null;
+            for (Entry entry : lookup.get(event.mType, event.mId)) {
+                if (activeProfileUuid.equals(entry.mProfileUuid)) {
+                    activeEntry = entry;
+                    continue;
+                }
+                // Disabled triggers never match, events are connects and disconnects
+                if (event.mState == entry.mState) {
+                    result.mNewProfileUuid = entry.mProfileUuid;
+                    newProfileSelected = true;
+                }
+            }
+
+            //Does the active profile actually cares about this event?
+            if (!newProfileSelected && activeEntry != null) {
+                result.mBroadcasts.add(event);
+                if ((event.mState == Profile.TriggerState.ON_CONNECT
+                        && activeEntry.mState == Profile.TriggerState.ON_CONNECT) ||
+                        (event.mState == Profile.TriggerState.ON_DISCONNECT
+                        && activeEntry.mState == Profile.TriggerState.ON_DISCONNECT)) {
+                    result.mReapplyActiveProfile = true;
+                }
+            }
+        }
+        return result;
+    }
+}
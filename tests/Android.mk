@@ -19,7 +19,7 @@ include $(CLEAR_VARS)
 LOCAL_MODULE_TAGS := tests
 
 LOCAL_STATIC_JAVA_LIBRARIES := \
-    org.lineageos.platform.sdk \
+    org.lineageos.platform.internal \
     android-support-test \
     mockito-target
 
@@ -41,7 +41,7 @@ include $(CLEAR_VARS)
 LOCAL_MODULE_TAGS := tests
 
 LOCAL_STATIC_JAVA_LIBRARIES := \
-    org.lineageos.platform.sdk \
+    org.lineageos.platform.internal \
     android-support-test \
     mockito-target
 
@@ -0,0 +1,205 @@
+/**
+ * Copyright (c) 2026, The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.tests.hardware.unit;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import org.lineageos.internal.display.ColorTransitionEngine;
+
+/**
+ * Runs LiveDisplay color transitions against {@link FakeLineageHardware}, and checks how
+ * many hardware writes each transition costs.
+ */
+public class ColorTransitionEngineTest extends AndroidTestCase {
+    private static final long TIMEOUT_MS = 5000;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mThread = new HandlerThread("ColorTransitionEngineTest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mThread.quitSafely();
+        super.tearDown();
+    }
+
+    @MediumTest
+    public void testCoarseCalibrationWritesOncePerStep() throws Exception {
+        final int maxColor = 32;
+        final FakeLineageHardware hardware =
+                new FakeLineageHardware(new int[] { 32, 32, 32 }, 0);
+        final ColorTransitionEngine engine =
+                new ColorTransitionEngine(mHandler, hardware, maxColor);
+
+        engine.setCalibrationSource(ColorTransitionEngine.SOURCE_TEMPERATURE,
+                new float[] { 1.0f, 0.8f, 0.6f });
+        awaitIdle(engine);
+
+        assertCalibration(hardware, 32, 25, 19);
+        // 13 steps on the blue channel, the largest change
+        assertTrue("writes: " + hardware.getCalibrationWrites(),
+                hardware.getCalibrationWrites() <= 13);
+        assertEquals(0, hardware.getRedundantWrites());
+    }
+
+    @MediumTest
+    public void testFineCalibrationWriteRateIsCapped() throws Exception {
+        final int maxColor = 1000;
+        final FakeLineageHardware hardware =
+                new FakeLineageHardware(new int[] { 1000, 1000, 1000 }, 0);
+        final ColorTransitionEngine engine =
+                new ColorTransitionEngine(mHandler, hardware, maxColor);
+
+        final long start = SystemClock.uptimeMillis();
+        engine.setCalibrationSource(ColorTransitionEngine.SOURCE_MANUAL,
+                new float[] { 0.0f, 0.5f, 1.0f });
+        awaitIdle(engine);
+        final long elapsed = SystemClock.uptimeMillis() - start;
+
+        assertCalibration(hardware, 0, 500, 1000);
+        // A thousand steps, but no more than one write per frame
+        assertTrue("writes: " + hardware.getCalibrationWrites() + " in " + elapsed + "ms",
+                hardware.getCalibrationWrites()
+                        <= elapsed / ColorTransitionEngine.MIN_WRITE_INTERVAL_MS + 1);
+        // Less a millisecond for the clock granularity
+        assertTrue("interval: " + hardware.getMinWriteInterval(),
+                hardware.getMinWriteInterval()
+                        >= ColorTransitionEngine.MIN_WRITE_INTERVAL_MS - 1);
+        assertEquals(0, hardware.getRedundantWrites());
+    }
+
+    @MediumTest
+    public void testConcurrentTargetsMergeIntoOneTransition() throws Exception {
+        final int maxColor = 100;
+        final FakeLineageHardware hardware =
+                new FakeLineageHardware(new int[] { 100, 100, 100 }, 0);
+        final ColorTransitionEngine engine =
+                new ColorTransitionEngine(mHandler, hardware, maxColor);
+
+        engine.setCalibrationSource(ColorTransitionEngine.SOURCE_MANUAL,
+                new float[] { 0.5f, 1.0f, 1.0f });
+        engine.setCalibrationSource(ColorTransitionEngine.SOURCE_TEMPERATURE,
+                new float[] { 1.0f, 0.5f, 0.8f });
+        awaitIdle(engine);
+
+        assertCalibration(hardware, 50, 50, 80);
+        // One transition of 50 steps, not one per target
+        assertTrue("writes: " + hardware.getCalibrationWrites(),
+                hardware.getCalibrationWrites() <= 50);
+        assertEquals(0, hardware.getRedundantWrites());
+
+        // Retargeting halfway carries on from where the transition got to
+        hardware.resetCounts();
+        engine.setCalibrationSource(ColorTransitionEngine.SOURCE_MANUAL,
+                new float[] { 1.0f, 1.0f, 1.0f });
+        Thread.sleep(100);
+        engine.setCalibrationSource(ColorTransitionEngine.SOURCE_TEMPERATURE,
+                new float[] { 1.0f, 1.0f, 1.0f });
+        awaitIdle(engine);
+        assertCalibration(hardware, 100, 100, 100);
+        assertEquals(0, hardware.getRedundantWrites());
+    }
+
+    @MediumTest
+    public void testBothSourcesRetargetOnce() throws Exception {
+        final FakeLineageHardware hardware =
+                new FakeLineageHardware(new int[] { 100, 100, 100 }, 0);
+        final ColorTransitionEngine engine =
+                new ColorTransitionEngine(mHandler, hardware, 100);
+
+        engine.setCalibrationSources(new float[] { 0.5f, 1.0f, 1.0f },
+                new float[] { 1.0f, 0.5f, 0.8f });
+        awaitIdle(engine);
+
+        assertCalibration(hardware, 50, 50, 80);
+        assertTrue("writes: " + hardware.getCalibrationWrites(),
+                hardware.getCalibrationWrites() <= 50);
+        assertEquals(0, hardware.getRedundantWrites());
+    }
+
+    @MediumTest
+    public void testColorBalanceSkipsUnchangedFrames() throws Exception {
+        final FakeLineageHardware hardware = new FakeLineageHardware(new int[3], 0);
+        final ColorTransitionEngine engine = new ColorTransitionEngine(mHandler, hardware, 0);
+
+        engine.setColorBalance(3);
+        awaitIdle(engine);
+        assertEquals(3, hardware.getColorBalance());
+        assertEquals(1, hardware.getBalanceWrites());
+
+        hardware.resetCounts();
+        engine.setColorBalance(-40);
+        awaitIdle(engine);
+        assertEquals(-40, hardware.getColorBalance());
+        assertTrue("writes: " + hardware.getBalanceWrites(),
+                hardware.getBalanceWrites() <= 43);
+        assertEquals(0, hardware.getRedundantWrites());
+        assertEquals(0, hardware.getCalibrationWrites());
+
+        // Nothing to do for the value already in the hardware
+        hardware.resetCounts();
+        engine.setColorBalance(-40);
+        awaitIdle(engine);
+        assertEquals(0, hardware.getBalanceWrites());
+    }
+
+    @MediumTest
+    public void testDisabledEngineHoldsTarget() throws Exception {
+        final FakeLineageHardware hardware =
+                new FakeLineageHardware(new int[] { 10, 10, 10 }, 0);
+        final ColorTransitionEngine engine = new ColorTransitionEngine(mHandler, hardware, 10);
+
+        engine.setEnabled(false);
+        engine.setCalibrationSource(ColorTransitionEngine.SOURCE_TEMPERATURE,
+                new float[] { 0.5f, 0.5f, 0.5f });
+        engine.setColorBalance(10);
+        Thread.sleep(200);
+        assertFalse(engine.isRunning());
+        assertEquals(0, hardware.getCalibrationWrites() + hardware.getBalanceWrites());
+
+        engine.setEnabled(true);
+        awaitIdle(engine);
+        assertCalibration(hardware, 5, 5, 5);
+        assertEquals(10, hardware.getColorBalance());
+    }
+
+    private static void awaitIdle(ColorTransitionEngine engine) throws InterruptedException {
+        final long deadline = SystemClock.uptimeMillis() + TIMEOUT_MS;
+        while (engine.isRunning()) {
+            assertTrue("transition did not finish", SystemClock.uptimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static void assertCalibration(FakeLineageHardware hardware, int r, int g, int b) {
+        final int[] rgb = hardware.getDisplayColorCalibration();
+        assertEquals(r, rgb[0]);
+        assertEquals(g, rgb[1]);
+        assertEquals(b, rgb[2]);
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright (c) 2026, The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.tests.hardware.unit;
+
+import android.os.SystemClock;
+
+import org.lineageos.internal.display.ColorTransitionEngine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stands in for the color calibration and color balance of LineageHardwareManager, and
+ * counts the writes they get.
+ */
+class FakeLineageHardware implements ColorTransitionEngine.Hardware {
+    private int[] mCalibration;
+    private int mBalance;
+
+    private int mCalibrationWrites;
+    private int mBalanceWrites;
+    // Writes of the value already in the hardware
+    private int mRedundantWrites;
+    private final List<Long> mCalibrationWriteTimes = new ArrayList<>();
+    private final List<Long> mBalanceWriteTimes = new ArrayList<>();
+
+    FakeLineageHardware(int[] calibration, int balance) {
+        mCalibration = calibration.clone();
+        mBalance = balance;
+    }
+
+    @Override
+    public synchronized int[] getDisplayColorCalibration() {
+        return mCalibration.clone();
+    }
+
+    @Override
+    public synchronized boolean setDisplayColorCalibration(int[] rgb) {
+        if (Arrays.equals(rgb, mCalibration)) {
+            mRedundantWrites++;
+        }
+        mCalibration = rgb.clone();
+        mCalibrationWrites++;
+        mCalibrationWriteTimes.add(SystemClock.uptimeMillis());
+        return true;
+    }
+
+    @Override
+    public synchronized int getColorBalance() {
+        return mBalance;
+    }
+
+    @Override
+    public synchronized boolean setColorBalance(int value) {
+        if (value == mBalance) {
+            mRedundantWrites++;
+        }
+        mBalance = value;
+        mBalanceWrites++;
+        mBalanceWriteTimes.add(SystemClock.uptimeMillis());
+        return true;
+    }
+
+    synchronized int getCalibrationWrites() {
+        return mCalibrationWrites;
+    }
+
+    synchronized int getBalanceWrites() {
+        return mBalanceWrites;
+    }
+
+    synchronized int getRedundantWrites() {
+        return mRedundantWrites;
+    }
+
+    /**
+     * @return the shortest time between two writes of the same channel, in milliseconds
+     */
+    synchronized long getMinWriteInterval() {
+        return Math.min(minInterval(mCalibrationWriteTimes), minInterval(mBalanceWriteTimes));
+    }
+
+    /**
+     * Starts counting the writes of a new transition.
+     */
+    synchronized void resetCounts() {
+        mCalibrationWrites = 0;
+        mBalanceWrites = 0;
+        mRedundantWrites = 0;
+        mCalibrationWriteTimes.clear();
+        mBalanceWriteTimes.clear();
+    }
+
+    private static long minInterval(List<Long> times) {
+        long min = Long.MAX_VALUE;
+        for (int i = 1; i < times.size(); i++) {
+            min = Math.min(min, times.get(i) - times.get(i - 1));
+        }
+        return min;
+    }
+}
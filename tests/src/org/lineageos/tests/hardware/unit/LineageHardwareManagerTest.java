@@ -19,10 +19,16 @@ package org.lineageos.tests.hardware.unit;
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.SmallTest;
 
+import android.util.Range;
+
 import lineageos.app.LineageContextConstants;
+import lineageos.hardware.DisplayMode;
 import lineageos.hardware.LineageHardwareManager;
 import lineageos.hardware.ILineageHardwareService;
 
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Created by adnan on 9/1/15.
  */
@@ -47,4 +53,60 @@ public class LineageHardwareManagerTest extends AndroidTestCase {
         ILineageHardwareService ilineageStatusBarManager = mLineageHardwareManager.getService();
         assertNotNull(ilineageStatusBarManager);
     }
+
+    @SmallTest
+    public void testIsSupportedByName() {
+        assertEquals(mLineageHardwareManager.isSupported(
+                LineageHardwareManager.FEATURE_DISPLAY_MODES),
+                mLineageHardwareManager.isSupported("FEATURE_DISPLAY_MODES"));
+        assertEquals(mLineageHardwareManager.isSupported(
+                LineageHardwareManager.FEATURE_COLOR_BALANCE),
+                mLineageHardwareManager.isSupported("FEATURE_COLOR_BALANCE"));
+        assertFalse(mLineageHardwareManager.isSupported("FEATURE_DOES_NOT_EXIST"));
+        assertFalse(mLineageHardwareManager.isSupported("COLOR_CALIBRATION_MAX_INDEX"));
+    }
+
+    @SmallTest
+    public void testCachedCapabilitiesAreStable() {
+        final Range<Integer> balance = mLineageHardwareManager.getColorBalanceRange();
+        assertEquals(balance, mLineageHardwareManager.getColorBalanceRange());
+
+        final List<Range<Float>> ranges = mLineageHardwareManager.getPictureAdjustmentRanges();
+        assertEquals(ranges, mLineageHardwareManager.getPictureAdjustmentRanges());
+
+        assertEquals(mLineageHardwareManager.getDisplayColorCalibrationMin(),
+                mLineageHardwareManager.getDisplayColorCalibrationMin());
+        assertEquals(mLineageHardwareManager.getDisplayColorCalibrationMax(),
+                mLineageHardwareManager.getDisplayColorCalibrationMax());
+
+        final DisplayMode[] modes = mLineageHardwareManager.getDisplayModes();
+        if (modes != null && modes.length > 0) {
+            // Callers get their own copy of the cached modes
+            modes[0] = null;
+            final DisplayMode[] again = mLineageHardwareManager.getDisplayModes();
+            assertNotNull(again[0]);
+            assertEquals(modes.length, again.length);
+        }
+    }
+
+    @SmallTest
+    public void testAwaitCapabilitiesMatchesIsSupported() throws Exception {
+        final int capabilities =
+                mLineageHardwareManager.awaitCapabilities().get(5, TimeUnit.SECONDS);
+        final int[] features = {
+                LineageHardwareManager.FEATURE_ADAPTIVE_BACKLIGHT,
+                LineageHardwareManager.FEATURE_COLOR_BALANCE,
+                LineageHardwareManager.FEATURE_DISPLAY_COLOR_CALIBRATION,
+                LineageHardwareManager.FEATURE_DISPLAY_MODES,
+                LineageHardwareManager.FEATURE_PICTURE_ADJUSTMENT,
+                LineageHardwareManager.FEATURE_SUNLIGHT_ENHANCEMENT,
+                LineageHardwareManager.FEATURE_TOUCHSCREEN_GESTURES,
+        };
+        for (int feature : features) {
+            // A hal may come up after the discovery, but never goes missing from it
+            if ((capabilities & feature) != 0) {
+                assertTrue(mLineageHardwareManager.isSupported(feature));
+            }
+        }
+    }
 }
@@ -0,0 +1,166 @@
+/**
+ * Copyright (c) 2026, The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.tests.hardware.unit;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.lineageos.internal.display.LuxRingBuffer;
+
+import java.util.LinkedList;
+
+/**
+ * Feeds 1,000,000 synthetic light sensor samples through the moving average of
+ * AmbientLuxObserver, once through the primitive ring and once through the linked list of
+ * samples it replaced, and reports the allocations and throughput of both.
+ */
+public class LuxRingBufferBenchmark extends AndroidTestCase {
+    private static final String TAG = "LuxRingBufferBenchmark";
+
+    private static final int SAMPLES = 1000000;
+    // The window and sensor rate of outdoor mode
+    private static final int PERIOD_MS = 10000;
+    private static final int RATE_MS = 250;
+
+    @LargeTest
+    public void testRingDoesNotAllocate() {
+        final LuxRingBuffer ring = new LuxRingBuffer(PERIOD_MS,
+                LuxRingBuffer.capacityFor(PERIOD_MS, RATE_MS));
+        final LinkedListAverage list = new LinkedListAverage(PERIOD_MS);
+
+        // Warm up both, then measure
+        feedRing(ring, SAMPLES / 10);
+        feedList(list, SAMPLES / 10);
+        ring.clear();
+        list.clear();
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        long start = SystemClock.elapsedRealtimeNanos();
+        final float ringAverage = feedRing(ring, SAMPLES);
+        final long ringNanos = SystemClock.elapsedRealtimeNanos() - start;
+        Debug.stopAllocCounting();
+        final int ringAllocs = Debug.getThreadAllocCount();
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        start = SystemClock.elapsedRealtimeNanos();
+        final float listAverage = feedList(list, SAMPLES);
+        final long listNanos = SystemClock.elapsedRealtimeNanos() - start;
+        Debug.stopAllocCounting();
+        final int listAllocs = Debug.getThreadAllocCount();
+
+        Log.i(TAG, SAMPLES + " samples: ring " + ringAllocs + " allocations, "
+                + samplesPerSecond(ringNanos) + " samples/s; linked list " + listAllocs
+                + " allocations, " + samplesPerSecond(listNanos) + " samples/s");
+
+        // The samples of the last window, PERIOD_MS / RATE_MS + 1 of them
+        double total = 0;
+        final int window = PERIOD_MS / RATE_MS + 1;
+        for (int i = SAMPLES - window; i < SAMPLES; i++) {
+            total += lux(i);
+        }
+        final float expected = (float) (total / window);
+        Log.i(TAG, "average " + expected + ": ring " + ringAverage + ", linked list "
+                + listAverage);
+        assertEquals(expected, ringAverage, 0.01f);
+        assertTrue("ring allocated " + ringAllocs + " objects", ringAllocs < SAMPLES / 1000);
+        assertTrue(listAllocs >= SAMPLES);
+    }
+
+    private static long samplesPerSecond(long nanos) {
+        return SAMPLES * 1000000000L / Math.max(1, nanos);
+    }
+
+    // Lux going from shade to sunlight and back, with some flicker
+    private static float lux(int i) {
+        return 2000f + 1500f * (float) Math.sin(i / 200.0) + (i % 7) * 50f;
+    }
+
+    private static float feedRing(LuxRingBuffer ring, int count) {
+        float average = 0;
+        long now = 0;
+        for (int i = 0; i < count; i++) {
+            now += RATE_MS;
+            ring.add(now, lux(i));
+            average = ring.getAverage(now);
+        }
+        return average;
+    }
+
+    private static float feedList(LinkedListAverage list, int count) {
+        float average = 0;
+        long now = 0;
+        for (int i = 0; i < count; i++) {
+            now += RATE_MS;
+            list.add(now, lux(i));
+            average = list.getAverage(now);
+        }
+        return average;
+    }
+
+    /**
+     * The moving average as AmbientLuxObserver used to keep it.
+     */
+    private static final class LinkedListAverage {
+        private final LinkedList<Sample> mRing = new LinkedList<Sample>();
+        private final int mPeriod;
+        private float mTotal = 0.0f;
+
+        private static class Sample {
+            final long mTimestamp;
+            final float mValue;
+
+            Sample(long timestamp, float value) {
+                mTimestamp = timestamp;
+                mValue = value;
+            }
+        }
+
+        LinkedListAverage(int period) {
+            mPeriod = period;
+        }
+
+        synchronized void add(long now, float sample) {
+            expire(now);
+            if (sample == 0.0f && mRing.size() == 0) {
+                return;
+            }
+            mRing.offer(new Sample(now, sample));
+            mTotal += sample;
+        }
+
+        synchronized float getAverage(long now) {
+            expire(now);
+            return mRing.size() == 0 ? 0.0f : (mTotal / mRing.size());
+        }
+
+        synchronized void clear() {
+            mRing.clear();
+            mTotal = 0.0f;
+        }
+
+        private void expire(long now) {
+            while (mRing.size() > 1 && ((now - mRing.peek().mTimestamp) > mPeriod)) {
+                mTotal -= mRing.pop().mValue;
+            }
+        }
+    }
+}
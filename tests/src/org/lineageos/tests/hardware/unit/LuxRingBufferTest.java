@@ -0,0 +1,93 @@
+/**
+ * Copyright (c) 2026, The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.tests.hardware.unit;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.lineageos.internal.display.LuxRingBuffer;
+
+public class LuxRingBufferTest extends AndroidTestCase {
+
+    private static final long PERIOD = 1000;
+
+    @SmallTest
+    public void testAverageOverWindow() {
+        final LuxRingBuffer ring = new LuxRingBuffer(PERIOD, 8);
+        ring.add(0, 100f);
+        ring.add(100, 200f);
+        ring.add(200, 300f);
+        assertEquals(3, ring.size());
+        assertEquals(200f, ring.getAverage(200), 0.001f);
+    }
+
+    @SmallTest
+    public void testExpiresOldSamplesButKeepsLast() {
+        final LuxRingBuffer ring = new LuxRingBuffer(PERIOD, 8);
+        ring.add(0, 100f);
+        ring.add(500, 300f);
+        assertEquals(300f, ring.getAverage(1200), 0.001f);
+        assertEquals(1, ring.size());
+        // The last sample stays however old it gets
+        assertEquals(300f, ring.getAverage(60000), 0.001f);
+        assertEquals(1, ring.size());
+    }
+
+    @SmallTest
+    public void testSkipsZeroWhileEmpty() {
+        final LuxRingBuffer ring = new LuxRingBuffer(PERIOD, 8);
+        ring.add(0, 0f);
+        assertEquals(0, ring.size());
+        assertEquals(0f, ring.getAverage(0), 0.0f);
+        ring.add(10, 50f);
+        ring.add(20, 0f);
+        assertEquals(2, ring.size());
+        assertEquals(25f, ring.getAverage(20), 0.001f);
+    }
+
+    @SmallTest
+    public void testFullRingDropsOldest() {
+        final LuxRingBuffer ring = new LuxRingBuffer(PERIOD, 4);
+        for (int i = 1; i <= 10; i++) {
+            ring.add(i, i * 10f);
+        }
+        assertEquals(4, ring.size());
+        assertEquals((70f + 80f + 90f + 100f) / 4, ring.getAverage(10), 0.001f);
+    }
+
+    @SmallTest
+    public void testWrapsAroundAndClears() {
+        final LuxRingBuffer ring = new LuxRingBuffer(PERIOD, 4);
+        long now = 0;
+        for (int i = 0; i < 100; i++) {
+            now += 400;
+            ring.add(now, 1000f);
+        }
+        assertEquals(1000f, ring.getAverage(now), 0.001f);
+        assertTrue(ring.size() <= 3);
+        ring.clear();
+        assertEquals(0, ring.size());
+        assertEquals(0f, ring.getAverage(now), 0.0f);
+    }
+
+    @SmallTest
+    public void testCapacityFor() {
+        assertTrue(LuxRingBuffer.capacityFor(10000, 250) >= 10000 / 250);
+        assertEquals(16, LuxRingBuffer.capacityFor(100, 250));
+        assertTrue(LuxRingBuffer.capacityFor(1000, 0) > 0);
+    }
+}
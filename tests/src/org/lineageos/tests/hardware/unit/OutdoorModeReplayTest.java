@@ -0,0 +1,209 @@
+/**
+ * Copyright (c) 2026, The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.tests.hardware.unit;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.lineageos.internal.display.AmbientLuxTracker;
+import org.lineageos.internal.display.LuxFilters;
+import org.lineageos.internal.display.LuxRingBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays light sensor traces through the {@link AmbientLuxTracker} the way
+ * AmbientLuxObserver drives it, and counts the sunlight enhancement toggles
+ * OutdoorModeController.updateOutdoorMode makes in automatic mode during the day, where the
+ * hal follows every transition. Each trace is replayed with the plain mean outdoor mode
+ * used before, and with its filter pipeline and rate limit now.
+ *
+ * Traces are segments of "lux:duration_ms", repeated for the length of the trace and read
+ * at the rate of the light sensor.
+ */
+public class OutdoorModeReplayTest extends AndroidTestCase {
+
+    // The configuration of OutdoorModeController
+    private static final float THRESHOLD_LUX = 12000;
+    private static final float HYSTERESIS_LUX = 1500;
+    private static final int WINDOW_MS = 3000;
+    private static final int RATE_MS = 250;
+
+    private static final long TRACE_MS = 60000;
+    // Time left after the trace for the filters to settle
+    private static final long SETTLE_MS = 60000;
+
+    // Walking under trees, in and out of their shade
+    private static final String TREES =
+            "18000:4000 5000:2500 16000:3000 4000:3500 20000:2000 6000:3000";
+    // Driving in the sun, under bridges and through the shadow of buildings
+    private static final String CAR = "800:2000 25000:6000";
+    // Staying out in the sun
+    private static final String SUNLIGHT = "20000:1000";
+
+    @SmallTest
+    public void testTreeShadeDoesNotFlicker() {
+        final Result plain = replay(trace(TREES, TRACE_MS), createPlainTracker());
+        final Result filtered = replay(trace(TREES, TRACE_MS), createOutdoorTracker());
+        assertTrue("plain mean toggled " + plain.mToggles + " times", plain.mToggles >= 10);
+        assertTrue("pipeline toggled " + filtered.mToggles + " times", filtered.mToggles <= 2);
+    }
+
+    @SmallTest
+    public void testUnderpassesDoNotFlicker() {
+        final Result plain = replay(trace(CAR, TRACE_MS), createPlainTracker());
+        final Result filtered = replay(trace(CAR, TRACE_MS), createOutdoorTracker());
+        assertTrue("plain mean toggled " + plain.mToggles + " times", plain.mToggles >= 10);
+        assertEquals(1, filtered.mToggles);
+        assertEquals(AmbientLuxTracker.HIGH, filtered.mState);
+    }
+
+    @SmallTest
+    public void testSteadySunlightSwitchesOnce() {
+        final Result plain = replay(trace(SUNLIGHT, TRACE_MS), createPlainTracker());
+        final Result filtered = replay(trace(SUNLIGHT, TRACE_MS), createOutdoorTracker());
+        assertEquals(1, plain.mToggles);
+        assertEquals(1, filtered.mToggles);
+        assertEquals(AmbientLuxTracker.HIGH, filtered.mState);
+    }
+
+    @SmallTest
+    public void testGoingIndoorsSwitchesOff() {
+        final List<long[]> trace = trace(SUNLIGHT, TRACE_MS / 2);
+        for (long[] sample : trace("300:1000", TRACE_MS / 2)) {
+            trace.add(new long[] { sample[0] + TRACE_MS / 2, sample[1] });
+        }
+        final Result plain = replay(trace, createPlainTracker());
+        final Result filtered = replay(trace, createOutdoorTracker());
+        assertEquals(2, plain.mToggles);
+        assertEquals(2, filtered.mToggles);
+        assertEquals(AmbientLuxTracker.LOW, filtered.mState);
+    }
+
+    @SmallTest
+    public void testMedianDropsSpikes() {
+        final AmbientLuxTracker tracker = new AmbientLuxTracker(THRESHOLD_LUX,
+                HYSTERESIS_LUX, LuxFilters.slidingMedian(5), 0);
+        assertFalse(tracker.addSample(0, 500));
+        assertFalse(tracker.addSample(250, 500));
+        assertFalse(tracker.addSample(500, 500));
+        assertFalse(tracker.addSample(750, 30000));
+        assertFalse(tracker.addSample(1000, 30000));
+        assertFalse(tracker.addSample(1250, 500));
+        assertEquals(500f, tracker.getAmbientLux(), 0.0f);
+    }
+
+    @SmallTest
+    public void testDualTimeConstantDarkensSlowly() {
+        final AmbientLuxTracker tracker = new AmbientLuxTracker(THRESHOLD_LUX,
+                HYSTERESIS_LUX, LuxFilters.dualTimeConstant(1000, 8000), 0);
+        tracker.addSample(0, 0);
+        tracker.addSample(1, 20000);
+        assertTrue(tracker.update(5000));
+        tracker.addSample(5000, 0);
+        // A second of darkness is not enough to go below the hysteresis
+        assertFalse(tracker.update(6000));
+        assertEquals(AmbientLuxTracker.HIGH, tracker.getState());
+        assertTrue(tracker.update(20000));
+        assertEquals(AmbientLuxTracker.LOW, tracker.getState());
+    }
+
+    @SmallTest
+    public void testTransitionsAreRateLimited() {
+        final AmbientLuxTracker tracker = new AmbientLuxTracker(THRESHOLD_LUX,
+                HYSTERESIS_LUX, LuxFilters.ema(0), 10000);
+        assertTrue(tracker.addSample(0, 20000));
+        assertFalse(tracker.addSample(1000, 100));
+        assertEquals(AmbientLuxTracker.HIGH, tracker.getState());
+        assertEquals(9000, tracker.getUpdateDelay(1000, 1500));
+        assertTrue(tracker.update(10000));
+        assertEquals(AmbientLuxTracker.LOW, tracker.getState());
+        assertEquals(-1, tracker.getUpdateDelay(10000, 1500));
+    }
+
+    private static AmbientLuxTracker createPlainTracker() {
+        return new AmbientLuxTracker(THRESHOLD_LUX, HYSTERESIS_LUX,
+                LuxFilters.movingAverage(WINDOW_MS,
+                        LuxRingBuffer.capacityFor(WINDOW_MS, RATE_MS)), 0);
+    }
+
+    private static AmbientLuxTracker createOutdoorTracker() {
+        return new AmbientLuxTracker(THRESHOLD_LUX, HYSTERESIS_LUX,
+                LuxFilters.outdoorMode(WINDOW_MS, RATE_MS),
+                LuxFilters.OUTDOOR_MIN_TRANSITION_INTERVAL_MS);
+    }
+
+    private static List<long[]> trace(String segments, long duration) {
+        final List<long[]> samples = new ArrayList<>();
+        final String[] parts = segments.split(" ");
+        long time = 0;
+        while (time < duration) {
+            for (String part : parts) {
+                final String[] fields = part.split(":");
+                final long lux = Long.parseLong(fields[0]);
+                final long end = time + Long.parseLong(fields[1]);
+                while (time < end && time < duration) {
+                    samples.add(new long[] { time, lux });
+                    time += RATE_MS;
+                }
+            }
+        }
+        return samples;
+    }
+
+    private static final class Result {
+        int mToggles;
+        int mState;
+    }
+
+    /**
+     * Feeds the samples and the delayed checks in time order, like the handler of
+     * AmbientLuxObserver does.
+     */
+    private static Result replay(List<long[]> trace, AmbientLuxTracker tracker) {
+        final Result result = new Result();
+        long nextUpdate = -1;
+        long end = 0;
+        for (long[] sample : trace) {
+            final long time = sample[0];
+            while (nextUpdate >= 0 && nextUpdate <= time) {
+                final long now = nextUpdate;
+                nextUpdate = handle(tracker, now, tracker.update(now), result);
+            }
+            nextUpdate = handle(tracker, time, tracker.addSample(time, sample[1]), result);
+            end = time;
+        }
+        end += SETTLE_MS;
+        while (nextUpdate >= 0 && nextUpdate <= end) {
+            final long now = nextUpdate;
+            nextUpdate = handle(tracker, now, tracker.update(now), result);
+        }
+        result.mState = tracker.getState();
+        return result;
+    }
+
+    private static long handle(AmbientLuxTracker tracker, long now, boolean transitioned,
+            Result result) {
+        if (transitioned) {
+            // updateOutdoorMode enables sunlight enhancement when outdoor, and disables it
+            result.mToggles++;
+        }
+        final long delay = tracker.getUpdateDelay(now, WINDOW_MS / 2);
+        return delay < 0 ? -1 : now + delay;
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright (c) 2026, The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.tests.profiles.unit;
+
+import android.app.NotificationGroup;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import lineageos.app.IProfileManager;
+import lineageos.app.LineageContextConstants;
+import lineageos.app.ProfileManager;
+
+import java.util.Locale;
+
+/**
+ * Reports the service side cost of the notification group lookups with few and with many
+ * groups. The lookups go straight to the service, past the ProfileManager cache, and should
+ * cost about the same whatever the number of groups. Only the results of the lookups are
+ * asserted, the timings depend too much on the device and its load.
+ */
+public class NotificationGroupLookupBenchmark extends AndroidTestCase {
+    private static final String TAG = "NotificationGroupLookupBenchmark";
+
+    private static final int GROUP_COUNT = 500;
+    private static final int PACKAGE_COUNT = 5000;
+    private static final int LOOKUPS = 2000;
+
+    private ProfileManager mProfileManager;
+    private IProfileManager mService;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        org.junit.Assume.assumeTrue(mContext.getPackageManager().hasSystemFeature(
+                LineageContextConstants.Features.PROFILES));
+        mProfileManager = ProfileManager.getInstance(mContext);
+        mService = ProfileManager.getService();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mProfileManager != null) {
+            mProfileManager.resetAll();
+        }
+        super.tearDown();
+    }
+
+    @LargeTest
+    public void testLookupCostWithManyGroups() throws Exception {
+        addGroups(0, 5);
+        final long fewGroupsNanos = measureLookups(5);
+
+        addGroups(5, GROUP_COUNT);
+        final long manyGroupsNanos = measureLookups(GROUP_COUNT);
+
+        Log.i(TAG, "lookup with 5 groups: " + fewGroupsNanos + "ns, with " + GROUP_COUNT
+                + " groups and " + PACKAGE_COUNT + " packages: " + manyGroupsNanos + "ns");
+    }
+
+    @MediumTest
+    public void testNameLookupIgnoresCase() throws Exception {
+        // Dotted capital I, which String.toLowerCase() turns into two chars
+        mProfileManager.addNotificationGroup(new NotificationGroup("Benchmark \u0130zmir"));
+        assertTrue(mService.notificationGroupExistsByName("Benchmark \u0130zmir"));
+        assertTrue(mService.notificationGroupExistsByName("BENCHMARK \u0130ZMIR"));
+        // Same as String.equalsIgnoreCase(), which compares char by char
+        assertTrue("Benchmark \u0130zmir".equalsIgnoreCase("benchmark izmir"));
+        assertTrue(mService.notificationGroupExistsByName("benchmark izmir"));
+        assertFalse(mService.notificationGroupExistsByName("benchmark izmi"));
+    }
+
+    @MediumTest
+    public void testPackageLookupFollowsGroupChanges() throws Exception {
+        final NotificationGroup first = new NotificationGroup("benchmark first");
+        first.addPackage(packageName(0));
+        first.addPackage(packageName(1));
+        mProfileManager.addNotificationGroup(first);
+        final NotificationGroup second = new NotificationGroup("benchmark second");
+        second.addPackage(packageName(1));
+        mProfileManager.addNotificationGroup(second);
+
+        // The group that has listed a package the longest wins
+        assertGroup(first, packageName(0));
+        assertGroup(first, packageName(1));
+
+        mProfileManager.removeNotificationGroup(first);
+        assertNull(mService.getNotificationGroupForPackage(packageName(0)));
+        assertGroup(second, packageName(1));
+        assertFalse(mService.notificationGroupExistsByName("benchmark first"));
+        assertTrue(mService.notificationGroupExistsByName("benchmark second"));
+
+        mProfileManager.removeNotificationGroup(second);
+        assertNull(mService.getNotificationGroupForPackage(packageName(1)));
+    }
+
+    private void addGroups(int from, int to) {
+        final int packagesPerGroup = PACKAGE_COUNT / GROUP_COUNT;
+        for (int i = from; i < to; i++) {
+            NotificationGroup group = new NotificationGroup(groupName(i));
+            for (int j = 0; j < packagesPerGroup; j++) {
+                group.addPackage(packageName(i * packagesPerGroup + j));
+            }
+            mProfileManager.addNotificationGroup(group);
+        }
+    }
+
+    /**
+     * @return the average time of a package and a name lookup, in nanoseconds
+     */
+    private long measureLookups(int groupCount) throws RemoteException {
+        final int packagesPerGroup = PACKAGE_COUNT / GROUP_COUNT;
+        final int packageCount = groupCount * packagesPerGroup;
+        final long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < LOOKUPS; i++) {
+            // Look up the last packages and groups added, the worst case for a scan
+            final int index = packageCount - 1 - (i % 10);
+            final NotificationGroup group =
+                    mService.getNotificationGroupForPackage(packageName(index));
+            assertNotNull(group);
+            assertEquals(groupName(index / packagesPerGroup), group.getName());
+            assertTrue(mService.notificationGroupExistsByName(
+                    groupName(groupCount - 1).toUpperCase(Locale.ROOT)));
+        }
+        final long nanos = (SystemClock.elapsedRealtimeNanos() - start) / LOOKUPS;
+        assertFalse(mService.notificationGroupExistsByName(groupName(groupCount)));
+        assertNull(mService.getNotificationGroupForPackage(packageName(packageCount)));
+        return nanos;
+    }
+
+    private void assertGroup(NotificationGroup expected, String pkg) throws RemoteException {
+        final NotificationGroup group = mService.getNotificationGroupForPackage(pkg);
+        assertNotNull(pkg, group);
+        assertEquals(pkg, expected.getUuid(), group.getUuid());
+    }
+
+    private static String groupName(int index) {
+        return "benchmark group " + index;
+    }
+
+    private static String packageName(int index) {
+        return "org.lineageos.benchmark.pkg" + index;
+    }
+}
@@ -24,7 +24,9 @@ import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.SmallTest;
 import lineageos.app.LineageContextConstants;
 import lineageos.app.Profile;
+import lineageos.app.ProfileGroup;
 import lineageos.app.ProfileManager;
+import lineageos.app.ProfileSummary;
 import lineageos.app.IProfileManager;
 import lineageos.providers.LineageSettings;
 
@@ -192,6 +194,46 @@ public class ProfileManagerTest extends AndroidTestCase {
         mProfileManager.resetAll();
     }
 
+    @SmallTest
+    public void testGetProfileSummaries() {
+        ensureProfilesEnabled();
+        mProfileManager.addProfile(new Profile("PROFILE 1"));
+        mProfileManager.addProfile(new Profile("PROFILE 2"));
+
+        Profile[] expectedProfiles = mProfileManager.getProfiles();
+        ProfileSummary[] summaries = mProfileManager.getProfileSummaries();
+        assertEquals(expectedProfiles.length, summaries.length);
+        assertEquals(expectedProfiles.length, mProfileManager.getProfileCount());
+
+        UUID activeUuid = mProfileManager.getActiveProfile().getUuid();
+        for (int i = 0; i < summaries.length; i++) {
+            assertEquals(expectedProfiles[i].getUuid(), summaries[i].getUuid());
+            assertEquals(expectedProfiles[i].getName(), summaries[i].getName());
+            assertEquals(expectedProfiles[i].getProfileType(), summaries[i].getProfileType());
+            assertEquals(activeUuid.equals(summaries[i].getUuid()), summaries[i].isActive());
+        }
+        mProfileManager.resetAll();
+    }
+
+    @SmallTest
+    public void testGetProfilesInPages() {
+        ensureProfilesEnabled();
+        mProfileManager.addProfile(new Profile("PROFILE 1"));
+        mProfileManager.addProfile(new Profile("PROFILE 2"));
+
+        Profile[] expectedProfiles = mProfileManager.getProfiles();
+        for (int i = 0; i < expectedProfiles.length; i += 2) {
+            Profile[] page = mProfileManager.getProfiles(i, 2);
+            assertEquals(Math.min(2, expectedProfiles.length - i), page.length);
+            for (int j = 0; j < page.length; j++) {
+                assertEquals(expectedProfiles[i + j].getUuid(), page[j].getUuid());
+            }
+        }
+        assertEquals(0, mProfileManager.getProfiles(expectedProfiles.length, 2).length);
+        assertEquals(0, mProfileManager.getProfiles(0, 0).length);
+        mProfileManager.resetAll();
+    }
+
     @SmallTest
     public void testProfileExists() {
         ensureProfilesEnabled();
@@ -221,4 +263,44 @@ public class ProfileManagerTest extends AndroidTestCase {
         assertEquals(expectedProfileName, expectedProfile.getName());
         mProfileManager.resetAll();
     }
+
+    @SmallTest
+    public void testCachedProfileFollowsUpdates() {
+        ensureProfilesEnabled();
+        Profile profile = new Profile("PROFILE 1");
+        mProfileManager.addProfile(profile);
+        assertTrue(mProfileManager.profileExists(profile.getUuid()));
+        assertEquals("PROFILE 1", mProfileManager.getProfile(profile.getUuid()).getName());
+
+        // Changing a returned profile must not change what later calls return
+        mProfileManager.getProfile(profile.getUuid()).setName("CHANGED");
+        assertEquals("PROFILE 1", mProfileManager.getProfile(profile.getUuid()).getName());
+
+        // Changes made through the service are seen right away
+        profile.setName("PROFILE 2");
+        mProfileManager.updateProfile(profile);
+        assertEquals("PROFILE 2", mProfileManager.getProfile(profile.getUuid()).getName());
+
+        mProfileManager.removeProfile(profile);
+        assertFalse(mProfileManager.profileExists(profile.getUuid()));
+        assertNull(mProfileManager.getProfile(profile.getUuid()));
+        mProfileManager.resetAll();
+    }
+
+    @SmallTest
+    public void testActiveProfileGroupIsCopy() {
+        ensureProfilesEnabled();
+        final String pkg = "org.lineageos.tests.unknown";
+        ProfileGroup group = mProfileManager.getActiveProfileGroup(pkg);
+        assertNotNull(group);
+        final ProfileGroup.Mode soundMode = group.getSoundMode();
+        final ProfileGroup.Mode changedMode = soundMode == ProfileGroup.Mode.SUPPRESS
+                ? ProfileGroup.Mode.OVERRIDE : ProfileGroup.Mode.SUPPRESS;
+
+        // Changing the returned group must not change the cached active profile
+        group.setSoundMode(changedMode);
+        assertEquals(soundMode, mProfileManager.getActiveProfileGroup(pkg).getSoundMode());
+        assertEquals(soundMode, mProfileManager.getActiveProfile().getDefaultGroup()
+                .getSoundMode());
+    }
 }
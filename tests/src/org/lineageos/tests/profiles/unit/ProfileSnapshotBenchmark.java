@@ -0,0 +1,148 @@
+/**
+ * Copyright (c) 2026, The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.tests.profiles.unit;
+
+import android.media.AudioManager;
+import android.os.Parcel;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import android.util.Xml;
+
+import lineageos.app.Profile;
+import lineageos.profiles.ConnectionSettings;
+import lineageos.profiles.StreamSettings;
+
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads 1,000 synthetic profiles the way the profile service does at boot, once by parsing
+ * the profiles XML and once by decoding the parcelled snapshot written alongside it, and
+ * reports the time saved. Only the loaded profiles are asserted, the timings depend too much
+ * on the device and its load.
+ */
+public class ProfileSnapshotBenchmark extends AndroidTestCase {
+    private static final String TAG = "ProfileSnapshotBenchmark";
+
+    private static final int PROFILE_COUNT = 1000;
+    private static final int RUNS = 5;
+
+    @LargeTest
+    public void testSnapshotLoadTime() throws Exception {
+        final List<Profile> profiles = createProfiles();
+
+        final StringBuilder builder = new StringBuilder("<profiles>\n");
+        for (Profile profile : profiles) {
+            profile.getXmlString(builder, mContext);
+        }
+        builder.append("</profiles>\n");
+        final String xml = builder.toString();
+
+        final Parcel parcel = Parcel.obtain();
+        parcel.writeInt(profiles.size());
+        for (Profile profile : profiles) {
+            profile.writeToParcel(parcel, 0);
+        }
+        final byte[] snapshot = parcel.marshall();
+        parcel.recycle();
+
+        // Both paths load the same profiles. Warm them up, then keep the best run of each
+        assertLoaded(profiles, loadXml(xml));
+        assertLoaded(profiles, loadSnapshot(snapshot));
+        long xmlNanos = Long.MAX_VALUE;
+        long snapshotNanos = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            loadXml(xml);
+            xmlNanos = Math.min(xmlNanos, SystemClock.elapsedRealtimeNanos() - start);
+
+            start = SystemClock.elapsedRealtimeNanos();
+            loadSnapshot(snapshot);
+            snapshotNanos = Math.min(snapshotNanos, SystemClock.elapsedRealtimeNanos() - start);
+        }
+
+        Log.i(TAG, PROFILE_COUNT + " profiles: xml " + xml.length() / 1024 + "KiB in "
+                + xmlNanos / 1000 + "us, snapshot " + snapshot.length / 1024 + "KiB in "
+                + snapshotNanos / 1000 + "us, saving " + (xmlNanos - snapshotNanos) / 1000
+                + "us at boot");
+    }
+
+    private static List<Profile> createProfiles() {
+        final List<Profile> profiles = new ArrayList<>(PROFILE_COUNT);
+        for (int i = 0; i < PROFILE_COUNT; i++) {
+            Profile profile = new Profile("Synthetic profile " + i);
+            profile.setStreamSettings(
+                    new StreamSettings(AudioManager.STREAM_RING, i % 7, true));
+            profile.setStreamSettings(
+                    new StreamSettings(AudioManager.STREAM_NOTIFICATION, i % 5, true));
+            profile.setConnectionSettings(new ConnectionSettings(
+                    ConnectionSettings.PROFILE_CONNECTION_WIFI, i % 2, true));
+            profile.setTrigger(Profile.TriggerType.WIFI, "ssid" + i,
+                    Profile.TriggerState.ON_CONNECT, "ssid" + i);
+            profile.setTrigger(Profile.TriggerType.BLUETOOTH,
+                    String.format("00:11:22:33:%02X:%02X", (i >> 8) & 0xff, i & 0xff),
+                    Profile.TriggerState.ON_DISCONNECT, "headset" + i);
+            profiles.add(profile);
+        }
+        return profiles;
+    }
+
+    private List<Profile> loadXml(String xml) throws Exception {
+        final List<Profile> profiles = new ArrayList<>(PROFILE_COUNT);
+        final XmlPullParser xpp = Xml.newPullParser();
+        xpp.setInput(new StringReader(xml));
+        int event = xpp.next();
+        while (event != XmlPullParser.END_DOCUMENT) {
+            if (event == XmlPullParser.START_TAG && "profile".equals(xpp.getName())) {
+                profiles.add(Profile.fromXml(xpp, mContext));
+            }
+            event = xpp.next();
+        }
+        return profiles;
+    }
+
+    private static List<Profile> loadSnapshot(byte[] snapshot) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(snapshot, 0, snapshot.length);
+            parcel.setDataPosition(0);
+            final int count = parcel.readInt();
+            final List<Profile> profiles = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                profiles.add(Profile.CREATOR.createFromParcel(parcel));
+            }
+            return profiles;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static void assertLoaded(List<Profile> expected, List<Profile> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getUuid(), actual.get(i).getUuid());
+            assertEquals(expected.get(i).getName(), actual.get(i).getName());
+            assertEquals(expected.get(i).getTriggersFromType(Profile.TriggerType.WIFI).size(),
+                    actual.get(i).getTriggersFromType(Profile.TriggerType.WIFI).size());
+        }
+    }
+}
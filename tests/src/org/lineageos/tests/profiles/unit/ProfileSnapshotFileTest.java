@@ -0,0 +1,159 @@
+/**
+ * Copyright (c) 2026, The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.tests.profiles.unit;
+
+import android.os.Parcel;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import lineageos.app.Profile;
+
+import org.lineageos.internal.profiles.ProfileSnapshotFile;
+import org.lineageos.internal.profiles.ProfileSnapshotFile.BaseStamp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class ProfileSnapshotFileTest extends AndroidTestCase {
+
+    private static final String STAMP = "build/en-US";
+
+    private File mBaseFile;
+    private File mFile;
+    private ProfileSnapshotFile mSnapshot;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBaseFile = new File(mContext.getCacheDir(), "profiles.xml");
+        mFile = new File(mContext.getCacheDir(), "profiles.xml.snapshot");
+        mBaseFile.delete();
+        mFile.delete();
+        mSnapshot = new ProfileSnapshotFile(mBaseFile, mFile);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mBaseFile.delete();
+        mFile.delete();
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testReadsBackProfiles() throws Exception {
+        writeBase("<profiles>one</profiles>");
+        final Profile profile = new Profile("Snapshot");
+        final Parcel parcel = Parcel.obtain();
+        profile.writeToParcel(parcel, 0);
+        final byte[] payload = parcel.marshall();
+        parcel.recycle();
+        mSnapshot.write(payload, STAMP);
+
+        final byte[] read = mSnapshot.read(STAMP);
+        assertTrue(Arrays.equals(payload, read));
+        final Parcel in = Parcel.obtain();
+        try {
+            in.unmarshall(read, 0, read.length);
+            in.setDataPosition(0);
+            final Profile loaded = Profile.CREATOR.createFromParcel(in);
+            assertEquals(profile.getUuid(), loaded.getUuid());
+            assertEquals(profile.getName(), loaded.getName());
+        } finally {
+            in.recycle();
+        }
+    }
+
+    @SmallTest
+    public void testIgnoresSnapshotOfReplacedBase() throws Exception {
+        writeBase("<profiles>one</profiles>");
+        mSnapshot.write(new byte[] { 1, 2, 3 }, STAMP);
+        assertNotNull(mSnapshot.read(STAMP));
+
+        // E.g. restored from a backup, the snapshot is stale now
+        writeBase("<profiles>restored</profiles>");
+        assertNull(mSnapshot.read(STAMP));
+    }
+
+    @SmallTest
+    public void testIgnoresSnapshotOfTouchedBase() throws Exception {
+        writeBase("<profiles>one</profiles>");
+        mSnapshot.write(new byte[] { 1, 2, 3 }, STAMP);
+
+        // Same contents, but not the file the snapshot was written with
+        assertTrue(mBaseFile.setLastModified(mBaseFile.lastModified() - 1000));
+        assertNull(mSnapshot.read(STAMP));
+    }
+
+    @SmallTest
+    public void testIgnoresSnapshotOfOtherBuildOrLocale() throws Exception {
+        writeBase("<profiles>one</profiles>");
+        mSnapshot.write(new byte[] { 1, 2, 3 }, STAMP);
+        assertNull(mSnapshot.read("build/fr-FR"));
+    }
+
+    @SmallTest
+    public void testIgnoresCorruptSnapshot() throws Exception {
+        writeBase("<profiles>one</profiles>");
+        mSnapshot.write(new byte[] { 1, 2, 3 }, STAMP);
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.seek(file.length() - 1);
+            file.write(42);
+        }
+        assertNull(mSnapshot.read(STAMP));
+    }
+
+    @SmallTest
+    public void testIgnoresTruncatedSnapshot() throws Exception {
+        writeBase("<profiles>one</profiles>");
+        mSnapshot.write(new byte[] { 1, 2, 3 }, STAMP);
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.setLength(file.length() - 2);
+        }
+        assertNull(mSnapshot.read(STAMP));
+    }
+
+    @SmallTest
+    public void testMissingFiles() throws Exception {
+        assertNull(mSnapshot.read(STAMP));
+        writeBase("<profiles>one</profiles>");
+        assertNull(mSnapshot.read(STAMP));
+
+        mSnapshot.write(new byte[] { 1, 2, 3 }, STAMP);
+        mSnapshot.delete();
+        assertNull(mSnapshot.read(STAMP));
+    }
+
+    @SmallTest
+    public void testBaseStampFollowsBase() throws Exception {
+        assertEquals(BaseStamp.of(mBaseFile), BaseStamp.of(mBaseFile));
+        writeBase("<profiles>one</profiles>");
+        final BaseStamp stamp = BaseStamp.of(mBaseFile);
+        assertEquals(stamp, BaseStamp.of(mBaseFile));
+        writeBase("<profiles>two, longer</profiles>");
+        assertFalse(stamp.equals(BaseStamp.of(mBaseFile)));
+    }
+
+    private void writeBase(String xml) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(mBaseFile)) {
+            out.write(xml.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright (c) 2026, The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.tests.profiles.unit;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import lineageos.app.Profile;
+
+import org.lineageos.internal.profiles.TriggerEventCoalescer;
+import org.lineageos.internal.profiles.TriggerWindowEvaluator;
+import org.lineageos.internal.profiles.TriggerWindowEvaluator.Entry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Replays recorded trigger event traces through the {@link TriggerEventCoalescer} and the
+ * {@link TriggerWindowEvaluator}, and counts the profile switches and trigger broadcasts they
+ * cause: evaluated once per event before, once per window now.
+ *
+ * Trace lines read "time_ms wifi|bt id connect|disconnect".
+ */
+public class ProfileTriggerReplayTest extends AndroidTestCase {
+
+    private static final String HOME = "home";
+    private static final String CAR = "car";
+    private static final String WORK = "work";
+
+    private static final String HOME_WIFI = "HomeNet";
+    private static final String OFFICE_WIFI = "Office";
+    private static final String CAR_KIT = "00:11:22:33:44:55";
+    private static final String HEADSET = "66:77:88:99:AA:BB";
+
+    private static final long WINDOW_MS = TriggerEventCoalescer.DEFAULT_WINDOW_MS;
+
+    @SmallTest
+    public void testFlappingBluetoothSwitchesOnce() {
+        final String[] trace = {
+                "0 bt " + CAR_KIT + " connect",
+                "100 bt " + CAR_KIT + " disconnect",
+                "200 bt " + CAR_KIT + " connect",
+                "300 bt " + CAR_KIT + " disconnect",
+                "400 bt " + CAR_KIT + " connect",
+        };
+        final Result raw = replay(trace, 0);
+        final Result debounced = replay(trace, WINDOW_MS);
+        assertEquals(5, raw.mSwitches);
+        assertEquals(1, debounced.mSwitches);
+        assertEquals(CAR, debounced.mActiveProfile);
+        assertEquals(raw.mActiveProfile, debounced.mActiveProfile);
+    }
+
+    @SmallTest
+    public void testConnectDisconnectPairCollapses() {
+        final String[] trace = {
+                "0 bt " + CAR_KIT + " connect",
+                "150 bt " + CAR_KIT + " disconnect",
+        };
+        final Result raw = replay(trace, 0);
+        final Result debounced = replay(trace, WINDOW_MS);
+        assertEquals(2, raw.mSwitches);
+        assertEquals(0, debounced.mSwitches);
+        assertEquals(0, debounced.mBroadcasts);
+        assertEquals(HOME, debounced.mActiveProfile);
+    }
+
+    @SmallTest
+    public void testWifiRoamKeepsProfileQuiet() {
+        final String[] trace = {
+                "0 wifi " + HOME_WIFI + " disconnect",
+                "300 wifi " + HOME_WIFI + " connect",
+                "2500 wifi " + HOME_WIFI + " disconnect",
+                "2600 wifi " + HOME_WIFI + " connect",
+        };
+        final Result raw = replay(trace, 0);
+        final Result debounced = replay(trace, WINDOW_MS);
+        assertEquals(4, raw.mBroadcasts);
+        assertEquals(0, debounced.mBroadcasts);
+        assertEquals(0, debounced.mSwitches);
+    }
+
+    @SmallTest
+    public void testBurstAcrossTriggersSwitchesOnce() {
+        final String[] trace = {
+                "0 wifi " + OFFICE_WIFI + " connect",
+                "200 bt " + CAR_KIT + " connect",
+        };
+        final Result raw = replay(trace, 0);
+        final Result debounced = replay(trace, WINDOW_MS);
+        assertEquals(2, raw.mSwitches);
+        assertEquals(1, debounced.mSwitches);
+        assertEquals(raw.mActiveProfile, debounced.mActiveProfile);
+    }
+
+    @SmallTest
+    public void testSpreadEventsAreKept() {
+        final String[] trace = {
+                "0 bt " + CAR_KIT + " connect",
+                "5000 bt " + CAR_KIT + " disconnect",
+                "10000 wifi " + OFFICE_WIFI + " connect",
+        };
+        final Result raw = replay(trace, 0);
+        final Result debounced = replay(trace, WINDOW_MS);
+        assertEquals(3, raw.mSwitches);
+        assertEquals(raw.mSwitches, debounced.mSwitches);
+        assertEquals(raw.mBroadcasts, debounced.mBroadcasts);
+        assertEquals(WORK, debounced.mActiveProfile);
+    }
+
+    @SmallTest
+    public void testDisabledTriggerOfActiveProfileIsBroadcast() {
+        final String[] trace = {
+                "0 bt " + HEADSET + " connect",
+                "5000 bt " + HEADSET + " disconnect",
+        };
+        final Result debounced = replay(trace, WINDOW_MS);
+        assertEquals(0, debounced.mSwitches);
+        assertEquals(2, debounced.mBroadcasts);
+        assertEquals(HOME, debounced.mActiveProfile);
+    }
+
+    private static final class Result {
+        int mSwitches;
+        int mBroadcasts;
+        String mActiveProfile = HOME;
+    }
+
+    private static final Entry[] ENTRIES = {
+            new Entry(Profile.TriggerType.WIFI, HOME_WIFI, uuidOf(HOME),
+                    Profile.TriggerState.ON_CONNECT),
+            new Entry(Profile.TriggerType.BLUETOOTH, CAR_KIT, uuidOf(HOME),
+                    Profile.TriggerState.ON_DISCONNECT),
+            new Entry(Profile.TriggerType.BLUETOOTH, HEADSET, uuidOf(HOME),
+                    Profile.TriggerState.DISABLED),
+            new Entry(Profile.TriggerType.BLUETOOTH, CAR_KIT, uuidOf(CAR),
+                    Profile.TriggerState.ON_CONNECT),
+            new Entry(Profile.TriggerType.BLUETOOTH, HEADSET, uuidOf(CAR),
+                    Profile.TriggerState.DISABLED),
+            new Entry(Profile.TriggerType.WIFI, OFFICE_WIFI, uuidOf(WORK),
+                    Profile.TriggerState.ON_CONNECT),
+    };
+
+    // Looks the entries up like the trigger index of the profile service
+    private static final TriggerWindowEvaluator.TriggerLookup LOOKUP = (type, id) -> {
+        final ArrayList<Entry> entries = new ArrayList<>();
+        for (Entry entry : ENTRIES) {
+            if (entry.mType == type && entry.mId.equals(id)) {
+                entries.add(entry);
+            }
+        }
+        return entries.toArray(new Entry[entries.size()]);
+    };
+
+    /**
+     * @param windowMs the length of a window, or 0 to evaluate every event on its own
+     */
+    private static Result replay(String[] trace, long windowMs) {
+        final TriggerEventCoalescer coalescer = new TriggerEventCoalescer();
+        final Result result = new Result();
+        long windowEnd = 0;
+        for (String line : trace) {
+            final String[] fields = line.split(" ");
+            final long time = Long.parseLong(fields[0]);
+            if (coalescer.hasPending() && time >= windowEnd) {
+                evaluate(coalescer.drain(), result);
+            }
+            final int type = "wifi".equals(fields[1])
+                    ? Profile.TriggerType.WIFI : Profile.TriggerType.BLUETOOTH;
+            final int state = "connect".equals(fields[3])
+                    ? Profile.TriggerState.ON_CONNECT : Profile.TriggerState.ON_DISCONNECT;
+            if (coalescer.add(type, fields[2], state)) {
+                windowEnd = time + windowMs;
+            }
+            if (windowMs == 0) {
+                evaluate(coalescer.drain(), result);
+            }
+        }
+        evaluate(coalescer.drain(), result);
+        return result;
+    }
+
+    private static void evaluate(List<TriggerEventCoalescer.Event> events, Result result) {
+        if (events.isEmpty()) {
+            return;
+        }
+        final TriggerWindowEvaluator.Result window = TriggerWindowEvaluator.evaluate(events,
+                uuidOf(result.mActiveProfile), LOOKUP);
+        result.mBroadcasts += window.mBroadcasts.size();
+        if (window.mNewProfileUuid != null) {
+            result.mActiveProfile = nameOf(window.mNewProfileUuid);
+            result.mSwitches++;
+        }
+    }
+
+    private static UUID uuidOf(String profile) {
+        return UUID.nameUUIDFromBytes(profile.getBytes());
+    }
+
+    private static String nameOf(UUID uuid) {
+        for (String profile : new String[] { HOME, CAR, WORK }) {
+            if (uuidOf(profile).equals(uuid)) {
+                return profile;
+            }
+        }
+        throw new IllegalArgumentException("Unknown profile " + uuid);
+    }
+}